@@ -1083,6 +1083,11 @@ public class BpfCoordinator {
         dumpDevmap(pw);
         pw.decreaseIndent();
 
+        pw.println("Conntrack events:");
+        pw.increaseIndent();
+        mBpfConntrackEventConsumer.dump(pw);
+        pw.decreaseIndent();
+
         pw.println("Client Information:");
         pw.increaseIndent();
         if (mTetherClients.isEmpty()) {
@@ -1812,7 +1817,67 @@ public class BpfCoordinator {
                     NON_OFFLOADED_UPSTREAM_IPV4_TCP_PORTS, e.tupleOrig.dstPort);
         }
 
+        // Conntrack events received but not handled yet. ConntrackMonitor delivers all the events
+        // read from the netlink socket at once on the handler thread, so handling them from a
+        // posted runnable processes them as one batch.
+        private final ArrayList<ConntrackEvent> mPendingEvents = new ArrayList<>();
+        private final Runnable mHandlePendingEvents = this::handlePendingEvents;
+        private long mFirstPendingEventTimeNs;
+
+        // Statistics printed in dump.
+        private long mEventCount;
+        private long mBatchCount;
+        private int mMaxBatchSize;
+        private long mSupersededEventCount;
+        private long mMaxBatchDelayNs;
+
         public void accept(ConntrackEvent e) {
+            if (mPendingEvents.isEmpty()) {
+                mFirstPendingEventTimeNs = mDeps.elapsedRealtimeNanos();
+                mHandler.post(mHandlePendingEvents);
+            }
+            mPendingEvents.add(e);
+        }
+
+        private void handlePendingEvents() {
+            final int size = mPendingEvents.size();
+            if (size == 0) return;
+            mEventCount += size;
+            mBatchCount++;
+            mMaxBatchSize = Math.max(mMaxBatchSize, size);
+            mMaxBatchDelayNs = Math.max(mMaxBatchDelayNs,
+                    mDeps.elapsedRealtimeNanos() - mFirstPendingEventTimeNs);
+
+            // A NEW event is superseded by any later event of the batch for the same connection:
+            // a later NEW adds the same rules again and a DELETE removes them, so there is no
+            // point in writing the rules to the BPF maps. DELETE events are always handled, since
+            // the rules might have been added by a previous batch.
+            final boolean[] superseded = new boolean[size];
+            final HashSet<Tether4Key> laterKeys = new HashSet<>();
+            for (int i = size - 1; i >= 0; i--) {
+                final ConntrackEvent e = mPendingEvents.get(i);
+                final ClientInfo tetherClient = getClientInfo(e.tupleOrig.srcIp);
+                if (tetherClient == null) continue;
+                final boolean seen = !laterKeys.add(makeTetherUpstream4Key(e, tetherClient));
+                superseded[i] = seen && !isDeleteEvent(e);
+            }
+
+            for (int i = 0; i < size; i++) {
+                if (superseded[i]) {
+                    mSupersededEventCount++;
+                    continue;
+                }
+                handleEvent(mPendingEvents.get(i));
+            }
+            mPendingEvents.clear();
+        }
+
+        private boolean isDeleteEvent(ConntrackEvent e) {
+            return e.msgType == (NetlinkConstants.NFNL_SUBSYS_CTNETLINK << 8
+                    | NetlinkConstants.IPCTNL_MSG_CT_DELETE);
+        }
+
+        private void handleEvent(ConntrackEvent e) {
             if (!allowOffload(e)) return;
 
             final ClientInfo tetherClient = getClientInfo(e.tupleOrig.srcIp);
@@ -1825,8 +1890,7 @@ public class BpfCoordinator {
             final Tether4Key downstream4Key = makeTetherDownstream4Key(e, tetherClient,
                     upstreamIndex);
 
-            if (e.msgType == (NetlinkConstants.NFNL_SUBSYS_CTNETLINK << 8
-                    | NetlinkConstants.IPCTNL_MSG_CT_DELETE)) {
+            if (isDeleteEvent(e)) {
                 final boolean deletedUpstream = mBpfCoordinatorShim.tetherOffloadRuleRemove(
                         UPSTREAM, upstream4Key);
                 final boolean deletedDownstream = mBpfCoordinatorShim.tetherOffloadRuleRemove(
@@ -1859,6 +1923,12 @@ public class BpfCoordinator {
             mBpfCoordinatorShim.tetherOffloadRuleAdd(UPSTREAM, upstream4Key, upstream4Value);
             mBpfCoordinatorShim.tetherOffloadRuleAdd(DOWNSTREAM, downstream4Key, downstream4Value);
         }
+
+        void dump(@NonNull IndentingPrintWriter pw) {
+            pw.println(String.format("%d events in %d batches, max batch size %d, "
+                    + "%d superseded NEW events, max batch delay %d ms", mEventCount, mBatchCount,
+                    mMaxBatchSize, mSupersededEventCount, mMaxBatchDelayNs / 1_000_000L));
+        }
     }
 
     private boolean isBpfEnabled() {
@@ -1621,6 +1621,7 @@ public class BpfCoordinatorTest {
                 .setMsgType(IPCTNL_MSG_CT_NEW)
                 .setProto(IPPROTO_TCP)
                 .build());
+        waitForIdle();
         verifyTetherOffloadSetInterfaceQuota(inOrder, UPSTREAM_IFINDEX, limit, true /* isInit */);
         inOrder.verify(mBpfUpstream4Map)
                 .insertEntry(eq(expectedUpstream4KeyTcp), eq(expectedUpstream4ValueTcp));
@@ -1633,6 +1634,7 @@ public class BpfCoordinatorTest {
                 .setMsgType(IPCTNL_MSG_CT_NEW)
                 .setProto(IPPROTO_UDP)
                 .build());
+        waitForIdle();
         verifyNeverTetherOffloadSetInterfaceQuota(inOrder);
         inOrder.verify(mBpfUpstream4Map)
                 .insertEntry(eq(expectedUpstream4KeyUdp), eq(expectedUpstream4ValueUdp));
@@ -1645,6 +1647,7 @@ public class BpfCoordinatorTest {
                 .setMsgType(IPCTNL_MSG_CT_DELETE)
                 .setProto(IPPROTO_UDP)
                 .build());
+        waitForIdle();
         verifyNeverTetherOffloadSetInterfaceQuota(inOrder);
         inOrder.verify(mBpfUpstream4Map).deleteEntry(eq(expectedUpstream4KeyUdp));
         inOrder.verify(mBpfDownstream4Map).deleteEntry(eq(expectedDownstream4KeyUdp));
@@ -1657,6 +1660,7 @@ public class BpfCoordinatorTest {
                 .setMsgType(IPCTNL_MSG_CT_DELETE)
                 .setProto(IPPROTO_TCP)
                 .build());
+        waitForIdle();
         inOrder.verify(mBpfUpstream4Map).deleteEntry(eq(expectedUpstream4KeyTcp));
         inOrder.verify(mBpfDownstream4Map).deleteEntry(eq(expectedDownstream4KeyTcp));
         verifyTetherOffloadGetAndClearStats(inOrder, UPSTREAM_IFINDEX);
@@ -1693,6 +1697,7 @@ public class BpfCoordinatorTest {
                 .setMsgType(IPCTNL_MSG_CT_NEW)
                 .setProto(IPPROTO_TCP)
                 .build());
+        waitForIdle();
         verify(mBpfDevMap).updateEntry(eq(new TetherDevKey(UPSTREAM_IFINDEX)),
                 eq(new TetherDevValue(UPSTREAM_IFINDEX)));
         verify(mBpfDevMap).updateEntry(eq(new TetherDevKey(DOWNSTREAM_IFINDEX)),
@@ -1703,9 +1708,50 @@ public class BpfCoordinatorTest {
                 .setMsgType(IPCTNL_MSG_CT_NEW)
                 .setProto(IPPROTO_UDP)
                 .build());
+        waitForIdle();
         verify(mBpfDevMap, never()).updateEntry(any(), any());
     }
 
+    @Test
+    @IgnoreUpTo(Build.VERSION_CODES.R)
+    public void testConntrackEventsHandledInBatch() throws Exception {
+        final BpfCoordinator coordinator = makeBpfCoordinator();
+        initBpfCoordinatorForRule4(coordinator);
+
+        final ConntrackEvent newEvent = new TestConntrackEvent.Builder()
+                .setMsgType(IPCTNL_MSG_CT_NEW)
+                .setProto(IPPROTO_TCP)
+                .build();
+        final ConntrackEvent deleteEvent = new TestConntrackEvent.Builder()
+                .setMsgType(IPCTNL_MSG_CT_DELETE)
+                .setProto(IPPROTO_TCP)
+                .build();
+
+        // Events are not handled until the pending batch runs.
+        mConsumer.accept(newEvent);
+        mConsumer.accept(newEvent);
+        verify(mBpfUpstream4Map, never()).insertEntry(any(), any());
+        verify(mBpfDownstream4Map, never()).insertEntry(any(), any());
+
+        // Repeated NEW events for the same connection add the rules only once.
+        waitForIdle();
+        verify(mBpfUpstream4Map).insertEntry(any(), any());
+        verify(mBpfDownstream4Map).insertEntry(any(), any());
+        clearInvocations(mBpfUpstream4Map, mBpfDownstream4Map);
+
+        // A NEW event followed by a DELETE event in the same batch does not add the rules, but
+        // still removes the ones added by the previous batch.
+        updateStatsEntryForTetherOffloadGetAndClearStats(
+                buildTestTetherStatsParcel(UPSTREAM_IFINDEX, 0, 0, 0, 0));
+        mConsumer.accept(newEvent);
+        mConsumer.accept(deleteEvent);
+        waitForIdle();
+        verify(mBpfUpstream4Map, never()).insertEntry(any(), any());
+        verify(mBpfDownstream4Map, never()).insertEntry(any(), any());
+        verify(mBpfUpstream4Map).deleteEntry(any());
+        verify(mBpfDownstream4Map).deleteEntry(any());
+    }
+
     private void setElapsedRealtimeNanos(long nanoSec) {
         mElapsedRealtimeNanos = nanoSec;
     }
@@ -1820,6 +1866,7 @@ public class BpfCoordinatorTest {
                 .setProto(IPPROTO_TCP)
                 .setRemotePort(offloadedPort)
                 .build());
+        waitForIdle();
         verify(mBpfUpstream4Map).insertEntry(any(), any());
         verify(mBpfDownstream4Map).insertEntry(any(), any());
         clearInvocations(mBpfUpstream4Map, mBpfDownstream4Map);
@@ -1830,6 +1877,7 @@ public class BpfCoordinatorTest {
                     .setProto(IPPROTO_TCP)
                     .setRemotePort(port)
                     .build());
+            waitForIdle();
             verify(mBpfUpstream4Map, never()).insertEntry(any(), any());
             verify(mBpfDownstream4Map, never()).insertEntry(any(), any());
 
@@ -1838,6 +1886,7 @@ public class BpfCoordinatorTest {
                     .setProto(IPPROTO_TCP)
                     .setRemotePort(port)
                     .build());
+            waitForIdle();
             verify(mBpfUpstream4Map, never()).deleteEntry(any());
             verify(mBpfDownstream4Map, never()).deleteEntry(any());
 
@@ -1846,6 +1895,7 @@ public class BpfCoordinatorTest {
                     .setProto(IPPROTO_UDP)
                     .setRemotePort(port)
                     .build());
+            waitForIdle();
             verify(mBpfUpstream4Map).insertEntry(any(), any());
             verify(mBpfDownstream4Map).insertEntry(any(), any());
             clearInvocations(mBpfUpstream4Map, mBpfDownstream4Map);
@@ -1855,6 +1905,7 @@ public class BpfCoordinatorTest {
                     .setProto(IPPROTO_UDP)
                     .setRemotePort(port)
                     .build());
+            waitForIdle();
             verify(mBpfUpstream4Map).deleteEntry(any());
             verify(mBpfDownstream4Map).deleteEntry(any());
             clearInvocations(mBpfUpstream4Map, mBpfDownstream4Map);
@@ -1981,6 +2032,7 @@ public class BpfCoordinatorTest {
         // downstream.
         mConsumer.accept(CONNTRACK_EVENT_A);
         mConsumer.accept(CONNTRACK_EVENT_B);
+        waitForIdle();
 
         // Check that both rule set A and B were added.
         checkRule4ExistInUpstreamDownstreamMap();
@@ -2262,6 +2314,7 @@ public class BpfCoordinatorTest {
                 .setMsgType(IPCTNL_MSG_CT_NEW)
                 .setProto(IPPROTO_TCP)
                 .build());
+        waitForIdle();
         verify(mBpfUpstream4Map)
                 .insertEntry(eq(expectedUpstream4KeyTcp), eq(expectedUpstream4ValueTcp));
         verify(mBpfDownstream4Map)
@@ -27,6 +27,7 @@ import android.net.TrafficStats;
 import android.os.RemoteException;
 import android.util.Log;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.net.module.util.CollectionUtils;
 
 import dalvik.system.CloseGuard;
@@ -42,6 +43,12 @@ import java.util.ArrayList;
 public final class NetworkStats implements AutoCloseable {
     private static final String TAG = "NetworkStats";
 
+    /**
+     * Maximum number of rows fetched at once in a paged summary enumeration.
+     */
+    @VisibleForTesting
+    static final int SUMMARY_PAGE_SIZE = 1000;
+
     private final CloseGuard mCloseGuard = CloseGuard.get();
 
     /**
@@ -87,6 +94,12 @@ public final class NetworkStats implements AutoCloseable {
      */
     private android.net.NetworkStats mSummary = null;
 
+    /**
+     * Number of summary rows returned by the pages preceding {@link #mSummary}, or -1 if the
+     * summary is not paged.
+     */
+    private int mSummaryPageOffset = -1;
+
     /**
      * Results of detail queries.
      */
@@ -493,6 +506,7 @@ public final class NetworkStats implements AutoCloseable {
      */
     public boolean hasNextBucket() {
         if (mSummary != null) {
+            maybeFetchNextSummaryPage();
             return mEnumerationIndex < mSummary.size();
         } else if (mHistory != null) {
             return mEnumerationIndex < mHistory.size()
@@ -546,6 +560,38 @@ public final class NetworkStats implements AutoCloseable {
         mEnumerationIndex = 0;
     }
 
+    /**
+     * Sets summary enumeration mode, fetching the summary results one page at a time.
+     * @throws RemoteException
+     */
+    void startPagedSummaryEnumeration() throws RemoteException {
+        mSummaryPageOffset = 0;
+        mSummary = mSession.getSummaryForAllUidPage(mTemplate, mStartTimeStamp, mEndTimeStamp,
+                false /* includeTags */, mSummaryPageOffset, SUMMARY_PAGE_SIZE);
+        mEnumerationIndex = 0;
+    }
+
+    /**
+     * Replaces the current summary page with the next one once it has been fully enumerated.
+     */
+    private void maybeFetchNextSummaryPage() {
+        if (mSummaryPageOffset < 0 || mSession == null
+                || mEnumerationIndex < mSummary.size()
+                || mSummary.size() < SUMMARY_PAGE_SIZE) {
+            return;
+        }
+        try {
+            final int offset = mSummaryPageOffset + mSummary.size();
+            mSummary = mSession.getSummaryForAllUidPage(mTemplate, mStartTimeStamp,
+                    mEndTimeStamp, false /* includeTags */, offset, SUMMARY_PAGE_SIZE);
+            mSummaryPageOffset = offset;
+            mEnumerationIndex = 0;
+        } catch (RemoteException e) {
+            Log.w(TAG, e);
+            // Leaving the enumeration at the end of the current page
+        }
+    }
+
     /**
      * Collects tagged summary results and sets summary enumeration mode.
      * @throws RemoteException
@@ -654,7 +700,9 @@ public final class NetworkStats implements AutoCloseable {
      * @return true if a next item could be set.
      */
     private boolean getNextSummaryBucket(@Nullable Bucket bucketOut) {
-        if (bucketOut != null && mEnumerationIndex < mSummary.size()) {
+        if (bucketOut == null) return false;
+        maybeFetchNextSummaryPage();
+        if (mEnumerationIndex < mSummary.size()) {
             mRecycledSummaryEntry = mSummary.getValues(mEnumerationIndex++, mRecycledSummaryEntry);
             fillBucketFromSummaryEntry(bucketOut);
             return true;
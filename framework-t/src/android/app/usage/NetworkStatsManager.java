@@ -427,7 +427,7 @@ public class NetworkStatsManager {
         try {
             NetworkStats result =
                     new NetworkStats(mContext, template, mFlags, startTime, endTime, mService);
-            result.startSummaryEnumeration();
+            result.startPagedSummaryEnumeration();
             return result;
         } catch (RemoteException e) {
             e.rethrowFromSystemServer();
@@ -1007,6 +1007,52 @@ public class IpSecManager {
         }
     }
 
+    /**
+     * Apply several active Tunnel Mode IPsec Transforms to a {@link IpSecTunnelInterface}, then
+     * close the transforms they replace, in a single call to the system server.
+     *
+     * <p>This is equivalent to calling {@link #applyTunnelModeTransform} for each transform and then
+     * closing each of the old transforms, except that all the transforms are validated before any
+     * of them is applied, and the old transforms are only deleted once all the new ones are
+     * applied. This is intended for rekeys, where the old SAs must stay in place until the new
+     * ones are.
+     *
+     * @param tunnel The {@link IpSecManager#IpSecTunnelInterface} that will use the supplied
+     *        transforms.
+     * @param directions the direction, {@link DIRECTION_OUT} or {@link #DIRECTION_IN} in which
+     *        each of the transforms will be used.
+     * @param transforms the {@link IpSecTransform}s created in tunnel mode to apply, in order.
+     * @param oldTransforms the {@link IpSecTransform}s to close once the others are applied.
+     * @throws IOException indicating that the transforms could not be applied due to a lower
+     *         layer failure.
+     * @hide
+     */
+    @RequiresFeature(PackageManager.FEATURE_IPSEC_TUNNELS)
+    @RequiresPermission(android.Manifest.permission.MANAGE_IPSEC_TUNNELS)
+    public void applyTunnelModeTransforms(@NonNull IpSecTunnelInterface tunnel,
+            @NonNull int[] directions, @NonNull IpSecTransform[] transforms,
+            @NonNull IpSecTransform[] oldTransforms) throws IOException {
+        final int[] transformIds = new int[transforms.length];
+        for (int i = 0; i < transforms.length; i++) {
+            transformIds[i] = transforms[i].getResourceId();
+        }
+        final int[] oldTransformIds = new int[oldTransforms.length];
+        for (int i = 0; i < oldTransforms.length; i++) {
+            oldTransformIds[i] = oldTransforms[i].getResourceId();
+        }
+        try {
+            mService.applyTunnelModeTransforms(tunnel.getResourceId(), directions, transformIds,
+                    oldTransformIds, mContext.getOpPackageName());
+        } catch (ServiceSpecificException e) {
+            throw rethrowCheckedExceptionFromServiceSpecificException(e);
+        } catch (RemoteException e) {
+            throw e.rethrowFromSystemServer();
+        }
+        for (IpSecTransform transform : oldTransforms) {
+            transform.onDeletedBySystem();
+        }
+    }
+
     /**
      * Migrate an active Tunnel Mode IPsec Transform to new source/destination addresses.
      *
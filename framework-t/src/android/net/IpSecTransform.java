@@ -175,6 +175,15 @@ public final class IpSecTransform implements AutoCloseable {
         }
     }
 
+    /**
+     * Mark this transform as closed once the system server has deleted it on behalf of the caller,
+     * as done by {@link IpSecManager#applyTunnelModeTransforms}.
+     */
+    void onDeletedBySystem() {
+        mResourceId = INVALID_RESOURCE_ID;
+        mCloseGuard.close();
+    }
+
     /** Check that the transform was closed properly. */
     @Override
     protected void finalize() throws Throwable {
@@ -203,6 +203,12 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
     // Used for correct stats accounting on clatd interfaces.
     private static final int IPV4V6_HEADER_DELTA = 20;
 
+    /**
+     * Minimum number of rows before {@link #findIndex} and {@link #findIndexHinted} build and
+     * use a {@link RowIndex}. Below this a linear scan is cheaper than maintaining the index.
+     */
+    private static final int ROW_INDEX_THRESHOLD = 32;
+
     // TODO: move fields to "mVariable" notation
 
     /**
@@ -241,6 +247,13 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
     @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
     private long[] operations;
 
+    /**
+     * Lazily built hash index over the key columns, or {@code null} if it has not been built
+     * yet or was invalidated by a mutation that moved or rewrote rows. Never parceled.
+     */
+    @Nullable
+    private RowIndex rowIndex;
+
     /**
      * Basic element of network statistics. Contains the number of packets and number of bytes
      * transferred on both directions in a given set of conditions. See
@@ -367,6 +380,15 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
             this.operations += another.operations;
         }
 
+        /** @hide */
+        public void add(@NonNull RowCursor row) {
+            this.rxBytes += row.getRxBytes();
+            this.rxPackets += row.getRxPackets();
+            this.txBytes += row.getTxBytes();
+            this.txPackets += row.getTxPackets();
+            this.operations += row.getOperations();
+        }
+
         /**
          * @return interface name of this entry.
          * @hide
@@ -575,6 +597,7 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
      * @hide
      */
     public void clear() {
+        this.rowIndex = null;
         this.capacity = 0;
         this.iface = EmptyArray.STRING;
         this.uid = EmptyArray.INT;
@@ -643,6 +666,7 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
 
         setValues(size, entry);
         size++;
+        if (rowIndex != null) rowIndex.add(size - 1);
 
         return this;
     }
@@ -713,6 +737,124 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
         return entry;
     }
 
+    /**
+     * A reusable read-only view of a row of a {@link NetworkStats}.
+     *
+     * <p>Unlike {@link #getValues(int, Entry)}, moving the cursor to a row does not copy it, so
+     * loops only reading some of the columns, or skipping most rows, are cheaper. The cursor is
+     * invalidated by any change to the rows of the underlying object.
+     * @hide
+     */
+    public static final class RowCursor {
+        private NetworkStats mStats;
+        private int mIndex = -1;
+
+        public RowCursor(@NonNull NetworkStats stats) {
+            reset(stats);
+        }
+
+        /** Point this cursor before the first row of {@code stats}. */
+        public void reset(@NonNull NetworkStats stats) {
+            mStats = Objects.requireNonNull(stats);
+            mIndex = -1;
+        }
+
+        /** Move this cursor to the given row. */
+        public void moveTo(int i) {
+            if (i < 0 || i >= mStats.size) {
+                throw new IndexOutOfBoundsException("Row " + i + " out of " + mStats.size);
+            }
+            mIndex = i;
+        }
+
+        /**
+         * Move this cursor to the next row.
+         *
+         * @return false if there are no more rows.
+         */
+        public boolean moveToNext() {
+            if (mIndex + 1 >= mStats.size) return false;
+            mIndex++;
+            return true;
+        }
+
+        /** Returns the index of the current row. */
+        public int getIndex() {
+            return mIndex;
+        }
+
+        @Nullable
+        public String getIface() {
+            return mStats.iface[mIndex];
+        }
+
+        public int getUid() {
+            return mStats.uid[mIndex];
+        }
+
+        @State
+        public int getSet() {
+            return mStats.set[mIndex];
+        }
+
+        public int getTag() {
+            return mStats.tag[mIndex];
+        }
+
+        @Meteredness
+        public int getMetered() {
+            return mStats.metered[mIndex];
+        }
+
+        @Roaming
+        public int getRoaming() {
+            return mStats.roaming[mIndex];
+        }
+
+        @DefaultNetwork
+        public int getDefaultNetwork() {
+            return mStats.defaultNetwork[mIndex];
+        }
+
+        public long getRxBytes() {
+            return mStats.rxBytes[mIndex];
+        }
+
+        public long getRxPackets() {
+            return mStats.rxPackets[mIndex];
+        }
+
+        public long getTxBytes() {
+            return mStats.txBytes[mIndex];
+        }
+
+        public long getTxPackets() {
+            return mStats.txPackets[mIndex];
+        }
+
+        public long getOperations() {
+            return mStats.operations[mIndex];
+        }
+
+        /** See {@link Entry#isNegative()}. */
+        public boolean isNegative() {
+            return getRxBytes() < 0 || getRxPackets() < 0 || getTxBytes() < 0
+                    || getTxPackets() < 0 || getOperations() < 0;
+        }
+
+        /** See {@link Entry#isEmpty()}. */
+        public boolean isEmpty() {
+            return getRxBytes() == 0 && getRxPackets() == 0 && getTxBytes() == 0
+                    && getTxPackets() == 0 && getOperations() == 0;
+        }
+
+        /** Copy the current row, like {@link NetworkStats#getValues(int, Entry)}. */
+        @NonNull
+        public Entry getValues(@Nullable Entry recycle) {
+            return mStats.getValues(mIndex, recycle);
+        }
+    }
+
     /**
      * If @{code dest} is not equal to @{code src}, copy entry from index @{code src} to index
      * @{code dest}.
@@ -836,9 +978,21 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
      */
     public void combineAllValues(@NonNull NetworkStats another) {
         NetworkStats.Entry entry = null;
-        for (int i = 0; i < another.size; i++) {
-            entry = another.getValues(i, entry);
-            combineValues(entry);
+        for (int j = 0; j < another.size; j++) {
+            final int i = findIndex(another.iface[j], another.uid[j], another.set[j],
+                    another.tag[j], another.metered[j], another.roaming[j],
+                    another.defaultNetwork[j]);
+            if (i == -1) {
+                // Only copy the rows that need to be inserted.
+                entry = another.getValues(j, entry);
+                insertEntry(entry);
+            } else {
+                rxBytes[i] += another.rxBytes[j];
+                rxPackets[i] += another.rxPackets[j];
+                txBytes[i] += another.txBytes[j];
+                txPackets[i] += another.txPackets[j];
+                operations[i] += another.operations[j];
+            }
         }
     }
 
@@ -848,6 +1002,9 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
      */
     public int findIndex(String iface, int uid, int set, int tag, int metered, int roaming,
             int defaultNetwork) {
+        if (size >= ROW_INDEX_THRESHOLD) {
+            return getRowIndex().find(iface, uid, set, tag, metered, roaming, defaultNetwork);
+        }
         for (int i = 0; i < size; i++) {
             if (uid == this.uid[i] && set == this.set[i] && tag == this.tag[i]
                     && metered == this.metered[i] && roaming == this.roaming[i]
@@ -862,11 +1019,21 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
     /**
      * Find first stats index that matches the requested parameters, starting
      * search around the hinted index as an optimization.
+     *
+     * <p>On large objects the hinted row is checked first and the lookup then falls back to
+     * the row index, which returns the first matching row.
      * @hide
      */
     @VisibleForTesting
     public int findIndexHinted(String iface, int uid, int set, int tag, int metered, int roaming,
             int defaultNetwork, int hintIndex) {
+        if (size >= ROW_INDEX_THRESHOLD) {
+            if (hintIndex >= 0 && hintIndex < size && rowMatches(hintIndex, iface, uid, set, tag,
+                    metered, roaming, defaultNetwork)) {
+                return hintIndex;
+            }
+            return getRowIndex().find(iface, uid, set, tag, metered, roaming, defaultNetwork);
+        }
         for (int offset = 0; offset < size; offset++) {
             final int halfOffset = offset / 2;
 
@@ -888,6 +1055,21 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
         return -1;
     }
 
+    private boolean rowMatches(int i, String iface, int uid, int set, int tag, int metered,
+            int roaming, int defaultNetwork) {
+        return uid == this.uid[i] && set == this.set[i] && tag == this.tag[i]
+                && metered == this.metered[i] && roaming == this.roaming[i]
+                && defaultNetwork == this.defaultNetwork[i]
+                && Objects.equals(iface, this.iface[i]);
+    }
+
+    private RowIndex getRowIndex() {
+        if (rowIndex == null) {
+            rowIndex = new RowIndex(this);
+        }
+        return rowIndex;
+    }
+
     /**
      * Splice in {@link #operations} from the given {@link NetworkStats} based
      * on matching {@link #uid} and {@link #tag} rows. Ignores {@link #iface},
@@ -1093,6 +1275,7 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
         if (recycle != null && recycle.capacity >= left.size) {
             result = recycle;
             result.size = 0;
+            result.rowIndex = null;
             result.elapsedRealtime = deltaRealtime;
         } else {
             result = new NetworkStats(deltaRealtime, left.size);
@@ -1167,13 +1350,10 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
      */
     public static void apply464xlatAdjustments(NetworkStats baseTraffic,
             NetworkStats stackedTraffic, Map<String, String> stackedIfaces) {
-        // For recycling
-        Entry entry = null;
         for (int i = 0; i < stackedTraffic.size; i++) {
-            entry = stackedTraffic.getValues(i, entry);
-            if (entry == null) continue;
-            if (entry.iface == null) continue;
-            if (!entry.iface.startsWith(CLATD_INTERFACE_PREFIX)) continue;
+            final String iface = stackedTraffic.iface[i];
+            if (iface == null) continue;
+            if (!iface.startsWith(CLATD_INTERFACE_PREFIX)) continue;
 
             // For 464xlat traffic, per uid stats only counts the bytes of the native IPv4 packet
             // sent on the stacked interface with prefix "v4-" and drops the IPv6 header size after
@@ -1185,9 +1365,8 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
             //
             // While the ebpf code path does try to simulate proper post segmentation packet
             // counts, we have nothing of the sort of xt_qtaguid stats.
-            entry.rxBytes += entry.rxPackets * IPV4V6_HEADER_DELTA;
-            entry.txBytes += entry.txPackets * IPV4V6_HEADER_DELTA;
-            stackedTraffic.setValues(i, entry);
+            stackedTraffic.rxBytes[i] += stackedTraffic.rxPackets[i] * IPV4V6_HEADER_DELTA;
+            stackedTraffic.txBytes[i] += stackedTraffic.txPackets[i] * IPV4V6_HEADER_DELTA;
         }
     }
 
@@ -1299,6 +1478,7 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
         for (int i = 0; i < size; i++) {
             iface[i] = null;
         }
+        rowIndex = null;
     }
 
     /**
@@ -1344,6 +1524,7 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
             }
         }
         size = nextOutputEntry;
+        rowIndex = null;
     }
 
     /** @hide */
@@ -1576,18 +1757,17 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
     private void tunAdjustmentInit(int tunUid, @NonNull String tunIface,
             @NonNull List<String> underlyingIfaces, @NonNull Entry tunIfaceTotal,
             @NonNull Entry[] perInterfaceTotal, @NonNull Entry underlyingIfacesTotal) {
-        final Entry recycle = new Entry();
-        for (int i = 0; i < size; i++) {
-            getValues(i, recycle);
-            if (recycle.uid == UID_ALL) {
+        final RowCursor row = new RowCursor(this);
+        while (row.moveToNext()) {
+            if (row.getUid() == UID_ALL) {
                 throw new IllegalStateException(
                         "Cannot adjust VPN accounting on an iface aggregated NetworkStats.");
             }
-            if (recycle.set == SET_DBG_VPN_IN || recycle.set == SET_DBG_VPN_OUT) {
+            if (row.getSet() == SET_DBG_VPN_IN || row.getSet() == SET_DBG_VPN_OUT) {
                 throw new IllegalStateException(
                         "Cannot adjust VPN accounting on a NetworkStats containing SET_DBG_VPN_*");
             }
-            if (recycle.tag != TAG_NONE) {
+            if (row.getTag() != TAG_NONE) {
                 // TODO(b/123666283): Take all tags for tunUid into account.
                 continue;
             }
@@ -1599,9 +1779,9 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
                 // network usage as ground truth. Encrypted traffic on the underlying networks will
                 // never be processed here because encrypted traffic on the underlying interfaces
                 // is not present in UID stats, and this method is only called on UID stats.
-                if (tunIface.equals(recycle.iface)) {
-                    tunIfaceTotal.add(recycle);
-                    underlyingIfacesTotal.add(recycle);
+                if (tunIface.equals(row.getIface())) {
+                    tunIfaceTotal.add(row);
+                    underlyingIfacesTotal.add(row);
 
                     // In steady state, there should always be one network, but edge cases may
                     // result in the network being null (network lost), and thus no underlying
@@ -1612,21 +1792,21 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
                         // not have the required information to identify which of the interfaces
                         // were used. Select "any" of the interfaces. Since overhead is already
                         // lost, this number is an approximation anyways.
-                        perInterfaceTotal[0].add(recycle);
+                        perInterfaceTotal[0].add(row);
                     }
                 }
-            } else if (recycle.uid == tunUid) {
+            } else if (row.getUid() == tunUid) {
                 // VpnService VPN, traffic sent by the VPN app over underlying networks
                 for (int j = 0; j < underlyingIfaces.size(); j++) {
-                    if (Objects.equals(underlyingIfaces.get(j), recycle.iface)) {
-                        perInterfaceTotal[j].add(recycle);
-                        underlyingIfacesTotal.add(recycle);
+                    if (Objects.equals(underlyingIfaces.get(j), row.getIface())) {
+                        perInterfaceTotal[j].add(row);
+                        underlyingIfacesTotal.add(row);
                         break;
                     }
                 }
-            } else if (tunIface.equals(recycle.iface)) {
+            } else if (tunIface.equals(row.getIface())) {
                 // VpnService VPN; traffic sent by apps on the VPN network
-                tunIfaceTotal.add(recycle);
+                tunIfaceTotal.add(row);
             }
         }
     }
@@ -1835,4 +2015,94 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
         left.txPackets[i] -= txPackets;
         right.txPackets -= txPackets;
     }
+
+    /**
+     * Open-addressing hash index from the key columns (iface, uid, set, tag, metered, roaming,
+     * defaultNetwork) to the first row holding that key.
+     *
+     * <p>Slots store row + 1 so that 0 means empty. Candidates are confirmed against the columns
+     * of the owning {@link NetworkStats}, so hash collisions never produce a wrong match. The
+     * index only supports appends; any mutation that moves, removes or rewrites the key of an
+     * existing row must drop it.
+     */
+    private static final class RowIndex {
+        private final NetworkStats mStats;
+        private int[] mSlots;
+        private int mCount;
+
+        RowIndex(@NonNull NetworkStats stats) {
+            mStats = stats;
+            mSlots = new int[tableSizeFor(stats.size)];
+            for (int i = 0; i < stats.size; i++) {
+                add(i);
+            }
+        }
+
+        private static int tableSizeFor(int rows) {
+            // Keep the load factor below 0.5 so that probe sequences stay short.
+            return Integer.highestOneBit(Math.max(rows, 8)) << 2;
+        }
+
+        private static int hash(String iface, int uid, int set, int tag, int metered,
+                int roaming, int defaultNetwork) {
+            int h = Objects.hashCode(iface);
+            h = 31 * h + uid;
+            h = 31 * h + tag;
+            h = 31 * h + set;
+            h = 31 * h + metered;
+            h = 31 * h + roaming;
+            h = 31 * h + defaultNetwork;
+            // Spread the bits so that sequential uids do not cluster in the low bits.
+            h ^= h >>> 16;
+            h *= 0x85ebca6b;
+            h ^= h >>> 13;
+            return h;
+        }
+
+        /** Index row {@code row}, unless an earlier row with the same key is already indexed. */
+        void add(int row) {
+            if ((mCount + 1) * 2 > mSlots.length) {
+                mSlots = new int[tableSizeFor(mStats.size)];
+                mCount = 0;
+                // Re-adding all rows includes the new one.
+                for (int i = 0; i < mStats.size; i++) {
+                    addInternal(i);
+                }
+                return;
+            }
+            addInternal(row);
+        }
+
+        private void addInternal(int row) {
+            final NetworkStats s = mStats;
+            final int mask = mSlots.length - 1;
+            int slot = hash(s.iface[row], s.uid[row], s.set[row], s.tag[row], s.metered[row],
+                    s.roaming[row], s.defaultNetwork[row]) & mask;
+            while (mSlots[slot] != 0) {
+                final int existing = mSlots[slot] - 1;
+                if (s.rowMatches(existing, s.iface[row], s.uid[row], s.set[row], s.tag[row],
+                        s.metered[row], s.roaming[row], s.defaultNetwork[row])) {
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            mSlots[slot] = row + 1;
+            mCount++;
+        }
+
+        int find(String iface, int uid, int set, int tag, int metered, int roaming,
+                int defaultNetwork) {
+            final int mask = mSlots.length - 1;
+            int slot = hash(iface, uid, set, tag, metered, roaming, defaultNetwork) & mask;
+            while (mSlots[slot] != 0) {
+                final int row = mSlots[slot] - 1;
+                if (mStats.rowMatches(row, iface, uid, set, tag, metered, roaming,
+                        defaultNetwork)) {
+                    return row;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+    }
 }
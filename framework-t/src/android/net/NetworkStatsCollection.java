@@ -49,10 +49,12 @@ import android.service.NetworkStatsCollectionStatsProto;
 import android.telephony.SubscriptionPlan;
 import android.text.format.DateUtils;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.AtomicFile;
 import android.util.IndentingPrintWriter;
 import android.util.Log;
 import android.util.Range;
+import android.util.SparseArray;
 import android.util.proto.ProtoOutputStream;
 
 import com.android.internal.annotations.VisibleForTesting;
@@ -78,6 +80,7 @@ import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -106,6 +109,13 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
     private static final int VERSION_UNIFIED_INIT = 16;
 
     private ArrayMap<Key, NetworkStatsHistory> mStats = new ArrayMap<>();
+    // Keys of mStats grouped by uid, so that per-uid queries skip the keys of other uids.
+    // Only modified through putHistory and removeHistory, which keep it in sync with mStats.
+    private final SparseArray<ArraySet<Key>> mKeysByUid = new SparseArray<>();
+    // One instance of each NetworkIdentitySet used by the keys of mStats. Every file read or
+    // interface change creates new, equal instances, which would otherwise each be kept by
+    // the keys created from them. Entries are only dropped on reset.
+    private final ArrayMap<NetworkIdentitySet, NetworkIdentitySet> mIdents = new ArrayMap<>();
 
     private final long mBucketDurationMillis;
 
@@ -133,6 +143,8 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
     /** @hide */
     public void reset() {
         mStats.clear();
+        mKeysByUid.clear();
+        mIdents.clear();
         mStartMillis = Long.MAX_VALUE;
         mEndMillis = Long.MIN_VALUE;
         mTotalBytes = 0;
@@ -292,12 +304,17 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
             collectEnd = roundUp(collectEnd);
         }
 
-        for (int i = 0; i < mStats.size(); i++) {
-            final Key key = mStats.keyAt(i);
-            if (key.uid == uid && NetworkStats.setMatches(set, key.set) && key.tag == tag
-                    && templateMatches(template, key.ident)) {
-                final NetworkStatsHistory value = mStats.valueAt(i);
-                combined.recordHistory(value, collectStart, collectEnd);
+        final ArraySet<Key> uidKeys = mKeysByUid.get(uid);
+        if (uidKeys != null) {
+            final IdentityHashMap<NetworkIdentitySet, Boolean> matchCache =
+                    new IdentityHashMap<>();
+            for (int i = 0; i < uidKeys.size(); i++) {
+                final Key key = uidKeys.valueAt(i);
+                if (NetworkStats.setMatches(set, key.set) && key.tag == tag
+                        && templateMatches(template, key.ident, matchCache)) {
+                    final NetworkStatsHistory value = mStats.get(key);
+                    combined.recordHistory(value, collectStart, collectEnd);
+                }
             }
         }
 
@@ -379,10 +396,11 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
 
         final NetworkStats.Entry entry = new NetworkStats.Entry();
         NetworkStatsHistory.Entry historyEntry = null;
+        final IdentityHashMap<NetworkIdentitySet, Boolean> matchCache = new IdentityHashMap<>();
 
         for (int i = 0; i < mStats.size(); i++) {
             final Key key = mStats.keyAt(i);
-            if (templateMatches(template, key.ident)
+            if (templateMatches(template, key.ident, matchCache)
                     && NetworkStatsAccess.isAccessibleToUser(key.uid, callerUid, accessLevel)
                     && key.set < NetworkStats.SET_DEBUG_START) {
                 final NetworkStatsHistory value = mStats.valueAt(i);
@@ -436,7 +454,7 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
         NetworkStatsHistory target = mStats.get(key);
         if (target == null) {
             target = new NetworkStatsHistory(history.getBucketDuration());
-            mStats.put(key, target);
+            putHistory(key, target);
         }
         target.recordEntireHistory(history);
     }
@@ -470,7 +488,7 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
         }
 
         if (updated != null) {
-            mStats.put(key, updated);
+            putHistory(key, updated);
             return updated;
         } else {
             return existing;
@@ -693,7 +711,7 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
                             key.ident, UID_REMOVED, SET_DEFAULT, TAG_NONE);
                     removedHistory.recordEntireHistory(uidHistory);
                 }
-                mStats.remove(key);
+                removeHistory(key);
                 mDirty = true;
             }
         }
@@ -713,12 +731,41 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
 
             history.removeBucketsStartingBefore(cutoffMillis);
             if (history.size() == 0) {
-                mStats.remove(key);
+                removeHistory(key);
             }
             mDirty = true;
         }
     }
 
+    private void putHistory(@NonNull Key key, @NonNull NetworkStatsHistory history) {
+        final int index = mStats.indexOfKey(key);
+        if (index >= 0) {
+            mStats.setValueAt(index, history);
+            return;
+        }
+        final NetworkIdentitySet ident = mIdents.get(key.ident);
+        if (ident == null) {
+            mIdents.put(key.ident, key.ident);
+        } else if (ident != key.ident) {
+            key = new Key(ident, key.uid, key.set, key.tag);
+        }
+        mStats.put(key, history);
+        ArraySet<Key> uidKeys = mKeysByUid.get(key.uid);
+        if (uidKeys == null) {
+            uidKeys = new ArraySet<>();
+            mKeysByUid.put(key.uid, uidKeys);
+        }
+        uidKeys.add(key);
+    }
+
+    private void removeHistory(@NonNull Key key) {
+        if (mStats.remove(key) == null) return;
+        final ArraySet<Key> uidKeys = mKeysByUid.get(key.uid);
+        if (uidKeys == null) return;
+        uidKeys.remove(key);
+        if (uidKeys.isEmpty()) mKeysByUid.remove(key.uid);
+    }
+
     private void noteRecordedHistory(long startMillis, long endMillis, long totalBytes) {
         if (startMillis < mStartMillis) mStartMillis = startMillis;
         if (endMillis > mEndMillis) mEndMillis = endMillis;
@@ -738,6 +785,26 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
         return keys;
     }
 
+    /**
+     * Dump the size of this collection and an estimate of the heap used by its buckets, which
+     * make up most of its memory usage.
+     * @hide
+     */
+    public void dumpHeapUsage(IndentingPrintWriter pw) {
+        long buckets = 0;
+        long bucketHeapBytes = 0;
+        for (int i = 0; i < mStats.size(); i++) {
+            final NetworkStatsHistory history = mStats.valueAt(i);
+            buckets += history.size();
+            bucketHeapBytes += history.estimateBucketHeapBytes();
+        }
+        pw.print("keys="); pw.print(mStats.size());
+        pw.print(" uids="); pw.print(mKeysByUid.size());
+        pw.print(" idents="); pw.print(mIdents.size());
+        pw.print(" buckets="); pw.print(buckets);
+        pw.print(" bucketHeapBytes="); pw.println(bucketHeapBytes);
+    }
+
     /** @hide */
     public void dump(IndentingPrintWriter pw) {
         for (Key key : getSortedKeys()) {
@@ -841,6 +908,21 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
         return false;
     }
 
+    /**
+     * Same as {@link #templateMatches(NetworkTemplate, NetworkIdentitySet)}, but remembers the
+     * result for each {@link NetworkIdentitySet} instance in the passed cache. Keys recorded for
+     * the same network share their identity set, so this evaluates the template once per
+     * network instead of once per key.
+     */
+    private static boolean templateMatches(NetworkTemplate template, NetworkIdentitySet identSet,
+            IdentityHashMap<NetworkIdentitySet, Boolean> matchCache) {
+        final Boolean cached = matchCache.get(identSet);
+        if (cached != null) return cached;
+        final boolean matches = templateMatches(template, identSet);
+        matchCache.put(identSet, matches);
+        return matches;
+    }
+
     /**
      * Get the all historical stats of the collection {@link NetworkStatsCollection}.
      *
@@ -1028,6 +1028,23 @@ public final class NetworkStatsHistory implements Parcelable {
         return (int) (size() * getBucketDuration() / newBucketDuration);
     }
 
+    /**
+     * Estimate the heap used by the bucket arrays of this history, in bytes. This counts the
+     * allocated capacity of the arrays, which may be larger than {@link #size()}.
+     * @hide
+     */
+    public long estimateBucketHeapBytes() {
+        return estimateArrayHeapBytes(bucketStart) + estimateArrayHeapBytes(activeTime)
+                + estimateArrayHeapBytes(rxBytes) + estimateArrayHeapBytes(rxPackets)
+                + estimateArrayHeapBytes(txBytes) + estimateArrayHeapBytes(txPackets)
+                + estimateArrayHeapBytes(operations);
+    }
+
+    private static long estimateArrayHeapBytes(@Nullable long[] array) {
+        // Arrays have a 16 bytes header on 64-bit ART.
+        return array != null ? 16L + (long) array.length * Long.BYTES : 0L;
+    }
+
     /**
      * Utility methods for interacting with {@link DataInputStream} and
      * {@link DataOutputStream}, mostly dealing with writing partial arrays.
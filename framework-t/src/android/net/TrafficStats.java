@@ -912,6 +912,28 @@ public class TrafficStats {
         }
     }
 
+    /**
+     * Return network layer statistics since device boot for the given UID, the whole device and
+     * each of the given interfaces, fetched from the system in a single call. Callers sampling
+     * several counters at once should prefer this to one call per counter.
+     * <p>
+     * The result contains one row with {@link NetworkStats#IFACE_ALL} and the given UID, one row
+     * with {@link NetworkStats#IFACE_ALL} and {@link NetworkStats#UID_ALL} for the whole device,
+     * and one row with {@link NetworkStats#UID_ALL} for each given interface. Rows for which
+     * statistics are not available are omitted. As for {@link #getUidRxBytes(int)}, the UID row
+     * is only returned for the calling UID.
+     *
+     * @hide
+     */
+    @NonNull
+    public static NetworkStats getTrafficStatsSnapshot(int uid, @NonNull String[] ifaces) {
+        try {
+            return getStatsService().getTrafficStatsSnapshot(uid, ifaces);
+        } catch (RemoteException e) {
+            throw e.rethrowFromSystemServer();
+        }
+    }
+
     /**
      * Return number of bytes transmitted by the given UID since device boot.
      * Counts packets across all network interfaces, and always increases
@@ -0,0 +1,486 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net;
+
+import static android.net.DnsResolver.ERROR_SYSTEM;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.CancellationSignal;
+import android.system.ErrnoException;
+import android.util.ArrayMap;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.net.module.util.DnsPacket;
+
+import java.net.InetAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.function.LongSupplier;
+
+/**
+ * An in-process cache of DNS answers, used by {@link DnsResolver} when enabled.
+ *
+ * <p>Answers are keyed by network, name, class, type and flags. They are kept for the smallest
+ * TTL of their answer records, in a cache of bounded size evicting the least recently used
+ * answers first. Identical queries sent while one is already in flight share its answer instead
+ * of being sent to the resolver again.
+ *
+ * <p>This class is thread-safe.
+ *
+ * @hide
+ */
+final class DnsAnswerCache {
+    private static final String TAG = "DnsAnswerCache";
+
+    // The TTL field of OPT pseudo-records holds flags, so it is not decremented.
+    private static final int TYPE_OPT = 41;
+
+    /** Sends queries to the resolver. Mostly useful for injection in tests. */
+    interface QuerySender {
+        /**
+         * Send a query to the resolver.
+         *
+         * @param callback called with the result of the query, on any thread.
+         * @return a {@link Runnable} cancelling the query.
+         */
+        @NonNull
+        Runnable send(int netIdForResolv, @NonNull String domain, int nsClass, int nsType,
+                int flags, @NonNull DnsResolver.Callback<byte[]> callback) throws ErrnoException;
+    }
+
+    private static final class Key {
+        public final int netId;
+        public final int netIdForResolv;
+        @NonNull
+        public final String domain;
+        public final int nsClass;
+        public final int nsType;
+        public final int flags;
+
+        Key(@NonNull Network network, @NonNull String domain, int nsClass, int nsType, int flags) {
+            this.netId = network.getNetId();
+            this.netIdForResolv = network.getNetIdForResolv();
+            this.domain = domain;
+            this.nsClass = nsClass;
+            this.nsType = nsType;
+            this.flags = flags;
+        }
+
+        @Override
+        public boolean equals(@Nullable Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            final Key other = (Key) o;
+            // netId is derived from netIdForResolv.
+            return netIdForResolv == other.netIdForResolv
+                    && nsClass == other.nsClass
+                    && nsType == other.nsType
+                    && flags == other.flags
+                    && domain.equals(other.domain);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(netIdForResolv, domain, nsClass, nsType, flags);
+        }
+    }
+
+    private static final class Entry {
+        @NonNull
+        public final byte[] answer;
+        public final int rcode;
+        public final long storedMs;
+        public final long expiryMs;
+
+        Entry(@NonNull byte[] answer, int rcode, long storedMs, long expiryMs) {
+            this.answer = answer;
+            this.rcode = rcode;
+            this.storedMs = storedMs;
+            this.expiryMs = expiryMs;
+        }
+    }
+
+    private static final class Waiter {
+        @NonNull
+        public final Executor executor;
+        @NonNull
+        public final DnsResolver.Callback<? super byte[]> callback;
+
+        Waiter(@NonNull Executor executor, @NonNull DnsResolver.Callback<? super byte[]> callback) {
+            this.executor = executor;
+            this.callback = callback;
+        }
+    }
+
+    private static final class InFlightQuery {
+        public final ArrayList<Waiter> waiters = new ArrayList<>();
+        // Cancels the query sent to the resolver. Null until the query is sent.
+        @Nullable
+        public Runnable cancel;
+        // Set when the network of the query was invalidated while the query was in flight.
+        public boolean invalidated;
+        // Set when the resolver answered the query.
+        public boolean done;
+    }
+
+    private final Object mLock = new Object();
+    private final int mMaxEntries;
+    @NonNull
+    private final QuerySender mSender;
+    @NonNull
+    private final LongSupplier mElapsedRealtime;
+
+    // Iterates in access order, so the eldest entry is the least recently used one.
+    @GuardedBy("mLock")
+    private final LinkedHashMap<Key, Entry> mEntries;
+    @GuardedBy("mLock")
+    private final ArrayMap<Key, InFlightQuery> mInFlightQueries = new ArrayMap<>();
+    // The DNS configuration last seen for each network, to invalidate answers when it changes.
+    @GuardedBy("mLock")
+    private final SparseArray<DnsConfig> mDnsConfigs = new SparseArray<>();
+    @GuardedBy("mLock")
+    private long mHits;
+    @GuardedBy("mLock")
+    private long mMisses;
+    @GuardedBy("mLock")
+    private long mCoalesced;
+
+    DnsAnswerCache(int maxEntries, @NonNull QuerySender sender,
+            @NonNull LongSupplier elapsedRealtime) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("Invalid cache size: " + maxEntries);
+        }
+        mMaxEntries = maxEntries;
+        mSender = Objects.requireNonNull(sender);
+        mElapsedRealtime = Objects.requireNonNull(elapsedRealtime);
+        mEntries = new LinkedHashMap<Key, Entry>(16, 0.75f, true /* accessOrder */) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > mMaxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns whether queries with the given flags can go through the cache.
+     *
+     * <p>Queries asking not to look up or not to store in the resolver cache bypass this cache too.
+     */
+    static boolean isCacheable(int flags) {
+        return (flags & (DnsResolver.FLAG_NO_CACHE_LOOKUP | DnsResolver.FLAG_NO_CACHE_STORE)) == 0;
+    }
+
+    /**
+     * Answer a query from the cache, or from an identical query already in flight, or else send it
+     * to the resolver.
+     *
+     * @return whether the query was sent to the resolver.
+     */
+    boolean query(@NonNull Network network, @NonNull String domain, int nsClass, int nsType,
+            int flags, @NonNull Executor executor, @Nullable CancellationSignal cancellationSignal,
+            @NonNull DnsResolver.Callback<? super byte[]> callback) {
+        final Key key = new Key(network, domain, nsClass, nsType, flags);
+        final Waiter waiter = new Waiter(executor, callback);
+        final InFlightQuery query;
+        final Entry hit;
+        final long nowMs = mElapsedRealtime.getAsLong();
+        synchronized (mLock) {
+            final Entry entry = mEntries.get(key);
+            if (entry != null && entry.expiryMs > nowMs) {
+                mHits++;
+                hit = entry;
+                query = null;
+            } else {
+                hit = null;
+                if (entry != null) mEntries.remove(key);
+
+                final InFlightQuery inFlight = mInFlightQueries.get(key);
+                if (inFlight != null) {
+                    mCoalesced++;
+                    inFlight.waiters.add(waiter);
+                    addCancellationSignal(cancellationSignal, key, inFlight, waiter);
+                    return false;
+                }
+                mMisses++;
+                query = new InFlightQuery();
+                query.waiters.add(waiter);
+                mInFlightQueries.put(key, query);
+            }
+        }
+        // Entries are immutable, so the answer can be delivered without holding the lock. The
+        // executor may run the callback inline. The TTLs are decreased by the time the answer
+        // spent in the cache, so that callers caching it in turn do not keep it for too long.
+        if (hit != null) {
+            final byte[] answer = withTtlsDecreased(hit.answer, nowMs - hit.storedMs);
+            executor.execute(() -> callback.onAnswer(answer, hit.rcode));
+            return false;
+        }
+
+        final Runnable cancel;
+        try {
+            cancel = mSender.send(key.netIdForResolv, domain, nsClass, nsType, flags,
+                    new DnsResolver.Callback<byte[]>() {
+                        @Override
+                        public void onAnswer(@NonNull byte[] answer, int rcode) {
+                            onQueryComplete(key, query, answer, rcode, null /* error */);
+                        }
+
+                        @Override
+                        public void onError(@NonNull DnsResolver.DnsException error) {
+                            onQueryComplete(key, query, null /* answer */, 0 /* rcode */, error);
+                        }
+                    });
+        } catch (ErrnoException e) {
+            onQueryComplete(key, query, null /* answer */, 0 /* rcode */,
+                    new DnsResolver.DnsException(ERROR_SYSTEM, e));
+            return true;
+        }
+
+        final boolean cancelNow;
+        synchronized (mLock) {
+            query.cancel = cancel;
+            // All the waiters may have been cancelled before the query was sent.
+            cancelNow = !query.done && query.waiters.isEmpty();
+        }
+        if (cancelNow) cancel.run();
+        addCancellationSignal(cancellationSignal, key, query, waiter);
+        return true;
+    }
+
+    private void addCancellationSignal(@Nullable CancellationSignal cancellationSignal,
+            @NonNull Key key, @NonNull InFlightQuery query, @NonNull Waiter waiter) {
+        if (cancellationSignal == null) return;
+        // Cancelling one of the waiters only cancels the query sent to the resolver once no other
+        // waiter needs its answer.
+        cancellationSignal.setOnCancelListener(() -> {
+            final Runnable cancel;
+            synchronized (mLock) {
+                if (!query.waiters.remove(waiter) || !query.waiters.isEmpty()) return;
+                if (mInFlightQueries.get(key) == query) mInFlightQueries.remove(key);
+                cancel = query.cancel;
+            }
+            if (cancel != null) cancel.run();
+        });
+    }
+
+    private void onQueryComplete(@NonNull Key key, @NonNull InFlightQuery query,
+            @Nullable byte[] answer, int rcode, @Nullable DnsResolver.DnsException error) {
+        final long ttlMs = (answer != null) ? getCacheTtlMs(answer, rcode) : 0;
+        final ArrayList<Waiter> waiters;
+        synchronized (mLock) {
+            if (mInFlightQueries.get(key) == query) mInFlightQueries.remove(key);
+            query.done = true;
+            waiters = new ArrayList<>(query.waiters);
+            query.waiters.clear();
+            if (ttlMs > 0 && !query.invalidated) {
+                final long nowMs = mElapsedRealtime.getAsLong();
+                mEntries.put(key, new Entry(answer, rcode, nowMs, nowMs + ttlMs));
+            }
+        }
+        for (final Waiter waiter : waiters) {
+            if (error != null) {
+                waiter.executor.execute(() -> waiter.callback.onError(error));
+            } else {
+                final byte[] copy = answer.clone();
+                waiter.executor.execute(() -> waiter.callback.onAnswer(copy, rcode));
+            }
+        }
+    }
+
+    /**
+     * Returns how long the answer can be cached for, which is the smallest TTL of its answer
+     * records, or 0 if it should not be cached.
+     */
+    @VisibleForTesting
+    static long getCacheTtlMs(@NonNull byte[] answer, int rcode) {
+        if (rcode != 0) return 0;
+        try {
+            return new TtlAnswer(answer).getMinTtlSeconds() * 1000L;
+        } catch (DnsPacket.ParseException e) {
+            // The user gets the parse error from the answer; just don't cache it.
+            return 0;
+        }
+    }
+
+    /**
+     * Returns a copy of the answer with the TTL of each record decreased by the given time,
+     * rounded up to the second, so that the record with the smallest TTL gets the remaining
+     * lifetime of the cache entry. TTLs do not go below 0.
+     */
+    @VisibleForTesting
+    @NonNull
+    static byte[] withTtlsDecreased(@NonNull byte[] answer, long elapsedMs) {
+        final long elapsedSeconds = (elapsedMs + 999) / 1000;
+        final byte[] copy = answer.clone();
+        if (elapsedSeconds <= 0) return copy;
+        final ByteBuffer buf = ByteBuffer.wrap(copy);
+        try {
+            buf.position(4);  // ID and flags
+            final int questionCount = Short.toUnsignedInt(buf.getShort());
+            final int recordCount = Short.toUnsignedInt(buf.getShort())
+                    + Short.toUnsignedInt(buf.getShort()) + Short.toUnsignedInt(buf.getShort());
+            for (int i = 0; i < questionCount; i++) {
+                skipName(buf);
+                buf.position(buf.position() + 4);  // Type and class
+            }
+            for (int i = 0; i < recordCount; i++) {
+                skipName(buf);
+                final int nsType = Short.toUnsignedInt(buf.getShort());
+                buf.position(buf.position() + 2);  // Class
+                final int ttlPosition = buf.position();
+                final long ttl = Integer.toUnsignedLong(buf.getInt());
+                if (nsType != TYPE_OPT) {
+                    buf.putInt(ttlPosition, (int) Math.max(0, ttl - elapsedSeconds));
+                }
+                buf.position(buf.position() + Short.toUnsignedInt(buf.getShort()));
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            // The answer was parsed before being cached, so this should not happen; deliver it
+            // unchanged rather than half rewritten.
+            Log.e(TAG, "Could not rewrite the TTLs of a cached answer", e);
+            return answer.clone();
+        }
+        return copy;
+    }
+
+    private static void skipName(@NonNull ByteBuffer buf) {
+        while (true) {
+            final int length = Byte.toUnsignedInt(buf.get());
+            if (length == 0) return;
+            if ((length & 0xc0) == 0xc0) {
+                // A pointer ends the name.
+                buf.get();
+                return;
+            }
+            buf.position(buf.position() + length);
+        }
+    }
+
+    private static class TtlAnswer extends DnsPacket {
+        TtlAnswer(@NonNull byte[] data) throws ParseException {
+            super(data);
+        }
+
+        long getMinTtlSeconds() {
+            if (mHeader.getRecordCount(ANSECTION) == 0) return 0;
+            long minTtl = Long.MAX_VALUE;
+            for (final DnsRecord record : mRecords[ANSECTION]) {
+                minTtl = Math.min(minTtl, record.ttl);
+            }
+            return minTtl;
+        }
+    }
+
+    /** Drop all the answers for a network. */
+    void invalidate(int netId) {
+        synchronized (mLock) {
+            final Iterator<Key> it = mEntries.keySet().iterator();
+            while (it.hasNext()) {
+                if (it.next().netId == netId) it.remove();
+            }
+            for (int i = 0; i < mInFlightQueries.size(); i++) {
+                if (mInFlightQueries.keyAt(i).netId == netId) {
+                    mInFlightQueries.valueAt(i).invalidated = true;
+                }
+            }
+        }
+    }
+
+    /** Drop all the answers. */
+    void clear() {
+        synchronized (mLock) {
+            mEntries.clear();
+            for (int i = 0; i < mInFlightQueries.size(); i++) {
+                mInFlightQueries.valueAt(i).invalidated = true;
+            }
+            mDnsConfigs.clear();
+        }
+    }
+
+    @NonNull
+    DnsResolver.AnswerCacheStats getStats() {
+        synchronized (mLock) {
+            return new DnsResolver.AnswerCacheStats(mHits, mMisses, mCoalesced);
+        }
+    }
+
+    /** Drop the answers for a network when it disconnects. */
+    void onNetworkLost(@NonNull Network network) {
+        synchronized (mLock) {
+            mDnsConfigs.remove(network.getNetId());
+        }
+        invalidate(network.getNetId());
+    }
+
+    /** Drop the answers for a network when its DNS configuration changes. */
+    void onLinkPropertiesChanged(@NonNull Network network, @NonNull LinkProperties lp) {
+        final DnsConfig config = new DnsConfig(lp);
+        final DnsConfig previous;
+        synchronized (mLock) {
+            previous = mDnsConfigs.get(network.getNetId());
+            mDnsConfigs.put(network.getNetId(), config);
+        }
+        if (previous != null && !previous.equals(config)) {
+            Log.d(TAG, "DNS configuration changed on " + network);
+            invalidate(network.getNetId());
+        }
+    }
+
+    /** The parts of {@link LinkProperties} that may change DNS answers. */
+    private static final class DnsConfig {
+        @NonNull
+        private final List<InetAddress> mDnsServers;
+        @Nullable
+        private final String mPrivateDnsServerName;
+        private final boolean mPrivateDnsActive;
+        @Nullable
+        private final String mDomains;
+
+        DnsConfig(@NonNull LinkProperties lp) {
+            mDnsServers = lp.getDnsServers();
+            mPrivateDnsServerName = lp.getPrivateDnsServerName();
+            mPrivateDnsActive = lp.isPrivateDnsActive();
+            mDomains = lp.getDomains();
+        }
+
+        @Override
+        public boolean equals(@Nullable Object o) {
+            if (!(o instanceof DnsConfig)) return false;
+            final DnsConfig other = (DnsConfig) o;
+            return mDnsServers.equals(other.mDnsServers)
+                    && Objects.equals(mPrivateDnsServerName, other.mPrivateDnsServerName)
+                    && mPrivateDnsActive == other.mPrivateDnsActive
+                    && Objects.equals(mDomains, other.mDomains);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mDnsServers, mPrivateDnsServerName, mPrivateDnsActive, mDomains);
+        }
+    }
+}
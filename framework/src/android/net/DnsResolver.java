@@ -32,12 +32,17 @@ import android.annotation.CallbackExecutor;
 import android.annotation.IntDef;
 import android.annotation.NonNull;
 import android.annotation.Nullable;
+import android.content.Context;
 import android.os.CancellationSignal;
+import android.os.Handler;
 import android.os.Looper;
 import android.os.MessageQueue;
+import android.os.SystemClock;
 import android.system.ErrnoException;
 import android.util.Log;
 
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.net.module.util.DnsPacket;
 
 import java.io.FileDescriptor;
@@ -62,6 +67,13 @@ public final class DnsResolver {
     private static final int MAXPACKET = 8 * 1024;
     private static final int SLEEP_TIME_MS = 2;
 
+    /**
+     * Resolution delay recommended by RFC 8305, see {@link #queryStreaming queryStreaming()}.
+     *
+     * @hide
+     */
+    public static final long DEFAULT_RESOLUTION_DELAY_MS = 50;
+
     @IntDef(prefix = { "CLASS_" }, value = {
             CLASS_IN
     })
@@ -119,8 +131,144 @@ public final class DnsResolver {
         return sInstance;
     }
 
+    private final Object mAnswerCacheLock = new Object();
+    // Null unless the app enabled the answer cache.
+    @Nullable
+    private volatile DnsAnswerCache mAnswerCache;
+    @GuardedBy("mAnswerCacheLock")
+    @Nullable
+    private ConnectivityManager mAnswerCacheCm;
+    @GuardedBy("mAnswerCacheLock")
+    @Nullable
+    private ConnectivityManager.NetworkCallback mAnswerCacheCallback;
+
     private DnsResolver() {}
 
+    /**
+     * Counters of the in-process answer cache.
+     *
+     * @see #getAnswerCacheStats()
+     * @hide
+     */
+    public static final class AnswerCacheStats {
+        /** Number of queries answered from the cache. */
+        public final long hits;
+        /** Number of queries sent to the resolver. */
+        public final long misses;
+        /** Number of queries answered by an identical query already in flight. */
+        public final long coalesced;
+
+        public AnswerCacheStats(long hits, long misses, long coalesced) {
+            this.hits = hits;
+            this.misses = misses;
+            this.coalesced = coalesced;
+        }
+
+        @Override
+        public String toString() {
+            return "AnswerCacheStats{hits=" + hits + ", misses=" + misses
+                    + ", coalesced=" + coalesced + "}";
+        }
+    }
+
+    /**
+     * Enable an in-process cache of the answers to queries sent by this app.
+     *
+     * <p>Answers are cached for the smallest TTL of their answer records, up to
+     * {@code maxEntries} answers, and identical queries in flight at the same time are sent to
+     * the resolver only once. This only applies to queries by name; queries with
+     * {@link #FLAG_NO_CACHE_LOOKUP} or {@link #FLAG_NO_CACHE_STORE} bypass the cache. Answers
+     * for a network are dropped when it disconnects or its DNS configuration changes, provided
+     * the app can observe networks.
+     *
+     * <p>Enabling the cache again replaces the existing cache with an empty one.
+     *
+     * @param context the context used to observe networks.
+     * @param maxEntries the maximum number of answers in the cache.
+     * @hide
+     */
+    public void enableAnswerCache(@NonNull Context context, int maxEntries) {
+        final DnsAnswerCache cache = new DnsAnswerCache(maxEntries, this::sendCacheQuery,
+                SystemClock::elapsedRealtime);
+        final ConnectivityManager.NetworkCallback callback =
+                new ConnectivityManager.NetworkCallback() {
+                    @Override
+                    public void onLinkPropertiesChanged(@NonNull Network network,
+                            @NonNull LinkProperties lp) {
+                        cache.onLinkPropertiesChanged(network, lp);
+                    }
+
+                    @Override
+                    public void onLost(@NonNull Network network) {
+                        cache.onNetworkLost(network);
+                    }
+                };
+        synchronized (mAnswerCacheLock) {
+            disableAnswerCacheLocked();
+            final ConnectivityManager cm = context.getSystemService(ConnectivityManager.class);
+            try {
+                cm.registerNetworkCallback(new NetworkRequest.Builder()
+                        .clearCapabilities().build(), callback);
+                mAnswerCacheCm = cm;
+                mAnswerCacheCallback = callback;
+            } catch (SecurityException e) {
+                // Without ACCESS_NETWORK_STATE, answers only expire with their TTL.
+                Log.w(TAG, "Cannot observe networks, answer cache only honours TTLs", e);
+            }
+            mAnswerCache = cache;
+        }
+    }
+
+    /**
+     * Disable the in-process answer cache and drop its answers.
+     *
+     * @hide
+     */
+    public void disableAnswerCache() {
+        synchronized (mAnswerCacheLock) {
+            disableAnswerCacheLocked();
+        }
+    }
+
+    @GuardedBy("mAnswerCacheLock")
+    private void disableAnswerCacheLocked() {
+        if (mAnswerCacheCallback != null) {
+            mAnswerCacheCm.unregisterNetworkCallback(mAnswerCacheCallback);
+            mAnswerCacheCm = null;
+            mAnswerCacheCallback = null;
+        }
+        if (mAnswerCache != null) {
+            mAnswerCache.clear();
+            mAnswerCache = null;
+        }
+    }
+
+    /**
+     * Get the counters of the in-process answer cache, or null if it is not enabled.
+     *
+     * @hide
+     */
+    @Nullable
+    public AnswerCacheStats getAnswerCacheStats() {
+        final DnsAnswerCache cache = mAnswerCache;
+        return (cache != null) ? cache.getStats() : null;
+    }
+
+    @NonNull
+    private Runnable sendCacheQuery(int netIdForResolv, @NonNull String domain, int nsClass,
+            int nsType, int flags, @NonNull Callback<byte[]> callback) throws ErrnoException {
+        final Object lock = new Object();
+        final FileDescriptor queryfd = resNetworkQuery(netIdForResolv, domain, nsClass, nsType,
+                flags);
+        final CancellationSignal cancellationSignal = new CancellationSignal();
+        synchronized (lock) {
+            // The cache dispatches the answer to the executors of its callers.
+            registerFDListener(Runnable::run, queryfd, callback, cancellationSignal, lock);
+            addCancellationSignal(cancellationSignal, queryfd, lock);
+        }
+        return cancellationSignal::cancel;
+    }
+
     /**
      * Base interface for answer callbacks
      *
@@ -232,6 +380,19 @@ public final class DnsResolver {
         if (cancellationSignal != null && cancellationSignal.isCanceled()) {
             return;
         }
+        final DnsAnswerCache cache = mAnswerCache;
+        if (cache != null && DnsAnswerCache.isCacheable(flags)) {
+            final Network queryNetwork;
+            try {
+                queryNetwork = (network != null) ? network : getDnsNetwork();
+            } catch (ErrnoException e) {
+                executor.execute(() -> callback.onError(new DnsException(ERROR_SYSTEM, e)));
+                return;
+            }
+            cache.query(queryNetwork, domain, nsClass, nsType, flags, executor,
+                    cancellationSignal, callback);
+            return;
+        }
         final Object lock = new Object();
         final FileDescriptor queryfd;
         try {
@@ -248,9 +409,10 @@ public final class DnsResolver {
         }
     }
 
-    private class InetAddressAnswerAccumulator implements Callback<byte[]> {
+    @VisibleForTesting
+    static class InetAddressAnswerAccumulator implements Callback<byte[]> {
         private final List<InetAddress> mAllAnswers;
-        private final Network mNetwork;
+        final Network mNetwork;
         private int mRcode;
         private DnsException mDnsException;
         private final Callback<? super List<InetAddress>> mUserCallback;
@@ -277,21 +439,30 @@ public final class DnsResolver {
             return false;
         }
 
-        private void maybeReportAnswer() {
+        void maybeReportAnswer() {
             if (++mReceivedAnswerCount != mTargetAnswerCount) return;
             if (mAllAnswers.isEmpty() && maybeReportError()) return;
             mUserCallback.onAnswer(rfc6724Sort(mNetwork, mAllAnswers), mRcode);
         }
 
-        @Override
-        public void onAnswer(@NonNull byte[] answer, int rcode) {
+        /** Returns the callback to register for the query of the given type. */
+        @NonNull
+        Callback<byte[]> forQueryType(@QueryType int nsType) {
+            return this;
+        }
+
+        /** Adds the addresses in an answer to the accumulated ones, and returns them. */
+        @NonNull
+        List<InetAddress> addAnswer(@NonNull byte[] answer, int rcode) {
             // If at least one query succeeded, return an rcode of 0.
             // Otherwise, arbitrarily return the first rcode received.
             if (mReceivedAnswerCount == 0 || rcode == 0) {
                 mRcode = rcode;
             }
             try {
-                mAllAnswers.addAll(new DnsAddressAnswer(answer).getAddresses());
+                final List<InetAddress> addresses = new DnsAddressAnswer(answer).getAddresses();
+                mAllAnswers.addAll(addresses);
+                return addresses;
             } catch (DnsPacket.ParseException e) {
                 // Convert the com.android.net.module.util.DnsPacket.ParseException to an
                 // android.net.ParseException. This is the type that was used in Q and is implied
@@ -301,17 +472,150 @@ public final class DnsResolver {
                 ParseException pe = new ParseException(e.reason, e.getCause());
                 pe.setStackTrace(e.getStackTrace());
                 mDnsException = new DnsException(ERROR_PARSE, pe);
+                return new ArrayList<>();
             }
+        }
+
+        void addError(@NonNull DnsException error) {
+            mDnsException = error;
+        }
+
+        @Override
+        public void onAnswer(@NonNull byte[] answer, int rcode) {
+            addAnswer(answer, rcode);
             maybeReportAnswer();
         }
 
         @Override
         public void onError(@NonNull DnsException error) {
-            mDnsException = error;
+            addError(error);
             maybeReportAnswer();
         }
     }
 
+    /**
+     * Delivers the addresses of each family as soon as they are usable, as recommended by
+     * RFC 8305 section 3, and then all the addresses once both queries completed.
+     */
+    @VisibleForTesting
+    static class StreamingAnswerAccumulator extends InetAddressAnswerAccumulator {
+        private final boolean mQueryIpv6;
+        private final long mResolutionDelayMs;
+        @NonNull
+        private final Executor mExecutor;
+        @Nullable
+        private final CancellationSignal mCancellationSignal;
+        @NonNull
+        private final StreamingCallback mStreamingCallback;
+        @NonNull
+        private final Handler mHandler;
+        private final Runnable mResolutionDelayExpired =
+                () -> mExecutor.execute(this::onResolutionDelayExpired);
+        // Whether the AAAA query completed, successfully or not.
+        private boolean mIpv6Done;
+        // IPv4 addresses held back while waiting for the AAAA answer, if any.
+        @Nullable
+        private List<InetAddress> mPendingIpv4Addresses;
+
+        StreamingAnswerAccumulator(@NonNull Network network, boolean queryIpv6,
+                boolean queryIpv4, long resolutionDelayMs, @NonNull Executor executor,
+                @Nullable CancellationSignal cancellationSignal,
+                @NonNull StreamingCallback callback, @NonNull Handler handler) {
+            super(network, (queryIpv6 ? 1 : 0) + (queryIpv4 ? 1 : 0), callback);
+            mQueryIpv6 = queryIpv6;
+            mResolutionDelayMs = resolutionDelayMs;
+            mExecutor = executor;
+            mCancellationSignal = cancellationSignal;
+            mStreamingCallback = callback;
+            mHandler = handler;
+        }
+
+        @Override
+        @NonNull
+        Callback<byte[]> forQueryType(@QueryType int nsType) {
+            return new Callback<byte[]>() {
+                @Override
+                public void onAnswer(@NonNull byte[] answer, int rcode) {
+                    onFamilyAnswer(nsType, answer, rcode);
+                }
+
+                @Override
+                public void onError(@NonNull DnsException error) {
+                    onFamilyError(nsType, error);
+                }
+            };
+        }
+
+        private synchronized void onFamilyAnswer(int nsType, @NonNull byte[] answer,
+                int rcode) {
+            onFamilyDone(nsType, addAnswer(answer, rcode));
+            maybeReportAnswer();
+        }
+
+        private synchronized void onFamilyError(int nsType, @NonNull DnsException error) {
+            addError(error);
+            onFamilyDone(nsType, new ArrayList<>());
+            maybeReportAnswer();
+        }
+
+        private void onFamilyDone(int nsType, @NonNull List<InetAddress> addresses) {
+            if (nsType == TYPE_AAAA) {
+                mIpv6Done = true;
+                deliverPartialAnswer(addresses);
+                flushPendingIpv4Addresses();
+            } else if (!mQueryIpv6 || mIpv6Done || mResolutionDelayMs <= 0
+                    || addresses.isEmpty()) {
+                deliverPartialAnswer(addresses);
+            } else {
+                // Give the AAAA answer a chance to arrive first, so IPv6 is preferred.
+                mPendingIpv4Addresses = addresses;
+                mHandler.postDelayed(mResolutionDelayExpired, mResolutionDelayMs);
+            }
+        }
+
+        private synchronized void onResolutionDelayExpired() {
+            if (mCancellationSignal != null && mCancellationSignal.isCanceled()) return;
+            flushPendingIpv4Addresses();
+        }
+
+        private void flushPendingIpv4Addresses() {
+            if (mPendingIpv4Addresses == null) return;
+            mHandler.removeCallbacks(mResolutionDelayExpired);
+            final List<InetAddress> addresses = mPendingIpv4Addresses;
+            mPendingIpv4Addresses = null;
+            deliverPartialAnswer(addresses);
+        }
+
+        private void deliverPartialAnswer(@NonNull List<InetAddress> addresses) {
+            if (addresses.isEmpty()) return;
+            mStreamingCallback.onPartialAnswer(rfc6724Sort(mNetwork, addresses));
+        }
+    }
+
+    /**
+     * Callback for {@link #queryStreaming queryStreaming()}.
+     *
+     * {@link #onAnswer} is called last, with the addresses of both families sorted together,
+     * and may be ignored by callers only interested in the partial answers.
+     *
+     * @hide
+     */
+    public interface StreamingCallback extends Callback<List<InetAddress>> {
+        /**
+         * Called with the addresses of one family, as soon as they can be used.
+         *
+         * @param addresses the addresses of one family, sorted with rfc6724 style.
+         */
+        void onPartialAnswer(@NonNull List<InetAddress> addresses);
+    }
+
+    /** Creates the accumulator for the answers to the queries of an address lookup. */
+    private interface AccumulatorFactory {
+        @NonNull
+        InetAddressAnswerAccumulator create(@NonNull Network network, boolean queryIpv6,
+                boolean queryIpv4);
+    }
+
     /**
      * Send a DNS query with the specified name on a network with both IPv4 and IPv6,
      * get back a set of InetAddresses with rfc6724 sorting style asynchronously.
@@ -337,6 +641,54 @@ public final class DnsResolver {
             @NonNull @CallbackExecutor Executor executor,
             @Nullable CancellationSignal cancellationSignal,
             @NonNull Callback<? super List<InetAddress>> callback) {
+        queryAddresses(network, domain, flags, executor, cancellationSignal, callback,
+                (queryNetwork, queryIpv6, queryIpv4) -> new InetAddressAnswerAccumulator(
+                        queryNetwork, (queryIpv6 ? 1 : 0) + (queryIpv4 ? 1 : 0), callback));
+    }
+
+    /**
+     * Send a DNS query with the specified name on a network with both IPv4 and IPv6, like
+     * {@link #query(Network, String, int, Executor, CancellationSignal, Callback)}, but
+     * deliver the addresses of each family as soon as they can be used.
+     *
+     * IPv6 addresses are delivered as soon as they arrive. Following the "Resolution Delay" of
+     * RFC 8305, IPv4 addresses arriving first are held back for up to
+     * {@code resolutionDelayMs} to give the IPv6 answer a chance to arrive. Once both queries
+     * completed, all the addresses are delivered again, sorted together, through
+     * {@link StreamingCallback#onAnswer}.
+     *
+     * @param network {@link Network} specifying which network to query on.
+     *         {@code null} for query on default network.
+     * @param domain domain name to query
+     * @param flags flags as a combination of the FLAGS_* constants
+     * @param resolutionDelayMs how long to hold back IPv4 addresses waiting for IPv6 ones, or 0
+     *         to deliver them immediately. RFC 8305 recommends
+     *         {@link #DEFAULT_RESOLUTION_DELAY_MS}.
+     * @param executor The {@link Executor} that the callback should be executed on.
+     * @param cancellationSignal used by the caller to signal if the query should be
+     *    cancelled. May be {@code null}.
+     * @param callback a {@link StreamingCallback} which will be called to notify the
+     *    caller of the results of dns query.
+     * @hide
+     */
+    public void queryStreaming(@Nullable Network network, @NonNull String domain,
+            @QueryFlag int flags, long resolutionDelayMs,
+            @NonNull @CallbackExecutor Executor executor,
+            @Nullable CancellationSignal cancellationSignal,
+            @NonNull StreamingCallback callback) {
+        if (resolutionDelayMs < 0) {
+            throw new IllegalArgumentException("Invalid resolution delay: " + resolutionDelayMs);
+        }
+        queryAddresses(network, domain, flags, executor, cancellationSignal, callback,
+                (queryNetwork, queryIpv6, queryIpv4) -> new StreamingAnswerAccumulator(
+                        queryNetwork, queryIpv6, queryIpv4, resolutionDelayMs, executor,
+                        cancellationSignal, callback, new Handler(Looper.getMainLooper())));
+    }
+
+    private void queryAddresses(@Nullable Network network, @NonNull String domain, int flags,
+            @NonNull Executor executor, @Nullable CancellationSignal cancellationSignal,
+            @NonNull Callback<? super List<InetAddress>> callback,
+            @NonNull AccumulatorFactory accumulatorFactory) {
         if (cancellationSignal != null && cancellationSignal.isCanceled()) {
             return;
         }
@@ -359,11 +711,18 @@ public final class DnsResolver {
             return;
         }
 
+        final InetAddressAnswerAccumulator accumulator =
+                accumulatorFactory.create(queryNetwork, queryIpv6, queryIpv4);
+        final DnsAnswerCache cache = mAnswerCache;
+        if (cache != null && DnsAnswerCache.isCacheable(flags)) {
+            queryAddressesCached(cache, queryNetwork, domain, flags, queryIpv6, queryIpv4,
+                    executor, cancellationSignal, accumulator);
+            return;
+        }
+
         final FileDescriptor v4fd;
         final FileDescriptor v6fd;
 
-        int queryCount = 0;
-
         if (queryIpv6) {
             try {
                 v6fd = resNetworkQuery(queryNetwork.getNetIdForResolv(), domain, CLASS_IN,
@@ -372,7 +731,6 @@ public final class DnsResolver {
                 executor.execute(() -> callback.onError(new DnsException(ERROR_SYSTEM, e)));
                 return;
             }
-            queryCount++;
         } else v6fd = null;
 
         // Avoiding gateways drop packets if queries are sent too close together
@@ -391,18 +749,16 @@ public final class DnsResolver {
                 executor.execute(() -> callback.onError(new DnsException(ERROR_SYSTEM, e)));
                 return;
             }
-            queryCount++;
         } else v4fd = null;
 
-        final InetAddressAnswerAccumulator accumulator =
-                new InetAddressAnswerAccumulator(queryNetwork, queryCount, callback);
-
         synchronized (lock)  {
             if (queryIpv6) {
-                registerFDListener(executor, v6fd, accumulator, cancellationSignal, lock);
+                registerFDListener(executor, v6fd, accumulator.forQueryType(TYPE_AAAA),
+                        cancellationSignal, lock);
             }
             if (queryIpv4) {
-                registerFDListener(executor, v4fd, accumulator, cancellationSignal, lock);
+                registerFDListener(executor, v4fd, accumulator.forQueryType(TYPE_A),
+                        cancellationSignal, lock);
             }
             if (cancellationSignal == null) return;
             cancellationSignal.setOnCancelListener(() -> {
@@ -442,8 +798,15 @@ public final class DnsResolver {
         final Object lock = new Object();
         final FileDescriptor queryfd;
         final Network queryNetwork;
+        final DnsAnswerCache cache = mAnswerCache;
         try {
             queryNetwork = (network != null) ? network : getDnsNetwork();
+            if (cache != null && DnsAnswerCache.isCacheable(flags)) {
+                cache.query(queryNetwork, domain, CLASS_IN, nsType, flags, executor,
+                        cancellationSignal,
+                        new InetAddressAnswerAccumulator(queryNetwork, 1, callback));
+                return;
+            }
             queryfd = resNetworkQuery(queryNetwork.getNetIdForResolv(), domain, CLASS_IN, nsType,
                     flags);
         } catch (ErrnoException e) {
@@ -459,6 +822,43 @@ public final class DnsResolver {
         }
     }
 
+    private void queryAddressesCached(@NonNull DnsAnswerCache cache, @NonNull Network network,
+            @NonNull String domain, int flags, boolean queryIpv6, boolean queryIpv4,
+            @NonNull Executor executor, @Nullable CancellationSignal cancellationSignal,
+            @NonNull InetAddressAnswerAccumulator accumulator) {
+        // A CancellationSignal only has one listener, so each query gets its own signal.
+        final CancellationSignal v6Signal =
+                (cancellationSignal != null) ? new CancellationSignal() : null;
+        final CancellationSignal v4Signal =
+                (cancellationSignal != null) ? new CancellationSignal() : null;
+        if (cancellationSignal != null) {
+            cancellationSignal.setOnCancelListener(() -> {
+                v6Signal.cancel();
+                v4Signal.cancel();
+            });
+        }
+
+        boolean sent = false;
+        if (queryIpv6) {
+            sent = cache.query(network, domain, CLASS_IN, TYPE_AAAA, flags, executor, v6Signal,
+                    accumulator.forQueryType(TYPE_AAAA));
+        }
+
+        // Avoiding gateways drop packets if queries are sent too close together
+        if (sent && queryIpv4) {
+            try {
+                Thread.sleep(SLEEP_TIME_MS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (queryIpv4) {
+            cache.query(network, domain, CLASS_IN, TYPE_A, flags, executor, v4Signal,
+                    accumulator.forQueryType(TYPE_A));
+        }
+    }
+
     /**
      * Class to retrieve DNS response
      *
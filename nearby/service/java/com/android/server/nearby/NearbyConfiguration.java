@@ -54,6 +54,15 @@ public class NearbyConfiguration {
     public static final String NEARBY_REFACTOR_DISCOVERY_MANAGER =
             "nearby_refactor_discovery_manager";
 
+    /**
+     * Flag for the window, in milliseconds, after which BLE scan results repeating the last
+     * reported advertisement of a device are reported again. Zero or less reports all results.
+     */
+    public static final String NEARBY_BLE_SCAN_DEDUP_WINDOW_MILLIS =
+            "nearby_ble_scan_dedup_window_millis";
+
+    private static final int DEFAULT_BLE_SCAN_DEDUP_WINDOW_MILLIS = 1000;
+
     private static final boolean IS_USER_BUILD = "user".equals(Build.TYPE);
 
     private final DeviceConfigListener mDeviceConfigListener = new DeviceConfigListener();
@@ -67,6 +76,8 @@ public class NearbyConfiguration {
     private boolean mSupportTestApp;
     @GuardedBy("mDeviceConfigLock")
     private boolean mRefactorDiscoveryManager;
+    @GuardedBy("mDeviceConfigLock")
+    private int mBleScanDedupWindowMillis;
 
     public NearbyConfiguration() {
         mDeviceConfigListener.start();
@@ -131,6 +142,15 @@ public class NearbyConfiguration {
         }
     }
 
+    /**
+     * Returns the window after which a repeated BLE advertisement is reported again.
+     */
+    public int getBleScanDedupWindowMillis() {
+        synchronized (mDeviceConfigLock) {
+            return mBleScanDedupWindowMillis;
+        }
+    }
+
     private class DeviceConfigListener implements DeviceConfig.OnPropertiesChangedListener {
         public void start() {
             DeviceConfig.addOnPropertiesChangedListener(getNamespace(),
@@ -149,6 +169,9 @@ public class NearbyConfiguration {
                         NEARBY_SUPPORT_TEST_APP, false /* defaultValue */);
                 mRefactorDiscoveryManager = getDeviceConfigBoolean(
                         NEARBY_REFACTOR_DISCOVERY_MANAGER, false /* defaultValue */);
+                mBleScanDedupWindowMillis = getDeviceConfigInt(
+                        NEARBY_BLE_SCAN_DEDUP_WINDOW_MILLIS,
+                        DEFAULT_BLE_SCAN_DEDUP_WINDOW_MILLIS);
             }
         }
     }
@@ -54,6 +54,9 @@ import com.android.server.nearby.util.identity.CallerIdentity;
 import com.android.server.nearby.util.permissions.BroadcastPermissions;
 import com.android.server.nearby.util.permissions.DiscoveryPermissions;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 /** Service implementing nearby functionality. */
 public class NearbyService extends INearbyManager.Stub {
     public static final String TAG = "NearbyService";
@@ -155,6 +158,16 @@ public class NearbyService extends INearbyManager.Stub {
         mDiscoveryProviderManager.queryOffloadCapability(callback);
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        if (mContext.checkCallingOrSelfPermission(android.Manifest.permission.DUMP)
+                != PackageManager.PERMISSION_GRANTED) {
+            pw.println("Permission Denial: can't dump " + TAG);
+            return;
+        }
+        mDiscoveryProviderManager.dump(pw);
+    }
+
     /**
      * Called by the service initializer.
      *
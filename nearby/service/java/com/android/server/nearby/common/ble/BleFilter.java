@@ -339,11 +339,7 @@ public final class BleFilter implements Parcelable {
             }
         }
 
-        if (!matchesServiceUuids(uuid1, uuidMask1, Arrays.asList(uuid2))) {
-            return false;
-        }
-
-        return true;
+        return matchesServiceUuid(uuid1.getUuid(), uuidMask1.getUuid(), uuid2.getUuid());
     }
 
     /** Determines if the first data and mask are the superset of the second data and mask. */
@@ -0,0 +1,562 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.nearby.common.ble;
+
+import static com.android.server.nearby.common.ble.BleRecord.BASE_UUID;
+import static com.android.server.nearby.common.ble.BleRecord.DATA_TYPE_FLAGS;
+import static com.android.server.nearby.common.ble.BleRecord.DATA_TYPE_LOCAL_NAME_COMPLETE;
+import static com.android.server.nearby.common.ble.BleRecord.DATA_TYPE_LOCAL_NAME_SHORT;
+import static com.android.server.nearby.common.ble.BleRecord.DATA_TYPE_MANUFACTURER_SPECIFIC_DATA;
+import static com.android.server.nearby.common.ble.BleRecord.DATA_TYPE_SERVICE_DATA;
+import static com.android.server.nearby.common.ble.BleRecord.DATA_TYPE_SERVICE_UUIDS_128_BIT_COMPLETE;
+import static com.android.server.nearby.common.ble.BleRecord.DATA_TYPE_SERVICE_UUIDS_128_BIT_PARTIAL;
+import static com.android.server.nearby.common.ble.BleRecord.DATA_TYPE_SERVICE_UUIDS_16_BIT_COMPLETE;
+import static com.android.server.nearby.common.ble.BleRecord.DATA_TYPE_SERVICE_UUIDS_16_BIT_PARTIAL;
+import static com.android.server.nearby.common.ble.BleRecord.DATA_TYPE_SERVICE_UUIDS_32_BIT_COMPLETE;
+import static com.android.server.nearby.common.ble.BleRecord.DATA_TYPE_SERVICE_UUIDS_32_BIT_PARTIAL;
+import static com.android.server.nearby.common.ble.BleRecord.DATA_TYPE_TX_POWER_LEVEL;
+import static com.android.server.nearby.common.ble.BleRecord.UUID_BYTES_128_BIT;
+import static com.android.server.nearby.common.ble.BleRecord.UUID_BYTES_16_BIT;
+import static com.android.server.nearby.common.ble.BleRecord.UUID_BYTES_32_BIT;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.ParcelUuid;
+import android.util.LongSparseArray;
+import android.util.SparseArray;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A set of {@link BleFilter}s compiled to be matched against raw scan records.
+ *
+ * <p>{@link #match} walks the scan record once, without building a {@link BleRecord}. The service
+ * UUIDs, service data UUIDs and manufacturer ids it finds select the candidate filters through
+ * hash buckets, and the candidates are then checked with masked comparisons over the scan record
+ * bytes. The result is the same as calling {@link BleFilter#matches} for every filter.
+ *
+ * <p>Nothing in the service matches scan records against {@link BleFilter}s yet: scans are
+ * filtered by the Bluetooth stack through {@link android.bluetooth.le.ScanFilter}s. This is meant
+ * for a software filtering path with many filters, and is only exercised by its tests until one
+ * exists.
+ *
+ * <p>This class is not thread safe.
+ */
+public final class BleFilterSet {
+    private static final long BASE_UUID_MSB = BASE_UUID.getUuid().getMostSignificantBits();
+    private static final long BASE_UUID_LSB = BASE_UUID.getUuid().getLeastSignificantBits();
+    private static final int MAX_UUID_16_BIT = 0xFFFF;
+
+    private final BleFilter[] mFilters;
+    private final CompiledFilter[] mCompiled;
+
+    // Candidate filter indexes, keyed by the most significant bits of an unmasked service UUID,
+    // by a 16-bit service data UUID or by a manufacturer id.
+    private final LongSparseArray<int[]> mByServiceUuid = new LongSparseArray<>();
+    private final SparseArray<int[]> mByServiceDataUuid = new SparseArray<>();
+    private final SparseArray<int[]> mByManufacturerId = new SparseArray<>();
+    // Filters that are candidates for every scan record.
+    private final int[] mAlwaysCandidates;
+
+    // Marks the candidates of the current match with mStamp.
+    private final int[] mCandidateStamps;
+    private int mStamp;
+
+    // The fields of the scan record being matched. Service data and manufacturer data are
+    // triples of key, offset and length.
+    private final ScanRecordFields mFields = new ScanRecordFields();
+
+    public BleFilterSet(List<BleFilter> filters) {
+        mFilters = filters.toArray(new BleFilter[0]);
+        mCompiled = new CompiledFilter[mFilters.length];
+        mCandidateStamps = new int[mFilters.length];
+
+        LongSparseArray<List<Integer>> byServiceUuid = new LongSparseArray<>();
+        SparseArray<List<Integer>> byServiceDataUuid = new SparseArray<>();
+        SparseArray<List<Integer>> byManufacturerId = new SparseArray<>();
+        List<Integer> always = new ArrayList<>();
+        for (int i = 0; i < mFilters.length; i++) {
+            CompiledFilter compiled = new CompiledFilter(mFilters[i]);
+            mCompiled[i] = compiled;
+            if (compiled.mNeverMatches) {
+                continue;
+            }
+            if (compiled.mHasServiceUuid && !compiled.mHasServiceUuidMask) {
+                List<Integer> bucket = byServiceUuid.get(compiled.mServiceUuidMsb);
+                if (bucket == null) {
+                    bucket = new ArrayList<>();
+                    byServiceUuid.put(compiled.mServiceUuidMsb, bucket);
+                }
+                bucket.add(i);
+            } else if (compiled.mServiceData != null) {
+                add(byServiceDataUuid, compiled.mServiceDataUuid16, i);
+            } else if (compiled.mManufacturerData != null) {
+                add(byManufacturerId, compiled.mManufacturerId, i);
+            } else {
+                always.add(i);
+            }
+        }
+        for (int i = 0; i < byServiceUuid.size(); i++) {
+            mByServiceUuid.put(byServiceUuid.keyAt(i), toArray(byServiceUuid.valueAt(i)));
+        }
+        for (int i = 0; i < byServiceDataUuid.size(); i++) {
+            mByServiceDataUuid.put(byServiceDataUuid.keyAt(i),
+                    toArray(byServiceDataUuid.valueAt(i)));
+        }
+        for (int i = 0; i < byManufacturerId.size(); i++) {
+            mByManufacturerId.put(byManufacturerId.keyAt(i), toArray(byManufacturerId.valueAt(i)));
+        }
+        mAlwaysCandidates = toArray(always);
+    }
+
+    /** Returns the number of filters in the set. */
+    public int size() {
+        return mFilters.length;
+    }
+
+    /** Returns the filters matching the sighting, in the order they were given. */
+    public List<BleFilter> match(@Nullable BleSighting bleSighting) {
+        if (bleSighting == null) {
+            return Collections.emptyList();
+        }
+        return match(bleSighting.getDevice(), bleSighting.getBleRecordBytes());
+    }
+
+    /**
+     * Returns the filters matching a device and its scan record, in the order they were given.
+     */
+    public List<BleFilter> match(@Nullable BluetoothDevice device, @Nullable byte[] scanRecord) {
+        ScanRecordFields fields = mFields;
+        fields.parse(scanRecord);
+
+        mStamp++;
+        if (mStamp == 0) {
+            Arrays.fill(mCandidateStamps, 0);
+            mStamp = 1;
+        }
+        for (int i = 0; i < fields.mServiceUuidCount; i++) {
+            markCandidates(mByServiceUuid.get(fields.mServiceUuids[2 * i]));
+        }
+        for (int i = 0; i < fields.mServiceDataCount; i++) {
+            markCandidates(mByServiceDataUuid.get(fields.mServiceData[3 * i]));
+        }
+        for (int i = 0; i < fields.mManufacturerDataCount; i++) {
+            markCandidates(mByManufacturerId.get(fields.mManufacturerData[3 * i]));
+        }
+        markCandidates(mAlwaysCandidates);
+
+        List<BleFilter> matches = null;
+        String deviceAddress = null;
+        boolean deviceAddressRead = false;
+        for (int i = 0; i < mFilters.length; i++) {
+            if (mCandidateStamps[i] != mStamp) {
+                continue;
+            }
+            CompiledFilter compiled = mCompiled[i];
+            if (compiled.mDeviceAddress != null) {
+                if (!deviceAddressRead) {
+                    deviceAddress = device == null ? null : device.getAddress();
+                    deviceAddressRead = true;
+                }
+                if (!compiled.mDeviceAddress.equals(deviceAddress)) {
+                    continue;
+                }
+            }
+            if (!compiled.matches(scanRecord, fields)) {
+                continue;
+            }
+            if (matches == null) {
+                matches = new ArrayList<>();
+            }
+            matches.add(mFilters[i]);
+        }
+        return matches == null ? Collections.emptyList() : matches;
+    }
+
+    private void markCandidates(@Nullable int[] candidates) {
+        if (candidates == null) {
+            return;
+        }
+        for (int candidate : candidates) {
+            mCandidateStamps[candidate] = mStamp;
+        }
+    }
+
+    private static void add(SparseArray<List<Integer>> buckets, int key, int index) {
+        List<Integer> bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList<>();
+            buckets.put(key, bucket);
+        }
+        bucket.add(index);
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * Returns the 16-bit UUID the given UUID was expanded from, or -1 if it is not the expansion
+     * of a 16-bit UUID.
+     */
+    private static int toUuid16(ParcelUuid parcelUuid) {
+        long msb = parcelUuid.getUuid().getMostSignificantBits();
+        long lsb = parcelUuid.getUuid().getLeastSignificantBits();
+        long uuid16 = (msb - BASE_UUID_MSB) >>> 32;
+        if (lsb != BASE_UUID_LSB || msb != BASE_UUID_MSB + (uuid16 << 32)
+                || uuid16 > MAX_UUID_16_BIT) {
+            return -1;
+        }
+        return (int) uuid16;
+    }
+
+    /** Same as {@link BleFilter#matchesPartialData}, over a range of the scan record. */
+    private static boolean matchesPartialData(byte[] data, @Nullable byte[] dataMask,
+            byte[] scanRecord, int offset, int length) {
+        if (length < data.length) {
+            return false;
+        }
+        if (dataMask == null) {
+            for (int i = 0; i < data.length; ++i) {
+                if (scanRecord[offset + i] != data[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        for (int i = 0; i < data.length; ++i) {
+            if ((dataMask[i] & scanRecord[offset + i]) != (dataMask[i] & data[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** The fields of a {@link BleFilter} in the form they are compared with. */
+    private static final class CompiledFilter {
+        @Nullable
+        final String mDeviceAddress;
+        @Nullable
+        final String mDeviceName;
+        final boolean mHasServiceUuid;
+        final boolean mHasServiceUuidMask;
+        final long mServiceUuidMsb;
+        final long mServiceUuidLsb;
+        final long mServiceUuidMaskMsb;
+        final long mServiceUuidMaskLsb;
+        final int mServiceDataUuid16;
+        @Nullable
+        final byte[] mServiceData;
+        @Nullable
+        final byte[] mServiceDataMask;
+        final int mManufacturerId;
+        @Nullable
+        final byte[] mManufacturerData;
+        @Nullable
+        final byte[] mManufacturerDataMask;
+        // Set when a field filter can't be satisfied by any scan record, e.g. a service data
+        // UUID without data.
+        final boolean mNeverMatches;
+
+        CompiledFilter(BleFilter filter) {
+            mDeviceAddress = filter.getDeviceAddress();
+            mDeviceName = filter.getDeviceName();
+
+            ParcelUuid serviceUuid = filter.getServiceUuid();
+            ParcelUuid serviceUuidMask = filter.getServiceUuidMask();
+            mHasServiceUuid = serviceUuid != null;
+            mHasServiceUuidMask = mHasServiceUuid && serviceUuidMask != null;
+            mServiceUuidMaskMsb = mHasServiceUuidMask
+                    ? serviceUuidMask.getUuid().getMostSignificantBits() : -1L;
+            mServiceUuidMaskLsb = mHasServiceUuidMask
+                    ? serviceUuidMask.getUuid().getLeastSignificantBits() : -1L;
+            mServiceUuidMsb = mHasServiceUuid
+                    ? serviceUuid.getUuid().getMostSignificantBits() : 0;
+            mServiceUuidLsb = mHasServiceUuid
+                    ? serviceUuid.getUuid().getLeastSignificantBits() : 0;
+
+            boolean neverMatches = false;
+            ParcelUuid serviceDataUuid = filter.getServiceDataUuid();
+            if (serviceDataUuid != null) {
+                // Scan records only carry service data of 16-bit UUIDs.
+                mServiceDataUuid16 = toUuid16(serviceDataUuid);
+                mServiceData = filter.getServiceData();
+                mServiceDataMask = filter.getServiceDataMask();
+                neverMatches |= mServiceDataUuid16 < 0 || mServiceData == null;
+            } else {
+                mServiceDataUuid16 = -1;
+                mServiceData = null;
+                mServiceDataMask = null;
+            }
+
+            mManufacturerId = filter.getManufacturerId();
+            if (mManufacturerId >= 0) {
+                mManufacturerData = filter.getManufacturerData();
+                mManufacturerDataMask = filter.getManufacturerDataMask();
+                neverMatches |= mManufacturerData == null;
+            } else {
+                mManufacturerData = null;
+                mManufacturerDataMask = null;
+            }
+            mNeverMatches = neverMatches;
+        }
+
+        boolean matches(@Nullable byte[] scanRecord, ScanRecordFields fields) {
+            if (mDeviceName != null && !mDeviceName.equals(fields.getDeviceName(scanRecord))) {
+                return false;
+            }
+            if (mHasServiceUuid && !matchesServiceUuids(fields)) {
+                return false;
+            }
+            if (mServiceData != null) {
+                int entry = fields.findLast(fields.mServiceData, fields.mServiceDataCount,
+                        mServiceDataUuid16);
+                if (entry < 0 || !matchesPartialData(mServiceData, mServiceDataMask, scanRecord,
+                        fields.mServiceData[entry + 1], fields.mServiceData[entry + 2])) {
+                    return false;
+                }
+            }
+            if (mManufacturerData != null) {
+                int entry = fields.findLast(fields.mManufacturerData,
+                        fields.mManufacturerDataCount, mManufacturerId);
+                if (entry < 0 || !matchesPartialData(mManufacturerData, mManufacturerDataMask,
+                        scanRecord, fields.mManufacturerData[entry + 1],
+                        fields.mManufacturerData[entry + 2])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean matchesServiceUuids(ScanRecordFields fields) {
+            for (int i = 0; i < fields.mServiceUuidCount; i++) {
+                long msb = fields.mServiceUuids[2 * i];
+                long lsb = fields.mServiceUuids[2 * i + 1];
+                if ((mServiceUuidMsb & mServiceUuidMaskMsb) == (msb & mServiceUuidMaskMsb)
+                        && (mServiceUuidLsb & mServiceUuidMaskLsb)
+                        == (lsb & mServiceUuidMaskLsb)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The fields of a scan record that filters look at, parsed the same way as
+     * {@link BleRecord#parseFromBytes} but kept as offsets into the scan record. As there, a
+     * malformed scan record has no fields.
+     */
+    private static final class ScanRecordFields {
+        // Pairs of most and least significant bits.
+        long[] mServiceUuids = new long[8];
+        int mServiceUuidCount;
+        // Triples of 16-bit UUID, offset and length.
+        int[] mServiceData = new int[6];
+        int mServiceDataCount;
+        // Triples of manufacturer id, offset and length.
+        int[] mManufacturerData = new int[6];
+        int mManufacturerDataCount;
+        int mDeviceNameOffset;
+        int mDeviceNameLength;
+        @Nullable
+        private String mDeviceName;
+
+        void parse(@Nullable byte[] scanRecord) {
+            mDeviceName = null;
+            if (scanRecord == null || !parseFields(scanRecord)) {
+                clear();
+            }
+        }
+
+        private void clear() {
+            mServiceUuidCount = 0;
+            mServiceDataCount = 0;
+            mManufacturerDataCount = 0;
+            mDeviceNameOffset = -1;
+            mDeviceNameLength = 0;
+        }
+
+        /** Returns false if {@link BleRecord#parseFromBytes} would fail on the scan record. */
+        private boolean parseFields(byte[] scanRecord) {
+            clear();
+            int currentPos = 0;
+            while (currentPos < scanRecord.length) {
+                // length is unsigned int.
+                int length = scanRecord[currentPos++] & 0xFF;
+                if (length == 0) {
+                    break;
+                }
+                // Note the length includes the length of the field type itself.
+                int dataLength = length - 1;
+                if (currentPos >= scanRecord.length) {
+                    return false;
+                }
+                // fieldType is unsigned int.
+                int fieldType = scanRecord[currentPos++] & 0xFF;
+                switch (fieldType) {
+                    case DATA_TYPE_FLAGS:
+                    case DATA_TYPE_TX_POWER_LEVEL:
+                        if (currentPos >= scanRecord.length) {
+                            return false;
+                        }
+                        break;
+                    case DATA_TYPE_SERVICE_UUIDS_16_BIT_PARTIAL:
+                    case DATA_TYPE_SERVICE_UUIDS_16_BIT_COMPLETE:
+                        if (!parseServiceUuids(scanRecord, currentPos, dataLength,
+                                UUID_BYTES_16_BIT)) {
+                            return false;
+                        }
+                        break;
+                    case DATA_TYPE_SERVICE_UUIDS_32_BIT_PARTIAL:
+                    case DATA_TYPE_SERVICE_UUIDS_32_BIT_COMPLETE:
+                        if (!parseServiceUuids(scanRecord, currentPos, dataLength,
+                                UUID_BYTES_32_BIT)) {
+                            return false;
+                        }
+                        break;
+                    case DATA_TYPE_SERVICE_UUIDS_128_BIT_PARTIAL:
+                    case DATA_TYPE_SERVICE_UUIDS_128_BIT_COMPLETE:
+                        if (!parseServiceUuids(scanRecord, currentPos, dataLength,
+                                UUID_BYTES_128_BIT)) {
+                            return false;
+                        }
+                        break;
+                    case DATA_TYPE_LOCAL_NAME_SHORT:
+                    case DATA_TYPE_LOCAL_NAME_COMPLETE:
+                        if (currentPos + dataLength > scanRecord.length) {
+                            return false;
+                        }
+                        mDeviceNameOffset = currentPos;
+                        mDeviceNameLength = dataLength;
+                        break;
+                    case DATA_TYPE_SERVICE_DATA:
+                        // The first two bytes of the service data are service data UUID in little
+                        // endian. The rest bytes are service data.
+                        if (dataLength < UUID_BYTES_16_BIT
+                                || currentPos + dataLength > scanRecord.length) {
+                            return false;
+                        }
+                        mServiceData = addEntry(mServiceData, mServiceDataCount++,
+                                readUint16(scanRecord, currentPos),
+                                currentPos + UUID_BYTES_16_BIT, dataLength - UUID_BYTES_16_BIT);
+                        break;
+                    case DATA_TYPE_MANUFACTURER_SPECIFIC_DATA:
+                        // The first two bytes of the manufacturer specific data are
+                        // manufacturer ids in little endian.
+                        if (dataLength < 2 || currentPos + dataLength > scanRecord.length) {
+                            return false;
+                        }
+                        mManufacturerData = addEntry(mManufacturerData, mManufacturerDataCount++,
+                                readUint16(scanRecord, currentPos), currentPos + 2,
+                                dataLength - 2);
+                        break;
+                    default:
+                        // Just ignore, we don't handle such data type.
+                        break;
+                }
+                currentPos += dataLength;
+            }
+            return true;
+        }
+
+        private boolean parseServiceUuids(byte[] scanRecord, int currentPos, int dataLength,
+                int uuidLength) {
+            while (dataLength > 0) {
+                if (currentPos + uuidLength > scanRecord.length) {
+                    return false;
+                }
+                if (2 * (mServiceUuidCount + 1) > mServiceUuids.length) {
+                    mServiceUuids = Arrays.copyOf(mServiceUuids, 2 * mServiceUuids.length);
+                }
+                long msb;
+                long lsb;
+                if (uuidLength == UUID_BYTES_128_BIT) {
+                    lsb = readInt64(scanRecord, currentPos);
+                    msb = readInt64(scanRecord, currentPos + 8);
+                } else {
+                    // Same conversion as BleRecord, including the sign extension of the top
+                    // byte of a 32-bit UUID.
+                    long shortUuid = scanRecord[currentPos] & 0xFF;
+                    shortUuid += (scanRecord[currentPos + 1] & 0xFF) << 8;
+                    if (uuidLength == UUID_BYTES_32_BIT) {
+                        shortUuid += (scanRecord[currentPos + 2] & 0xFF) << 16;
+                        shortUuid += (scanRecord[currentPos + 3] & 0xFF) << 24;
+                    }
+                    msb = BASE_UUID_MSB + (shortUuid << 32);
+                    lsb = BASE_UUID_LSB;
+                }
+                mServiceUuids[2 * mServiceUuidCount] = msb;
+                mServiceUuids[2 * mServiceUuidCount + 1] = lsb;
+                mServiceUuidCount++;
+                dataLength -= uuidLength;
+                currentPos += uuidLength;
+            }
+            return true;
+        }
+
+        /** Returns the device name, decoded the first time it is needed. */
+        @Nullable
+        String getDeviceName(@Nullable byte[] scanRecord) {
+            if (mDeviceName == null && mDeviceNameOffset >= 0 && scanRecord != null) {
+                mDeviceName = new String(scanRecord, mDeviceNameOffset, mDeviceNameLength);
+            }
+            return mDeviceName;
+        }
+
+        /** Returns the index of the last triple with the given key, or -1 if there is none. */
+        int findLast(int[] entries, int count, int key) {
+            for (int i = count - 1; i >= 0; i--) {
+                if (entries[3 * i] == key) {
+                    return 3 * i;
+                }
+            }
+            return -1;
+        }
+
+        private static int[] addEntry(int[] entries, int index, int key, int offset,
+                int length) {
+            if (3 * (index + 1) > entries.length) {
+                entries = Arrays.copyOf(entries, 2 * entries.length);
+            }
+            entries[3 * index] = key;
+            entries[3 * index + 1] = offset;
+            entries[3 * index + 2] = length;
+            return entries;
+        }
+
+        private static int readUint16(byte[] bytes, int offset) {
+            return ((bytes[offset + 1] & 0xFF) << 8) + (bytes[offset] & 0xFF);
+        }
+
+        private static long readInt64(byte[] bytes, int offset) {
+            long value = 0;
+            for (int i = 7; i >= 0; i--) {
+                value = (value << 8) | (bytes[offset + i] & 0xFF);
+            }
+            return value;
+        }
+    }
+}
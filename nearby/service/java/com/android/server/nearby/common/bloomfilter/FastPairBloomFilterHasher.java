@@ -30,7 +30,14 @@ public class FastPairBloomFilterHasher implements BloomFilter.Hasher {
 
     @Override
     public int[] getHashes(byte[] value) {
-        byte[] hash = Hashing.sha256().hashBytes(value).asBytes();
+        return toHashes(Hashing.sha256().hashBytes(value).asBytes());
+    }
+
+    /**
+     * Splits a SHA-256 hash of a value into the parts returned by {@link #getHashes(byte[])}, for
+     * callers that compute the hash themselves.
+     */
+    public static int[] toHashes(byte[] hash) {
         ByteBuffer buffer = ByteBuffer.wrap(hash);
         int[] hashes = new int[NUM_INDEXES];
         for (int i = 0; i < NUM_INDEXES; i++) {
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.nearby.fastpair;
+
+import static com.android.server.nearby.fastpair.Constant.TAG;
+
+import android.accounts.Account;
+import android.annotation.Nullable;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.server.nearby.common.bloomfilter.BloomFilter;
+import com.android.server.nearby.common.bloomfilter.FastPairBloomFilterHasher;
+import com.android.server.nearby.provider.FastPairDataProvider;
+import com.android.server.nearby.util.Clock;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import service.proto.Cache;
+import service.proto.Data;
+
+/**
+ * In-memory index used to match subsequent pairing bloom filters against the account keys of
+ * the eligible accounts.
+ *
+ * <p>Eligible accounts and their devices are cached, so scanning does not query the data
+ * provider for every advertisement; they are reloaded after {@link #ACCOUNT_CACHE_TTL_MS} or
+ * when {@link #invalidate()} is called. Match results are cached per account, bloom filter and
+ * salt, as a device repeats the same advertisement until it rotates its salt.
+ */
+public class FastPairAccountKeyIndex {
+    @VisibleForTesting
+    static final long ACCOUNT_CACHE_TTL_MS = 5 * 60 * 1000;
+    @VisibleForTesting
+    static final long MATCH_CACHE_TTL_MS = 30 * 1000;
+    @VisibleForTesting
+    static final int MAX_MATCH_CACHE_SIZE = 64;
+
+    private final Clock mClock;
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    @Nullable
+    private List<Account> mAccounts;
+    @GuardedBy("mLock")
+    private long mLoadedMs;
+    @GuardedBy("mLock")
+    private final ArrayMap<Account, List<Data.FastPairDeviceWithAccountKey>> mDevices =
+            new ArrayMap<>();
+    @GuardedBy("mLock")
+    private final LinkedHashMap<MatchKey, MatchResult> mMatches =
+            new LinkedHashMap<MatchKey, MatchResult>(16, 0.75f, true /* accessOrder */) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<MatchKey, MatchResult> eldest) {
+                    return size() > MAX_MATCH_CACHE_SIZE;
+                }
+            };
+    // Reused for every hash computed while matching.
+    @GuardedBy("mLock")
+    private final BloomFilter.Hasher mHasher = createHasher();
+
+    @GuardedBy("mLock")
+    private int mMatchCacheHits;
+    @GuardedBy("mLock")
+    private int mMatchCacheMisses;
+
+    public FastPairAccountKeyIndex(Clock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * Returns the Fast Pair eligible accounts, loading them from the data provider if they are
+     * not cached.
+     */
+    public List<Account> getEligibleAccounts(FastPairDataProvider dataProvider) {
+        synchronized (mLock) {
+            maybeExpireAccountsLocked();
+            if (mAccounts == null) {
+                markLoadedLocked();
+                mAccounts = dataProvider.loadFastPairEligibleAccounts();
+            }
+            return mAccounts;
+        }
+    }
+
+    /**
+     * Returns the devices saved to the given account, loading them from the data provider if
+     * they are not cached.
+     */
+    public List<Data.FastPairDeviceWithAccountKey> getDevices(FastPairDataProvider dataProvider,
+            Account account) {
+        synchronized (mLock) {
+            maybeExpireAccountsLocked();
+            List<Data.FastPairDeviceWithAccountKey> devices = mDevices.get(account);
+            if (devices == null) {
+                markLoadedLocked();
+                devices = dataProvider.loadFastPairDeviceWithAccountKey(account);
+                mDevices.put(account, devices);
+            }
+            return devices;
+        }
+    }
+
+    /**
+     * Returns the device of the given account whose account key and salt combination is in the
+     * bloom filter, or null if there is none.
+     */
+    @Nullable
+    public Data.FastPairDeviceWithAccountKey findRecognizedDevice(
+            FastPairDataProvider dataProvider, Account account, byte[] bloomFilterBytes,
+            byte[] salt) {
+        synchronized (mLock) {
+            final List<Data.FastPairDeviceWithAccountKey> devices =
+                    getDevices(dataProvider, account);
+            final MatchKey key = new MatchKey(account, bloomFilterBytes, salt);
+            final long now = mClock.elapsedRealtime();
+            final MatchResult cached = mMatches.get(key);
+            if (cached != null && now - cached.mMatchedMs < MATCH_CACHE_TTL_MS) {
+                mMatchCacheHits++;
+                return cached.mDevice;
+            }
+            mMatchCacheMisses++;
+            final Data.FastPairDeviceWithAccountKey device =
+                    FastPairAdvHandler.findRecognizedDevice(devices,
+                            new BloomFilter(bloomFilterBytes, mHasher), salt);
+            mMatches.put(key, new MatchResult(device, now));
+            return device;
+        }
+    }
+
+    /**
+     * Returns the stored item whose account key and salt combination is in the bloom filter, or
+     * null if there is none. Unlike {@link #findRecognizedDevice}, this is not cached since the
+     * items are supplied by the caller.
+     */
+    @Nullable
+    public Cache.StoredFastPairItem findRecognizedStoredItem(
+            List<Cache.StoredFastPairItem> items, byte[] bloomFilterBytes, byte[] salt) {
+        synchronized (mLock) {
+            return FastPairAdvHandler.findRecognizedDeviceFromCachedItem(items,
+                    new BloomFilter(bloomFilterBytes, mHasher), salt);
+        }
+    }
+
+    /**
+     * Drops the cached accounts, devices and match results. Called when an account or its
+     * device list changes.
+     */
+    public void invalidate() {
+        synchronized (mLock) {
+            mAccounts = null;
+            mDevices.clear();
+            mMatches.clear();
+        }
+    }
+
+    @VisibleForTesting
+    int getMatchCacheHits() {
+        synchronized (mLock) {
+            return mMatchCacheHits;
+        }
+    }
+
+    @VisibleForTesting
+    int getMatchCacheMisses() {
+        synchronized (mLock) {
+            return mMatchCacheMisses;
+        }
+    }
+
+    @GuardedBy("mLock")
+    private boolean isAccountCacheEmptyLocked() {
+        return mAccounts == null && mDevices.isEmpty();
+    }
+
+    @GuardedBy("mLock")
+    private void markLoadedLocked() {
+        if (isAccountCacheEmptyLocked()) {
+            mLoadedMs = mClock.elapsedRealtime();
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void maybeExpireAccountsLocked() {
+        if (!isAccountCacheEmptyLocked()
+                && mClock.elapsedRealtime() - mLoadedMs >= ACCOUNT_CACHE_TTL_MS) {
+            invalidate();
+        }
+    }
+
+    private static BloomFilter.Hasher createHasher() {
+        final MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            Log.w(TAG, "SHA-256 unavailable, not reusing the digest", e);
+            return new FastPairBloomFilterHasher();
+        }
+        return value -> FastPairBloomFilterHasher.toHashes(sha256.digest(value));
+    }
+
+    private static final class MatchKey {
+        private final Account mAccount;
+        private final byte[] mBloomFilterBytes;
+        private final byte[] mSalt;
+        private final int mHashCode;
+
+        MatchKey(Account account, byte[] bloomFilterBytes, byte[] salt) {
+            mAccount = account;
+            mBloomFilterBytes = bloomFilterBytes;
+            mSalt = salt;
+            mHashCode = Objects.hash(account, Arrays.hashCode(bloomFilterBytes),
+                    Arrays.hashCode(salt));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof MatchKey)) return false;
+            final MatchKey that = (MatchKey) o;
+            return mAccount.equals(that.mAccount)
+                    && Arrays.equals(mBloomFilterBytes, that.mBloomFilterBytes)
+                    && Arrays.equals(mSalt, that.mSalt);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+    }
+
+    private static final class MatchResult {
+        @Nullable
+        final Data.FastPairDeviceWithAccountKey mDevice;
+        final long mMatchedMs;
+
+        MatchResult(@Nullable Data.FastPairDeviceWithAccountKey device, long matchedMs) {
+            mDevice = device;
+            mMatchedMs = matchedMs;
+        }
+    }
+}
@@ -31,7 +31,6 @@ import com.android.internal.annotations.VisibleForTesting;
 import com.android.server.nearby.common.ble.decode.FastPairDecoder;
 import com.android.server.nearby.common.ble.util.RangingUtils;
 import com.android.server.nearby.common.bloomfilter.BloomFilter;
-import com.android.server.nearby.common.bloomfilter.FastPairBloomFilterHasher;
 import com.android.server.nearby.common.locator.Locator;
 import com.android.server.nearby.fastpair.cache.DiscoveryItem;
 import com.android.server.nearby.fastpair.cache.FastPairCacheManager;
@@ -40,6 +39,7 @@ import com.android.server.nearby.fastpair.notification.FastPairNotificationManag
 import com.android.server.nearby.provider.FastPairDataProvider;
 import com.android.server.nearby.util.ArrayUtils;
 import com.android.server.nearby.util.DataUtils;
+import com.android.server.nearby.util.DefaultClock;
 import com.android.server.nearby.util.Hex;
 
 import java.util.List;
@@ -58,6 +58,7 @@ public class FastPairAdvHandler {
     // and deleted this after notification manager in use.
     private boolean mIsFirst = true;
     private FastPairDataProvider mPairDataProvider;
+    private final FastPairAccountKeyIndex mAccountKeyIndex;
     private static final double NEARBY_DISTANCE_THRESHOLD = 0.6;
     // The byte, 0bLLLLTTTT, for battery length and type.
     // Bit 0 - 3: type, 0b0011 (show UI indication) or 0b0100 (hide UI indication).
@@ -79,13 +80,28 @@ public class FastPairAdvHandler {
      * Constructor function.
      */
     public FastPairAdvHandler(Context context) {
-        mContext = context;
+        this(context, null, new FastPairAccountKeyIndex(new DefaultClock()));
     }
 
     @VisibleForTesting
     FastPairAdvHandler(Context context, FastPairDataProvider dataProvider) {
+        this(context, dataProvider, new FastPairAccountKeyIndex(new DefaultClock()));
+    }
+
+    @VisibleForTesting
+    FastPairAdvHandler(Context context, FastPairDataProvider dataProvider,
+            FastPairAccountKeyIndex accountKeyIndex) {
         mContext = context;
         mPairDataProvider = dataProvider;
+        mAccountKeyIndex = accountKeyIndex;
+    }
+
+    /**
+     * Drops the cached eligible accounts and their devices, so they are reloaded when the next
+     * bloom filter is handled. Called after an account or its device list is changed.
+     */
+    public void onAccountDevicesChanged() {
+        mAccountKeyIndex.invalidate();
     }
 
     /**
@@ -107,7 +123,8 @@ public class FastPairAdvHandler {
             Log.v(TAG, "On discovery model id " + Hex.bytesToStringLowercase(model));
             // Use api to get anti spoofing key from model id.
             try {
-                List<Account> accountList = mPairDataProvider.loadFastPairEligibleAccounts();
+                List<Account> accountList =
+                        mAccountKeyIndex.getEligibleAccounts(mPairDataProvider);
                 Rpcs.GetObservedDeviceResponse response =
                         mPairDataProvider.loadFastPairAntispoofKeyDeviceMetadata(model);
                 if (response == null) {
@@ -181,14 +198,11 @@ public class FastPairAdvHandler {
         }
         byte[] saltWithData = concat(salt, generateBatteryData(data));
 
-        List<Account> accountList = mPairDataProvider.loadFastPairEligibleAccounts();
+        List<Account> accountList = mAccountKeyIndex.getEligibleAccounts(mPairDataProvider);
         for (Account account : accountList) {
-            List<Data.FastPairDeviceWithAccountKey> devices =
-                    mPairDataProvider.loadFastPairDeviceWithAccountKey(account);
             Data.FastPairDeviceWithAccountKey recognizedDevice =
-                    findRecognizedDevice(devices,
-                            new BloomFilter(bloomFilterBytes,
-                                    new FastPairBloomFilterHasher()), saltWithData);
+                    mAccountKeyIndex.findRecognizedDevice(
+                            mPairDataProvider, account, bloomFilterBytes, saltWithData);
             if (recognizedDevice == null) {
                 Log.v(TAG, "subsequentPair: recognizedDevice is null");
                 continue;
@@ -207,9 +221,8 @@ public class FastPairAdvHandler {
                     Locator.get(mContext, FastPairCacheManager.class)
                             .getAllSavedStoredFastPairItem();
             Cache.StoredFastPairItem recognizedStoredFastPairItem =
-                    findRecognizedDeviceFromCachedItem(storedFastPairItemList,
-                            new BloomFilter(bloomFilterBytes,
-                                    new FastPairBloomFilterHasher()), saltWithData);
+                    mAccountKeyIndex.findRecognizedStoredItem(
+                            storedFastPairItemList, bloomFilterBytes, saltWithData);
             if (recognizedStoredFastPairItem != null) {
                 // The bloomfilter is recognized in the cache so the device is paired
                 // before
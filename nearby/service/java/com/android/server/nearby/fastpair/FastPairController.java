@@ -264,6 +264,7 @@ public class FastPairController {
                 if (accountList.size() > 0) {
                     fastPairDataProvider.optIn(accountList.get(0));
                     fastPairDataProvider.upload(accountList.get(0), uploadInfo);
+                    Locator.get(mContext, FastPairAdvHandler.class).onAccountDevicesChanged();
                 }
             } catch (IllegalStateException e) {
                 Log.e(TAG, "OEM does not construct fast pair data proxy correctly");
@@ -16,19 +16,28 @@
 
 package com.android.server.nearby.fastpair.cache;
 
+import android.annotation.Nullable;
 import android.bluetooth.le.ScanResult;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.util.ArrayMap;
 import android.util.Log;
 
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.server.nearby.common.eventloop.Annotations;
 
 import com.google.protobuf.InvalidProtocolBufferException;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 
 import service.proto.Cache;
 import service.proto.Rpcs;
@@ -36,20 +45,68 @@ import service.proto.Rpcs;
 
 /**
  * Save FastPair device info to database to avoid multiple requesting.
+ *
+ * <p>The tables are loaded into memory on first use and all lookups are served from memory.
+ * Writes update memory immediately and are batched to the database on a background executor.
  */
 public class FastPairCacheManager {
+    private static final String TAG = "FastPairCacheManager";
+
     private final Context mContext;
     private final FastPairDbHelper mFastPairDbHelper;
+    private final Executor mWriteExecutor;
+    // The executor created by this class, if any, which must be shut down on clean up.
+    @Nullable
+    private final ExecutorService mOwnedWriteExecutor;
+
+    private final Object mLock = new Object();
+    // Held while writing to the database, so that batches are written in order.
+    private final Object mDbLock = new Object();
+
+    @GuardedBy("mLock")
+    private boolean mLoaded;
+    // Rows of each table in insertion order. Replaced rather than modified, so that they can
+    // be returned to callers without copying.
+    @GuardedBy("mLock")
+    private List<Cache.StoredDiscoveryItem> mDiscoveryItems = Collections.emptyList();
+    @GuardedBy("mLock")
+    private List<Cache.StoredFastPairItem> mStoredFastPairItems = Collections.emptyList();
+    // First row for each model id and mac address, as returned by the database queries.
+    @GuardedBy("mLock")
+    private final ArrayMap<String, Cache.StoredDiscoveryItem> mDiscoveryItemsByModelId =
+            new ArrayMap<>();
+    @GuardedBy("mLock")
+    private final ArrayMap<String, Cache.StoredFastPairItem> mStoredFastPairItemsByMacAddress =
+            new ArrayMap<>();
+
+    @GuardedBy("mLock")
+    private final ArrayList<Consumer<SQLiteDatabase>> mPendingWrites = new ArrayList<>();
 
     public FastPairCacheManager(Context context) {
+        this(context, Executors.newSingleThreadExecutor(), true /* ownsWriteExecutor */);
+    }
+
+    @VisibleForTesting
+    FastPairCacheManager(Context context, Executor writeExecutor) {
+        this(context, writeExecutor, false /* ownsWriteExecutor */);
+    }
+
+    private FastPairCacheManager(Context context, Executor writeExecutor,
+            boolean ownsWriteExecutor) {
         mContext = context;
         mFastPairDbHelper = new FastPairDbHelper(context);
+        mWriteExecutor = writeExecutor;
+        mOwnedWriteExecutor = ownsWriteExecutor ? (ExecutorService) writeExecutor : null;
     }
 
     /**
      * Clean up function to release db
      */
     public void cleanUp() {
+        flushPendingWrites();
+        if (mOwnedWriteExecutor != null) {
+            mOwnedWriteExecutor.shutdown();
+        }
         mFastPairDbHelper.close();
     }
 
@@ -68,13 +125,18 @@ public class FastPairCacheManager {
      * pairing success.
      */
     public boolean saveDiscoveryItem(DiscoveryItem item) {
-
-        SQLiteDatabase db = mFastPairDbHelper.getWritableDatabase();
+        final String modelId = item.getTriggerId();
+        final Cache.StoredDiscoveryItem storedItem = item.getCopyOfStoredItem();
         ContentValues values = new ContentValues();
-        values.put(DiscoveryItemContract.DiscoveryItemEntry.COLUMN_MODEL_ID, item.getTriggerId());
+        values.put(DiscoveryItemContract.DiscoveryItemEntry.COLUMN_MODEL_ID, modelId);
         values.put(DiscoveryItemContract.DiscoveryItemEntry.COLUMN_SCAN_BYTE,
-                item.getCopyOfStoredItem().toByteArray());
-        db.insert(DiscoveryItemContract.DiscoveryItemEntry.TABLE_NAME, null, values);
+                storedItem.toByteArray());
+        synchronized (mLock) {
+            ensureLoadedLocked();
+            addDiscoveryItemLocked(modelId, storedItem);
+            enqueueWriteLocked(db ->
+                    db.insert(DiscoveryItemContract.DiscoveryItemEntry.TABLE_NAME, null, values));
+        }
         return true;
     }
 
@@ -95,70 +157,22 @@ public class FastPairCacheManager {
      * Get discovery item from item id.
      */
     public Cache.StoredDiscoveryItem getStoredDiscoveryItem(String itemId) {
-        SQLiteDatabase db = mFastPairDbHelper.getReadableDatabase();
-        String[] projection = {
-                DiscoveryItemContract.DiscoveryItemEntry.COLUMN_MODEL_ID,
-                DiscoveryItemContract.DiscoveryItemEntry.COLUMN_SCAN_BYTE
-        };
-        String selection = DiscoveryItemContract.DiscoveryItemEntry.COLUMN_MODEL_ID + " =? ";
-        String[] selectionArgs = {itemId};
-        Cursor cursor = db.query(
-                DiscoveryItemContract.DiscoveryItemEntry.TABLE_NAME,
-                projection,
-                selection,
-                selectionArgs,
-                null,
-                null,
-                null
-        );
-
-        if (cursor.moveToNext()) {
-            byte[] res = cursor.getBlob(cursor.getColumnIndexOrThrow(
-                    DiscoveryItemContract.DiscoveryItemEntry.COLUMN_SCAN_BYTE));
-            try {
-                Cache.StoredDiscoveryItem item = Cache.StoredDiscoveryItem.parseFrom(res);
-                return item;
-            } catch (InvalidProtocolBufferException e) {
-                Log.e("FastPairCacheManager", "storediscovery has error");
-            }
+        synchronized (mLock) {
+            ensureLoadedLocked();
+            final Cache.StoredDiscoveryItem item = mDiscoveryItemsByModelId.get(itemId);
+            return item != null ? item : Cache.StoredDiscoveryItem.getDefaultInstance();
         }
-        cursor.close();
-        return Cache.StoredDiscoveryItem.getDefaultInstance();
     }
 
     /**
-     * Get all of the discovery item related info in the cache.
+     * Get all of the discovery item related info in the cache. The returned list can't be
+     * modified.
      */
     public List<Cache.StoredDiscoveryItem> getAllSavedStoreDiscoveryItem() {
-        List<Cache.StoredDiscoveryItem> storedDiscoveryItemList = new ArrayList<>();
-        SQLiteDatabase db = mFastPairDbHelper.getReadableDatabase();
-        String[] projection = {
-                DiscoveryItemContract.DiscoveryItemEntry.COLUMN_MODEL_ID,
-                DiscoveryItemContract.DiscoveryItemEntry.COLUMN_SCAN_BYTE
-        };
-        Cursor cursor = db.query(
-                DiscoveryItemContract.DiscoveryItemEntry.TABLE_NAME,
-                projection,
-                null,
-                null,
-                null,
-                null,
-                null
-        );
-
-        while (cursor.moveToNext()) {
-            byte[] res = cursor.getBlob(cursor.getColumnIndexOrThrow(
-                    DiscoveryItemContract.DiscoveryItemEntry.COLUMN_SCAN_BYTE));
-            try {
-                Cache.StoredDiscoveryItem item = Cache.StoredDiscoveryItem.parseFrom(res);
-                storedDiscoveryItemList.add(item);
-            } catch (InvalidProtocolBufferException e) {
-                Log.e("FastPairCacheManager", "storediscovery has error");
-            }
-
+        synchronized (mLock) {
+            ensureLoadedLocked();
+            return mDiscoveryItems;
         }
-        cursor.close();
-        return storedDiscoveryItemList;
     }
 
     /**
@@ -172,45 +186,17 @@ public class FastPairCacheManager {
      * Gets the paired Fast Pair item that paired to the phone through mac address.
      */
     public Cache.StoredFastPairItem getStoredFastPairItemFromMacAddress(String macAddress) {
-        SQLiteDatabase db = mFastPairDbHelper.getReadableDatabase();
-        String[] projection = {
-                StoredFastPairItemContract.StoredFastPairItemEntry.COLUMN_ACCOUNT_KEY,
-                StoredFastPairItemContract.StoredFastPairItemEntry.COLUMN_MAC_ADDRESS,
-                StoredFastPairItemContract.StoredFastPairItemEntry.COLUMN_STORED_FAST_PAIR_BYTE
-        };
-        String selection =
-                StoredFastPairItemContract.StoredFastPairItemEntry.COLUMN_MAC_ADDRESS + " =? ";
-        String[] selectionArgs = {macAddress};
-        Cursor cursor = db.query(
-                StoredFastPairItemContract.StoredFastPairItemEntry.TABLE_NAME,
-                projection,
-                selection,
-                selectionArgs,
-                null,
-                null,
-                null
-        );
-
-        if (cursor.moveToNext()) {
-            byte[] res = cursor.getBlob(cursor.getColumnIndexOrThrow(
-                    StoredFastPairItemContract.StoredFastPairItemEntry
-                            .COLUMN_STORED_FAST_PAIR_BYTE));
-            try {
-                Cache.StoredFastPairItem item = Cache.StoredFastPairItem.parseFrom(res);
-                return item;
-            } catch (InvalidProtocolBufferException e) {
-                Log.e("FastPairCacheManager", "storediscovery has error");
-            }
+        synchronized (mLock) {
+            ensureLoadedLocked();
+            final Cache.StoredFastPairItem item = mStoredFastPairItemsByMacAddress.get(macAddress);
+            return item != null ? item : Cache.StoredFastPairItem.getDefaultInstance();
         }
-        cursor.close();
-        return Cache.StoredFastPairItem.getDefaultInstance();
     }
 
     /**
      * Save paired fast pair item into the database.
      */
     public boolean putStoredFastPairItem(Cache.StoredFastPairItem storedFastPairItem) {
-        SQLiteDatabase db = mFastPairDbHelper.getWritableDatabase();
         ContentValues values = new ContentValues();
         values.put(StoredFastPairItemContract.StoredFastPairItemEntry.COLUMN_MAC_ADDRESS,
                 storedFastPairItem.getMacAddress());
@@ -218,7 +204,12 @@ public class FastPairCacheManager {
                 storedFastPairItem.getAccountKey().toString());
         values.put(StoredFastPairItemContract.StoredFastPairItemEntry.COLUMN_STORED_FAST_PAIR_BYTE,
                 storedFastPairItem.toByteArray());
-        db.insert(StoredFastPairItemContract.StoredFastPairItemEntry.TABLE_NAME, null, values);
+        synchronized (mLock) {
+            ensureLoadedLocked();
+            addStoredFastPairItemLocked(storedFastPairItem.getMacAddress(), storedFastPairItem);
+            enqueueWriteLocked(db -> db.insert(
+                    StoredFastPairItemContract.StoredFastPairItemEntry.TABLE_NAME, null, values));
+        }
         return true;
 
     }
@@ -227,46 +218,169 @@ public class FastPairCacheManager {
      * Removes certain storedFastPairItem so that it can update timely.
      */
     public void removeStoredFastPairItem(String macAddress) {
-        SQLiteDatabase db = mFastPairDbHelper.getWritableDatabase();
-        int res = db.delete(StoredFastPairItemContract.StoredFastPairItemEntry.TABLE_NAME,
-                StoredFastPairItemContract.StoredFastPairItemEntry.COLUMN_MAC_ADDRESS + "=?",
-                new String[]{macAddress});
-
+        synchronized (mLock) {
+            ensureLoadedLocked();
+            if (mStoredFastPairItemsByMacAddress.remove(macAddress) != null) {
+                final ArrayList<Cache.StoredFastPairItem> items = new ArrayList<>();
+                for (Cache.StoredFastPairItem item : mStoredFastPairItems) {
+                    if (!macAddress.equals(item.getMacAddress())) {
+                        items.add(item);
+                    }
+                }
+                mStoredFastPairItems = Collections.unmodifiableList(items);
+            }
+            enqueueWriteLocked(db -> db.delete(
+                    StoredFastPairItemContract.StoredFastPairItemEntry.TABLE_NAME,
+                    StoredFastPairItemContract.StoredFastPairItemEntry.COLUMN_MAC_ADDRESS + "=?",
+                    new String[]{macAddress}));
+        }
     }
 
     /**
-     * Get all of the store fast pair item related info in the cache.
+     * Get all of the store fast pair item related info in the cache. The returned list can't be
+     * modified.
      */
     public List<Cache.StoredFastPairItem> getAllSavedStoredFastPairItem() {
-        List<Cache.StoredFastPairItem> storedFastPairItemList = new ArrayList<>();
+        synchronized (mLock) {
+            ensureLoadedLocked();
+            return mStoredFastPairItems;
+        }
+    }
+
+    /**
+     * Writes the pending changes to the database on the calling thread.
+     */
+    @VisibleForTesting
+    void flushPendingWrites() {
+        synchronized (mDbLock) {
+            final ArrayList<Consumer<SQLiteDatabase>> writes;
+            synchronized (mLock) {
+                if (mPendingWrites.isEmpty()) return;
+                writes = new ArrayList<>(mPendingWrites);
+                mPendingWrites.clear();
+            }
+            SQLiteDatabase db = mFastPairDbHelper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (Consumer<SQLiteDatabase> write : writes) {
+                    write.accept(db);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void enqueueWriteLocked(Consumer<SQLiteDatabase> write) {
+        mPendingWrites.add(write);
+        // Only the first write of a batch schedules a flush; the others are written with it.
+        if (mPendingWrites.size() == 1) {
+            mWriteExecutor.execute(this::flushPendingWrites);
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void addDiscoveryItemLocked(String modelId, Cache.StoredDiscoveryItem item) {
+        final ArrayList<Cache.StoredDiscoveryItem> items = new ArrayList<>(mDiscoveryItems);
+        items.add(item);
+        mDiscoveryItems = Collections.unmodifiableList(items);
+        indexDiscoveryItemLocked(modelId, item);
+    }
+
+    @GuardedBy("mLock")
+    private void indexDiscoveryItemLocked(String modelId, Cache.StoredDiscoveryItem item) {
+        if (modelId != null && !mDiscoveryItemsByModelId.containsKey(modelId)) {
+            mDiscoveryItemsByModelId.put(modelId, item);
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void addStoredFastPairItemLocked(String macAddress, Cache.StoredFastPairItem item) {
+        final ArrayList<Cache.StoredFastPairItem> items = new ArrayList<>(mStoredFastPairItems);
+        items.add(item);
+        mStoredFastPairItems = Collections.unmodifiableList(items);
+        indexStoredFastPairItemLocked(macAddress, item);
+    }
+
+    @GuardedBy("mLock")
+    private void indexStoredFastPairItemLocked(String macAddress,
+            Cache.StoredFastPairItem item) {
+        if (macAddress != null && !mStoredFastPairItemsByMacAddress.containsKey(macAddress)) {
+            mStoredFastPairItemsByMacAddress.put(macAddress, item);
+        }
+    }
+
+    /**
+     * Loads both tables the first time the cache is used. Nothing is written to the database
+     * before this, so the loaded rows are the complete contents.
+     */
+    @GuardedBy("mLock")
+    private void ensureLoadedLocked() {
+        if (mLoaded) return;
         SQLiteDatabase db = mFastPairDbHelper.getReadableDatabase();
-        String[] projection = {
+        final ArrayList<Cache.StoredDiscoveryItem> discoveryItems = new ArrayList<>();
+        String[] discoveryProjection = {
+                DiscoveryItemContract.DiscoveryItemEntry.COLUMN_MODEL_ID,
+                DiscoveryItemContract.DiscoveryItemEntry.COLUMN_SCAN_BYTE
+        };
+        try (Cursor cursor = db.query(
+                DiscoveryItemContract.DiscoveryItemEntry.TABLE_NAME,
+                discoveryProjection,
+                null,
+                null,
+                null,
+                null,
+                null
+        )) {
+            while (cursor.moveToNext()) {
+                String modelId = cursor.getString(cursor.getColumnIndexOrThrow(
+                        DiscoveryItemContract.DiscoveryItemEntry.COLUMN_MODEL_ID));
+                byte[] res = cursor.getBlob(cursor.getColumnIndexOrThrow(
+                        DiscoveryItemContract.DiscoveryItemEntry.COLUMN_SCAN_BYTE));
+                try {
+                    Cache.StoredDiscoveryItem item = Cache.StoredDiscoveryItem.parseFrom(res);
+                    discoveryItems.add(item);
+                    indexDiscoveryItemLocked(modelId, item);
+                } catch (InvalidProtocolBufferException e) {
+                    Log.e(TAG, "storediscovery has error");
+                }
+            }
+        }
+        mDiscoveryItems = Collections.unmodifiableList(discoveryItems);
+
+        final ArrayList<Cache.StoredFastPairItem> storedFastPairItems = new ArrayList<>();
+        String[] storedFastPairProjection = {
                 StoredFastPairItemContract.StoredFastPairItemEntry.COLUMN_MAC_ADDRESS,
                 StoredFastPairItemContract.StoredFastPairItemEntry.COLUMN_ACCOUNT_KEY,
                 StoredFastPairItemContract.StoredFastPairItemEntry.COLUMN_STORED_FAST_PAIR_BYTE
         };
-        Cursor cursor = db.query(
+        try (Cursor cursor = db.query(
                 StoredFastPairItemContract.StoredFastPairItemEntry.TABLE_NAME,
-                projection,
+                storedFastPairProjection,
                 null,
                 null,
                 null,
                 null,
                 null
-        );
-
-        while (cursor.moveToNext()) {
-            byte[] res = cursor.getBlob(cursor.getColumnIndexOrThrow(StoredFastPairItemContract
-                    .StoredFastPairItemEntry.COLUMN_STORED_FAST_PAIR_BYTE));
-            try {
-                Cache.StoredFastPairItem item = Cache.StoredFastPairItem.parseFrom(res);
-                storedFastPairItemList.add(item);
-            } catch (InvalidProtocolBufferException e) {
-                Log.e("FastPairCacheManager", "storediscovery has error");
+        )) {
+            while (cursor.moveToNext()) {
+                String macAddress = cursor.getString(cursor.getColumnIndexOrThrow(
+                        StoredFastPairItemContract.StoredFastPairItemEntry.COLUMN_MAC_ADDRESS));
+                byte[] res = cursor.getBlob(cursor.getColumnIndexOrThrow(
+                        StoredFastPairItemContract.StoredFastPairItemEntry
+                                .COLUMN_STORED_FAST_PAIR_BYTE));
+                try {
+                    Cache.StoredFastPairItem item = Cache.StoredFastPairItem.parseFrom(res);
+                    storedFastPairItems.add(item);
+                    indexStoredFastPairItemLocked(macAddress, item);
+                } catch (InvalidProtocolBufferException e) {
+                    Log.e(TAG, "storediscovery has error");
+                }
             }
-
         }
-        cursor.close();
-        return storedFastPairItemList;
+        mStoredFastPairItems = Collections.unmodifiableList(storedFastPairItems);
+        mLoaded = true;
     }
 }
@@ -23,6 +23,8 @@ import android.nearby.aidl.IOffloadCallback;
 
 import com.android.server.nearby.util.identity.CallerIdentity;
 
+import java.io.PrintWriter;
+
 /**
  * Interface added for flagging DiscoveryProviderManager refactor. After the
  * nearby_refactor_discovery_manager flag is fully rolled out, this can be deleted.
@@ -46,4 +48,7 @@ public interface DiscoveryManager {
 
     /** Called after boot completed. */
     void init();
+
+    /** Dumps the state of the discovery providers. */
+    void dump(PrintWriter pw);
 }
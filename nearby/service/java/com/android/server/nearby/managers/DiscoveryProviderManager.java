@@ -43,6 +43,7 @@ import com.android.server.nearby.provider.ChreCommunication;
 import com.android.server.nearby.provider.ChreDiscoveryProvider;
 import com.android.server.nearby.util.identity.CallerIdentity;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
@@ -147,6 +148,11 @@ public class DiscoveryProviderManager extends
         mChreDiscoveryProvider.getController().setListener(this);
     }
 
+    @Override
+    public void dump(PrintWriter pw) {
+        mBleDiscoveryProvider.dump(pw);
+    }
+
     /**
      * Registers the listener in the manager and starts scan according to the requested scan mode.
      */
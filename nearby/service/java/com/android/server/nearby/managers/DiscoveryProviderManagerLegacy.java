@@ -49,6 +49,7 @@ import com.android.server.nearby.provider.PrivacyFilter;
 import com.android.server.nearby.util.identity.CallerIdentity;
 import com.android.server.nearby.util.permissions.DiscoveryPermissions;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -226,6 +227,11 @@ public class DiscoveryProviderManagerLegacy implements AbstractDiscoveryProvider
         mChreDiscoveryProvider.getController().setListener(this);
     }
 
+    @Override
+    public void dump(PrintWriter pw) {
+        mBleDiscoveryProvider.dump(pw);
+    }
+
     /**
      * Registers the listener in the manager and starts scan according to the requested scan mode.
      */
@@ -134,108 +134,61 @@ public class ExtendedAdvertisement extends Advertisement {
      */
     @Nullable
     public static ExtendedAdvertisement fromBytes(byte[] bytes, PublicCredential sharedCredential) {
-        @BroadcastVersion
-        int version = ExtendedAdvertisementUtils.getVersion(bytes);
-        if (version != PRESENCE_VERSION_V1) {
-            Log.v(TAG, "ExtendedAdvertisement is used in V1 only and version is " + version);
+        ParsedBytes parsed = ParsedBytes.parse(bytes);
+        if (parsed == null) {
             return null;
         }
-
         byte[] keySeed = sharedCredential.getAuthenticityKey();
         byte[] metadataEncryptionKeyUnsignedAdvTag = sharedCredential.getEncryptedMetadataKeyTag();
         if (keySeed == null || metadataEncryptionKeyUnsignedAdvTag == null) {
             return null;
         }
-
-        int index = 0;
-        // Header
-        byte[] header = new byte[]{bytes[index]};
-        index += HEADER_LENGTH;
-        // Section header
-        byte[] sectionHeader = new byte[]{bytes[index]};
-        index += HEADER_LENGTH;
-        // Salt or Encryption Info
-        byte[] firstHeaderArray = ExtendedAdvertisementUtils.getDataElementHeader(bytes, index);
-        DataElementHeader firstHeader = DataElementHeader.fromBytes(version, firstHeaderArray);
-        if (firstHeader == null) {
-            Log.v(TAG, "Cannot find salt.");
-            return null;
-        }
-        @DataType int firstType = firstHeader.getDataType();
-        if (firstType != DataType.SALT && firstType != DataType.ENCRYPTION_INFO) {
-            Log.v(TAG, "First data element has to be Salt or Encryption Info.");
-            return null;
-        }
-        index += firstHeaderArray.length;
-        byte[] firstDeBytes = new byte[firstHeader.getDataLength()];
-        for (int i = 0; i < firstHeader.getDataLength(); i++) {
-            firstDeBytes[i] = bytes[index++];
-        }
-        byte[] nonce = getNonce(firstType, firstDeBytes);
-        if (nonce == null) {
-            return null;
-        }
-        byte[] saltBytes = firstType == DataType.SALT
-                ? firstDeBytes : (new EncryptionInfo(firstDeBytes)).getSalt();
-
-        // Identity header
-        byte[] identityHeaderArray = ExtendedAdvertisementUtils.getDataElementHeader(bytes, index);
-        DataElementHeader identityHeader =
-                DataElementHeader.fromBytes(version, identityHeaderArray);
-        if (identityHeader == null || identityHeader.getDataLength() != IDENTITY_DATA_LENGTH) {
-            Log.v(TAG, "The second element has to be a 16-bytes identity.");
+        CryptorMicImp.DerivedKeys keys = CryptorMicImp.deriveKeys(keySeed);
+        if (keys == null) {
             return null;
         }
-        index += identityHeaderArray.length;
-        @PresenceCredential.IdentityType int identityType =
-                toPresenceCredentialIdentityType(identityHeader.getDataType());
-        if (identityType != PresenceCredential.IDENTITY_TYPE_PRIVATE
-                && identityType != PresenceCredential.IDENTITY_TYPE_TRUSTED) {
-            Log.v(TAG, "Only supports encrypted advertisement.");
+        return fromParsedBytes(parsed, keySeed, keys, metadataEncryptionKeyUnsignedAdvTag);
+    }
+
+    /**
+     * Decrypts an advertisement parsed by {@link ParsedBytes#parse(byte[])} with a credential
+     * whose keys were derived by {@link CryptorMicImp#deriveKeys(byte[])}. The MIC is verified
+     * before decrypting, so a credential that does not match costs a single HMAC.
+     * Return {@code null} when the credential does not match or there is an error in parsing.
+     */
+    @Nullable
+    static ExtendedAdvertisement fromParsedBytes(ParsedBytes parsed, byte[] keySeed,
+            CryptorMicImp.DerivedKeys keys, byte[] metadataEncryptionKeyUnsignedAdvTag) {
+        CryptorMicImp cryptor = CryptorMicImp.getInstance();
+        byte[] bytes = parsed.mBytes;
+        // Verify the computed HMAC tag is equal to HMAC tag in advertisement
+        if (!cryptor.verify(parsed.mMicInput, keys, bytes, parsed.mMicOffset)) {
+            Log.v(TAG, "HMAC tag not match.");
             return null;
         }
-        // Ciphertext
-        Cryptor cryptor = CryptorMicImp.getInstance();
-        byte[] ciphertext = new byte[bytes.length - index - cryptor.getSignatureLength()];
-        System.arraycopy(bytes, index, ciphertext, 0, ciphertext.length);
-        byte[] plaintext = cryptor.decrypt(ciphertext, nonce, keySeed);
-        if (plaintext == null) {
+
+        byte[] plaintext = cryptor.decrypt(bytes, parsed.mCiphertextOffset,
+                parsed.mMicOffset - parsed.mCiphertextOffset, parsed.mNonce, keys);
+        if (plaintext == null || plaintext.length < IDENTITY_DATA_LENGTH) {
             return null;
         }
 
-        // Verification
         // Verify the computed metadata encryption key tag
         // First 16 bytes is metadata encryption key data
-        byte[] metadataEncryptionKey = new byte[IDENTITY_DATA_LENGTH];
-        System.arraycopy(plaintext, 0, metadataEncryptionKey, 0, IDENTITY_DATA_LENGTH);
-        // Verify metadata encryption key tag
+        byte[] metadataEncryptionKey = Arrays.copyOf(plaintext, IDENTITY_DATA_LENGTH);
         byte[] computedMetadataEncryptionKeyTag =
-                CryptorMicImp.generateMetadataEncryptionKeyTag(metadataEncryptionKey,
-                        keySeed);
+                CryptorMicImp.generateMetadataEncryptionKeyTag(metadataEncryptionKey, keys);
         if (!Arrays.equals(computedMetadataEncryptionKeyTag, metadataEncryptionKeyUnsignedAdvTag)) {
             Log.w(TAG,
                     "The calculated metadata encryption key tag is different from the metadata "
                             + "encryption key unsigned adv tag in the SharedCredential.");
             return null;
         }
-        // Verify the computed HMAC tag is equal to HMAC tag in advertisement
-        byte[] expectedHmacTag = new byte[cryptor.getSignatureLength()];
-        System.arraycopy(
-                bytes, bytes.length - cryptor.getSignatureLength(),
-                expectedHmacTag, 0, cryptor.getSignatureLength());
-        byte[] micInput =  ArrayUtils.concatByteArrays(
-                PRESENCE_UUID_BYTES, header, sectionHeader,
-                firstHeaderArray, firstDeBytes,
-                nonce, identityHeaderArray, ciphertext);
-        if (!cryptor.verify(micInput, keySeed, expectedHmacTag)) {
-            Log.e(TAG, "HMAC tag not match.");
-            return null;
-        }
 
-        byte[] otherDataElements = new byte[plaintext.length - IDENTITY_DATA_LENGTH];
-        System.arraycopy(plaintext, IDENTITY_DATA_LENGTH,
-                otherDataElements, 0, otherDataElements.length);
-        List<DataElement> dataElements = getDataElementsFromBytes(version, otherDataElements);
+        byte[] otherDataElements =
+                Arrays.copyOfRange(plaintext, IDENTITY_DATA_LENGTH, plaintext.length);
+        List<DataElement> dataElements = getDataElementsFromBytes(parsed.mVersion,
+                otherDataElements);
         if (dataElements.isEmpty()) {
             return null;
         }
@@ -243,8 +196,117 @@ public class ExtendedAdvertisement extends Advertisement {
         if (actions == null) {
             return null;
         }
-        return new ExtendedAdvertisement(identityType, metadataEncryptionKey, saltBytes, keySeed,
-                actions, dataElements);
+        return new ExtendedAdvertisement(parsed.mIdentityType, metadataEncryptionKey,
+                parsed.mSalt, keySeed, actions, dataElements);
+    }
+
+    /**
+     * The credential independent parts of a serialized {@link ExtendedAdvertisement}, parsed
+     * once so that the advertisement can be matched against several credentials.
+     */
+    static final class ParsedBytes {
+        final byte[] mBytes;
+        @BroadcastVersion
+        final int mVersion;
+        @PresenceCredential.IdentityType
+        final int mIdentityType;
+        final byte[] mNonce;
+        final byte[] mSalt;
+        final int mCiphertextOffset;
+        final int mMicOffset;
+        // Concatenated advertisement UUID, header, section header, salt, nonce, identity header
+        // and ciphertext.
+        final byte[] mMicInput;
+
+        private ParsedBytes(byte[] bytes, int version, int identityType, byte[] nonce,
+                byte[] salt, int ciphertextOffset, int micOffset, byte[] micInput) {
+            mBytes = bytes;
+            mVersion = version;
+            mIdentityType = identityType;
+            mNonce = nonce;
+            mSalt = salt;
+            mCiphertextOffset = ciphertextOffset;
+            mMicOffset = micOffset;
+            mMicInput = micInput;
+        }
+
+        /**
+         * Parses the headers, salt and identity of an advertisement.
+         * Return {@code null} when there is an error in parsing.
+         */
+        @Nullable
+        static ParsedBytes parse(byte[] bytes) {
+            @BroadcastVersion
+            int version = ExtendedAdvertisementUtils.getVersion(bytes);
+            if (version != PRESENCE_VERSION_V1) {
+                Log.v(TAG, "ExtendedAdvertisement is used in V1 only and version is " + version);
+                return null;
+            }
+
+            // Header and section header
+            int index = 2 * HEADER_LENGTH;
+            // Salt or Encryption Info
+            byte[] firstHeaderArray = ExtendedAdvertisementUtils.getDataElementHeader(bytes, index);
+            DataElementHeader firstHeader = DataElementHeader.fromBytes(version, firstHeaderArray);
+            if (firstHeader == null) {
+                Log.v(TAG, "Cannot find salt.");
+                return null;
+            }
+            @DataType int firstType = firstHeader.getDataType();
+            if (firstType != DataType.SALT && firstType != DataType.ENCRYPTION_INFO) {
+                Log.v(TAG, "First data element has to be Salt or Encryption Info.");
+                return null;
+            }
+            index += firstHeaderArray.length;
+            byte[] firstDeBytes = new byte[firstHeader.getDataLength()];
+            for (int i = 0; i < firstHeader.getDataLength(); i++) {
+                firstDeBytes[i] = bytes[index++];
+            }
+            int firstDeEnd = index;
+            byte[] nonce = getNonce(firstType, firstDeBytes);
+            if (nonce == null) {
+                return null;
+            }
+            byte[] saltBytes = firstType == DataType.SALT
+                    ? firstDeBytes : (new EncryptionInfo(firstDeBytes)).getSalt();
+
+            // Identity header
+            byte[] identityHeaderArray =
+                    ExtendedAdvertisementUtils.getDataElementHeader(bytes, index);
+            DataElementHeader identityHeader =
+                    DataElementHeader.fromBytes(version, identityHeaderArray);
+            if (identityHeader == null
+                    || identityHeader.getDataLength() != IDENTITY_DATA_LENGTH) {
+                Log.v(TAG, "The second element has to be a 16-bytes identity.");
+                return null;
+            }
+            index += identityHeaderArray.length;
+            @PresenceCredential.IdentityType int identityType =
+                    toPresenceCredentialIdentityType(identityHeader.getDataType());
+            if (identityType != PresenceCredential.IDENTITY_TYPE_PRIVATE
+                    && identityType != PresenceCredential.IDENTITY_TYPE_TRUSTED) {
+                Log.v(TAG, "Only supports encrypted advertisement.");
+                return null;
+            }
+
+            // Ciphertext, followed by the MIC
+            int micOffset = bytes.length - CryptorMicImp.MIC_LENGTH;
+            if (micOffset - index < IDENTITY_DATA_LENGTH) {
+                Log.v(TAG, "The ciphertext is too short.");
+                return null;
+            }
+            // The MIC input is the advertisement up to the MIC with the UUID prepended and the
+            // nonce inserted after the salt.
+            byte[] micInput = ByteBuffer.allocate(
+                            PRESENCE_UUID_BYTES.length + micOffset + nonce.length)
+                    .put(PRESENCE_UUID_BYTES)
+                    .put(bytes, 0, firstDeEnd)
+                    .put(nonce)
+                    .put(bytes, firstDeEnd, micOffset - firstDeEnd)
+                    .array();
+            return new ParsedBytes(bytes, version, identityType, nonce, saltBytes, index,
+                    micOffset, micInput);
+        }
     }
 
     @PresenceCredential.IdentityType
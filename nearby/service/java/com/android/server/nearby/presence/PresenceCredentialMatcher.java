@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.nearby.presence;
+
+import android.annotation.Nullable;
+import android.nearby.PublicCredential;
+
+import com.android.server.nearby.util.encryption.CryptorMicImp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Matches extended advertisements against a set of {@link PublicCredential}s.
+ *
+ * <p>The keys of every credential are derived once, and an advertisement is parsed once for all
+ * the credentials. The MIC of the advertisement is checked before decrypting it, so a credential
+ * that does not match costs a single HMAC. The credential that matched last is tried first, as
+ * a scan usually keeps receiving the advertisements of the same device.
+ *
+ * <p>This class is not thread safe.
+ */
+public class PresenceCredentialMatcher {
+    private final List<Candidate> mCandidates = new ArrayList<>();
+    private int mLastMatchedIndex = -1;
+
+    public PresenceCredentialMatcher(List<PublicCredential> credentials) {
+        for (PublicCredential credential : credentials) {
+            byte[] keySeed = credential.getAuthenticityKey();
+            byte[] metadataEncryptionKeyTag = credential.getEncryptedMetadataKeyTag();
+            if (keySeed == null || metadataEncryptionKeyTag == null) {
+                continue;
+            }
+            CryptorMicImp.DerivedKeys keys = CryptorMicImp.deriveKeys(keySeed);
+            if (keys == null) {
+                continue;
+            }
+            mCandidates.add(new Candidate(credential, keys));
+        }
+    }
+
+    /** Returns whether there is no credential to match against. */
+    public boolean isEmpty() {
+        return mCandidates.isEmpty();
+    }
+
+    /**
+     * Returns the credential that the given advertisement was encrypted with and the decrypted
+     * advertisement, or {@code null} if no credential matches.
+     */
+    @Nullable
+    public Match match(byte[] bytes) {
+        if (mCandidates.isEmpty()) {
+            return null;
+        }
+        ExtendedAdvertisement.ParsedBytes parsed = ExtendedAdvertisement.ParsedBytes.parse(bytes);
+        if (parsed == null) {
+            return null;
+        }
+        if (mLastMatchedIndex >= 0) {
+            Match match = tryMatch(parsed, mLastMatchedIndex);
+            if (match != null) {
+                return match;
+            }
+        }
+        for (int i = 0; i < mCandidates.size(); i++) {
+            if (i == mLastMatchedIndex) {
+                continue;
+            }
+            Match match = tryMatch(parsed, i);
+            if (match != null) {
+                mLastMatchedIndex = i;
+                return match;
+            }
+        }
+        return null;
+    }
+
+    @Nullable
+    private Match tryMatch(ExtendedAdvertisement.ParsedBytes parsed, int index) {
+        Candidate candidate = mCandidates.get(index);
+        PublicCredential credential = candidate.mCredential;
+        ExtendedAdvertisement advertisement = ExtendedAdvertisement.fromParsedBytes(parsed,
+                credential.getAuthenticityKey(), candidate.mKeys,
+                credential.getEncryptedMetadataKeyTag());
+        return advertisement == null ? null : new Match(credential, advertisement);
+    }
+
+    /** A credential and the advertisement it decrypted. */
+    public static final class Match {
+        private final PublicCredential mCredential;
+        private final ExtendedAdvertisement mAdvertisement;
+
+        Match(PublicCredential credential, ExtendedAdvertisement advertisement) {
+            mCredential = credential;
+            mAdvertisement = advertisement;
+        }
+
+        public PublicCredential getCredential() {
+            return mCredential;
+        }
+
+        public ExtendedAdvertisement getAdvertisement() {
+            return mAdvertisement;
+        }
+    }
+
+    private static final class Candidate {
+        final PublicCredential mCredential;
+        final CryptorMicImp.DerivedKeys mKeys;
+
+        Candidate(PublicCredential credential, CryptorMicImp.DerivedKeys keys) {
+            mCredential = credential;
+            mKeys = keys;
+        }
+    }
+}
@@ -37,18 +37,22 @@ import android.nearby.PresenceScanFilter;
 import android.nearby.PublicCredential;
 import android.nearby.ScanRequest;
 import android.os.ParcelUuid;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.android.internal.annotations.GuardedBy;
+import com.android.server.nearby.NearbyConfiguration;
 import com.android.server.nearby.common.bluetooth.fastpair.Constants;
 import com.android.server.nearby.injector.Injector;
 import com.android.server.nearby.presence.ExtendedAdvertisement;
 import com.android.server.nearby.presence.PresenceConstants;
+import com.android.server.nearby.presence.PresenceCredentialMatcher;
 import com.android.server.nearby.util.ArrayUtils;
 import com.android.server.nearby.util.ForegroundThread;
 
 import com.google.common.annotations.VisibleForTesting;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -67,12 +71,18 @@ public class BleDiscoveryProvider extends AbstractDiscoveryProvider {
     // Don't block the thread as it may be used by other services.
     private static final Executor NEARBY_EXECUTOR = ForegroundThread.getExecutor();
     private final Injector mInjector;
+    private final NearbyConfiguration mNearbyConfiguration;
+    private final ScanResultDeduplicator mDeduplicator;
     private final Object mLock = new Object();
     // Null when the filters are never set
     @VisibleForTesting
     @GuardedBy("mLock")
     @Nullable
     private List<android.nearby.ScanFilter> mScanFilters;
+    // Credentials of the presence filters in mScanFilters, with their keys derived
+    @GuardedBy("mLock")
+    @Nullable
+    private PresenceCredentialMatcher mCredentialMatcher;
     private android.bluetooth.le.ScanCallback mScanCallbackLegacy =
             new android.bluetooth.le.ScanCallback() {
                 @Override
@@ -86,15 +96,23 @@ public class BleDiscoveryProvider extends AbstractDiscoveryProvider {
             new android.bluetooth.le.ScanCallback() {
                 @Override
                 public void onScanResult(int callbackType, ScanResult scanResult) {
-                    NearbyDeviceParcelable.Builder builder = new NearbyDeviceParcelable.Builder();
                     String bleAddress = scanResult.getDevice().getAddress();
+                    ScanRecord record = scanResult.getScanRecord();
+                    // Drop repeated advertisements before parsing them.
+                    int rssi = mDeduplicator.onScanResult(bleAddress,
+                            record == null ? null : record.getBytes(), scanResult.getRssi(),
+                            SystemClock.elapsedRealtime());
+                    if (rssi == ScanResultDeduplicator.NO_REPORT) {
+                        return;
+                    }
+
+                    NearbyDeviceParcelable.Builder builder = new NearbyDeviceParcelable.Builder();
                     builder.setDeviceId(bleAddress.hashCode())
                             .setMedium(NearbyDevice.Medium.BLE)
-                            .setRssi(scanResult.getRssi())
+                            .setRssi(rssi)
                             .setTxPower(scanResult.getTxPower())
                             .setBluetoothAddress(bleAddress);
 
-                    ScanRecord record = scanResult.getScanRecord();
                     if (record != null) {
                         String deviceName = record.getDeviceName();
                         if (deviceName != null) {
@@ -108,8 +126,7 @@ public class BleDiscoveryProvider extends AbstractDiscoveryProvider {
                             } else {
                                 byte[] presenceData = serviceDataMap.get(PRESENCE_UUID);
                                 if (presenceData != null) {
-                                    setPresenceDevice(presenceData, builder, deviceName,
-                                            scanResult.getRssi());
+                                    setPresenceDevice(presenceData, builder, deviceName, rssi);
                                 }
                             }
                         }
@@ -127,6 +144,9 @@ public class BleDiscoveryProvider extends AbstractDiscoveryProvider {
     public BleDiscoveryProvider(Context context, Injector injector) {
         super(context, NEARBY_EXECUTOR);
         mInjector = injector;
+        mNearbyConfiguration = new NearbyConfiguration();
+        mDeduplicator = new ScanResultDeduplicator(
+                mNearbyConfiguration.getBleScanDedupWindowMillis());
     }
 
     private static PresenceDevice getPresenceDevice(ExtendedAdvertisement advertisement,
@@ -183,6 +203,8 @@ public class BleDiscoveryProvider extends AbstractDiscoveryProvider {
     protected void onStart() {
         if (isBleAvailable()) {
             Log.d(TAG, "BleDiscoveryProvider started");
+            mDeduplicator.setWindowMillis(mNearbyConfiguration.getBleScanDedupWindowMillis());
+            mDeduplicator.reset();
             startScan(getScanFilters(), getScanSettings(/* legacy= */ false), mScanCallback);
             startScan(getScanFilters(), getScanSettings(/* legacy= */ true), mScanCallbackLegacy);
             return;
@@ -206,6 +228,7 @@ public class BleDiscoveryProvider extends AbstractDiscoveryProvider {
             if (mScanFilters != null) {
                 mScanFilters = null;
             }
+            mCredentialMatcher = null;
         }
     }
 
@@ -219,7 +242,30 @@ public class BleDiscoveryProvider extends AbstractDiscoveryProvider {
     protected void onSetScanFilters(List<android.nearby.ScanFilter> filters) {
         synchronized (mLock) {
             mScanFilters = filters == null ? null : List.copyOf(filters);
+            mCredentialMatcher = mScanFilters == null
+                    ? null : new PresenceCredentialMatcher(getCredentials(mScanFilters));
+        }
+        // Advertisements that could not be decoded with the previous filters may be now.
+        mDeduplicator.reset();
+    }
+
+    private static List<PublicCredential> getCredentials(
+            List<android.nearby.ScanFilter> filters) {
+        List<PublicCredential> credentials = new ArrayList<>();
+        for (android.nearby.ScanFilter scanFilter : filters) {
+            if (scanFilter instanceof PresenceScanFilter) {
+                credentials.addAll(((PresenceScanFilter) scanFilter).getCredentials());
+            }
         }
+        return credentials;
+    }
+
+    /**
+     * Dumps the scan result counters.
+     */
+    public void dump(PrintWriter pw) {
+        pw.println("BleDiscoveryProvider:");
+        mDeduplicator.dump(pw);
     }
 
     @VisibleForTesting
@@ -279,29 +325,21 @@ public class BleDiscoveryProvider extends AbstractDiscoveryProvider {
     private void setPresenceDevice(byte[] data, NearbyDeviceParcelable.Builder builder,
             String deviceName, int rssi) {
         synchronized (mLock) {
-            if (mScanFilters == null) {
+            if (mCredentialMatcher == null) {
                 return;
             }
-            for (android.nearby.ScanFilter scanFilter : mScanFilters) {
-                if (scanFilter instanceof PresenceScanFilter) {
-                    // Iterate all possible authenticity key and identity combinations to decrypt
-                    // advertisement
-                    PresenceScanFilter presenceFilter = (PresenceScanFilter) scanFilter;
-                    for (PublicCredential credential : presenceFilter.getCredentials()) {
-                        ExtendedAdvertisement advertisement =
-                                ExtendedAdvertisement.fromBytes(data, credential);
-                        if (advertisement == null) {
-                            continue;
-                        }
-                        builder.setPresenceDevice(getPresenceDevice(advertisement, deviceName,
-                                rssi));
-                        builder.setEncryptionKeyTag(credential.getEncryptedMetadataKeyTag());
-                        if (!ArrayUtils.isEmpty(credential.getSecretId())) {
-                            builder.setDeviceId(Arrays.hashCode(credential.getSecretId()));
-                        }
-                        return;
-                    }
-                }
+            // Iterate all possible authenticity key and identity combinations to decrypt
+            // advertisement
+            PresenceCredentialMatcher.Match match = mCredentialMatcher.match(data);
+            if (match == null) {
+                return;
+            }
+            PublicCredential credential = match.getCredential();
+            builder.setPresenceDevice(getPresenceDevice(match.getAdvertisement(), deviceName,
+                    rssi));
+            builder.setEncryptionKeyTag(credential.getEncryptedMetadataKeyTag());
+            if (!ArrayUtils.isEmpty(credential.getSecretId())) {
+                builder.setDeviceId(Arrays.hashCode(credential.getSecretId()));
             }
         }
     }
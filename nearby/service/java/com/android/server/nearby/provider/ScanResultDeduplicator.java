@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.nearby.provider;
+
+import android.annotation.Nullable;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Drops BLE scan results that repeat the last reported advertisement of a device.
+ *
+ * <p>A result is reported when its device or payload is new, when its RSSI moved by at least
+ * {@link #RSSI_CHANGE_THRESHOLD_DBM} from the last reported one, or when the window elapsed since
+ * the last report. In the last case the reported RSSI is the average of the results received
+ * since the last report. A window of zero or less reports every result.
+ */
+public class ScanResultDeduplicator {
+    /** Returned by {@link #onScanResult} when the result should not be reported. */
+    public static final int NO_REPORT = Integer.MIN_VALUE;
+
+    @VisibleForTesting
+    static final int RSSI_CHANGE_THRESHOLD_DBM = 10;
+    @VisibleForTesting
+    static final int MAX_TRACKED_DEVICES = 256;
+
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private long mWindowMillis;
+    @GuardedBy("mLock")
+    private final LinkedHashMap<String, DeviceState> mDevices =
+            new LinkedHashMap<String, DeviceState>(16, 0.75f, true /* accessOrder */) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, DeviceState> eldest) {
+                    return size() > MAX_TRACKED_DEVICES;
+                }
+            };
+    @GuardedBy("mLock")
+    private long mRawCount;
+    @GuardedBy("mLock")
+    private long mReportedCount;
+
+    public ScanResultDeduplicator(long windowMillis) {
+        mWindowMillis = windowMillis;
+    }
+
+    /** Sets the window after which a repeated advertisement is reported again. */
+    public void setWindowMillis(long windowMillis) {
+        synchronized (mLock) {
+            mWindowMillis = windowMillis;
+        }
+    }
+
+    /**
+     * Handles a scan result.
+     *
+     * @return the RSSI to report the result with, or {@link #NO_REPORT} to drop it.
+     */
+    public int onScanResult(String address, @Nullable byte[] payload, int rssi,
+            long nowMillis) {
+        synchronized (mLock) {
+            mRawCount++;
+            if (mWindowMillis <= 0) {
+                mReportedCount++;
+                return rssi;
+            }
+
+            DeviceState state = mDevices.get(address);
+            if (state == null || !Arrays.equals(state.mPayload, payload)) {
+                mDevices.put(address, new DeviceState(payload, rssi, nowMillis));
+                mReportedCount++;
+                return rssi;
+            }
+
+            state.mRssiSum += rssi;
+            state.mRssiCount++;
+            final int reportedRssi;
+            if (Math.abs(rssi - state.mReportedRssi) >= RSSI_CHANGE_THRESHOLD_DBM) {
+                reportedRssi = rssi;
+            } else if (nowMillis - state.mReportedMillis >= mWindowMillis) {
+                reportedRssi = (int) Math.round((double) state.mRssiSum / state.mRssiCount);
+            } else {
+                return NO_REPORT;
+            }
+            state.onReported(reportedRssi, nowMillis);
+            mReportedCount++;
+            return reportedRssi;
+        }
+    }
+
+    /**
+     * Forgets the devices seen so far, so that their next results are reported. Counters are
+     * kept.
+     */
+    public void reset() {
+        synchronized (mLock) {
+            mDevices.clear();
+        }
+    }
+
+    /** Returns the number of scan results handled. */
+    public long getRawCount() {
+        synchronized (mLock) {
+            return mRawCount;
+        }
+    }
+
+    /** Returns the number of scan results that were reported. */
+    public long getReportedCount() {
+        synchronized (mLock) {
+            return mReportedCount;
+        }
+    }
+
+    /** Dumps the counters. */
+    public void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("  Dedup window: " + mWindowMillis + "ms");
+            pw.println("  Raw scan results: " + mRawCount);
+            pw.println("  Reported scan results: " + mReportedCount);
+            pw.println("  Tracked devices: " + mDevices.size());
+        }
+    }
+
+    private static final class DeviceState {
+        @Nullable
+        final byte[] mPayload;
+        int mReportedRssi;
+        long mReportedMillis;
+        // RSSI of the results received since the last report.
+        long mRssiSum;
+        int mRssiCount;
+
+        DeviceState(@Nullable byte[] payload, int rssi, long nowMillis) {
+            mPayload = payload;
+            onReported(rssi, nowMillis);
+        }
+
+        void onReported(int rssi, long nowMillis) {
+            mReportedRssi = rssi;
+            mReportedMillis = nowMillis;
+            mRssiSum = 0;
+            mRssiCount = 0;
+        }
+    }
+}
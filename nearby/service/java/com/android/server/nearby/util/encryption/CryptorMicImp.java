@@ -255,6 +255,83 @@ public class CryptorMicImp extends Cryptor {
         }
     }
 
+    /**
+     * Keys derived from an authenticity key. Deriving them costs several HKDF computations, so
+     * callers matching many advertisements against the same credential should derive them once.
+     */
+    public static final class DerivedKeys {
+        private final byte[] mAesKey;
+        private final byte[] mMetadataKeyHmacKey;
+        private final byte[] mMicHmacKey;
+
+        private DerivedKeys(byte[] aesKey, byte[] metadataKeyHmacKey, byte[] micHmacKey) {
+            mAesKey = aesKey;
+            mMetadataKeyHmacKey = metadataKeyHmacKey;
+            mMicHmacKey = micHmacKey;
+        }
+    }
+
+    /**
+     * Derives the keys used to decrypt and verify advertisements from the given key seed.
+     *
+     * @return the derived keys or {@code null} when there is an error
+     */
+    @Nullable
+    public static DerivedKeys deriveKeys(byte[] keySeed) {
+        if (keySeed == null) {
+            return null;
+        }
+        try {
+            return new DerivedKeys(generateAesKey(keySeed), generateMetadataKeyHmacKey(keySeed),
+                    generateMicHmacKey(keySeed));
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "Failed to derive keys.", e);
+            return null;
+        }
+    }
+
+    /**
+     * Same as {@link #generateMetadataEncryptionKeyTag(byte[], byte[])}, with derived keys.
+     */
+    public static byte[] generateMetadataEncryptionKeyTag(byte[] metadataEncryptionKey,
+            DerivedKeys keys) {
+        return Cryptor.generateHmac(/* algorithm= */ HMAC_SHA256_ALGORITHM, /* input= */
+                metadataEncryptionKey, /* key= */ keys.mMetadataKeyHmacKey);
+    }
+
+    /**
+     * Same as {@link #decrypt(byte[], byte[], byte[])} for a range of the given data, with
+     * derived keys.
+     */
+    @Nullable
+    public byte[] decrypt(byte[] encryptedData, int offset, int length, byte[] iv,
+            DerivedKeys keys) {
+        Cipher cipher;
+        try {
+            cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(keys.mAesKey, ENCRYPT_ALGORITHM),
+                    new IvParameterSpec(iv));
+            return cipher.doFinal(encryptedData, offset, length);
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "Failed to decrypt bytes with derived key.", e);
+            return null;
+        }
+    }
+
+    /**
+     * Same as {@link #verify(byte[], byte[], byte[])} for a signature stored at the given offset,
+     * with derived keys.
+     */
+    public boolean verify(byte[] data, DerivedKeys keys, byte[] signature, int signatureOffset) {
+        byte[] hmac = Cryptor.generateHmac(/* algorithm= */ HMAC_SHA256_ALGORITHM, /* input= */
+                data, /* key= */ keys.mMicHmacKey);
+        if (ArrayUtils.isEmpty(hmac) || signatureOffset + MIC_LENGTH > signature.length) {
+            return false;
+        }
+        return Arrays.equals(hmac, 0, MIC_LENGTH,
+                signature, signatureOffset, signatureOffset + MIC_LENGTH);
+    }
+
     @Nullable
     private static byte[] generateAesKey(byte[] keySeed) throws GeneralSecurityException {
         return Cryptor.computeHkdf(
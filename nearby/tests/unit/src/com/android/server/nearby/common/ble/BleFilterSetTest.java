@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.nearby.common.ble;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.os.ParcelUuid;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.android.server.nearby.common.ble.testing.FastPairTestData;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+@RunWith(AndroidJUnit4.class)
+public class BleFilterSetTest {
+    private static final int FILTER_COUNT = 100;
+    private static final int SIGHTING_COUNT = 10000;
+    private static final String[] DEVICE_NAMES = {"earbuds", "speaker", "watch"};
+    private static final String[] ADDRESSES = {"00:11:22:33:AA:BB", "00:11:22:33:AA:CC"};
+
+    private static final int DATA_TYPE_SERVICE_UUIDS_16_BIT_COMPLETE = 0x03;
+    private static final int DATA_TYPE_SERVICE_UUIDS_128_BIT_COMPLETE = 0x07;
+    private static final int DATA_TYPE_LOCAL_NAME_COMPLETE = 0x09;
+    private static final int DATA_TYPE_SERVICE_DATA = 0x16;
+    private static final int DATA_TYPE_MANUFACTURER_SPECIFIC_DATA = 0xFF;
+
+    @Test
+    public void testMatch_eddystone() {
+        BleFilter eddystone = new BleFilter.Builder()
+                .setServiceUuid(ParcelUuid.fromString("0000FEAA-0000-1000-8000-00805F9B34FB"))
+                .build();
+        BleFilter other = new BleFilter.Builder()
+                .setServiceUuid(ParcelUuid.fromString("0000FE2C-0000-1000-8000-00805F9B34FB"))
+                .build();
+        BleFilterSet filterSet = new BleFilterSet(List.of(other, eddystone));
+
+        assertThat(filterSet.match(null /* device */,
+                FastPairTestData.eddystone_header_and_uuid)).containsExactly(eddystone);
+    }
+
+    @Test
+    public void testMatch_noFilters() {
+        BleFilterSet filterSet = new BleFilterSet(List.of());
+
+        assertThat(filterSet.size()).isEqualTo(0);
+        assertThat(filterSet.match(null /* device */,
+                FastPairTestData.eddystone_header_and_uuid)).isEmpty();
+    }
+
+    @Test
+    public void testMatch_malformedRecord() {
+        BleFilter name = new BleFilter.Builder().setDeviceName("earbuds").build();
+        BleFilter any = new BleFilter.Builder().build();
+        BleFilterSet filterSet = new BleFilterSet(List.of(name, any));
+        // A name structure that runs past the end of the record.
+        byte[] record = {10, DATA_TYPE_LOCAL_NAME_COMPLETE, 'e', 'a', 'r'};
+
+        assertThat(filterSet.match(null /* device */, record)).containsExactly(any);
+        assertThat(filterSet.match(null /* device */, null /* scanRecord */))
+                .containsExactly(any);
+    }
+
+    /**
+     * Matches a corpus of generated sightings against generated filters, and checks that the
+     * result is the same as matching every filter one by one.
+     */
+    @Test
+    public void testMatch_sameAsBleFilter() {
+        Random random = new Random(42);
+        List<BleFilter> filters = new ArrayList<>();
+        for (int i = 0; i < FILTER_COUNT; i++) {
+            filters.add(randomFilter(random));
+        }
+        BleFilterSet filterSet = new BleFilterSet(filters);
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+
+        int matchCount = 0;
+        for (int i = 0; i < SIGHTING_COUNT; i++) {
+            BluetoothDevice device = random.nextBoolean()
+                    ? adapter.getRemoteDevice(ADDRESSES[random.nextInt(ADDRESSES.length)])
+                    : null;
+            BleSighting sighting = new BleSighting(device, randomRecord(random), 0 /* rssi */,
+                    0 /* timestampEpochNanos */);
+
+            List<BleFilter> expected = new ArrayList<>();
+            for (BleFilter filter : filters) {
+                if (filter.matches(sighting)) {
+                    expected.add(filter);
+                }
+            }
+            assertThat(filterSet.match(sighting)).containsExactlyElementsIn(expected).inOrder();
+            matchCount += expected.size();
+        }
+        // Make sure the corpus exercises matching filters.
+        assertThat(matchCount).isGreaterThan(0);
+    }
+
+    private static BleFilter randomFilter(Random random) {
+        BleFilter.Builder builder = new BleFilter.Builder();
+        switch (random.nextInt(5)) {
+            case 0:
+                builder.setServiceUuid(uuid16(random.nextInt(4)));
+                break;
+            case 1:
+                builder.setServiceUuid(uuid16(random.nextInt(4)),
+                        ParcelUuid.fromString("0000FF00-0000-0000-0000-000000000000"));
+                break;
+            case 2: {
+                byte[] data = randomBytes(random, 1 + random.nextInt(2));
+                if (random.nextBoolean()) {
+                    builder.setServiceData(uuid16(random.nextInt(4)), data);
+                } else {
+                    builder.setServiceData(uuid16(random.nextInt(4)), data,
+                            randomBytes(random, data.length));
+                }
+                break;
+            }
+            case 3: {
+                byte[] data = randomBytes(random, 1 + random.nextInt(2));
+                builder.setManufacturerData(random.nextInt(4), data,
+                        randomBytes(random, data.length));
+                break;
+            }
+            default:
+                builder.setDeviceName(DEVICE_NAMES[random.nextInt(DEVICE_NAMES.length)]);
+                break;
+        }
+        if (random.nextInt(10) == 0) {
+            builder.setDeviceAddress(ADDRESSES[random.nextInt(ADDRESSES.length)]);
+        }
+        return builder.build();
+    }
+
+    private static byte[] randomRecord(Random random) {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        int fieldCount = random.nextInt(4);
+        for (int i = 0; i < fieldCount; i++) {
+            switch (random.nextInt(5)) {
+                case 0:
+                    writeField(record, DATA_TYPE_SERVICE_UUIDS_16_BIT_COMPLETE,
+                            new byte[]{(byte) random.nextInt(4), 0});
+                    break;
+                case 1:
+                    writeField(record, DATA_TYPE_SERVICE_UUIDS_128_BIT_COMPLETE,
+                            randomBytes(random, 16));
+                    break;
+                case 2: {
+                    byte[] data = randomBytes(random, 2 + random.nextInt(3));
+                    data[0] = (byte) random.nextInt(4);
+                    data[1] = 0;
+                    writeField(record, DATA_TYPE_SERVICE_DATA, data);
+                    break;
+                }
+                case 3: {
+                    byte[] data = randomBytes(random, 2 + random.nextInt(3));
+                    data[0] = (byte) random.nextInt(4);
+                    data[1] = 0;
+                    writeField(record, DATA_TYPE_MANUFACTURER_SPECIFIC_DATA, data);
+                    break;
+                }
+                default:
+                    writeField(record, DATA_TYPE_LOCAL_NAME_COMPLETE,
+                            DEVICE_NAMES[random.nextInt(DEVICE_NAMES.length)].getBytes());
+                    break;
+            }
+        }
+        byte[] bytes = record.toByteArray();
+        // Corrupt some records so that malformed ones are covered too.
+        if (bytes.length > 0 && random.nextInt(10) == 0) {
+            bytes[random.nextInt(bytes.length)] = (byte) random.nextInt(256);
+        }
+        return bytes;
+    }
+
+    private static void writeField(ByteArrayOutputStream record, int type, byte[] data) {
+        record.write(data.length + 1);
+        record.write(type);
+        record.write(data, 0, data.length);
+    }
+
+    private static ParcelUuid uuid16(int value) {
+        return ParcelUuid.fromString(
+                String.format("0000%04X-0000-1000-8000-00805F9B34FB", value));
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.nearby.fastpair;
+
+import static com.google.common.primitives.Bytes.concat;
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.accounts.Account;
+
+import com.android.server.nearby.common.bloomfilter.BloomFilter;
+import com.android.server.nearby.common.bloomfilter.FastPairBloomFilterHasher;
+import com.android.server.nearby.provider.FastPairDataProvider;
+import com.android.server.nearby.util.Clock;
+
+import com.google.protobuf.ByteString;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.List;
+
+import service.proto.Cache;
+import service.proto.Data;
+
+public class FastPairAccountKeyIndexTest {
+    private static final byte[] ACCOUNT_KEY =
+            new byte[] {4, 65, 90, -26, -5, -38, -128, 40, -103, 101, 95, 55, 8, -42, -120, 78};
+    private static final byte[] OTHER_ACCOUNT_KEY = new byte[] {0, 1, 2};
+    private static final byte[] SALT = new byte[] {0x01};
+    private static final byte[] OTHER_SALT = new byte[] {0x02};
+
+    private final Account mAccount = new Account("test1@gmail.com", "com.google");
+
+    @Mock
+    private FastPairDataProvider mFastPairDataProvider;
+    @Mock
+    private Clock mClock;
+
+    private final Data.FastPairDeviceWithAccountKey mDevice =
+            Data.FastPairDeviceWithAccountKey.newBuilder()
+                    .setAccountKey(ByteString.copyFrom(ACCOUNT_KEY))
+                    .build();
+
+    private FastPairAccountKeyIndex mIndex;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        when(mClock.elapsedRealtime()).thenReturn(1000L);
+        when(mFastPairDataProvider.loadFastPairEligibleAccounts()).thenReturn(List.of(mAccount));
+        when(mFastPairDataProvider.loadFastPairDeviceWithAccountKey(mAccount))
+                .thenReturn(List.of(mDevice));
+        mIndex = new FastPairAccountKeyIndex(mClock);
+    }
+
+    private static byte[] bloomFilterOf(byte[] accountKey, byte[] salt) {
+        BloomFilter bloomFilter = new BloomFilter(new byte[8], new FastPairBloomFilterHasher());
+        bloomFilter.add(concat(accountKey, salt));
+        return bloomFilter.asBytes();
+    }
+
+    @Test
+    public void testFindRecognizedDevice_matchesAccountKey() {
+        assertThat(mIndex.findRecognizedDevice(mFastPairDataProvider, mAccount,
+                bloomFilterOf(ACCOUNT_KEY, SALT), SALT)).isEqualTo(mDevice);
+        assertThat(mIndex.findRecognizedDevice(mFastPairDataProvider, mAccount,
+                bloomFilterOf(OTHER_ACCOUNT_KEY, SALT), SALT)).isNull();
+        // The bloom filter was built with another salt.
+        assertThat(mIndex.findRecognizedDevice(mFastPairDataProvider, mAccount,
+                bloomFilterOf(ACCOUNT_KEY, OTHER_SALT), SALT)).isNull();
+    }
+
+    @Test
+    public void testFindRecognizedDevice_advertisementStorm_loadsAndMatchesOnce() {
+        final byte[] bloomFilter = bloomFilterOf(ACCOUNT_KEY, SALT);
+        for (int i = 0; i < 1000; i++) {
+            for (Account account : mIndex.getEligibleAccounts(mFastPairDataProvider)) {
+                assertThat(mIndex.findRecognizedDevice(mFastPairDataProvider, account,
+                        bloomFilter.clone(), SALT.clone())).isEqualTo(mDevice);
+            }
+        }
+
+        verify(mFastPairDataProvider, times(1)).loadFastPairEligibleAccounts();
+        verify(mFastPairDataProvider, times(1)).loadFastPairDeviceWithAccountKey(mAccount);
+        assertThat(mIndex.getMatchCacheMisses()).isEqualTo(1);
+        assertThat(mIndex.getMatchCacheHits()).isEqualTo(999);
+    }
+
+    @Test
+    public void testFindRecognizedDevice_matchExpires() {
+        final byte[] bloomFilter = bloomFilterOf(ACCOUNT_KEY, SALT);
+        mIndex.findRecognizedDevice(mFastPairDataProvider, mAccount, bloomFilter, SALT);
+
+        when(mClock.elapsedRealtime())
+                .thenReturn(1000L + FastPairAccountKeyIndex.MATCH_CACHE_TTL_MS);
+        mIndex.findRecognizedDevice(mFastPairDataProvider, mAccount, bloomFilter, SALT);
+
+        assertThat(mIndex.getMatchCacheMisses()).isEqualTo(2);
+        verify(mFastPairDataProvider, times(1)).loadFastPairDeviceWithAccountKey(mAccount);
+    }
+
+    @Test
+    public void testInvalidate_reloadsDevices() {
+        final byte[] bloomFilter = bloomFilterOf(ACCOUNT_KEY, SALT);
+        mIndex.getEligibleAccounts(mFastPairDataProvider);
+        assertThat(mIndex.findRecognizedDevice(mFastPairDataProvider, mAccount, bloomFilter,
+                SALT)).isEqualTo(mDevice);
+
+        // The device is removed from the account.
+        when(mFastPairDataProvider.loadFastPairDeviceWithAccountKey(mAccount))
+                .thenReturn(List.of());
+        mIndex.invalidate();
+
+        assertThat(mIndex.findRecognizedDevice(mFastPairDataProvider, mAccount, bloomFilter,
+                SALT)).isNull();
+        mIndex.getEligibleAccounts(mFastPairDataProvider);
+        verify(mFastPairDataProvider, times(2)).loadFastPairEligibleAccounts();
+    }
+
+    @Test
+    public void testGetEligibleAccounts_expires() {
+        mIndex.getEligibleAccounts(mFastPairDataProvider);
+        mIndex.getEligibleAccounts(mFastPairDataProvider);
+        verify(mFastPairDataProvider, times(1)).loadFastPairEligibleAccounts();
+
+        when(mClock.elapsedRealtime())
+                .thenReturn(1000L + FastPairAccountKeyIndex.ACCOUNT_CACHE_TTL_MS);
+        mIndex.getEligibleAccounts(mFastPairDataProvider);
+        verify(mFastPairDataProvider, times(2)).loadFastPairEligibleAccounts();
+    }
+
+    @Test
+    public void testFindRecognizedStoredItem() {
+        final Cache.StoredFastPairItem item = Cache.StoredFastPairItem.newBuilder()
+                .setAccountKey(ByteString.copyFrom(ACCOUNT_KEY))
+                .build();
+
+        assertThat(mIndex.findRecognizedStoredItem(List.of(item),
+                bloomFilterOf(ACCOUNT_KEY, SALT), SALT)).isEqualTo(item);
+        assertThat(mIndex.findRecognizedStoredItem(List.of(item),
+                bloomFilterOf(OTHER_ACCOUNT_KEY, SALT), SALT)).isNull();
+    }
+}
@@ -33,6 +33,8 @@ import org.junit.Test;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.util.ArrayDeque;
+
 import service.proto.Cache;
 
 public class FastPairCacheManagerTest {
@@ -44,6 +46,8 @@ public class FastPairCacheManagerTest {
     private static final ByteString ACCOUNT_KEY = ByteString.copyFromUtf8("axgs");
     private static final String MAC_ADDRESS_B = "00:11:22:44";
     private static final ByteString ACCOUNT_KEY_B = ByteString.copyFromUtf8("axgb");
+    private static final String MAC_ADDRESS_C = "00:11:22:55";
+    private static final String MAC_ADDRESS_D = "00:11:22:66";
 
     @Mock
     DiscoveryItem mDiscoveryItem;
@@ -145,6 +149,48 @@ public class FastPairCacheManagerTest {
         fastPairCacheManager.cleanUp();
     }
 
+    @Test
+    @SdkSuppress(minSdkVersion = 32, codeName = "T")
+    public void writesAreCachedAndBatched() {
+        Cache.StoredFastPairItem storedFastPairItemC = Cache.StoredFastPairItem.newBuilder()
+                .setMacAddress(MAC_ADDRESS_C)
+                .setAccountKey(ACCOUNT_KEY)
+                .build();
+        Cache.StoredFastPairItem storedFastPairItemD = Cache.StoredFastPairItem.newBuilder()
+                .setMacAddress(MAC_ADDRESS_D)
+                .setAccountKey(ACCOUNT_KEY_B)
+                .build();
+        ArrayDeque<Runnable> writeTasks = new ArrayDeque<>();
+
+        FastPairCacheManager fastPairCacheManager =
+                new FastPairCacheManager(mContext, writeTasks::add);
+        fastPairCacheManager.putStoredFastPairItem(storedFastPairItemC);
+        fastPairCacheManager.putStoredFastPairItem(storedFastPairItemD);
+
+        // Both items are visible before being written, and are written in a single batch.
+        assertThat(fastPairCacheManager.getStoredFastPairItemFromMacAddress(MAC_ADDRESS_C))
+                .isEqualTo(storedFastPairItemC);
+        assertThat(fastPairCacheManager.getAllSavedStoredFastPairItem())
+                .containsAtLeast(storedFastPairItemC, storedFastPairItemD);
+        assertThat(writeTasks).hasSize(1);
+
+        writeTasks.poll().run();
+        FastPairCacheManager reloaded = new FastPairCacheManager(mContext, writeTasks::add);
+        assertThat(reloaded.getStoredFastPairItemFromMacAddress(MAC_ADDRESS_D))
+                .isEqualTo(storedFastPairItemD);
+
+        fastPairCacheManager.removeStoredFastPairItem(MAC_ADDRESS_C);
+        fastPairCacheManager.removeStoredFastPairItem(MAC_ADDRESS_D);
+        assertThat(fastPairCacheManager.getAllSavedStoredFastPairItem())
+                .containsNoneOf(storedFastPairItemC, storedFastPairItemD);
+        // Pending removals are written when cleaning up.
+        fastPairCacheManager.cleanUp();
+        reloaded = new FastPairCacheManager(mContext, writeTasks::add);
+        assertThat(reloaded.getStoredFastPairItemFromMacAddress(MAC_ADDRESS_C))
+                .isEqualTo(Cache.StoredFastPairItem.getDefaultInstance());
+        reloaded.cleanUp();
+    }
+
     @Test
     @SdkSuppress(minSdkVersion = 32, codeName = "T")
     public void getDeviceFromScanResult_notCrash() {
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.nearby.presence;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.nearby.BroadcastRequest;
+import android.nearby.PresenceBroadcastRequest;
+import android.nearby.PresenceCredential;
+import android.nearby.PrivateCredential;
+import android.nearby.PublicCredential;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+public class PresenceCredentialMatcherTest {
+    private static final int MEDIUM_TYPE_BLE = 0;
+    private static final byte[] SALT = {2, 3};
+    private static final int PRESENCE_ACTION = 1;
+    private static final byte[] SECRET_ID = new byte[]{1, 2, 3, 4};
+    private static final String DEVICE_NAME = "test_device";
+    private static final byte[] AUTHENTICITY_KEY =
+            new byte[]{-97, 10, 107, -86, 25, 65, -54, -95, -72, 59, 54, 93, 9, 3, -24, -88};
+    private static final byte[] OTHER_AUTHENTICITY_KEY =
+            new byte[]{-50, 10, 107, -86, 25, 65, -54, -95, -72, 59, 54, 93, 9, 3, -24, -88};
+    private static final byte[] METADATA_ENCRYPTION_KEY =
+            new byte[]{-39, -55, 115, 78, -57, 40, 115, 0, -112, 86, -86, 7, -42, 68, 11, 12};
+    private static final byte[] METADATA_ENCRYPTION_KEY_TAG =
+            new byte[]{-100, 102, -35, -99, 66, -85, -55, -58, -52, 11, -74, 102, 109, -89, 1, -34,
+                    45, 43, 107, -60, 99, -21, 28, 34, 31, -100, -96, 108, 108, -18, 107, 5};
+    private static final byte[] PUBLIC_KEY = new byte[]{1, 2, 3};
+    private static final byte[] ENCRYPTED_METADATA_BYTES = new byte[]{4, 5, 6};
+
+    private byte[] mAdvertisementBytes;
+    private PublicCredential mPublicCredential;
+    private PublicCredential mOtherPublicCredential;
+
+    @Before
+    public void setUp() {
+        PrivateCredential privateCredential =
+                new PrivateCredential.Builder(
+                        SECRET_ID, AUTHENTICITY_KEY, METADATA_ENCRYPTION_KEY, DEVICE_NAME)
+                        .setIdentityType(PresenceCredential.IDENTITY_TYPE_PRIVATE)
+                        .build();
+        PresenceBroadcastRequest request =
+                new PresenceBroadcastRequest.Builder(Collections.singletonList(MEDIUM_TYPE_BLE),
+                        SALT, privateCredential)
+                        .setVersion(BroadcastRequest.PRESENCE_VERSION_V1)
+                        .addAction(PRESENCE_ACTION)
+                        .build();
+        mAdvertisementBytes = ExtendedAdvertisement.createFromRequest(request).toBytes();
+
+        mPublicCredential =
+                new PublicCredential.Builder(SECRET_ID, AUTHENTICITY_KEY, PUBLIC_KEY,
+                        ENCRYPTED_METADATA_BYTES, METADATA_ENCRYPTION_KEY_TAG)
+                        .build();
+        mOtherPublicCredential =
+                new PublicCredential.Builder(SECRET_ID, OTHER_AUTHENTICITY_KEY, PUBLIC_KEY,
+                        ENCRYPTED_METADATA_BYTES, METADATA_ENCRYPTION_KEY_TAG)
+                        .build();
+    }
+
+    @Test
+    public void testMatch_findsCredential() {
+        PresenceCredentialMatcher matcher = new PresenceCredentialMatcher(
+                List.of(mOtherPublicCredential, mPublicCredential));
+
+        PresenceCredentialMatcher.Match match = matcher.match(mAdvertisementBytes);
+
+        assertThat(match).isNotNull();
+        assertThat(match.getCredential()).isEqualTo(mPublicCredential);
+        ExtendedAdvertisement advertisement = match.getAdvertisement();
+        ExtendedAdvertisement expected =
+                ExtendedAdvertisement.fromBytes(mAdvertisementBytes, mPublicCredential);
+        assertThat(advertisement.getIdentity()).isEqualTo(METADATA_ENCRYPTION_KEY);
+        assertThat(advertisement.getSalt()).isEqualTo(SALT);
+        assertThat(advertisement.getActions()).containsExactly(PRESENCE_ACTION);
+        assertThat(advertisement.getDataElements())
+                .containsExactlyElementsIn(expected.getDataElements());
+    }
+
+    @Test
+    public void testMatch_repeatedAdvertisement() {
+        PresenceCredentialMatcher matcher = new PresenceCredentialMatcher(
+                List.of(mOtherPublicCredential, mPublicCredential));
+
+        for (int i = 0; i < 10; i++) {
+            PresenceCredentialMatcher.Match match = matcher.match(mAdvertisementBytes);
+            assertThat(match).isNotNull();
+            assertThat(match.getCredential()).isEqualTo(mPublicCredential);
+        }
+    }
+
+    @Test
+    public void testMatch_noMatchingCredential() {
+        PresenceCredentialMatcher matcher =
+                new PresenceCredentialMatcher(List.of(mOtherPublicCredential));
+
+        assertThat(matcher.match(mAdvertisementBytes)).isNull();
+    }
+
+    @Test
+    public void testMatch_tamperedAdvertisement() {
+        PresenceCredentialMatcher matcher =
+                new PresenceCredentialMatcher(List.of(mPublicCredential));
+        byte[] tampered = mAdvertisementBytes.clone();
+        tampered[tampered.length - 1] ^= 1;
+
+        assertThat(matcher.match(tampered)).isNull();
+        assertThat(ExtendedAdvertisement.fromBytes(tampered, mPublicCredential)).isNull();
+    }
+
+    @Test
+    public void testMatch_noCredentials() {
+        PresenceCredentialMatcher matcher = new PresenceCredentialMatcher(List.of());
+
+        assertThat(matcher.isEmpty()).isTrue();
+        assertThat(matcher.match(mAdvertisementBytes)).isNull();
+    }
+}
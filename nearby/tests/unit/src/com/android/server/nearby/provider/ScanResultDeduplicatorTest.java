@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.nearby.provider;
+
+import static com.android.server.nearby.provider.ScanResultDeduplicator.NO_REPORT;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ScanResultDeduplicatorTest {
+    private static final long WINDOW_MILLIS = 1000;
+    private static final String ADDRESS = "11:22:33:44:55:66";
+    private static final String OTHER_ADDRESS = "11:22:33:44:55:77";
+    private static final byte[] PAYLOAD = new byte[] {1, 2, 3};
+    private static final byte[] OTHER_PAYLOAD = new byte[] {1, 2, 4};
+
+    private ScanResultDeduplicator mDeduplicator;
+
+    @Before
+    public void setUp() {
+        mDeduplicator = new ScanResultDeduplicator(WINDOW_MILLIS);
+    }
+
+    @Test
+    public void testRepeatedResult_dropped() {
+        assertThat(mDeduplicator.onScanResult(ADDRESS, PAYLOAD, -60, 0)).isEqualTo(-60);
+        assertThat(mDeduplicator.onScanResult(ADDRESS, PAYLOAD.clone(), -62, 100))
+                .isEqualTo(NO_REPORT);
+        // Other devices are tracked separately.
+        assertThat(mDeduplicator.onScanResult(OTHER_ADDRESS, PAYLOAD, -62, 100)).isEqualTo(-62);
+
+        assertThat(mDeduplicator.getRawCount()).isEqualTo(3);
+        assertThat(mDeduplicator.getReportedCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void testPayloadChange_reported() {
+        mDeduplicator.onScanResult(ADDRESS, PAYLOAD, -60, 0);
+        assertThat(mDeduplicator.onScanResult(ADDRESS, OTHER_PAYLOAD, -61, 100)).isEqualTo(-61);
+        assertThat(mDeduplicator.onScanResult(ADDRESS, null, -61, 200)).isEqualTo(-61);
+    }
+
+    @Test
+    public void testSignificantRssiChange_reported() {
+        mDeduplicator.onScanResult(ADDRESS, PAYLOAD, -60, 0);
+        assertThat(mDeduplicator.onScanResult(ADDRESS, PAYLOAD,
+                -60 - ScanResultDeduplicator.RSSI_CHANGE_THRESHOLD_DBM, 100))
+                .isEqualTo(-60 - ScanResultDeduplicator.RSSI_CHANGE_THRESHOLD_DBM);
+    }
+
+    @Test
+    public void testWindowElapsed_reportsAverageRssi() {
+        mDeduplicator.onScanResult(ADDRESS, PAYLOAD, -60, 0);
+        assertThat(mDeduplicator.onScanResult(ADDRESS, PAYLOAD, -62, 300)).isEqualTo(NO_REPORT);
+        assertThat(mDeduplicator.onScanResult(ADDRESS, PAYLOAD, -64, 600)).isEqualTo(NO_REPORT);
+        assertThat(mDeduplicator.onScanResult(ADDRESS, PAYLOAD, -66, WINDOW_MILLIS))
+                .isEqualTo(-64);
+        // The window restarts from the last report.
+        assertThat(mDeduplicator.onScanResult(ADDRESS, PAYLOAD, -66, WINDOW_MILLIS + 1))
+                .isEqualTo(NO_REPORT);
+    }
+
+    @Test
+    public void testReset_reportsNextResult() {
+        mDeduplicator.onScanResult(ADDRESS, PAYLOAD, -60, 0);
+        mDeduplicator.reset();
+        assertThat(mDeduplicator.onScanResult(ADDRESS, PAYLOAD, -60, 100)).isEqualTo(-60);
+    }
+
+    @Test
+    public void testNoWindow_reportsAll() {
+        mDeduplicator.setWindowMillis(0);
+        assertThat(mDeduplicator.onScanResult(ADDRESS, PAYLOAD, -60, 0)).isEqualTo(-60);
+        assertThat(mDeduplicator.onScanResult(ADDRESS, PAYLOAD, -60, 0)).isEqualTo(-60);
+        assertThat(mDeduplicator.getReportedCount()).isEqualTo(2);
+    }
+}
@@ -104,6 +104,37 @@ static jlong nativeGetUidStat(JNIEnv* env, jclass clazz, jint uid, jint type) {
     }
 }
 
+// Copies rx/tx bytes/packets, in this order, into the first 4 elements of |out|.
+static jboolean copyStats(JNIEnv* env, const Stats& stats, jlongArray out) {
+    if (out == NULL || env->GetArrayLength(out) < 4) {
+        return false;
+    }
+    const jlong values[] = {(jlong) stats.rxBytes, (jlong) stats.rxPackets,
+                            (jlong) stats.txBytes, (jlong) stats.txPackets};
+    env->SetLongArrayRegion(out, 0, 4, values);
+    return true;
+}
+
+static jboolean nativeGetIfaceStats(JNIEnv* env, jclass clazz, jstring iface, jlongArray out) {
+    Stats stats = {};
+    int res;
+    if (iface == NULL) {
+        res = bpfGetIfaceStats(NULL, &stats);
+    } else {
+        ScopedUtfChars iface8(env, iface);
+        if (iface8.c_str() == NULL) {
+            return false;
+        }
+        res = bpfGetIfaceStats(iface8.c_str(), &stats);
+    }
+    return res == 0 && copyStats(env, stats, out);
+}
+
+static jboolean nativeGetUidStats(JNIEnv* env, jclass clazz, jint uid, jlongArray out) {
+    Stats stats = {};
+    return bpfGetUidStats(uid, &stats) == 0 && copyStats(env, stats, out);
+}
+
 static void nativeInitNetworkTracing(JNIEnv* env, jclass clazz) {
     NetworkTraceHandler::InitPerfettoTracing();
 }
@@ -112,6 +143,8 @@ static const JNINativeMethod gMethods[] = {
         {"nativeGetTotalStat", "(I)J", (void*)nativeGetTotalStat},
         {"nativeGetIfaceStat", "(Ljava/lang/String;I)J", (void*)nativeGetIfaceStat},
         {"nativeGetUidStat", "(II)J", (void*)nativeGetUidStat},
+        {"nativeGetIfaceStats", "(Ljava/lang/String;[J)Z", (void*)nativeGetIfaceStats},
+        {"nativeGetUidStats", "(I[J)Z", (void*)nativeGetUidStats},
         {"nativeInitNetworkTracing", "()V", (void*)nativeInitNetworkTracing},
 };
 
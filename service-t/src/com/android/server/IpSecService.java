@@ -84,6 +84,7 @@ import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A service to manage multiple clients that want to access the IpSec API. The service is
@@ -129,12 +130,11 @@ public class IpSecService extends IIpSecService.Stub {
 
     /**
      * The next non-repeating global ID for tracking resources between users, this service, and
-     * kernel data structures. Accessing this variable is not thread safe, so it is only read or
-     * modified within blocks synchronized on IpSecService.this. We want to avoid -1
-     * (INVALID_RESOURCE_ID) and 0 (we probably forgot to initialize it).
+     * kernel data structures. This is the only state shared between UIDs, so it is atomic rather
+     * than guarded by any UserRecord lock. We want to avoid -1 (INVALID_RESOURCE_ID) and 0 (we
+     * probably forgot to initialize it).
      */
-    @GuardedBy("IpSecService.this")
-    private int mNextResourceId = 1;
+    private final AtomicInteger mNextResourceId = new AtomicInteger(1);
 
     /**
      * Dependencies of IpSecService, for injection in tests.
@@ -204,11 +204,16 @@ public class IpSecService extends IIpSecService.Stub {
     public class RefcountedResource<T extends IResource> implements IBinder.DeathRecipient {
         private final T mResource;
         private final List<RefcountedResource> mChildren;
+        // The UserRecord of the owner of the resource, which also owns all its children. Resources
+        // that are not owned by any UID fall back to the service lock.
+        private final Object mLock;
         int mRefCount = 1; // starts at 1 for user's reference.
         IBinder mBinder;
 
         RefcountedResource(T resource, IBinder binder, RefcountedResource... children) {
-            synchronized (IpSecService.this) {
+            mLock = (resource instanceof OwnedResourceRecord)
+                    ? ((OwnedResourceRecord) resource).getUserRecord() : IpSecService.this;
+            synchronized (mLock) {
                 this.mResource = resource;
                 this.mChildren = new ArrayList<>(children.length);
                 this.mBinder = binder;
@@ -234,7 +239,7 @@ public class IpSecService extends IIpSecService.Stub {
          */
         @Override
         public void binderDied() {
-            synchronized (IpSecService.this) {
+            synchronized (mLock) {
                 try {
                     userRelease();
                 } catch (Exception e) {
@@ -258,7 +263,7 @@ public class IpSecService extends IIpSecService.Stub {
          * this time, or that the related quota will be returned. Such actions will only be
          * performed upon the reference count reaching zero.
          */
-        @GuardedBy("IpSecService.this")
+        @GuardedBy("mLock")
         public void userRelease() throws RemoteException {
             // Prevent users from putting reference counts into a bad state by calling
             // userRelease() multiple times.
@@ -285,7 +290,7 @@ public class IpSecService extends IIpSecService.Stub {
          * released
          */
         @VisibleForTesting
-        @GuardedBy("IpSecService.this")
+        @GuardedBy("mLock")
         public void releaseReference() throws RemoteException {
             mRefCount--;
 
@@ -328,7 +333,7 @@ public class IpSecService extends IIpSecService.Stub {
      * Very simple counting class that looks much like a counting semaphore
      *
      * <p>This class is not thread-safe, and expects that that users of this class will ensure
-     * synchronization and thread safety by holding the IpSecService.this instance lock.
+     * synchronization and thread safety by holding the lock of the UserRecord owning it.
      */
     @VisibleForTesting
     static class ResourceTracker {
@@ -370,6 +375,12 @@ public class IpSecService extends IIpSecService.Stub {
         }
     }
 
+    /**
+     * All the resources of a UID.
+     *
+     * <p>The record is also the lock guarding them: resources only ever reference resources of the
+     * same UID, so operations of different UIDs never contend with each other.
+     */
     @VisibleForTesting
     static final class UserRecord {
         /* Maximum number of each type of resource that a single UID may possess */
@@ -455,23 +466,26 @@ public class IpSecService extends IIpSecService.Stub {
     }
 
     /**
-     * This class is not thread-safe, and expects that that users of this class will ensure
-     * synchronization and thread safety by holding the IpSecService.this instance lock.
+     * This class is thread-safe. It only guards the lookup of the records ; the contents of each
+     * UserRecord are guarded by the record itself.
      */
     @VisibleForTesting
     static final class UserResourceTracker {
+        @GuardedBy("mUserRecords")
         private final SparseArray<UserRecord> mUserRecords = new SparseArray<>();
 
         /** Lazy-initialization/getter that populates or retrieves the UserRecord as needed */
         public UserRecord getUserRecord(int uid) {
             checkCallerUid(uid);
 
-            UserRecord r = mUserRecords.get(uid);
-            if (r == null) {
-                r = new UserRecord();
-                mUserRecords.put(uid, r);
+            synchronized (mUserRecords) {
+                UserRecord r = mUserRecords.get(uid);
+                if (r == null) {
+                    r = new UserRecord();
+                    mUserRecords.put(uid, r);
+                }
+                return r;
             }
-            return r;
         }
 
         /** Safety method; guards against access of other user's UserRecords */
@@ -481,9 +495,26 @@ public class IpSecService extends IIpSecService.Stub {
             }
         }
 
+        /**
+         * Prints every record while holding its lock. The records are copied out first so that
+         * mUserRecords is never held while waiting for a record's lock.
+         */
         @Override
         public String toString() {
-            return mUserRecords.toString();
+            final SparseArray<UserRecord> records;
+            synchronized (mUserRecords) {
+                records = mUserRecords.clone();
+            }
+            final StringBuilder sb = new StringBuilder("{");
+            for (int i = 0; i < records.size(); i++) {
+                if (i > 0) sb.append(", ");
+                final UserRecord record = records.valueAt(i);
+                sb.append(records.keyAt(i)).append('=');
+                synchronized (record) {
+                    sb.append(record);
+                }
+            }
+            return sb.append('}').toString();
         }
     }
 
@@ -546,6 +577,8 @@ public class IpSecService extends IIpSecService.Stub {
     /**
      * Thin wrapper over SparseArray to ensure resources exist, and simplify generic typing.
      *
+     * <p>This class is not thread-safe, and is guarded by the UserRecord holding it.
+     *
      * <p>RefcountedResourceArray prevents null insertions, and throws an IllegalArgumentException
      * if a key is not found during a retrieval process.
      */
@@ -602,7 +635,7 @@ public class IpSecService extends IIpSecService.Stub {
      * underlying SA to this class via the mOwnedByTransform flag.
      *
      * <p>This class is not thread-safe, and expects that that users of this class will ensure
-     * synchronization and thread safety by holding the IpSecService.this instance lock
+     * synchronization and thread safety by holding the lock of the owner's UserRecord
      */
     private final class TransformRecord extends OwnedResourceRecord {
         private final IpSecConfig mConfig;
@@ -633,12 +666,12 @@ public class IpSecService extends IIpSecService.Stub {
             return mSocket;
         }
 
-        @GuardedBy("IpSecService.this")
+        @GuardedBy("getUserRecord()")
         public String getNewSourceAddress() {
             return mNewSourceAddress;
         }
 
-        @GuardedBy("IpSecService.this")
+        @GuardedBy("getUserRecord()")
         public String getNewDestinationAddress() {
             return mNewDestinationAddress;
         }
@@ -651,7 +684,7 @@ public class IpSecService extends IIpSecService.Stub {
         }
 
         /** Start migrating this transform to new source and destination addresses */
-        @GuardedBy("IpSecService.this")
+        @GuardedBy("getUserRecord()")
         public void startMigration(String newSourceAddress, String newDestinationAddress) {
             verifyTunnelModeOrThrow();
             Objects.requireNonNull(newSourceAddress, "newSourceAddress was null");
@@ -661,7 +694,7 @@ public class IpSecService extends IIpSecService.Stub {
         }
 
         /** Finish migration and update addresses. */
-        @GuardedBy("IpSecService.this")
+        @GuardedBy("getUserRecord()")
         public void finishMigration() {
             verifyTunnelModeOrThrow();
             mConfig.setSourceAddress(mNewSourceAddress);
@@ -671,14 +704,14 @@ public class IpSecService extends IIpSecService.Stub {
         }
 
         /** Return if this transform is going to be migrated. */
-        @GuardedBy("IpSecService.this")
+        @GuardedBy("getUserRecord()")
         public boolean isMigrating() {
             verifyTunnelModeOrThrow();
 
             return mNewSourceAddress != null;
         }
 
-        /** always guarded by IpSecService#this */
+        /** always guarded by the owner's UserRecord */
         @Override
         public void freeUnderlyingResources() {
             int spi = mSpi.getSpi();
@@ -745,7 +778,7 @@ public class IpSecService extends IIpSecService.Stub {
             mSpi = spi;
         }
 
-        /** always guarded by IpSecService#this */
+        /** always guarded by the owner's UserRecord */
         @Override
         public void freeUnderlyingResources() {
             try {
@@ -855,7 +888,7 @@ public class IpSecService extends IIpSecService.Stub {
      * Tracks an tunnel interface, and manages cleanup paths.
      *
      * <p>This class is not thread-safe, and expects that that users of this class will ensure
-     * synchronization and thread safety by holding the IpSecService.this instance lock
+     * synchronization and thread safety by holding the lock of the owner's UserRecord
      */
     @VisibleForTesting
     final class TunnelInterfaceRecord extends OwnedResourceRecord {
@@ -892,7 +925,7 @@ public class IpSecService extends IIpSecService.Stub {
             mIfId = intfId;
         }
 
-        /** always guarded by IpSecService#this */
+        /** always guarded by the owner's UserRecord */
         @Override
         public void freeUnderlyingResources() {
             // Calls to netd
@@ -938,14 +971,14 @@ public class IpSecService extends IIpSecService.Stub {
             releaseNetId(mOkey);
         }
 
-        @GuardedBy("IpSecService.this")
+        @GuardedBy("getUserRecord()")
         public void setUnderlyingNetwork(Network underlyingNetwork) {
             // When #applyTunnelModeTransform is called, this new underlying network will be used to
             // update the output mark of the input transform.
             mUnderlyingNetwork = underlyingNetwork;
         }
 
-        @GuardedBy("IpSecService.this")
+        @GuardedBy("getUserRecord()")
         public Network getUnderlyingNetwork() {
             return mUnderlyingNetwork;
         }
@@ -1027,7 +1060,7 @@ public class IpSecService extends IIpSecService.Stub {
             mFamily = family;
         }
 
-        /** always guarded by IpSecService#this */
+        /** always guarded by the owner's UserRecord */
         @Override
         public void freeUnderlyingResources() {
             Log.d(TAG, "Closing port " + mPort);
@@ -1153,7 +1186,7 @@ public class IpSecService extends IIpSecService.Stub {
 
     /** Get a new SPI and maintain the reservation in the system server */
     @Override
-    public synchronized IpSecSpiResponse allocateSecurityParameterIndex(
+    public IpSecSpiResponse allocateSecurityParameterIndex(
             String destinationAddress, int requestedSpi, IBinder binder) throws RemoteException {
         checkInetAddress(destinationAddress);
         // RFC 4303 Section 2.1 - 0=local, 1-255=reserved.
@@ -1164,32 +1197,34 @@ public class IpSecService extends IIpSecService.Stub {
 
         int callingUid = Binder.getCallingUid();
         UserRecord userRecord = mUserResourceTracker.getUserRecord(callingUid);
-        final int resourceId = mNextResourceId++;
+        final int resourceId = mNextResourceId.getAndIncrement();
 
-        int spi = IpSecManager.INVALID_SECURITY_PARAMETER_INDEX;
-        try {
-            if (!userRecord.mSpiQuotaTracker.isAvailable()) {
-                return new IpSecSpiResponse(
-                        IpSecManager.Status.RESOURCE_UNAVAILABLE, INVALID_RESOURCE_ID, spi);
-            }
+        synchronized (userRecord) {
+            int spi = IpSecManager.INVALID_SECURITY_PARAMETER_INDEX;
+            try {
+                if (!userRecord.mSpiQuotaTracker.isAvailable()) {
+                    return new IpSecSpiResponse(
+                            IpSecManager.Status.RESOURCE_UNAVAILABLE, INVALID_RESOURCE_ID, spi);
+                }
 
-            spi = mNetd.ipSecAllocateSpi(callingUid, "", destinationAddress, requestedSpi);
-            Log.d(TAG, "Allocated SPI " + spi);
-            userRecord.mSpiRecords.put(
-                    resourceId,
-                    new RefcountedResource<SpiRecord>(
-                            new SpiRecord(resourceId, "",
-                            destinationAddress, spi), binder));
-        } catch (ServiceSpecificException e) {
-            if (e.errorCode == OsConstants.ENOENT) {
-                return new IpSecSpiResponse(
-                        IpSecManager.Status.SPI_UNAVAILABLE, INVALID_RESOURCE_ID, spi);
+                spi = mNetd.ipSecAllocateSpi(callingUid, "", destinationAddress, requestedSpi);
+                Log.d(TAG, "Allocated SPI " + spi);
+                userRecord.mSpiRecords.put(
+                        resourceId,
+                        new RefcountedResource<SpiRecord>(
+                                new SpiRecord(resourceId, "",
+                                destinationAddress, spi), binder));
+            } catch (ServiceSpecificException e) {
+                if (e.errorCode == OsConstants.ENOENT) {
+                    return new IpSecSpiResponse(
+                            IpSecManager.Status.SPI_UNAVAILABLE, INVALID_RESOURCE_ID, spi);
+                }
+                throw e;
+            } catch (RemoteException e) {
+                throw e.rethrowFromSystemServer();
             }
-            throw e;
-        } catch (RemoteException e) {
-            throw e.rethrowFromSystemServer();
+            return new IpSecSpiResponse(IpSecManager.Status.OK, resourceId, spi);
         }
-        return new IpSecSpiResponse(IpSecManager.Status.OK, resourceId, spi);
     }
 
     /* This method should only be called from Binder threads. Do not call this from
@@ -1202,9 +1237,11 @@ public class IpSecService extends IIpSecService.Stub {
 
     /** Release a previously allocated SPI that has been registered with the system server */
     @Override
-    public synchronized void releaseSecurityParameterIndex(int resourceId) throws RemoteException {
+    public void releaseSecurityParameterIndex(int resourceId) throws RemoteException {
         UserRecord userRecord = mUserResourceTracker.getUserRecord(Binder.getCallingUid());
-        releaseResource(userRecord.mSpiRecords, resourceId);
+        synchronized (userRecord) {
+            releaseResource(userRecord.mSpiRecords, resourceId);
+        }
     }
 
     /**
@@ -1270,7 +1307,7 @@ public class IpSecService extends IIpSecService.Stub {
      * needed.
      */
     @Override
-    public synchronized IpSecUdpEncapResponse openUdpEncapsulationSocket(int port, IBinder binder)
+    public IpSecUdpEncapResponse openUdpEncapsulationSocket(int port, IBinder binder)
             throws RemoteException {
         // Experimental support for IPv6 UDP encap.
         final int family;
@@ -1293,54 +1330,56 @@ public class IpSecService extends IIpSecService.Stub {
 
         int callingUid = Binder.getCallingUid();
         UserRecord userRecord = mUserResourceTracker.getUserRecord(callingUid);
-        final int resourceId = mNextResourceId++;
+        final int resourceId = mNextResourceId.getAndIncrement();
 
-        ParcelFileDescriptor pFd = null;
-        try {
-            if (!userRecord.mSocketQuotaTracker.isAvailable()) {
-                return new IpSecUdpEncapResponse(IpSecManager.Status.RESOURCE_UNAVAILABLE);
-            }
-
-            FileDescriptor sockFd = null;
+        synchronized (userRecord) {
+            ParcelFileDescriptor pFd = null;
             try {
-                sockFd = Os.socket(family, SOCK_DGRAM, IPPROTO_UDP);
-                pFd = ParcelFileDescriptor.dup(sockFd);
-            } finally {
-                IoUtils.closeQuietly(sockFd);
-            }
+                if (!userRecord.mSocketQuotaTracker.isAvailable()) {
+                    return new IpSecUdpEncapResponse(IpSecManager.Status.RESOURCE_UNAVAILABLE);
+                }
 
-            mUidFdTagger.tag(pFd.getFileDescriptor(), callingUid);
-            // This code is common to both the unspecified and specified port cases
-            Os.setsockoptInt(
-                    pFd.getFileDescriptor(),
-                    OsConstants.IPPROTO_UDP,
-                    OsConstants.UDP_ENCAP,
-                    OsConstants.UDP_ENCAP_ESPINUDP);
+                FileDescriptor sockFd = null;
+                try {
+                    sockFd = Os.socket(family, SOCK_DGRAM, IPPROTO_UDP);
+                    pFd = ParcelFileDescriptor.dup(sockFd);
+                } finally {
+                    IoUtils.closeQuietly(sockFd);
+                }
 
-            mNetd.ipSecSetEncapSocketOwner(pFd, callingUid);
-            if (port != 0) {
-                Log.v(TAG, "Binding to port " + port);
-                Os.bind(pFd.getFileDescriptor(), localAddr, port);
-            } else {
-                port = bindToRandomPort(pFd.getFileDescriptor(), family, localAddr);
-            }
+                mUidFdTagger.tag(pFd.getFileDescriptor(), callingUid);
+                // This code is common to both the unspecified and specified port cases
+                Os.setsockoptInt(
+                        pFd.getFileDescriptor(),
+                        OsConstants.IPPROTO_UDP,
+                        OsConstants.UDP_ENCAP,
+                        OsConstants.UDP_ENCAP_ESPINUDP);
+
+                mNetd.ipSecSetEncapSocketOwner(pFd, callingUid);
+                if (port != 0) {
+                    Log.v(TAG, "Binding to port " + port);
+                    Os.bind(pFd.getFileDescriptor(), localAddr, port);
+                } else {
+                    port = bindToRandomPort(pFd.getFileDescriptor(), family, localAddr);
+                }
 
-            userRecord.mEncapSocketRecords.put(
-                    resourceId,
-                    new RefcountedResource<EncapSocketRecord>(
-                            new EncapSocketRecord(resourceId, pFd.getFileDescriptor(), port,
-                                    family),
-                            binder));
-            return new IpSecUdpEncapResponse(IpSecManager.Status.OK, resourceId, port,
-                    pFd.getFileDescriptor());
-        } catch (IOException | ErrnoException e) {
-            try {
-                if (pFd != null) {
-                    pFd.close();
+                userRecord.mEncapSocketRecords.put(
+                        resourceId,
+                        new RefcountedResource<EncapSocketRecord>(
+                                new EncapSocketRecord(resourceId, pFd.getFileDescriptor(), port,
+                                        family),
+                                binder));
+                return new IpSecUdpEncapResponse(IpSecManager.Status.OK, resourceId, port,
+                        pFd.getFileDescriptor());
+            } catch (IOException | ErrnoException e) {
+                try {
+                    if (pFd != null) {
+                        pFd.close();
+                    }
+                } catch (IOException ex) {
+                    // Nothing can be done at this point
+                    Log.e(TAG, "Failed to close pFd.");
                 }
-            } catch (IOException ex) {
-                // Nothing can be done at this point
-                Log.e(TAG, "Failed to close pFd.");
             }
         }
         // If we make it to here, then something has gone wrong and we couldn't open a socket.
@@ -1350,9 +1389,11 @@ public class IpSecService extends IIpSecService.Stub {
 
     /** close a socket that has been been allocated by and registered with the system server */
     @Override
-    public synchronized void closeUdpEncapsulationSocket(int resourceId) throws RemoteException {
+    public void closeUdpEncapsulationSocket(int resourceId) throws RemoteException {
         UserRecord userRecord = mUserResourceTracker.getUserRecord(Binder.getCallingUid());
-        releaseResource(userRecord.mEncapSocketRecords, resourceId);
+        synchronized (userRecord) {
+            releaseResource(userRecord.mEncapSocketRecords, resourceId);
+        }
     }
 
     /**
@@ -1361,7 +1402,7 @@ public class IpSecService extends IIpSecService.Stub {
      * needed.
      */
     @Override
-    public synchronized IpSecTunnelInterfaceResponse createTunnelInterface(
+    public IpSecTunnelInterfaceResponse createTunnelInterface(
             String localAddr, String remoteAddr, Network underlyingNetwork, IBinder binder,
             String callingPackage) {
         enforceTunnelFeatureAndPermissions(callingPackage);
@@ -1375,94 +1416,99 @@ public class IpSecService extends IIpSecService.Stub {
 
         int callerUid = Binder.getCallingUid();
         UserRecord userRecord = mUserResourceTracker.getUserRecord(callerUid);
-        if (!userRecord.mTunnelQuotaTracker.isAvailable()) {
-            return new IpSecTunnelInterfaceResponse(IpSecManager.Status.RESOURCE_UNAVAILABLE);
-        }
+        synchronized (userRecord) {
+            if (!userRecord.mTunnelQuotaTracker.isAvailable()) {
+                return new IpSecTunnelInterfaceResponse(IpSecManager.Status.RESOURCE_UNAVAILABLE);
+            }
 
-        final int resourceId = mNextResourceId++;
-        final int ikey = reserveNetId();
-        final int okey = reserveNetId();
-        String intfName = String.format("%s%d", INetd.IPSEC_INTERFACE_PREFIX, resourceId);
+            final int resourceId = mNextResourceId.getAndIncrement();
+            final int ikey = reserveNetId();
+            final int okey = reserveNetId();
+            String intfName = String.format("%s%d", INetd.IPSEC_INTERFACE_PREFIX, resourceId);
 
-        try {
-            // Calls to netd:
-            //       Create VTI
-            //       Add inbound/outbound global policies
-            //              (use reqid = 0)
-            mNetd.ipSecAddTunnelInterface(intfName, localAddr, remoteAddr, ikey, okey, resourceId);
+            try {
+                // Calls to netd:
+                //       Create VTI
+                //       Add inbound/outbound global policies
+                //              (use reqid = 0)
+                mNetd.ipSecAddTunnelInterface(
+                        intfName, localAddr, remoteAddr, ikey, okey, resourceId);
+
+                BinderUtils.withCleanCallingIdentity(() -> {
+                    NetdUtils.setInterfaceUp(mNetd, intfName);
+                });
 
-            BinderUtils.withCleanCallingIdentity(() -> {
-                NetdUtils.setInterfaceUp(mNetd, intfName);
-            });
+                for (int selAddrFamily : ADDRESS_FAMILIES) {
+                    // Always send down correct local/remote addresses for template.
+                    mNetd.ipSecAddSecurityPolicy(
+                            callerUid,
+                            selAddrFamily,
+                            IpSecManager.DIRECTION_OUT,
+                            localAddr,
+                            remoteAddr,
+                            0,
+                            okey,
+                            0xffffffff,
+                            resourceId);
+                    mNetd.ipSecAddSecurityPolicy(
+                            callerUid,
+                            selAddrFamily,
+                            IpSecManager.DIRECTION_IN,
+                            remoteAddr,
+                            localAddr,
+                            0,
+                            ikey,
+                            0xffffffff,
+                            resourceId);
+
+                    // Add a forwarding policy on the tunnel interface. In order to support
+                    // forwarding the IpSecTunnelInterface must have a forwarding policy matching
+                    // the incoming SA.
+                    //
+                    // Unless a IpSecTransform is also applied against this interface in
+                    // DIRECTION_FWD, forwarding will be blocked by default (as would be the case if
+                    // this policy was absent).
+                    //
+                    // This is necessary only on the tunnel interface, and not any the interface to
+                    // which traffic will be forwarded to.
+                    mNetd.ipSecAddSecurityPolicy(
+                            callerUid,
+                            selAddrFamily,
+                            IpSecManager.DIRECTION_FWD,
+                            remoteAddr,
+                            localAddr,
+                            0,
+                            ikey,
+                            0xffffffff,
+                            resourceId);
+                }
 
-            for (int selAddrFamily : ADDRESS_FAMILIES) {
-                // Always send down correct local/remote addresses for template.
-                mNetd.ipSecAddSecurityPolicy(
-                        callerUid,
-                        selAddrFamily,
-                        IpSecManager.DIRECTION_OUT,
-                        localAddr,
-                        remoteAddr,
-                        0,
-                        okey,
-                        0xffffffff,
-                        resourceId);
-                mNetd.ipSecAddSecurityPolicy(
-                        callerUid,
-                        selAddrFamily,
-                        IpSecManager.DIRECTION_IN,
-                        remoteAddr,
-                        localAddr,
-                        0,
-                        ikey,
-                        0xffffffff,
-                        resourceId);
-
-                // Add a forwarding policy on the tunnel interface. In order to support forwarding
-                // the IpSecTunnelInterface must have a forwarding policy matching the incoming SA.
-                //
-                // Unless a IpSecTransform is also applied against this interface in DIRECTION_FWD,
-                // forwarding will be blocked by default (as would be the case if this policy was
-                // absent).
-                //
-                // This is necessary only on the tunnel interface, and not any the interface to
-                // which traffic will be forwarded to.
-                mNetd.ipSecAddSecurityPolicy(
-                        callerUid,
-                        selAddrFamily,
-                        IpSecManager.DIRECTION_FWD,
-                        remoteAddr,
-                        localAddr,
-                        0,
-                        ikey,
-                        0xffffffff,
-                        resourceId);
+                userRecord.mTunnelInterfaceRecords.put(
+                        resourceId,
+                        new RefcountedResource<TunnelInterfaceRecord>(
+                                new TunnelInterfaceRecord(
+                                        resourceId,
+                                        intfName,
+                                        underlyingNetwork,
+                                        localAddr,
+                                        remoteAddr,
+                                        ikey,
+                                        okey,
+                                        resourceId),
+                                binder));
+                return new IpSecTunnelInterfaceResponse(
+                        IpSecManager.Status.OK, resourceId, intfName);
+            } catch (RemoteException e) {
+                // Release keys if we got an error.
+                releaseNetId(ikey);
+                releaseNetId(okey);
+                throw e.rethrowFromSystemServer();
+            } catch (Throwable t) {
+                // Release keys if we got an error.
+                releaseNetId(ikey);
+                releaseNetId(okey);
+                throw t;
             }
-
-            userRecord.mTunnelInterfaceRecords.put(
-                    resourceId,
-                    new RefcountedResource<TunnelInterfaceRecord>(
-                            new TunnelInterfaceRecord(
-                                    resourceId,
-                                    intfName,
-                                    underlyingNetwork,
-                                    localAddr,
-                                    remoteAddr,
-                                    ikey,
-                                    okey,
-                                    resourceId),
-                            binder));
-            return new IpSecTunnelInterfaceResponse(IpSecManager.Status.OK, resourceId, intfName);
-        } catch (RemoteException e) {
-            // Release keys if we got an error.
-            releaseNetId(ikey);
-            releaseNetId(okey);
-            throw e.rethrowFromSystemServer();
-        } catch (Throwable t) {
-            // Release keys if we got an error.
-            releaseNetId(ikey);
-            releaseNetId(okey);
-            throw t;
         }
     }
 
@@ -1471,15 +1517,18 @@ public class IpSecService extends IIpSecService.Stub {
      * from multiple local IP addresses over the same tunnel.
      */
     @Override
-    public synchronized void addAddressToTunnelInterface(
+    public void addAddressToTunnelInterface(
             int tunnelResourceId, LinkAddress localAddr, String callingPackage) {
         enforceTunnelFeatureAndPermissions(callingPackage);
         UserRecord userRecord = mUserResourceTracker.getUserRecord(Binder.getCallingUid());
 
         // Get tunnelInterface record; if no such interface is found, will throw
         // IllegalArgumentException
-        TunnelInterfaceRecord tunnelInterfaceInfo =
-                userRecord.mTunnelInterfaceRecords.getResourceOrThrow(tunnelResourceId);
+        final TunnelInterfaceRecord tunnelInterfaceInfo;
+        synchronized (userRecord) {
+            tunnelInterfaceInfo =
+                    userRecord.mTunnelInterfaceRecords.getResourceOrThrow(tunnelResourceId);
+        }
 
         try {
             // We can assume general validity of the IP address, since we get them as a
@@ -1498,15 +1547,18 @@ public class IpSecService extends IIpSecService.Stub {
      * longer be available to send from, or receive on.
      */
     @Override
-    public synchronized void removeAddressFromTunnelInterface(
+    public void removeAddressFromTunnelInterface(
             int tunnelResourceId, LinkAddress localAddr, String callingPackage) {
         enforceTunnelFeatureAndPermissions(callingPackage);
 
         UserRecord userRecord = mUserResourceTracker.getUserRecord(Binder.getCallingUid());
         // Get tunnelInterface record; if no such interface is found, will throw
         // IllegalArgumentException
-        TunnelInterfaceRecord tunnelInterfaceInfo =
-                userRecord.mTunnelInterfaceRecords.getResourceOrThrow(tunnelResourceId);
+        final TunnelInterfaceRecord tunnelInterfaceInfo;
+        synchronized (userRecord) {
+            tunnelInterfaceInfo =
+                    userRecord.mTunnelInterfaceRecords.getResourceOrThrow(tunnelResourceId);
+        }
 
         try {
             // We can assume general validity of the IP address, since we get them as a
@@ -1522,7 +1574,7 @@ public class IpSecService extends IIpSecService.Stub {
 
     /** Set TunnelInterface to use a specific underlying network. */
     @Override
-    public synchronized void setNetworkForTunnelInterface(
+    public void setNetworkForTunnelInterface(
             int tunnelResourceId, Network underlyingNetwork, String callingPackage) {
         enforceTunnelFeatureAndPermissions(callingPackage);
         Objects.requireNonNull(underlyingNetwork, "No underlying network was specified");
@@ -1531,8 +1583,11 @@ public class IpSecService extends IIpSecService.Stub {
 
         // Get tunnelInterface record; if no such interface is found, will throw
         // IllegalArgumentException. userRecord.mTunnelInterfaceRecords is never null
-        final TunnelInterfaceRecord tunnelInterfaceInfo =
-                userRecord.mTunnelInterfaceRecords.getResourceOrThrow(tunnelResourceId);
+        final TunnelInterfaceRecord tunnelInterfaceInfo;
+        synchronized (userRecord) {
+            tunnelInterfaceInfo =
+                    userRecord.mTunnelInterfaceRecords.getResourceOrThrow(tunnelResourceId);
+        }
 
         final ConnectivityManager connectivityManager =
                 mContext.getSystemService(ConnectivityManager.class);
@@ -1550,7 +1605,9 @@ public class IpSecService extends IIpSecService.Stub {
         // It is meaningless to check if the network exists or is valid because the network might
         // disconnect at any time after it passes the check.
 
-        tunnelInterfaceInfo.setUnderlyingNetwork(underlyingNetwork);
+        synchronized (userRecord) {
+            tunnelInterfaceInfo.setUnderlyingNetwork(underlyingNetwork);
+        }
     }
 
     /**
@@ -1558,11 +1615,13 @@ public class IpSecService extends IIpSecService.Stub {
      * server
      */
     @Override
-    public synchronized void deleteTunnelInterface(
+    public void deleteTunnelInterface(
             int resourceId, String callingPackage) throws RemoteException {
         enforceTunnelFeatureAndPermissions(callingPackage);
         UserRecord userRecord = mUserResourceTracker.getUserRecord(Binder.getCallingUid());
-        releaseResource(userRecord.mTunnelInterfaceRecords, resourceId);
+        synchronized (userRecord) {
+            releaseResource(userRecord.mTunnelInterfaceRecords, resourceId);
+        }
     }
 
     @VisibleForTesting
@@ -1603,6 +1662,8 @@ public class IpSecService extends IIpSecService.Stub {
     /**
      * Checks an IpSecConfig parcel to ensure that the contents are valid and throws an
      * IllegalArgumentException if they are not.
+     *
+     * <p>Must be called with the lock of the calling UID's UserRecord held.
      */
     private void checkIpSecConfig(IpSecConfig config) {
         UserRecord userRecord = mUserResourceTracker.getUserRecord(Binder.getCallingUid());
@@ -1768,47 +1829,49 @@ public class IpSecService extends IIpSecService.Stub {
      * result in all of those sockets becoming unable to send or receive data.
      */
     @Override
-    public synchronized IpSecTransformResponse createTransform(
+    public IpSecTransformResponse createTransform(
             IpSecConfig c, IBinder binder, String callingPackage) throws RemoteException {
         Objects.requireNonNull(c);
         if (c.getMode() == IpSecTransform.MODE_TUNNEL) {
             enforceTunnelFeatureAndPermissions(callingPackage);
         }
-        checkIpSecConfig(c);
-        Objects.requireNonNull(binder, "Null Binder passed to createTransform");
-        final int resourceId = mNextResourceId++;
-
         UserRecord userRecord = mUserResourceTracker.getUserRecord(Binder.getCallingUid());
-        List<RefcountedResource> dependencies = new ArrayList<>();
+        synchronized (userRecord) {
+            checkIpSecConfig(c);
+            Objects.requireNonNull(binder, "Null Binder passed to createTransform");
+            final int resourceId = mNextResourceId.getAndIncrement();
 
-        if (!userRecord.mTransformQuotaTracker.isAvailable()) {
-            return new IpSecTransformResponse(IpSecManager.Status.RESOURCE_UNAVAILABLE);
-        }
+            List<RefcountedResource> dependencies = new ArrayList<>();
 
-        EncapSocketRecord socketRecord = null;
-        if (c.getEncapType() != IpSecTransform.ENCAP_NONE) {
-            RefcountedResource<EncapSocketRecord> refcountedSocketRecord =
-                    userRecord.mEncapSocketRecords.getRefcountedResourceOrThrow(
-                            c.getEncapSocketResourceId());
-            dependencies.add(refcountedSocketRecord);
-            socketRecord = refcountedSocketRecord.getResource();
-        }
-
-        RefcountedResource<SpiRecord> refcountedSpiRecord =
-                userRecord.mSpiRecords.getRefcountedResourceOrThrow(c.getSpiResourceId());
-        dependencies.add(refcountedSpiRecord);
-        SpiRecord spiRecord = refcountedSpiRecord.getResource();
-
-        createOrUpdateTransform(c, resourceId, spiRecord, socketRecord);
-
-        // SA was created successfully, time to construct a record and lock it away
-        userRecord.mTransformRecords.put(
-                resourceId,
-                new RefcountedResource<TransformRecord>(
-                        new TransformRecord(resourceId, c, spiRecord, socketRecord),
-                        binder,
-                        dependencies.toArray(new RefcountedResource[dependencies.size()])));
-        return new IpSecTransformResponse(IpSecManager.Status.OK, resourceId);
+            if (!userRecord.mTransformQuotaTracker.isAvailable()) {
+                return new IpSecTransformResponse(IpSecManager.Status.RESOURCE_UNAVAILABLE);
+            }
+
+            EncapSocketRecord socketRecord = null;
+            if (c.getEncapType() != IpSecTransform.ENCAP_NONE) {
+                RefcountedResource<EncapSocketRecord> refcountedSocketRecord =
+                        userRecord.mEncapSocketRecords.getRefcountedResourceOrThrow(
+                                c.getEncapSocketResourceId());
+                dependencies.add(refcountedSocketRecord);
+                socketRecord = refcountedSocketRecord.getResource();
+            }
+
+            RefcountedResource<SpiRecord> refcountedSpiRecord =
+                    userRecord.mSpiRecords.getRefcountedResourceOrThrow(c.getSpiResourceId());
+            dependencies.add(refcountedSpiRecord);
+            SpiRecord spiRecord = refcountedSpiRecord.getResource();
+
+            createOrUpdateTransform(c, resourceId, spiRecord, socketRecord);
+
+            // SA was created successfully, time to construct a record and lock it away
+            userRecord.mTransformRecords.put(
+                    resourceId,
+                    new RefcountedResource<TransformRecord>(
+                            new TransformRecord(resourceId, c, spiRecord, socketRecord),
+                            binder,
+                            dependencies.toArray(new RefcountedResource[dependencies.size()])));
+            return new IpSecTransformResponse(IpSecManager.Status.OK, resourceId);
+        }
     }
 
     /**
@@ -1833,7 +1896,7 @@ public class IpSecService extends IIpSecService.Stub {
      * other types of transforms will throw an {@code UnsupportedOperationException}.
      */
     @Override
-    public synchronized void migrateTransform(
+    public void migrateTransform(
             int transformId,
             String newSourceAddress,
             String newDestinationAddress,
@@ -1845,9 +1908,11 @@ public class IpSecService extends IIpSecService.Stub {
         enforceMigrateFeature();
 
         UserRecord userRecord = mUserResourceTracker.getUserRecord(Binder.getCallingUid());
-        TransformRecord transformInfo =
-                userRecord.mTransformRecords.getResourceOrThrow(transformId);
-        transformInfo.startMigration(newSourceAddress, newDestinationAddress);
+        synchronized (userRecord) {
+            TransformRecord transformInfo =
+                    userRecord.mTransformRecords.getResourceOrThrow(transformId);
+            transformInfo.startMigration(newSourceAddress, newDestinationAddress);
+        }
     }
 
     /**
@@ -1857,9 +1922,11 @@ public class IpSecService extends IIpSecService.Stub {
      * other reasons.
      */
     @Override
-    public synchronized void deleteTransform(int resourceId) throws RemoteException {
+    public void deleteTransform(int resourceId) throws RemoteException {
         UserRecord userRecord = mUserResourceTracker.getUserRecord(Binder.getCallingUid());
-        releaseResource(userRecord.mTransformRecords, resourceId);
+        synchronized (userRecord) {
+            releaseResource(userRecord.mTransformRecords, resourceId);
+        }
     }
 
     /**
@@ -1867,13 +1934,16 @@ public class IpSecService extends IIpSecService.Stub {
      * association as a correspondent policy to the provided socket
      */
     @Override
-    public synchronized void applyTransportModeTransform(
+    public void applyTransportModeTransform(
             ParcelFileDescriptor socket, int direction, int resourceId) throws RemoteException {
         int callingUid = Binder.getCallingUid();
         UserRecord userRecord = mUserResourceTracker.getUserRecord(callingUid);
         checkDirection(direction);
         // Get transform record; if no transform is found, will throw IllegalArgumentException
-        TransformRecord info = userRecord.mTransformRecords.getResourceOrThrow(resourceId);
+        final TransformRecord info;
+        synchronized (userRecord) {
+            info = userRecord.mTransformRecords.getResourceOrThrow(resourceId);
+        }
 
         // TODO: make this a function.
         if (info.mPid != getCallingPid() || info.mUid != callingUid) {
@@ -1902,7 +1972,7 @@ public class IpSecService extends IIpSecService.Stub {
      * reserved for future improved input validation.
      */
     @Override
-    public synchronized void removeTransportModeTransforms(ParcelFileDescriptor socket)
+    public void removeTransportModeTransforms(ParcelFileDescriptor socket)
             throws RemoteException {
         mNetd.ipSecRemoveTransportModeTransform(socket);
     }
@@ -1915,7 +1985,7 @@ public class IpSecService extends IIpSecService.Stub {
      * source/destination addresses, and mark the migration as finished.
      */
     @Override
-    public synchronized void applyTunnelModeTransform(
+    public void applyTunnelModeTransform(
             int tunnelResourceId, int direction, int transformResourceId, String callingPackage)
             throws RemoteException {
         enforceTunnelFeatureAndPermissions(callingPackage);
@@ -1923,15 +1993,85 @@ public class IpSecService extends IIpSecService.Stub {
 
         int callingUid = Binder.getCallingUid();
         UserRecord userRecord = mUserResourceTracker.getUserRecord(callingUid);
+        synchronized (userRecord) {
+            checkTunnelModeTransformLocked(userRecord, tunnelResourceId, transformResourceId);
+            applyTunnelModeTransformLocked(
+                    userRecord, callingUid, tunnelResourceId, direction, transformResourceId);
+        }
+    }
+
+    /**
+     * Apply several active tunnel mode transforms to a TunnelInterface, then delete the transforms
+     * they replace, in a single call.
+     *
+     * <p>Every check made when applying a single transform is run on all the transforms before
+     * anything is applied, so that a batch referencing an unknown or invalid resource has no
+     * effect. A netd failure while applying cannot be rolled back. The transforms to delete are
+     * only deleted once all the new ones are applied, so that a rekey never leaves the tunnel
+     * without an SA.
+     *
+     * @param directions the direction in which each of the transforms is applied.
+     * @param transformResourceIds the transforms to apply, in order.
+     * @param transformResourceIdsToDelete the transforms to delete after all the others are
+     *        applied.
+     */
+    @Override
+    public void applyTunnelModeTransforms(int tunnelResourceId, int[] directions,
+            int[] transformResourceIds, int[] transformResourceIdsToDelete, String callingPackage)
+            throws RemoteException {
+        enforceTunnelFeatureAndPermissions(callingPackage);
+        Objects.requireNonNull(directions, "Null directions");
+        Objects.requireNonNull(transformResourceIds, "Null transformResourceIds");
+        Objects.requireNonNull(transformResourceIdsToDelete, "Null transformResourceIdsToDelete");
+        Preconditions.checkArgument(directions.length == transformResourceIds.length,
+                "Each transform must have exactly one direction");
+        for (int direction : directions) {
+            checkDirection(direction);
+        }
+
+        int callingUid = Binder.getCallingUid();
+        UserRecord userRecord = mUserResourceTracker.getUserRecord(callingUid);
+        synchronized (userRecord) {
+            final SparseBooleanArray toDelete = new SparseBooleanArray();
+            for (int transformResourceId : transformResourceIdsToDelete) {
+                userRecord.mTransformRecords.getResourceOrThrow(transformResourceId);
+                Preconditions.checkArgument(!toDelete.get(transformResourceId),
+                        "Transform to delete specified more than once");
+                toDelete.put(transformResourceId, true);
+            }
+            for (int transformResourceId : transformResourceIds) {
+                checkTunnelModeTransformLocked(userRecord, tunnelResourceId, transformResourceId);
+                Preconditions.checkArgument(!toDelete.get(transformResourceId),
+                        "Cannot apply and delete the same transform");
+            }
 
+            for (int i = 0; i < transformResourceIds.length; i++) {
+                applyTunnelModeTransformLocked(userRecord, callingUid, tunnelResourceId,
+                        directions[i], transformResourceIds[i]);
+            }
+            for (int transformResourceId : transformResourceIdsToDelete) {
+                releaseResource(userRecord.mTransformRecords, transformResourceId);
+            }
+        }
+    }
+
+    /**
+     * Makes all the checks on the resources that applying a tunnel mode transform relies on, so
+     * that applyTunnelModeTransformLocked only fails if netd does.
+     *
+     * @throws IllegalArgumentException if a resource is unknown or the transform is not a tunnel
+     *         mode transform.
+     */
+    @GuardedBy("userRecord")
+    private void checkTunnelModeTransformLocked(UserRecord userRecord, int tunnelResourceId,
+            int transformResourceId) {
         // Get transform record; if no transform is found, will throw IllegalArgumentException
         TransformRecord transformInfo =
                 userRecord.mTransformRecords.getResourceOrThrow(transformResourceId);
 
         // Get tunnelInterface record; if no such interface is found, will throw
         // IllegalArgumentException
-        TunnelInterfaceRecord tunnelInterfaceInfo =
-                userRecord.mTunnelInterfaceRecords.getResourceOrThrow(tunnelResourceId);
+        userRecord.mTunnelInterfaceRecords.getResourceOrThrow(tunnelResourceId);
 
         // Get config and check that to-be-applied transform has the correct mode
         IpSecConfig c = transformInfo.getConfig();
@@ -1939,6 +2079,31 @@ public class IpSecService extends IIpSecService.Stub {
                 c.getMode() == IpSecTransform.MODE_TUNNEL,
                 "Transform mode was not Tunnel mode; cannot be applied to a tunnel interface");
 
+        if (c.getEncapType() != IpSecTransform.ENCAP_NONE) {
+            userRecord.mEncapSocketRecords.getResourceOrThrow(c.getEncapSocketResourceId());
+        }
+
+        if (transformInfo.isMigrating()
+                && !mContext.getPackageManager()
+                        .hasSystemFeature(FEATURE_IPSEC_TUNNEL_MIGRATION)) {
+            Log.wtf(
+                    TAG,
+                    "Attempted to migrate a transform without"
+                            + " FEATURE_IPSEC_TUNNEL_MIGRATION");
+        }
+    }
+
+    /** Applies a transform that passed checkTunnelModeTransformLocked. */
+    @GuardedBy("userRecord")
+    private void applyTunnelModeTransformLocked(UserRecord userRecord, int callingUid,
+            int tunnelResourceId, int direction, int transformResourceId)
+            throws RemoteException {
+        TransformRecord transformInfo =
+                userRecord.mTransformRecords.getResourceOrThrow(transformResourceId);
+        TunnelInterfaceRecord tunnelInterfaceInfo =
+                userRecord.mTunnelInterfaceRecords.getResourceOrThrow(tunnelResourceId);
+        IpSecConfig c = transformInfo.getConfig();
+
         EncapSocketRecord socketRecord = null;
         if (c.getEncapType() != IpSecTransform.ENCAP_NONE) {
             socketRecord =
@@ -1998,14 +2163,6 @@ public class IpSecService extends IIpSecService.Stub {
             createOrUpdateTransform(c, transformResourceId, spiRecord, socketRecord);
 
             if (transformInfo.isMigrating()) {
-                if (!mContext.getPackageManager()
-                        .hasSystemFeature(FEATURE_IPSEC_TUNNEL_MIGRATION)) {
-                    Log.wtf(
-                            TAG,
-                            "Attempted to migrate a transform without"
-                                    + " FEATURE_IPSEC_TUNNEL_MIGRATION");
-                }
-
                 for (int selAddrFamily : ADDRESS_FAMILIES) {
                     final IpSecMigrateInfoParcel migrateInfo =
                             new IpSecMigrateInfoParcel(
@@ -2032,7 +2189,7 @@ public class IpSecService extends IIpSecService.Stub {
     }
 
     @Override
-    protected synchronized void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
         mContext.enforceCallingOrSelfPermission(DUMP, TAG);
 
         pw.println("IpSecService dump:");
@@ -58,10 +58,6 @@ public class MdnsConfigs {
         return false;
     }
 
-    public static long sleepTimeForSocketThreadMs() {
-        return 20_000L;
-    }
-
     public static boolean checkMulticastResponse() {
         return false;
     }
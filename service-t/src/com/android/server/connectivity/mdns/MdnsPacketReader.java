@@ -18,6 +18,7 @@ package com.android.server.connectivity.mdns;
 
 import android.annotation.Nullable;
 import android.util.SparseArray;
+import android.util.SparseIntArray;
 
 import com.android.server.connectivity.mdns.MdnsServiceInfo.TextEntry;
 
@@ -30,9 +31,29 @@ import java.util.Locale;
 
 /** Simple decoder for mDNS packets. */
 public class MdnsPacketReader {
+    /**
+     * Labels that appear in most mDNS packets. They are returned as shared instances instead of
+     * allocating a new string every time they are read.
+     */
+    private static final String[] COMMON_LABELS = {
+            "local", "_tcp", "_udp", "_services", "_dns-sd", "_sub", "arpa", "in-addr", "ip6"
+    };
+    private static final byte[][] COMMON_LABEL_BYTES = new byte[COMMON_LABELS.length][];
+
+    static {
+        for (int i = 0; i < COMMON_LABELS.length; i++) {
+            COMMON_LABEL_BYTES[i] = COMMON_LABELS[i].getBytes(MdnsConstants.getUtf8Charset());
+        }
+    }
+
     private final byte[] buf;
     private final int count;
-    private final SparseArray<LabelEntry> labelDictionary;
+    // Labels read so far, keyed by their offset in the packet, and the offset of the label that
+    // follows each of them (0 if none), to resolve label pointers.
+    private final SparseArray<String> labelDictionary;
+    private final SparseIntArray labelNextOffsets;
+    // Scratch list reused across calls to readLabels.
+    private final List<String> labelsBuffer = new ArrayList<>(5);
     private int pos;
     private int limit;
 
@@ -48,6 +69,7 @@ public class MdnsPacketReader {
         pos = 0;
         limit = -1;
         labelDictionary = new SparseArray<>(16);
+        labelNextOffsets = new SparseIntArray(16);
     }
 
     /**
@@ -135,8 +157,10 @@ public class MdnsPacketReader {
      * @throws IOException  If invalid data is read.
      */
     public String[] readLabels() throws IOException {
-        List<String> result = new ArrayList<>(5);
-        LabelEntry previousEntry = null;
+        final List<String> result = labelsBuffer;
+        result.clear();
+        int previousOffset = -1;
+        final int nameOffset = pos;
 
         while (getRemaining() > 0) {
             byte nextByte = peekByte();
@@ -154,34 +178,40 @@ public class MdnsPacketReader {
                 // A pointer terminates a sequence of labels. Store the pointer value in the
                 // previous label entry.
                 int labelOffset = ((readUInt8() & 0x3F) << 8) | (readUInt8() & 0xFF);
-                if (previousEntry != null) {
-                    previousEntry.nextOffset = labelOffset;
+                // Only allow pointers to names that start before this one. Each pointer followed
+                // then moves to an earlier name, so a malformed packet cannot make the chain loop.
+                if (labelOffset >= nameOffset) {
+                    throw new IOException(
+                            String.format(Locale.ROOT, "Invalid label pointer: %04X",
+                                    labelOffset));
+                }
+                if (previousOffset >= 0) {
+                    labelNextOffsets.put(previousOffset, labelOffset);
                 }
 
                 // Follow the chain of labels starting at this pointer, adding all of them onto the
                 // result.
                 while (labelOffset != 0) {
-                    LabelEntry entry = labelDictionary.get(labelOffset);
-                    if (entry == null) {
+                    final String label = labelDictionary.get(labelOffset);
+                    if (label == null) {
                         throw new IOException(
                                 String.format(Locale.ROOT, "Invalid label pointer: %04X",
                                         labelOffset));
                     }
-                    result.add(entry.label);
-                    labelOffset = entry.nextOffset;
+                    result.add(label);
+                    labelOffset = labelNextOffsets.get(labelOffset);
                 }
                 break;
             } else {
-                // It's an ordinary label. Chain it onto the previous label entry (if any), and add
-                // it onto the result.
-                String val = readString();
-                LabelEntry newEntry = new LabelEntry(val);
-                labelDictionary.put(currentOffset, newEntry);
-
-                if (previousEntry != null) {
-                    previousEntry.nextOffset = currentOffset;
+                // It's an ordinary label. Chain it onto the previous label (if any), and add it
+                // onto the result.
+                String val = readLabel();
+                labelDictionary.put(currentOffset, val);
+
+                if (previousOffset >= 0) {
+                    labelNextOffsets.put(previousOffset, currentOffset);
                 }
-                previousEntry = newEntry;
+                previousOffset = currentOffset;
                 result.add(val);
             }
         }
@@ -203,6 +233,33 @@ public class MdnsPacketReader {
         return val;
     }
 
+    /**
+     * Reads a length-prefixed label, returning a shared instance for common labels.
+     *
+     * @throws EOFException If there are not enough bytes remaining in the packet to satisfy the
+     *                      read.
+     */
+    private String readLabel() throws EOFException {
+        final int len = peekByte() & 0xFF;
+        checkRemaining(len + 1);
+        for (int i = 0; i < COMMON_LABEL_BYTES.length; i++) {
+            if (labelEquals(COMMON_LABEL_BYTES[i], pos + 1, len)) {
+                pos += len + 1;
+                return COMMON_LABELS[i];
+            }
+        }
+        return readString();
+    }
+
+    // Checks whether the |len| bytes at |offset| are exactly |label|.
+    private boolean labelEquals(byte[] label, int offset, int len) {
+        if (label.length != len) return false;
+        for (int i = 0; i < len; i++) {
+            if (buf[offset + i] != label[i]) return false;
+        }
+        return true;
+    }
+
     @Nullable
     public TextEntry readTextEntry() throws EOFException {
         int len = readUInt8();
@@ -260,13 +317,4 @@ public class MdnsPacketReader {
             throw new EOFException();
         }
     }
-
-    private static class LabelEntry {
-        public final String label;
-        public int nextOffset = 0;
-
-        public LabelEntry(String label) {
-            this.label = label;
-        }
-    }
 }
\ No newline at end of file
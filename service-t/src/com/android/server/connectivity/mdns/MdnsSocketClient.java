@@ -26,6 +26,7 @@ import android.net.wifi.WifiManager.MulticastLock;
 import android.os.SystemClock;
 import android.text.format.DateUtils;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.server.connectivity.mdns.util.MdnsLogger;
 
@@ -58,8 +59,6 @@ public class MdnsSocketClient implements MdnsSocketClientBase {
     private static final String MULTICAST_TYPE = "multicast";
     private static final String UNICAST_TYPE = "unicast";
 
-    private static final long SLEEP_TIME_FOR_SOCKET_THREAD_MS =
-            MdnsConfigs.sleepTimeForSocketThreadMs();
     // A value of 0 leads to an infinite wait.
     private static final long THREAD_JOIN_TIMEOUT_MS = DateUtils.SECOND_IN_MILLIS;
     private static final int RECEIVER_BUFFER_SIZE = 2048;
@@ -80,6 +79,10 @@ public class MdnsSocketClient implements MdnsSocketClientBase {
             MdnsConfigs.allowNetworkInterfaceIndexPropagation();
     private final Object socketLock = new Object();
     private final Object timerObject = new Object();
+    // Signals the send thread that packets were queued.
+    private final Object sendSignal = new Object();
+    @GuardedBy("sendSignal")
+    private boolean hasPendingPackets;
     // If multicast response was received in the current session. The value is reset in the
     // beginning of each session.
     @VisibleForTesting
@@ -287,12 +290,13 @@ public class MdnsSocketClient implements MdnsSocketClientBase {
 
     private void triggerSendThread() {
         LOGGER.log("Trigger send thread.");
-        Thread sendThread = this.sendThread;
-        if (sendThread != null) {
-            sendThread.interrupt();
-        } else {
+        if (sendThread == null) {
             LOGGER.w("Socket thread is null");
         }
+        synchronized (sendSignal) {
+            hasPendingPackets = true;
+            sendSignal.notifyAll();
+        }
     }
 
     private void waitForReceiverThreadsToStop() {
@@ -339,7 +343,6 @@ public class MdnsSocketClient implements MdnsSocketClientBase {
     private void sendThreadMain() {
         List<DatagramPacket> multicastPacketsToSend = new ArrayList<>();
         List<DatagramPacket> unicastPacketsToSend = new ArrayList<>();
-        boolean shouldThreadSleep;
         try {
             while (!shouldStopSocketLoop) {
                 try {
@@ -368,16 +371,13 @@ public class MdnsSocketClient implements MdnsSocketClientBase {
                         sendPackets(multicastPacketsToSend, multicastSocket);
                     }
 
-                    // Sleep ONLY if no more packets have been added to the queue, while packets
-                    // were being sent.
-                    synchronized (multicastPacketQueue) {
-                        synchronized (unicastPacketQueue) {
-                            shouldThreadSleep =
-                                    multicastPacketQueue.isEmpty() && unicastPacketQueue.isEmpty();
+                    // Wait until more packets are queued, unless some were added while packets
+                    // were being sent. Stopping the loop interrupts the wait.
+                    synchronized (sendSignal) {
+                        while (!hasPendingPackets && !shouldStopSocketLoop) {
+                            sendSignal.wait();
                         }
-                    }
-                    if (shouldThreadSleep) {
-                        Thread.sleep(SLEEP_TIME_FOR_SOCKET_THREAD_MS);
+                        hasPendingPackets = false;
                     }
                 } catch (InterruptedException e) {
                     // Don't log the interruption as it's expected.
@@ -22,6 +22,7 @@ import static android.net.TrafficStats.MB_IN_BYTES;
 import static android.text.format.DateUtils.YEAR_IN_MILLIS;
 
 import android.annotation.NonNull;
+import android.annotation.Nullable;
 import android.net.NetworkIdentitySet;
 import android.net.NetworkStats;
 import android.net.NetworkStats.NonMonotonicObserver;
@@ -32,6 +33,7 @@ import android.net.NetworkTemplate;
 import android.net.TrafficStats;
 import android.os.Binder;
 import android.os.DropBoxManager;
+import android.os.SystemClock;
 import android.service.NetworkStatsRecorderProto;
 import android.util.IndentingPrintWriter;
 import android.util.Log;
@@ -52,6 +54,8 @@ import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 /**
  * Logic to record deltas between periodic {@link NetworkStats} snapshots into
@@ -59,6 +63,13 @@ import java.util.Objects;
  * Keeps pending changes in memory until they pass a specific threshold, in
  * bytes. Uses {@link FileRotator} for persistence logic if present.
  * <p>
+ * When given a persist {@link Executor}, pending changes are handed off to it
+ * and written without holding the caller's lock; any later operation that
+ * touches the {@link FileRotator} first waits for that write to complete.
+ * Callers loading history should wait for {@link #getWriteBlockingLoadLocked()}
+ * before taking their lock, so that the load does not wait for the write while
+ * holding it.
+ * <p>
  * Not inherently thread safe.
  */
 public class NetworkStatsRecorder {
@@ -83,13 +94,25 @@ public class NetworkStatsRecorder {
     private long mPersistThresholdBytes = 2 * MB_IN_BYTES;
     private NetworkStats mLastSnapshot;
 
-    private final NetworkStatsCollection mPending;
+    private NetworkStatsCollection mPending;
     private final NetworkStatsCollection mSinceBoot;
 
-    private final CombiningRewriter mPendingRewriter;
-
     private WeakReference<NetworkStatsCollection> mComplete;
 
+    /** Upper bounds, in milliseconds, of the write latency histogram buckets. */
+    private static final long[] WRITE_LATENCY_BUCKETS_MS = { 10, 50, 100, 250, 500, 1000 };
+
+    private Executor mPersistExecutor;
+    /**
+     * Write handed off to {@link #mPersistExecutor} and not yet awaited. Completes with
+     * {@code null} on success, or with the collection that could not be written.
+     */
+    private CompletableFuture<NetworkStatsCollection> mPendingWrite;
+
+    // Updated from the persist executor, so guarded by the array itself. The last bucket
+    // counts writes slower than the largest bound.
+    private final long[] mWriteLatencyCounts = new long[WRITE_LATENCY_BUCKETS_MS.length + 1];
+
     /**
      * Non-persisted recorder, with only one bucket. Used by {@link NetworkStatsObservers}.
      */
@@ -107,8 +130,6 @@ public class NetworkStatsRecorder {
 
         mPending = null;
         mSinceBoot = new NetworkStatsCollection(mBucketDuration);
-
-        mPendingRewriter = null;
     }
 
     /**
@@ -128,8 +149,14 @@ public class NetworkStatsRecorder {
 
         mPending = new NetworkStatsCollection(bucketDuration);
         mSinceBoot = new NetworkStatsCollection(bucketDuration);
+    }
 
-        mPendingRewriter = new CombiningRewriter(mPending);
+    /**
+     * Set the {@link Executor} used to write pending deltas to disk, or {@code null} to
+     * write them synchronously on the calling thread.
+     */
+    public void setPersistExecutor(Executor executor) {
+        mPersistExecutor = executor;
     }
 
     public void setPersistThreshold(long thresholdBytes) {
@@ -139,6 +166,7 @@ public class NetworkStatsRecorder {
     }
 
     public void resetLocked() {
+        awaitPendingWriteLocked();
         mLastSnapshot = null;
         if (mPending != null) {
             mPending.reset();
@@ -185,17 +213,27 @@ public class NetworkStatsRecorder {
         return res;
     }
 
+    /**
+     * Load the history needed to answer queries between {@code start} and {@code end}. Returns
+     * the complete history if it is cached, and otherwise only reads the files of the
+     * {@link FileRotator} that overlap the window. The result is not cached.
+     */
     public NetworkStatsCollection getOrLoadPartialLocked(long start, long end) {
         Objects.requireNonNull(mRotator, "missing FileRotator");
         NetworkStatsCollection res = mComplete != null ? mComplete.get() : null;
         if (res == null) {
-            res = loadLocked(start, end);
+            // A bucket starting before the window may have been written to a file that ends
+            // before the window, so also read the files overlapping the previous bucket.
+            final long loadStart = start < Long.MIN_VALUE + mBucketDuration
+                    ? Long.MIN_VALUE : start - mBucketDuration;
+            res = loadLocked(loadStart, end);
         }
         return res;
     }
 
     private NetworkStatsCollection loadLocked(long start, long end) {
         if (LOGD) Log.d(TAG, "loadLocked() reading from disk for " + mCookie);
+        awaitPendingWriteLocked();
         final NetworkStatsCollection res = new NetworkStatsCollection(mBucketDuration);
         try {
             mRotator.readMatching(res, start, end);
@@ -235,16 +273,18 @@ public class NetworkStatsRecorder {
         final long end = currentTimeMillis;
         final long start = end - delta.getElapsedRealtime();
 
+        // Rows are only copied into an Entry when they are recorded.
+        final NetworkStats.RowCursor row = new NetworkStats.RowCursor(delta);
         NetworkStats.Entry entry = null;
-        for (int i = 0; i < delta.size(); i++) {
-            entry = delta.getValues(i, entry);
-
+        while (row.moveToNext()) {
             // As a last-ditch check, report any negative values and
             // clamp them so recording below doesn't croak.
-            if (entry.isNegative()) {
+            final boolean negative = row.isNegative();
+            if (negative) {
                 if (mObserver != null) {
-                    mObserver.foundNonMonotonic(delta, i, mCookie);
+                    mObserver.foundNonMonotonic(delta, row.getIndex(), mCookie);
                 }
+                entry = row.getValues(entry);
                 entry.rxBytes = Math.max(entry.rxBytes, 0);
                 entry.rxPackets = Math.max(entry.rxPackets, 0);
                 entry.txBytes = Math.max(entry.txBytes, 0);
@@ -252,17 +292,19 @@ public class NetworkStatsRecorder {
                 entry.operations = Math.max(entry.operations, 0);
             }
 
-            final NetworkIdentitySet ident = ifaceIdent.get(entry.iface);
+            final NetworkIdentitySet ident = ifaceIdent.get(row.getIface());
             if (ident == null) {
-                unknownIfaces.add(entry.iface);
+                unknownIfaces.add(row.getIface());
                 continue;
             }
 
             // skip when no delta occurred
-            if (entry.isEmpty()) continue;
+            if (negative ? entry.isEmpty() : row.isEmpty()) continue;
 
             // only record tag data when requested
-            if ((entry.tag == TAG_NONE) != mOnlyTags) {
+            if ((row.getTag() == TAG_NONE) != mOnlyTags) {
+                if (!negative) entry = row.getValues(entry);
+
                 if (mPending != null) {
                     mPending.recordData(ident, entry.uid, entry.set, entry.tag, start, end, entry);
                 }
@@ -295,30 +337,121 @@ public class NetworkStatsRecorder {
         final long pendingBytes = mPending.getTotalBytes();
         if (pendingBytes >= mPersistThresholdBytes) {
             forcePersistLocked(currentTimeMillis);
-        } else {
+        } else if (mPendingWrite == null || mPendingWrite.isDone()) {
+            // Rotation is cheap, so don't block on an in-flight write just to check it;
+            // the write itself rotates when done.
+            awaitPendingWriteLocked();
             mRotator.maybeRotate(currentTimeMillis);
         }
     }
 
     /**
-     * Force persisting any pending deltas.
+     * Force persisting any pending deltas. With a persist {@link Executor}, this only
+     * waits for the previous write of this recorder and hands the pending deltas off.
      */
     public void forcePersistLocked(long currentTimeMillis) {
         Objects.requireNonNull(mRotator, "missing FileRotator");
-        if (mPending.isDirty()) {
-            if (LOGD) Log.d(TAG, "forcePersistLocked() writing for " + mCookie);
-            try {
-                mRotator.rewriteActive(mPendingRewriter, currentTimeMillis);
-                mRotator.maybeRotate(currentTimeMillis);
+        awaitPendingWriteLocked();
+        if (!mPending.isDirty()) return;
+
+        if (LOGD) Log.d(TAG, "forcePersistLocked() writing for " + mCookie);
+        if (mPersistExecutor == null) {
+            if (writePending(mPending, currentTimeMillis)) {
                 mPending.reset();
-            } catch (IOException e) {
-                Log.wtf(TAG, "problem persisting pending stats", e);
-                recoverAndDeleteData();
-            } catch (OutOfMemoryError e) {
-                Log.wtf(TAG, "problem persisting pending stats", e);
-                recoverAndDeleteData();
             }
+            return;
         }
+
+        // Swap in an empty collection so that new deltas can be recorded while the
+        // snapshot is written.
+        final NetworkStatsCollection snapshot = mPending;
+        mPending = new NetworkStatsCollection(mBucketDuration);
+        mPendingWrite = CompletableFuture.supplyAsync(
+                () -> writePending(snapshot, currentTimeMillis) ? null : snapshot,
+                mPersistExecutor);
+    }
+
+    /**
+     * Returns the write in flight that loading history from disk would have to wait for, or
+     * {@code null} if there is none or if the complete history is cached. Waiting for it
+     * without holding the caller's lock means that a following load only waits under the lock
+     * for a write handed off in between, which is rare as writes are spaced by the persist
+     * threshold.
+     */
+    @Nullable
+    public CompletableFuture<?> getWriteBlockingLoadLocked() {
+        if (mPendingWrite == null || mPendingWrite.isDone()) return null;
+        if (mComplete != null && mComplete.get() != null) return null;
+        return mPendingWrite;
+    }
+
+    /**
+     * Wait for any write handed off by {@link #forcePersistLocked(long)} to complete. Deltas
+     * that could not be written are merged back into the pending collection, as they would
+     * have been kept pending by a synchronous write.
+     */
+    public void awaitPendingWriteLocked() {
+        if (mPendingWrite == null) return;
+        final NetworkStatsCollection failed = mPendingWrite.join();
+        mPendingWrite = null;
+        if (failed != null) {
+            failed.recordCollection(mPending);
+            mPending = failed;
+        }
+    }
+
+    /**
+     * Combine the given deltas with the active file and rotate if needed.
+     *
+     * @return whether the deltas were written.
+     */
+    private boolean writePending(NetworkStatsCollection pending, long currentTimeMillis) {
+        final long startMillis = SystemClock.elapsedRealtime();
+        try {
+            mRotator.rewriteActive(new CombiningRewriter(pending), currentTimeMillis);
+            mRotator.maybeRotate(currentTimeMillis);
+            return true;
+        } catch (IOException e) {
+            Log.wtf(TAG, "problem persisting pending stats", e);
+            recoverAndDeleteData();
+        } catch (OutOfMemoryError e) {
+            Log.wtf(TAG, "problem persisting pending stats", e);
+            recoverAndDeleteData();
+        } finally {
+            recordWriteLatency(SystemClock.elapsedRealtime() - startMillis);
+        }
+        return false;
+    }
+
+    private void recordWriteLatency(long latencyMillis) {
+        int bucket = 0;
+        while (bucket < WRITE_LATENCY_BUCKETS_MS.length
+                && latencyMillis > WRITE_LATENCY_BUCKETS_MS[bucket]) {
+            bucket++;
+        }
+        synchronized (mWriteLatencyCounts) {
+            mWriteLatencyCounts[bucket]++;
+        }
+    }
+
+    /**
+     * Get the number of writes in each latency bucket, the bounds of which are given by
+     * {@link #getWriteLatencyBucketsMillis()}.
+     */
+    @NonNull
+    public long[] getWriteLatencyCounts() {
+        synchronized (mWriteLatencyCounts) {
+            return mWriteLatencyCounts.clone();
+        }
+    }
+
+    /**
+     * Get the upper bounds of the write latency buckets, in milliseconds. There is one more
+     * bucket than bounds, counting the writes slower than the largest bound.
+     */
+    @NonNull
+    public static long[] getWriteLatencyBucketsMillis() {
+        return WRITE_LATENCY_BUCKETS_MS.clone();
     }
 
     /**
@@ -326,6 +459,7 @@ public class NetworkStatsRecorder {
      * to {@link TrafficStats#UID_REMOVED}.
      */
     public void removeUidsLocked(int[] uids) {
+        awaitPendingWriteLocked();
         if (mRotator != null) {
             try {
                 // Rewrite all persisted data to migrate UID stats
@@ -433,6 +567,7 @@ public class NetworkStatsRecorder {
      */
     public void importCollectionLocked(@NonNull NetworkStatsCollection collection)
             throws IOException {
+        awaitPendingWriteLocked();
         if (mRotator != null) {
             mRotator.rewriteSingle(new CombiningRewriter(collection), collection.getStartMillis(),
                     collection.getEndMillis());
@@ -483,6 +618,7 @@ public class NetworkStatsRecorder {
      * Remove persisted data which contains or is before the cutoff timestamp.
      */
     public void removeDataBefore(long cutoffMillis) throws IOException {
+        awaitPendingWriteLocked();
         if (mRotator != null) {
             try {
                 mRotator.rewriteAll(new RemoveDataBeforeRewriter(
@@ -513,11 +649,23 @@ public class NetworkStatsRecorder {
     public void dumpLocked(IndentingPrintWriter pw, boolean fullHistory) {
         if (mPending != null) {
             pw.print("Pending bytes: "); pw.println(mPending.getTotalBytes());
+            pw.print("Write latency:");
+            final long[] counts = getWriteLatencyCounts();
+            for (int i = 0; i < counts.length; i++) {
+                pw.print(i < WRITE_LATENCY_BUCKETS_MS.length
+                        ? " <=" + WRITE_LATENCY_BUCKETS_MS[i] + "ms="
+                        : " >" + WRITE_LATENCY_BUCKETS_MS[i - 1] + "ms=");
+                pw.print(counts[i]);
+            }
+            pw.println();
         }
         if (fullHistory) {
+            final NetworkStatsCollection complete = getOrLoadCompleteLocked();
+            pw.print("Complete history heap usage: "); complete.dumpHeapUsage(pw);
             pw.println("Complete history:");
-            getOrLoadCompleteLocked().dump(pw);
+            complete.dump(pw);
         } else {
+            pw.print("History since boot heap usage: "); mSinceBoot.dumpHeapUsage(pw);
             pw.println("History since boot:");
             mSinceBoot.dump(pw);
         }
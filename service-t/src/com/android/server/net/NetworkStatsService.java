@@ -194,9 +194,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -447,6 +451,12 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
     @NonNull
     private final Dependencies mDeps;
 
+    /** Number of recorders persisted in {@link #performPollLocked(int)}. */
+    private static final int PERSIST_THREAD_COUNT = 3;
+
+    @Nullable
+    private final Executor mPersistExecutor;
+
     @NonNull
     private final NetworkStatsSubscriptionsMonitor mNetworkStatsSubscriptionsMonitor;
 
@@ -588,6 +598,7 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         mStatsObservers = Objects.requireNonNull(statsObservers, "missing NetworkStatsObservers");
         mDeps = Objects.requireNonNull(deps, "missing Dependencies");
         mStatsDir = mDeps.getOrCreateStatsDir();
+        mPersistExecutor = mDeps.makePersistExecutor();
         if (!mStatsDir.exists()) {
             throw new IllegalStateException("Persist data directory does not exist: " + mStatsDir);
         }
@@ -711,6 +722,21 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             return new HandlerThread(TAG);
         }
 
+        /**
+         * Create the {@link Executor} used by the recorders to write their pending stats to
+         * disk, or return {@code null} to write them synchronously while holding the lock.
+         * Each recorder has at most one write in flight, so one thread per recorder is enough.
+         */
+        @Nullable
+        public Executor makePersistExecutor() {
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                    PERSIST_THREAD_COUNT, PERSIST_THREAD_COUNT, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(),
+                    r -> new Thread(r, TAG + "-persist"));
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+
         /**
          * Create a {@link NetworkStatsSubscriptionsMonitor}, can be used to monitor RAT change
          * event in NetworkStatsService.
@@ -837,6 +863,37 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                 IBpfMap<CookieTagMapKey, CookieTagMapValue> cookieTagMap, Handler handler) {
             return new SkDestroyListener(cookieTagMap, handler, new SharedLog(TAG));
         }
+
+        /** Gets one counter of the total of all interfaces, see {@link TrafficStats}. */
+        public long nativeGetTotalStat(int type) {
+            return NetworkStatsService.nativeGetTotalStat(type);
+        }
+
+        /** Gets one counter of an interface, see {@link TrafficStats}. */
+        public long nativeGetIfaceStat(String iface, int type) {
+            return NetworkStatsService.nativeGetIfaceStat(iface, type);
+        }
+
+        /** Gets one counter of a uid, see {@link TrafficStats}. */
+        public long nativeGetUidStat(int uid, int type) {
+            return NetworkStatsService.nativeGetUidStat(uid, type);
+        }
+
+        /**
+         * Fills |out| with the rx bytes, rx packets, tx bytes and tx packets of an interface, or
+         * of all interfaces if |iface| is null. Returns false if there are no stats.
+         */
+        public boolean nativeGetIfaceStats(@Nullable String iface, @NonNull long[] out) {
+            return NetworkStatsService.nativeGetIfaceStats(iface, out);
+        }
+
+        /**
+         * Fills |out| with the rx bytes, rx packets, tx bytes and tx packets of a uid. Returns
+         * false if there are no stats.
+         */
+        public boolean nativeGetUidStats(int uid, @NonNull long[] out) {
+            return NetworkStatsService.nativeGetUidStats(uid, out);
+        }
     }
 
     /**
@@ -937,10 +994,12 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             File baseDir, boolean wipeOnError) {
         final DropBoxManager dropBox = (DropBoxManager) mContext.getSystemService(
                 Context.DROPBOX_SERVICE);
-        return new NetworkStatsRecorder(new FileRotator(
+        final NetworkStatsRecorder recorder = new NetworkStatsRecorder(new FileRotator(
                 baseDir, prefix, config.rotateAgeMillis, config.deleteAgeMillis),
                 mNonMonotonicObserver, dropBox, prefix, config.bucketDuration, includeTags,
                 wipeOnError);
+        recorder.setPersistExecutor(mPersistExecutor);
+        return recorder;
     }
 
     @GuardedBy("mStatsLock")
@@ -968,10 +1027,31 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         mXtRecorder.forcePersistLocked(currentTime);
         mUidRecorder.forcePersistLocked(currentTime);
         mUidTagRecorder.forcePersistLocked(currentTime);
+        mXtRecorder.awaitPendingWriteLocked();
+        mUidRecorder.awaitPendingWriteLocked();
+        mUidTagRecorder.awaitPendingWriteLocked();
 
         mSystemReady = false;
     }
 
+    /**
+     * Wait for the write in flight on the given recorder, if loading its history would have to
+     * wait for it. This is called before taking {@link #mStatsLock} to load history, so that
+     * the load does not block all other stats callers for the length of a write.
+     */
+    private void awaitWriteBlockingLoad(@NonNull NetworkStatsRecorder recorder) {
+        final CompletableFuture<?> write;
+        synchronized (mStatsLock) {
+            write = recorder.getWriteBlockingLoadLocked();
+        }
+        if (write == null) return;
+        try {
+            write.join();
+        } catch (CompletionException e) {
+            // Reported when the recorder awaits the write under the lock.
+        }
+    }
+
     private static class MigrationInfo {
         public final NetworkStatsRecorder recorder;
         public NetworkStatsCollection collection;
@@ -1447,7 +1527,39 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             private NetworkStatsCollection mUidComplete;
             private NetworkStatsCollection mUidTagComplete;
 
+            // History loaded by getSummaryForAllUid() for the window it was last asked about,
+            // while the complete history is not loaded. Only the rotated files overlapping
+            // that window are read, so that a first summary query for a recent window does
+            // not parse all history on disk.
+            @GuardedBy("mStatsLock")
+            private NetworkStatsCollection mUidWindow;
+            @GuardedBy("mStatsLock")
+            private NetworkStatsCollection mUidTagWindow;
+            @GuardedBy("mStatsLock")
+            private long mUidWindowStart;
+            @GuardedBy("mStatsLock")
+            private long mUidWindowEnd;
+            @GuardedBy("mStatsLock")
+            private long mUidTagWindowStart;
+            @GuardedBy("mStatsLock")
+            private long mUidTagWindowEnd;
+
+            // Snapshot of the summary being paged through by getSummaryForAllUidPage(), and the
+            // arguments it was computed for. It holds every row of the summary until the last
+            // page is returned or the session is closed.
+            @GuardedBy("mStatsLock")
+            private NetworkStats mSummaryPageSource;
+            @GuardedBy("mStatsLock")
+            private NetworkTemplate mSummaryPageTemplate;
+            @GuardedBy("mStatsLock")
+            private long mSummaryPageStart;
+            @GuardedBy("mStatsLock")
+            private long mSummaryPageEnd;
+            @GuardedBy("mStatsLock")
+            private boolean mSummaryPageIncludeTags;
+
             private NetworkStatsCollection getUidComplete() {
+                if (mUidComplete == null) awaitWriteBlockingLoad(mUidRecorder);
                 synchronized (mStatsLock) {
                     if (mUidComplete == null) {
                         mUidComplete = mUidRecorder.getOrLoadCompleteLocked();
@@ -1457,6 +1569,7 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             }
 
             private NetworkStatsCollection getUidTagComplete() {
+                if (mUidTagComplete == null) awaitWriteBlockingLoad(mUidTagRecorder);
                 synchronized (mStatsLock) {
                     if (mUidTagComplete == null) {
                         mUidTagComplete = mUidTagRecorder.getOrLoadCompleteLocked();
@@ -1465,6 +1578,33 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                 }
             }
 
+            private NetworkStatsCollection getUidForWindow(long start, long end) {
+                awaitWriteBlockingLoad(mUidRecorder);
+                synchronized (mStatsLock) {
+                    if (mUidComplete != null) return mUidComplete;
+                    if (mUidWindow == null || start < mUidWindowStart || end > mUidWindowEnd) {
+                        mUidWindow = mUidRecorder.getOrLoadPartialLocked(start, end);
+                        mUidWindowStart = start;
+                        mUidWindowEnd = end;
+                    }
+                    return mUidWindow;
+                }
+            }
+
+            private NetworkStatsCollection getUidTagForWindow(long start, long end) {
+                awaitWriteBlockingLoad(mUidTagRecorder);
+                synchronized (mStatsLock) {
+                    if (mUidTagComplete != null) return mUidTagComplete;
+                    if (mUidTagWindow == null || start < mUidTagWindowStart
+                            || end > mUidTagWindowEnd) {
+                        mUidTagWindow = mUidTagRecorder.getOrLoadPartialLocked(start, end);
+                        mUidTagWindowStart = start;
+                        mUidTagWindowEnd = end;
+                    }
+                    return mUidTagWindow;
+                }
+            }
+
             @Override
             public int[] getRelevantUids() {
                 return getUidComplete().getRelevantUids(mAccessLevel);
@@ -1509,10 +1649,10 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                     NetworkTemplate template, long start, long end, boolean includeTags) {
                 enforceTemplatePermissions(template, callingPackage);
                 try {
-                    final NetworkStats stats = getUidComplete()
+                    final NetworkStats stats = getUidForWindow(start, end)
                             .getSummary(template, start, end, mAccessLevel, mCallingUid);
                     if (includeTags) {
-                        final NetworkStats tagStats = getUidTagComplete()
+                        final NetworkStats tagStats = getUidTagForWindow(start, end)
                                 .getSummary(template, start, end, mAccessLevel, mCallingUid);
                         stats.combineAllValues(tagStats);
                     }
@@ -1522,6 +1662,62 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                 }
             }
 
+            @Override
+            public NetworkStats getSummaryForAllUidPage(NetworkTemplate template, long start,
+                    long end, boolean includeTags, int offset, int maxRows) {
+                if (offset < 0 || maxRows <= 0) {
+                    throw new IllegalArgumentException("Invalid page offset " + offset
+                            + " or size " + maxRows);
+                }
+                final NetworkStats source;
+                if (offset == 0) {
+                    // The first page pins a new snapshot, so that all the pages of an
+                    // enumeration come from the same summary. The summary is computed outside
+                    // of the lock, as getSummaryForAllUid() does.
+                    source = getSummaryForAllUid(template, start, end, includeTags);
+                    synchronized (mStatsLock) {
+                        mSummaryPageSource = source;
+                        mSummaryPageTemplate = template;
+                        mSummaryPageStart = start;
+                        mSummaryPageEnd = end;
+                        mSummaryPageIncludeTags = includeTags;
+                    }
+                } else {
+                    enforceTemplatePermissions(template, callingPackage);
+                    synchronized (mStatsLock) {
+                        if (mSummaryPageSource == null
+                                || !template.equals(mSummaryPageTemplate)
+                                || start != mSummaryPageStart || end != mSummaryPageEnd
+                                || includeTags != mSummaryPageIncludeTags) {
+                            throw new IllegalStateException(
+                                    "No summary enumeration in progress for page at " + offset);
+                        }
+                        source = mSummaryPageSource;
+                    }
+                }
+
+                // The pinned snapshot is never modified, so it can be read without the lock.
+                final int pageEnd = (int) Math.min((long) offset + maxRows, source.size());
+                final NetworkStats page = new NetworkStats(source.getElapsedRealtime(),
+                        Math.max(pageEnd - offset, 0));
+                NetworkStats.Entry entry = null;
+                for (int i = offset; i < pageEnd; i++) {
+                    entry = source.getValues(i, entry);
+                    page.insertEntry(entry);
+                }
+                if (page.size() < maxRows) {
+                    // A short page ends the enumeration, including an empty one following a
+                    // full last page. Release the snapshot unless a new enumeration replaced it.
+                    synchronized (mStatsLock) {
+                        if (mSummaryPageSource == source) {
+                            mSummaryPageSource = null;
+                            mSummaryPageTemplate = null;
+                        }
+                    }
+                }
+                return page;
+            }
+
             @Override
             public NetworkStats getTaggedSummaryForAllUid(
                     NetworkTemplate template, long start, long end) {
@@ -1573,6 +1769,12 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             public void close() {
                 mUidComplete = null;
                 mUidTagComplete = null;
+                synchronized (mStatsLock) {
+                    mUidWindow = null;
+                    mUidTagWindow = null;
+                    mSummaryPageSource = null;
+                    mSummaryPageTemplate = null;
+                }
             }
         };
     }
@@ -1673,6 +1875,7 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         assertSystemReady();
 
         final NetworkStatsCollection uidComplete;
+        awaitWriteBlockingLoad(mUidRecorder);
         synchronized (mStatsLock) {
             uidComplete = mUidRecorder.getOrLoadCompleteLocked();
         }
@@ -1922,13 +2125,13 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         if (callingUid != android.os.Process.SYSTEM_UID && callingUid != uid) {
             return UNSUPPORTED;
         }
-        return nativeGetUidStat(uid, type);
+        return mDeps.nativeGetUidStat(uid, type);
     }
 
     @Override
     public long getIfaceStats(@NonNull String iface, int type) {
         Objects.requireNonNull(iface);
-        long nativeIfaceStats = nativeGetIfaceStat(iface, type);
+        long nativeIfaceStats = mDeps.nativeGetIfaceStat(iface, type);
         if (nativeIfaceStats == -1) {
             return nativeIfaceStats;
         } else {
@@ -1942,7 +2145,7 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
 
     @Override
     public long getTotalStats(int type) {
-        long nativeTotalStats = nativeGetTotalStat(type);
+        long nativeTotalStats = mDeps.nativeGetTotalStat(type);
         if (nativeTotalStats == -1) {
             return nativeTotalStats;
         } else {
@@ -1951,6 +2154,53 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         }
     }
 
+    @Override
+    public NetworkStats getTrafficStatsSnapshot(int uid, @NonNull String[] ifaces) {
+        Objects.requireNonNull(ifaces);
+        final NetworkStats snapshot =
+                new NetworkStats(SystemClock.elapsedRealtime(), ifaces.length + 2);
+        final long[] values = new long[4];
+        final int callingUid = Binder.getCallingUid();
+        if ((callingUid == android.os.Process.SYSTEM_UID || callingUid == uid)
+                && mDeps.nativeGetUidStats(uid, values)) {
+            snapshot.insertEntry(toSnapshotEntry(IFACE_ALL, uid, values, null));
+        }
+
+        // Compute the provider stats only once for the total and all the interfaces. See
+        // getIfaceStats for why they need to be added.
+        final NetworkStats providerSnapshot = getNetworkStatsFromProviders(STATS_PER_IFACE);
+        final HashSet<String> limitIfaces = new HashSet<>(1);
+        NetworkStats.Entry providerEntry = null;
+        if (mDeps.nativeGetIfaceStats(null, values)) {
+            providerEntry = providerSnapshot.getTotal(providerEntry);
+            snapshot.insertEntry(toSnapshotEntry(IFACE_ALL, UID_ALL, values, providerEntry));
+        }
+        for (String iface : ifaces) {
+            if (iface == null || !mDeps.nativeGetIfaceStats(iface, values)) continue;
+            limitIfaces.clear();
+            limitIfaces.add(iface);
+            providerEntry = providerSnapshot.getTotal(providerEntry, limitIfaces);
+            snapshot.insertEntry(toSnapshotEntry(iface, UID_ALL, values, providerEntry));
+        }
+        return snapshot;
+    }
+
+    // Builds a snapshot row from the rx/tx bytes/packets read by the native code, adding the
+    // provider stats if any.
+    private static NetworkStats.Entry toSnapshotEntry(@Nullable String iface, int uid,
+            @NonNull long[] values, @Nullable NetworkStats.Entry providerEntry) {
+        final NetworkStats.Entry entry = new NetworkStats.Entry(iface, uid, SET_DEFAULT,
+                TAG_NONE, METERED_NO, ROAMING_NO, DEFAULT_NETWORK_NO,
+                values[0], values[1], values[2], values[3], 0L);
+        if (providerEntry != null) {
+            entry.rxBytes += providerEntry.rxBytes;
+            entry.rxPackets += providerEntry.rxPackets;
+            entry.txBytes += providerEntry.txBytes;
+            entry.txPackets += providerEntry.txPackets;
+        }
+        return entry;
+    }
+
     private long getProviderIfaceStats(@Nullable String iface, int type) {
         final NetworkStats providerSnapshot = getNetworkStatsFromProviders(STATS_PER_IFACE);
         final HashSet<String> limitIfaces;
@@ -3302,6 +3552,10 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
     private static native long nativeGetTotalStat(int type);
     private static native long nativeGetIfaceStat(String iface, int type);
     private static native long nativeGetUidStat(int uid, int type);
+    // Fill |out| with rx bytes, rx packets, tx bytes and tx packets, in this order. A null iface
+    // means the total of all interfaces.
+    private static native boolean nativeGetIfaceStats(@Nullable String iface, long[] out);
+    private static native boolean nativeGetUidStats(int uid, long[] out);
 
     /** Initializes and registers the Perfetto Network Trace data source */
     public static native void nativeInitNetworkTracing();
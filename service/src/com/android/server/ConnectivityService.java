@@ -734,9 +734,8 @@ public class ConnectivityService extends IConnectivityManager.Stub
     private static final int EVENT_SET_PROFILE_NETWORK_PREFERENCE = 50;
 
     /**
-     * Event to specify that reasons for why an uid is blocked changed.
-     * arg1 = uid
-     * arg2 = blockedReasons
+     * Event to specify that reasons for why some uids are blocked changed.
+     * Carries no arguments: the new reasons are read from mPendingUidBlockedReasons.
      */
     private static final int EVENT_UID_BLOCKED_REASON_CHANGED = 51;
 
@@ -911,6 +910,10 @@ public class ConnectivityService extends IConnectivityManager.Stub
     private long mMaxWakelockDurationMs = 0;
     private long mLastWakeLockAcquireTimestamp = 0;
 
+    // Rematch timing statistics, only accessed on the handler thread except for dumps.
+    private final RematchStats mFullRematchStats = new RematchStats();
+    private final RematchStats mIncrementalRematchStats = new RematchStats();
+
     private final IpConnectivityLog mMetricsLog;
 
     @GuardedBy("mBandwidthRequests")
@@ -1421,6 +1424,14 @@ public class ConnectivityService extends IConnectivityManager.Stub
                     TETHERING_MODULE_NAME, false /* defaultValue */);
         }
 
+        /**
+         * Whether each incremental rematch should be checked against a full rematch. This doubles
+         * the cost of rematching, so it is only meant for tests.
+         */
+        public boolean shouldVerifyIncrementalRematch() {
+            return false;
+        }
+
         /**
          * Get the BpfNetMaps implementation to use in ConnectivityService.
          * @param netd a netd binder
@@ -1593,6 +1604,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
                 null /* binder */, NetworkCallback.FLAG_INCLUDE_LOCATION_INFO,
                 null /* attributionTags */);
         mNetworkRequests.put(defaultInternetRequest, mDefaultRequest);
+        addNetworkRequestInfoForAsUid(mDefaultRequest);
         mDefaultNetworkRequests.add(mDefaultRequest);
         mNetworkRequestInfoLogs.log("REGISTER " + mDefaultRequest);
 
@@ -2961,17 +2973,43 @@ public class ConnectivityService extends IConnectivityManager.Stub
         }
     }
 
+    // Blocked reasons received from NetworkPolicyManager and not yet processed on the handler
+    // thread, keyed by uid. Only the latest reasons of each uid matter, so bursts of changes (e.g.
+    // when entering doze) are processed in a single pass over the networks.
+    @GuardedBy("mPendingUidBlockedReasons")
+    private final SparseIntArray mPendingUidBlockedReasons = new SparseIntArray();
+
     private final NetworkPolicyCallback mPolicyCallback = new NetworkPolicyCallback() {
         @Override
         public void onUidBlockedReasonChanged(int uid, @BlockedReason int blockedReasons) {
-            mHandler.sendMessage(mHandler.obtainMessage(EVENT_UID_BLOCKED_REASON_CHANGED,
-                    uid, blockedReasons));
+            synchronized (mPendingUidBlockedReasons) {
+                final boolean eventPending = mPendingUidBlockedReasons.size() > 0;
+                mPendingUidBlockedReasons.put(uid, blockedReasons);
+                // The pending event will pick up this change.
+                if (eventPending) return;
+            }
+            mHandler.sendMessage(mHandler.obtainMessage(EVENT_UID_BLOCKED_REASON_CHANGED));
         }
     };
 
-    private void handleUidBlockedReasonChanged(int uid, @BlockedReason int blockedReasons) {
-        maybeNotifyNetworkBlockedForNewState(uid, blockedReasons);
-        setUidBlockedReasons(uid, blockedReasons);
+    private void handlePendingUidBlockedReasonsChanged() {
+        final SparseIntArray uidBlockedReasons;
+        synchronized (mPendingUidBlockedReasons) {
+            uidBlockedReasons = mPendingUidBlockedReasons.clone();
+            mPendingUidBlockedReasons.clear();
+        }
+        handleUidBlockedReasonsChanged(uidBlockedReasons);
+    }
+
+    /**
+     * Apply new blocked reasons for many uids at once.
+     * @param uidBlockedReasons the new blocked reasons, keyed by uid.
+     */
+    private void handleUidBlockedReasonsChanged(@NonNull final SparseIntArray uidBlockedReasons) {
+        maybeNotifyNetworkBlockedForNewStates(uidBlockedReasons);
+        for (int i = 0; i < uidBlockedReasons.size(); i++) {
+            setUidBlockedReasons(uidBlockedReasons.keyAt(i), uidBlockedReasons.valueAt(i));
+        }
     }
 
     static final class UidFrozenStateChangedArgs {
@@ -3603,6 +3641,19 @@ public class ConnectivityService extends IConnectivityManager.Stub
 
         mLegacyTypeTracker.dump(pw);
 
+        pw.println();
+        pw.println("Rematch stats:");
+        pw.increaseIndent();
+        pw.println("full: " + mFullRematchStats);
+        pw.println("incremental: " + mIncrementalRematchStats);
+        pw.decreaseIndent();
+
+        pw.println();
+        pw.println("DNS resolver configuration updates:");
+        pw.increaseIndent();
+        mDnsManager.dump(pw);
+        pw.decreaseIndent();
+
         pw.println();
         mKeepaliveTracker.dump(pw);
 
@@ -4863,6 +4914,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
         for (final NetworkRequestInfo nri : nris) {
             mNetworkRequestInfoLogs.log("REGISTER " + nri);
             checkNrisConsistency(nri);
+            addNetworkRequestInfoForAsUid(nri);
             for (final NetworkRequest req : nri.mRequests) {
                 mNetworkRequests.put(req, nri);
                 // TODO: Consider update signal strength for other types.
@@ -5072,6 +5124,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
 
     private void handleRemoveNetworkRequest(@NonNull final NetworkRequestInfo nri) {
         ensureRunningOnConnectivityServiceThread();
+        removeNetworkRequestInfoForAsUid(nri);
         for (final NetworkRequest req : nri.mRequests) {
             if (null == mNetworkRequests.remove(req)) {
                 logw("Attempted removal of untracked request " + req + " for nri " + nri);
@@ -5287,7 +5340,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
             // PARTIAL_CONNECTIVITY notification to user again.
             nai.networkAgentConfig.acceptPartialConnectivity = accept;
             nai.updateScoreForNetworkAgentUpdate();
-            rematchAllNetworksAndRequests();
+            rematchNetworksAndRequestsForNetwork(nai, null /* prevNc */);
         }
 
         if (always) {
@@ -5355,7 +5408,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
         if (0L == nai.getAvoidUnvalidated()) {
             nai.setAvoidUnvalidated();
             nai.updateScoreForNetworkAgentUpdate();
-            rematchAllNetworksAndRequests();
+            rematchNetworksAndRequestsForNetwork(nai, null /* prevNc */);
         }
     }
 
@@ -5863,7 +5916,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
                             (PrivateDnsValidationUpdate) msg.obj);
                     break;
                 case EVENT_UID_BLOCKED_REASON_CHANGED:
-                    handleUidBlockedReasonChanged(msg.arg1, msg.arg2);
+                    handlePendingUidBlockedReasonsChanged();
                     break;
                 case EVENT_SET_REQUIRE_VPN_FOR_UIDS:
                     handleSetRequireVpnForUids(toBool(msg.arg1), (UidRange[]) msg.obj);
@@ -6602,6 +6655,11 @@ public class ConnectivityService extends IConnectivityManager.Stub
 
     private final HashMap<Messenger, NetworkProviderInfo> mNetworkProviderInfos = new HashMap<>();
     private final HashMap<NetworkRequest, NetworkRequestInfo> mNetworkRequests = new HashMap<>();
+    // The NRIs in mNetworkRequests, indexed by the uid they were filed as (NRI#mAsUid). This is
+    // used to find the requests affected by a change in the blocked reasons of a uid without
+    // looking at the requests of other uids. Only accessed on the handler thread.
+    private final SparseArray<ArraySet<NetworkRequestInfo>> mNetworkRequestInfosByAsUid =
+            new SparseArray<>();
 
     private static class NetworkProviderInfo {
         public final String name;
@@ -8559,7 +8617,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
         } else {
             // If the requestable capabilities have changed or the score changed, we can't have been
             // called by rematchNetworkAndRequests, so it's safe to start a rematch.
-            rematchAllNetworksAndRequests();
+            rematchNetworksAndRequestsForNetwork(nai, prevNc);
             notifyNetworkCallbacks(nai, ConnectivityManager.CALLBACK_CAP_CHANGED);
         }
         updateNetworkInfoForRoamingAndSuspended(nai, prevNc, newNc);
@@ -9283,6 +9341,29 @@ public class ConnectivityService extends IConnectivityManager.Stub
         }
     }
 
+    // Timing statistics for one kind of rematch, for dumpsys.
+    private static class RematchStats {
+        private int mCount;
+        private long mTotalRequests;
+        private long mTotalNanos;
+        private long mMaxNanos;
+
+        void record(final int numRequests, final long durationNanos) {
+            mCount++;
+            mTotalRequests += numRequests;
+            mTotalNanos += durationNanos;
+            mMaxNanos = Math.max(mMaxNanos, durationNanos);
+        }
+
+        public String toString() {
+            if (mCount == 0) return "count=0";
+            return "count=" + mCount
+                    + " avgRequests=" + (mTotalRequests / mCount)
+                    + " avgComputeUs=" + (mTotalNanos / mCount / 1000)
+                    + " maxComputeUs=" + (mMaxNanos / 1000);
+        }
+    }
+
     // An accumulator class to gather the list of changes that result from a rematch.
     private static class NetworkReassignment {
         static class RequestReassignment {
@@ -9354,6 +9435,23 @@ public class ConnectivityService extends IConnectivityManager.Stub
             return sj.toString();
         }
 
+        /**
+         * Returns whether the passed object reassigns the same requests to the same networks as
+         * this one, regardless of order.
+         */
+        boolean hasSameReassignments(@NonNull final NetworkReassignment other) {
+            if (mReassignments.size() != other.mReassignments.size()) return false;
+            for (final RequestReassignment rr : mReassignments) {
+                final RequestReassignment otherRr = other.getReassignment(rr.mNetworkRequestInfo);
+                if (null == otherRr
+                        || rr.mNewNetwork != otherRr.mNewNetwork
+                        || rr.mNewNetworkRequest != otherRr.mNewNetworkRequest) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
         public String debugString() {
             final StringBuilder sb = new StringBuilder();
             sb.append("NetworkReassignment :");
@@ -9476,12 +9574,64 @@ public class ConnectivityService extends IConnectivityManager.Stub
         return new HashSet<>(mNetworkRequests.values());
     }
 
+    /**
+     * Returns the requests whose assignment may change when the score or capabilities of the
+     * passed network change : those currently satisfied by it, and those it could satisfy either
+     * before or after the change.
+     *
+     * Requests in none of these groups are ranked over a set of candidates that does not contain
+     * this network, both before and after the change, so their assignment cannot change.
+     *
+     * @param nai the network that changed.
+     * @param prevNc the capabilities of the network before the change, or null if they did not
+     *               change.
+     */
+    @NonNull
+    private Set<NetworkRequestInfo> getNrisAffectedByNetwork(@NonNull final NetworkAgentInfo nai,
+            @Nullable final NetworkCapabilities prevNc) {
+        final Set<NetworkRequestInfo> nris = new ArraySet<>();
+        for (final NetworkRequestInfo nri : mNetworkRequests.values()) {
+            if (nri.getSatisfier() == nai) {
+                nris.add(nri);
+                continue;
+            }
+            for (final NetworkRequest req : nri.mRequests) {
+                if (req.canBeSatisfiedBy(nai.networkCapabilities)
+                        || (null != prevNc && req.canBeSatisfiedBy(prevNc))) {
+                    nris.add(nri);
+                    break;
+                }
+            }
+        }
+        return nris;
+    }
+
     /**
      * Attempt to rematch all Networks with all NetworkRequests.  This may result in Networks
      * being disconnected.
      */
     private void rematchAllNetworksAndRequests() {
-        rematchNetworksAndRequests(getNrisFromGlobalRequests());
+        rematchNetworksAndRequests(getNrisFromGlobalRequests(), false /* incremental */);
+    }
+
+    /**
+     * Attempt to rematch the NetworkRequests that may be affected by a change to the score or
+     * capabilities of the passed network.  This may result in Networks being disconnected.
+     *
+     * This must only be used when nothing but this network changed since the last rematch;
+     * otherwise, use {@link #rematchAllNetworksAndRequests}.
+     *
+     * @param nai the network that changed.
+     * @param prevNc the capabilities of the network before the change, or null if they did not
+     *               change.
+     */
+    private void rematchNetworksAndRequestsForNetwork(@NonNull final NetworkAgentInfo nai,
+            @Nullable final NetworkCapabilities prevNc) {
+        if (!mFlags.incrementalRematch()) {
+            rematchAllNetworksAndRequests();
+            return;
+        }
+        rematchNetworksAndRequests(getNrisAffectedByNetwork(nai, prevNc), true /* incremental */);
     }
 
     /**
@@ -9490,10 +9640,25 @@ public class ConnectivityService extends IConnectivityManager.Stub
      */
     private void rematchNetworksAndRequests(
             @NonNull final Set<NetworkRequestInfo> networkRequests) {
+        rematchNetworksAndRequests(networkRequests, false /* incremental */);
+    }
+
+    private void rematchNetworksAndRequests(
+            @NonNull final Set<NetworkRequestInfo> networkRequests, final boolean incremental) {
         ensureRunningOnConnectivityServiceThread();
-        // TODO: This may be slow, and should be optimized.
         final long start = SystemClock.elapsedRealtime();
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
         final NetworkReassignment changes = computeNetworkReassignment(networkRequests);
+        (incremental ? mIncrementalRematchStats : mFullRematchStats).record(
+                networkRequests.size(), SystemClock.elapsedRealtimeNanos() - startNanos);
+        if (incremental && mDeps.shouldVerifyIncrementalRematch()) {
+            final NetworkReassignment expected =
+                    computeNetworkReassignment(getNrisFromGlobalRequests());
+            if (!expected.hasSameReassignments(changes)) {
+                throw new IllegalStateException("Incremental rematch computed " + changes
+                        + " but full rematch computed " + expected);
+            }
+        }
         final long computed = SystemClock.elapsedRealtime();
         applyNetworkReassignment(changes, start);
         final long applied = SystemClock.elapsedRealtime();
@@ -10005,7 +10170,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
     private void updateNetworkScore(@NonNull final NetworkAgentInfo nai, final NetworkScore score) {
         if (VDBG || DDBG) log("updateNetworkScore for " + nai.toShortString() + " to " + score);
         nai.setScore(score);
-        rematchAllNetworksAndRequests();
+        rematchNetworksAndRequestsForNetwork(nai, null /* prevNc */);
     }
 
     // Notify only this one new request of the current state. Transfer all the
@@ -10083,28 +10248,55 @@ public class ConnectivityService extends IConnectivityManager.Stub
         }
     }
 
+    private void addNetworkRequestInfoForAsUid(@NonNull final NetworkRequestInfo nri) {
+        ArraySet<NetworkRequestInfo> nris = mNetworkRequestInfosByAsUid.get(nri.mAsUid);
+        if (null == nris) {
+            nris = new ArraySet<>();
+            mNetworkRequestInfosByAsUid.put(nri.mAsUid, nris);
+        }
+        nris.add(nri);
+    }
+
+    private void removeNetworkRequestInfoForAsUid(@NonNull final NetworkRequestInfo nri) {
+        final ArraySet<NetworkRequestInfo> nris = mNetworkRequestInfosByAsUid.get(nri.mAsUid);
+        if (null == nris) return;
+        nris.remove(nri);
+        if (nris.isEmpty()) mNetworkRequestInfosByAsUid.remove(nri.mAsUid);
+    }
+
     /**
-     * Notify apps with a given UID of the new blocked state according to new uid state.
-     * @param uid The uid for which the rules changed.
-     * @param blockedReasons The reasons for why an uid is blocked.
+     * Notify apps with the given UIDs of the new blocked state according to new uid states.
+     *
+     * Only the requests filed by these UIDs are looked at, and the networks are walked once for
+     * the whole batch.
+     *
+     * @param uidBlockedReasons The reasons for why each uid is blocked, keyed by uid.
      */
-    private void maybeNotifyNetworkBlockedForNewState(int uid, @BlockedReason int blockedReasons) {
+    private void maybeNotifyNetworkBlockedForNewStates(
+            @NonNull final SparseIntArray uidBlockedReasons) {
         for (final NetworkAgentInfo nai : mNetworkAgentInfos) {
             final boolean metered = nai.networkCapabilities.isMetered();
-            final boolean vpnBlocked = isUidBlockedByVpn(uid, mVpnBlockedUidRanges);
-
-            final int oldBlockedState = getBlockedState(
-                    mUidBlockedReasons.get(uid, BLOCKED_REASON_NONE), metered, vpnBlocked);
-            final int newBlockedState = getBlockedState(blockedReasons, metered, vpnBlocked);
-            if (oldBlockedState == newBlockedState) {
-                continue;
-            }
-            for (int i = 0; i < nai.numNetworkRequests(); i++) {
-                NetworkRequest nr = nai.requestAt(i);
-                NetworkRequestInfo nri = mNetworkRequests.get(nr);
-                if (nri != null && nri.mAsUid == uid) {
-                    callCallbackForRequest(nri, nai, ConnectivityManager.CALLBACK_BLK_CHANGED,
-                            newBlockedState);
+            for (int i = 0; i < uidBlockedReasons.size(); i++) {
+                final int uid = uidBlockedReasons.keyAt(i);
+                final ArraySet<NetworkRequestInfo> nris = mNetworkRequestInfosByAsUid.get(uid);
+                if (null == nris) continue;
+                final boolean vpnBlocked = isUidBlockedByVpn(uid, mVpnBlockedUidRanges);
+
+                final int oldBlockedState = getBlockedState(
+                        mUidBlockedReasons.get(uid, BLOCKED_REASON_NONE), metered, vpnBlocked);
+                final int newBlockedState =
+                        getBlockedState(uidBlockedReasons.valueAt(i), metered, vpnBlocked);
+                if (oldBlockedState == newBlockedState) {
+                    continue;
+                }
+                for (final NetworkRequestInfo nri : nris) {
+                    for (final NetworkRequest nr : nri.mRequests) {
+                        if (nai.isSatisfyingRequest(nr.requestId)) {
+                            callCallbackForRequest(nri, nai,
+                                    ConnectivityManager.CALLBACK_BLK_CHANGED, newBlockedState);
+                            break;
+                        }
+                    }
                 }
             }
         }
@@ -51,6 +51,7 @@ import android.system.ErrnoException;
 import android.system.Os;
 import android.system.OsConstants;
 import android.system.StructTimeval;
+import android.util.ArraySet;
 import android.util.LocalLog;
 import android.util.Log;
 import android.util.Pair;
@@ -92,6 +93,8 @@ public class AutomaticOnOffKeepaliveTracker {
     private static final int[] ADDRESS_FAMILIES = new int[] {AF_INET6, AF_INET};
     private static final long LOW_TCP_POLLING_INTERVAL_MS = 1_000L;
     private static final int ADJUST_TCP_POLLING_DELAY_MS = 2000;
+    // Maximum age of a TCP polling result for it to be reused by keepalives polled on the same tick.
+    private static final long MAX_TCP_POLLING_RESULT_AGE_MS = 1_000L;
     private static final String AUTOMATIC_ON_OFF_KEEPALIVE_VERSION =
             "automatic_on_off_keepalive_version";
     public static final long METRICS_COLLECTION_DURATION_MS = 24 * 60 * 60 * 1_000L;
@@ -167,6 +170,30 @@ public class AutomaticOnOffKeepaliveTracker {
      * This should only be accessed in the connectivity service handler thread.
      */
     private final SparseArray<byte[]> mSockDiagMsg = new SparseArray<>();
+
+    /**
+     * The fwmark and mask of the networks polled for TCP sockets.
+     *
+     *   Key: Network id.
+     * Value: The fwmark and mask returned by netd for this network.
+     *
+     * They only depend on the network id, so there is no need to ask netd again at every poll.
+     * Cleared when the last automatic on/off keepalive is removed.
+     * This should only be accessed in the connectivity service handler thread.
+     */
+    private final SparseArray<MarkMaskParcel> mFwmarkForNetwork = new SparseArray<>();
+    /**
+     * The result of the last TCP socket dump on each polled network.
+     *
+     *   Key: Network id.
+     * Value: The result of the dump, and the keepalives that already used it.
+     *
+     * Keepalives on the same underpinned network are scheduled to poll on the same tick (see
+     * {@link #startTcpPollingAlarm}), so only the first of them needs to dump the sockets.
+     * Cleared when the last automatic on/off keepalive is removed.
+     * This should only be accessed in the connectivity service handler thread.
+     */
+    private final SparseArray<TcpPollingResult> mTcpPollingResults = new SparseArray<>();
     private final Dependencies mDependencies;
     private final INetd mNetd;
     /**
@@ -209,6 +236,8 @@ public class AutomaticOnOffKeepaliveTracker {
         private int mAutomaticOnOffState;
         @Nullable
         private final Network mUnderpinnedNetwork;
+        // The time at which the TCP polling alarm of this keepalive is scheduled to fire.
+        private long mTcpPollingTriggerAtMillis;
 
         AutomaticOnOffKeepalive(@NonNull final KeepaliveTracker.KeepaliveInfo ki,
                 final boolean autoOnOff, @Nullable Network underpinnedNetwork)
@@ -296,6 +325,22 @@ public class AutomaticOnOffKeepaliveTracker {
         }
     }
 
+    private static class TcpPollingResult {
+        // The polling tick this result was computed for.
+        public final long triggerAtMillis;
+        // The time at which the sockets were dumped.
+        public final long polledAtMillis;
+        public final boolean anyTcpSocketConnected;
+        public final ArraySet<AutomaticOnOffKeepalive> keepalives = new ArraySet<>();
+
+        TcpPollingResult(long triggerAtMillis, long polledAtMillis,
+                boolean anyTcpSocketConnected) {
+            this.triggerAtMillis = triggerAtMillis;
+            this.polledAtMillis = polledAtMillis;
+            this.anyTcpSocketConnected = anyTcpSocketConnected;
+        }
+    }
+
     public AutomaticOnOffKeepaliveTracker(@NonNull Context context, @NonNull Handler handler) {
         this(context, handler, new Dependencies(context));
     }
@@ -336,13 +381,38 @@ public class AutomaticOnOffKeepaliveTracker {
     private void startTcpPollingAlarm(@NonNull AutomaticOnOffKeepalive ki) {
         if (ki.mAlarmListener == null) return;
 
-        final long triggerAtMillis =
-                mDependencies.getElapsedRealtime() + getTcpPollingIntervalMs(ki);
+        final long intervalMs = getTcpPollingIntervalMs(ki);
+        final long triggerAtMillis = alignTcpPollingTriggerTime(ki,
+                mDependencies.getElapsedRealtime() + intervalMs, intervalMs);
+        ki.mTcpPollingTriggerAtMillis = triggerAtMillis;
         // Setup a non-wake up alarm.
         mAlarmManager.setExact(AlarmManager.ELAPSED_REALTIME, triggerAtMillis, null /* tag */,
                 ki.mAlarmListener, mConnectivityServiceHandler);
     }
 
+    /**
+     * Align the polling tick of a keepalive with the ones of the other keepalives on the same
+     * underpinned network, so that they can share a single socket dump.
+     *
+     * A keepalive joins the latest tick scheduled in the second half of its own interval, so it
+     * never polls more often than twice per interval, and only until it is aligned.
+     */
+    private long alignTcpPollingTriggerTime(@NonNull AutomaticOnOffKeepalive ki,
+            long triggerAtMillis, long intervalMs) {
+        final Network underpinnedNetwork = ki.getUnderpinnedNetwork();
+        if (null == underpinnedNetwork) return triggerAtMillis;
+        final long earliest = triggerAtMillis - intervalMs / 2;
+        long aligned = Long.MIN_VALUE;
+        for (final AutomaticOnOffKeepalive other : mAutomaticOnOffKeepalives) {
+            if (other == ki || STATE_ALWAYS_ON == other.mAutomaticOnOffState) continue;
+            if (!underpinnedNetwork.equals(other.getUnderpinnedNetwork())) continue;
+            final long otherTrigger = other.mTcpPollingTriggerAtMillis;
+            if (otherTrigger < earliest || otherTrigger > triggerAtMillis) continue;
+            aligned = Math.max(aligned, otherTrigger);
+        }
+        return (Long.MIN_VALUE == aligned) ? triggerAtMillis : aligned;
+    }
+
     /**
      * Determine if any state transition is needed for the specific automatic keepalive.
      */
@@ -366,7 +436,7 @@ public class AutomaticOnOffKeepaliveTracker {
         if (STATE_ALWAYS_ON == ki.mAutomaticOnOffState) {
             throw new IllegalStateException("Should not monitor non-auto keepalive");
         }
-        if (!isAnyTcpSocketConnected(vpnNetId)) {
+        if (!isAnyTcpSocketConnectedForTick(ki, vpnNetId)) {
             // No TCP socket exists. Stop keepalive if ENABLED, and remain SUSPENDED if currently
             // SUSPENDED.
             if (ki.mAutomaticOnOffState == STATE_ENABLED) {
@@ -380,6 +450,29 @@ public class AutomaticOnOffKeepaliveTracker {
         startTcpPollingAlarm(ki);
     }
 
+    /**
+     * Check whether any TCP socket is connected on the network, reusing the result of the socket
+     * dump of another keepalive polled on the same tick if there is one.
+     */
+    private boolean isAnyTcpSocketConnectedForTick(@NonNull AutomaticOnOffKeepalive ki,
+            int netId) {
+        final long now = mDependencies.getElapsedRealtime();
+        final TcpPollingResult last = mTcpPollingResults.get(netId);
+        // Each keepalive only uses a result once, so that polling the same keepalive again always
+        // dumps the sockets.
+        if (null != last && last.triggerAtMillis == ki.mTcpPollingTriggerAtMillis
+                && now - last.polledAtMillis <= MAX_TCP_POLLING_RESULT_AGE_MS
+                && last.keepalives.add(ki)) {
+            return last.anyTcpSocketConnected;
+        }
+        final boolean connected = isAnyTcpSocketConnected(netId);
+        final TcpPollingResult result =
+                new TcpPollingResult(ki.mTcpPollingTriggerAtMillis, now, connected);
+        result.keepalives.add(ki);
+        mTcpPollingResults.put(netId, result);
+        return connected;
+    }
+
     /**
      * Resume an auto on/off keepalive, unless it's already resumed
      * @param autoKi the keepalive to resume
@@ -548,6 +641,10 @@ public class AutomaticOnOffKeepaliveTracker {
         // added ; the only ways this can happen is if the keepalive is stopped by the app and the
         // app dies immediately, or if the app died before the link to death could be registered.
         if (!mAutomaticOnOffKeepalives.remove(autoKi)) return;
+        if (mAutomaticOnOffKeepalives.isEmpty()) {
+            mFwmarkForNetwork.clear();
+            mTcpPollingResults.clear();
+        }
 
         autoKi.mKi.mCallback.asBinder().unlinkToDeath(autoKi, 0);
     }
@@ -693,13 +790,14 @@ public class AutomaticOnOffKeepaliveTracker {
 
     @VisibleForTesting
     boolean isAnyTcpSocketConnected(int netId) {
+        ensureRunningOnHandlerThread();
         FileDescriptor fd = null;
 
         try {
             fd = mDependencies.createConnectedNetlinkSocket();
 
             // Get network mask
-            final MarkMaskParcel parcel = mNetd.getFwmarkForNetwork(netId);
+            final MarkMaskParcel parcel = getFwmarkForNetwork(netId);
             final int networkMark = (parcel != null) ? parcel.mark : NetlinkUtils.UNKNOWN_MARK;
             final int networkMask = (parcel != null) ? parcel.mask : NetlinkUtils.NULL_MASK;
 
@@ -718,6 +816,16 @@ public class AutomaticOnOffKeepaliveTracker {
         return false;
     }
 
+    @Nullable
+    private MarkMaskParcel getFwmarkForNetwork(int netId) throws RemoteException {
+        MarkMaskParcel parcel = mFwmarkForNetwork.get(netId);
+        if (parcel == null) {
+            parcel = mNetd.getFwmarkForNetwork(netId);
+            if (parcel != null) mFwmarkForNetwork.put(netId, parcel);
+        }
+        return parcel;
+    }
+
     private boolean isAnyTcpSocketConnectedForFamily(FileDescriptor fd, int family, int networkMark,
             int networkMask) throws ErrnoException, InterruptedIOException {
         ensureRunningOnHandlerThread();
@@ -33,8 +33,17 @@ public final class ConnectivityFlags {
     public static final String NO_REMATCH_ALL_REQUESTS_ON_REGISTER =
             "no_rematch_all_requests_on_register";
 
+    /**
+     * Minimum module version at which to rematch only the requests that a network could satisfy
+     * or was satisfying when its score or capabilities change, instead of all requests.
+     */
+    @VisibleForTesting
+    public static final String INCREMENTAL_REMATCH = "incremental_rematch";
+
     private boolean mNoRematchAllRequestsOnRegister;
 
+    private boolean mIncrementalRematch;
+
     /**
      * Whether ConnectivityService should avoid avoid rematching all requests when a network
      * request is registered, and rematch only the registered requests instead.
@@ -55,6 +64,18 @@ public final class ConnectivityFlags {
         return mNoRematchAllRequestsOnRegister;
     }
 
+    /**
+     * Whether ConnectivityService should only rematch the requests affected by a change to a
+     * single network's score or capabilities, instead of rematching all requests.
+     *
+     * This flag is disabled by default, and follows the same loading model as
+     * {@link #noRematchAllRequestsOnRegister()} : it only controls a performance optimization,
+     * so its value does not need to be consistent over time.
+     */
+    public boolean incrementalRematch() {
+        return mIncrementalRematch;
+    }
+
     /**
      * Load flag values. Should only be called once, and can only be called once PackageManager is
      * ready.
@@ -62,5 +83,6 @@ public final class ConnectivityFlags {
     public void loadFlags(ConnectivityService.Dependencies deps, Context ctx) {
         mNoRematchAllRequestsOnRegister = deps.isFeatureEnabled(
                 ctx, NO_REMATCH_ALL_REQUESTS_ON_REGISTER);
+        mIncrementalRematch = deps.isFeatureEnabled(ctx, INCREMENTAL_REMATCH);
     }
 }
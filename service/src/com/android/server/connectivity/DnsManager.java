@@ -49,6 +49,9 @@ import android.provider.Settings;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.Pair;
+import android.util.SparseArray;
+
+import com.android.internal.util.IndentingPrintWriter;
 
 import java.net.InetAddress;
 import java.util.Arrays;
@@ -58,6 +61,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
@@ -244,6 +248,14 @@ public class DnsManager {
         }
     }
 
+    /** The resolver configuration last sent for a network, and how often it was sent. */
+    private static class ResolverConfigRecord {
+        // Null if the last attempt to send the configuration failed.
+        public ResolverParamsParcel lastSentParams;
+        public int sentCount;
+        public int skippedCount;
+    }
+
     private final Context mContext;
     private final ContentResolver mContentResolver;
     private final IDnsResolver mDnsResolver;
@@ -252,6 +264,7 @@ public class DnsManager {
     private final Map<Integer, PrivateDnsValidationStatuses> mPrivateDnsValidationMap;
     private final Map<Integer, LinkProperties> mLinkPropertiesMap;
     private final Map<Integer, int[]> mTransportsMap;
+    private final SparseArray<ResolverConfigRecord> mResolverConfigRecords = new SparseArray<>();
 
     private int mSampleValidity;
     private int mSuccessThreshold;
@@ -280,6 +293,7 @@ public class DnsManager {
         mPrivateDnsValidationMap.remove(network.getNetId());
         mTransportsMap.remove(network.getNetId());
         mLinkPropertiesMap.remove(network.getNetId());
+        mResolverConfigRecords.remove(network.getNetId());
     }
 
     // This is exclusively called by ConnectivityService#dumpNetworkDiagnostics() which
@@ -332,7 +346,7 @@ public class DnsManager {
      */
     public void updateTransportsForNetwork(int netId, @NonNull int[] transportTypes) {
         mTransportsMap.put(netId, transportTypes);
-        sendDnsConfigurationForNetwork(netId);
+        sendDnsConfigurationForNetwork(netId, true /* skipIfUnchanged */);
     }
 
     /**
@@ -340,6 +354,10 @@ public class DnsManager {
      * always saved to a hashMap before update dns config.
      * When destroying network, the specific network will be removed from the hashMap.
      * The hashMap is always accessed on the same thread.
+     *
+     * The configuration is always sent, even if it did not change: ConnectivityService calls
+     * this when private DNS settings are (re)applied, and the resolver retries the validation
+     * of private DNS servers that previously failed whenever it receives a configuration.
      */
     public void noteDnsServersForNetwork(int netId, @NonNull LinkProperties lp) {
         mLinkPropertiesMap.put(netId, lp);
@@ -350,6 +368,10 @@ public class DnsManager {
      * Send dns configuration parameters to resolver for a given network.
      */
     public void sendDnsConfigurationForNetwork(int netId) {
+        sendDnsConfigurationForNetwork(netId, false /* skipIfUnchanged */);
+    }
+
+    private void sendDnsConfigurationForNetwork(int netId, boolean skipIfUnchanged) {
         final LinkProperties lp = mLinkPropertiesMap.get(netId);
         final int[] transportTypes = mTransportsMap.get(netId);
         if (lp == null || transportTypes == null) return;
@@ -396,6 +418,20 @@ public class DnsManager {
             mPrivateDnsValidationMap.remove(netId);
         }
 
+        ResolverConfigRecord record = mResolverConfigRecords.get(netId);
+        if (record == null) {
+            record = new ResolverConfigRecord();
+            mResolverConfigRecords.put(netId, record);
+        }
+        // The resolver already has this configuration, e.g. the transports were updated without
+        // changing anything the resolver uses. Only callers that don't rely on the side effects
+        // of a push, such as retrying the validation of private DNS servers, skip it.
+        if (skipIfUnchanged && record.lastSentParams != null
+                && isSameResolverParams(record.lastSentParams, paramsParcel)) {
+            record.skippedCount++;
+            return;
+        }
+
         Log.d(TAG, String.format("sendDnsConfigurationForNetwork(%d, %s, %s, %d, %d, %d, %d, "
                 + "%d, %d, %s, %s)", paramsParcel.netId, Arrays.toString(paramsParcel.servers),
                 Arrays.toString(paramsParcel.domains), paramsParcel.sampleValiditySeconds,
@@ -404,12 +440,54 @@ public class DnsManager {
                 paramsParcel.retryCount, paramsParcel.tlsName,
                 Arrays.toString(paramsParcel.tlsServers)));
 
+        record.sentCount++;
         try {
             mDnsResolver.setResolverConfiguration(paramsParcel);
         } catch (RemoteException | ServiceSpecificException e) {
             Log.e(TAG, "Error setting DNS configuration: " + e);
+            // Don't skip the next attempt, whatever it contains.
+            record.lastSentParams = null;
             return;
         }
+        record.lastSentParams = paramsParcel;
+    }
+
+    // ResolverParamsParcel does not implement equals().
+    private static boolean isSameResolverParams(@NonNull ResolverParamsParcel a,
+            @NonNull ResolverParamsParcel b) {
+        return a.netId == b.netId
+                && a.sampleValiditySeconds == b.sampleValiditySeconds
+                && a.successThreshold == b.successThreshold
+                && a.minSamples == b.minSamples
+                && a.maxSamples == b.maxSamples
+                && a.baseTimeoutMsec == b.baseTimeoutMsec
+                && a.retryCount == b.retryCount
+                && Arrays.equals(a.servers, b.servers)
+                && Arrays.equals(a.domains, b.domains)
+                && Objects.equals(a.tlsName, b.tlsName)
+                && Arrays.equals(a.tlsServers, b.tlsServers)
+                && Arrays.equals(a.tlsFingerprints, b.tlsFingerprints)
+                && Objects.equals(a.caCertificate, b.caCertificate)
+                && a.tlsConnectTimeoutMs == b.tlsConnectTimeoutMs
+                && a.resolverOptions == b.resolverOptions
+                && Arrays.equals(a.transportTypes, b.transportTypes);
+    }
+
+    /**
+     * Dump how often the resolver configuration of each network was sent or skipped.
+     */
+    public void dump(@NonNull IndentingPrintWriter pw) {
+        final int size = mResolverConfigRecords.size();
+        for (int i = 0; i < size; i++) {
+            // Don't crash if the array is modified while dumping in bugreports.
+            try {
+                final ResolverConfigRecord record = mResolverConfigRecords.valueAt(i);
+                pw.println("netId=" + mResolverConfigRecords.keyAt(i)
+                        + " sent=" + record.sentCount + " skipped=" + record.skippedCount);
+            } catch (ArrayIndexOutOfBoundsException e) {
+                pw.println("  ArrayIndexOutOfBoundsException");
+            }
+        }
     }
 
     /**
@@ -25,7 +25,6 @@ import static android.net.NetworkScore.POLICY_EXITING;
 import static android.net.NetworkScore.POLICY_TRANSPORT_PRIMARY;
 import static android.net.NetworkScore.POLICY_YIELD_TO_BAD_WIFI;
 
-import static com.android.net.module.util.CollectionUtils.filter;
 import static com.android.server.connectivity.FullScore.POLICY_ACCEPT_UNVALIDATED;
 import static com.android.server.connectivity.FullScore.POLICY_AVOIDED_WHEN_UNVALIDATED;
 import static com.android.server.connectivity.FullScore.POLICY_EVER_EVALUATED;
@@ -112,9 +111,24 @@ public class NetworkRanker {
     public NetworkAgentInfo getBestNetwork(@NonNull final NetworkRequest request,
             @NonNull final Collection<NetworkAgentInfo> nais,
             @Nullable final NetworkAgentInfo currentSatisfier) {
-        final ArrayList<NetworkAgentInfo> candidates = filter(nais, nai -> nai.satisfies(request));
-        if (candidates.size() == 1) return candidates.get(0); // Only one potential satisfier
-        if (candidates.size() <= 0) return null; // No network can satisfy this request
+        // Most requests can only be satisfied by zero or one network, so look for the first
+        // satisfier before allocating the list of candidates.
+        NetworkAgentInfo firstCandidate = null;
+        ArrayList<NetworkAgentInfo> candidates = null;
+        for (final NetworkAgentInfo nai : nais) {
+            if (!nai.satisfies(request)) continue;
+            if (null == firstCandidate) {
+                firstCandidate = nai;
+                continue;
+            }
+            if (null == candidates) {
+                candidates = new ArrayList<>(nais.size() /* initialCapacity */);
+                candidates.add(firstCandidate);
+            }
+            candidates.add(nai);
+        }
+        if (null == firstCandidate) return null; // No network can satisfy this request
+        if (null == candidates) return firstCandidate; // Only one potential satisfier
         return getBestNetworkByPolicy(candidates, currentSatisfier);
     }
 
@@ -220,20 +234,47 @@ public class NetworkRanker {
                 accepted, rejected);
     }
 
+    // The working areas of getBestNetworkByPolicy. |candidates| starts as the list passed by the
+    // caller, which must not be modified, and is replaced by the accepted networks each time a
+    // criterion discriminates.
+    private static final class WorkingAreas<T> {
+        @NonNull List<T> candidates;
+        @NonNull ArrayList<T> accepted;
+        @NonNull final ArrayList<T> rejected;
+        // The list owned by this object that is used as |candidates|, or null while |candidates|
+        // is still the caller's list.
+        @Nullable private ArrayList<T> mOwnedCandidates;
+
+        WorkingAreas(@NonNull final List<T> initialCandidates) {
+            candidates = initialCandidates;
+            accepted = new ArrayList<>(initialCandidates.size() /* initialCapacity */);
+            rejected = new ArrayList<>(initialCandidates.size() /* initialCapacity */);
+        }
+
+        // Keep only the accepted networks as candidates. Instead of copying them, the accepted
+        // list becomes the list of candidates, and the old list of candidates is reused as the
+        // accepted working area since the next partition clears it anyway.
+        void keepAccepted() {
+            final ArrayList<T> newCandidates = accepted;
+            accepted = (null != mOwnedCandidates) ? mOwnedCandidates
+                    : new ArrayList<>(newCandidates.size() /* initialCapacity */);
+            mOwnedCandidates = newCandidates;
+            candidates = newCandidates;
+        }
+    }
+
     /**
      * Get the best network among a list of candidates according to policy.
-     * @param candidates the candidates
+     * @param initialCandidates the candidates. This list is not modified.
      * @param currentSatisfier the current satisfier, or null if none
      * @return the best network
      */
     @Nullable public <T extends Scoreable> T getBestNetworkByPolicy(
-            @NonNull List<T> candidates,
+            @NonNull List<T> initialCandidates,
             @Nullable final T currentSatisfier) {
-        // Used as working areas.
-        final ArrayList<T> accepted =
-                new ArrayList<>(candidates.size() /* initialCapacity */);
-        final ArrayList<T> rejected =
-                new ArrayList<>(candidates.size() /* initialCapacity */);
+        // Used as working areas. The passed list is never modified.
+        final WorkingAreas<T> areas = new WorkingAreas<>(initialCandidates);
+        final ArrayList<T> rejected = areas.rejected;
 
         // The following tests will search for a network matching a given criterion. They all
         // function the same way : if any network matches the criterion, drop from consideration
@@ -241,48 +282,49 @@ public class NetworkRanker {
         // 1. partition the list of remaining candidates into accepted and rejected networks.
         // 2. if only one candidate remains, that's the winner : if accepted.size == 1 return [0]
         // 3. if multiple remain, keep only the accepted networks and go on to the next criterion.
-        //    Because the working areas will be wiped, a copy of the accepted networks needs to be
-        //    made.
+        //    Because the working areas will be wiped, the accepted list becomes the list of
+        //    candidates : see WorkingAreas#keepAccepted.
         // 4. if none remain, the criterion did not help discriminate so keep them all. As an
         //    optimization, skip creating a new array and go on to the next criterion.
 
         // If a network is invincible, use it.
-        partitionInto(candidates, nai -> nai.getScore().hasPolicy(POLICY_IS_INVINCIBLE),
-                accepted, rejected);
-        if (accepted.size() == 1) return accepted.get(0);
-        if (accepted.size() > 0 && rejected.size() > 0) candidates = new ArrayList<>(accepted);
+        partitionInto(areas.candidates, nai -> nai.getScore().hasPolicy(POLICY_IS_INVINCIBLE),
+                areas.accepted, rejected);
+        if (areas.accepted.size() == 1) return areas.accepted.get(0);
+        if (areas.accepted.size() > 0 && rejected.size() > 0) areas.keepAccepted();
 
         // If there is a connected VPN, use it.
-        partitionInto(candidates, nai -> nai.getScore().hasPolicy(POLICY_IS_VPN),
-                accepted, rejected);
-        if (accepted.size() == 1) return accepted.get(0);
-        if (accepted.size() > 0 && rejected.size() > 0) candidates = new ArrayList<>(accepted);
+        partitionInto(areas.candidates, nai -> nai.getScore().hasPolicy(POLICY_IS_VPN),
+                areas.accepted, rejected);
+        if (areas.accepted.size() == 1) return areas.accepted.get(0);
+        if (areas.accepted.size() > 0 && rejected.size() > 0) areas.keepAccepted();
 
         // Selected & Accept-unvalidated policy : if any network has both of these, then don't
         // choose one that doesn't.
-        partitionInto(candidates, nai -> nai.getScore().hasPolicy(POLICY_EVER_USER_SELECTED)
+        partitionInto(areas.candidates,
+                nai -> nai.getScore().hasPolicy(POLICY_EVER_USER_SELECTED)
                         && nai.getScore().hasPolicy(POLICY_ACCEPT_UNVALIDATED),
-                accepted, rejected);
-        if (accepted.size() == 1) return accepted.get(0);
-        if (accepted.size() > 0 && rejected.size() > 0) candidates = new ArrayList<>(accepted);
+                areas.accepted, rejected);
+        if (areas.accepted.size() == 1) return areas.accepted.get(0);
+        if (areas.accepted.size() > 0 && rejected.size() > 0) areas.keepAccepted();
 
         // If any network is validated (or should be accepted even if it's not validated), then
         // don't choose one that isn't.
-        partitionInto(candidates, nai -> nai.getScore().hasPolicy(POLICY_IS_VALIDATED)
+        partitionInto(areas.candidates, nai -> nai.getScore().hasPolicy(POLICY_IS_VALIDATED)
                         || nai.getScore().hasPolicy(POLICY_ACCEPT_UNVALIDATED),
-                accepted, rejected);
+                areas.accepted, rejected);
         // Yield to bad wifi policy : if any network has the "yield to bad WiFi" policy and
         // there are bad WiFis connected, then accept the bad WiFis and reject the networks with
         // the policy.
-        applyYieldToBadWifiPolicy(accepted, rejected);
-        if (accepted.size() == 1) return accepted.get(0);
-        if (accepted.size() > 0 && rejected.size() > 0) candidates = new ArrayList<>(accepted);
+        applyYieldToBadWifiPolicy(areas.accepted, rejected);
+        if (areas.accepted.size() == 1) return areas.accepted.get(0);
+        if (areas.accepted.size() > 0 && rejected.size() > 0) areas.keepAccepted();
 
         // If any network is not exiting, don't choose one that is.
-        partitionInto(candidates, nai -> !nai.getScore().hasPolicy(POLICY_EXITING),
-                accepted, rejected);
-        if (accepted.size() == 1) return accepted.get(0);
-        if (accepted.size() > 0 && rejected.size() > 0) candidates = new ArrayList<>(accepted);
+        partitionInto(areas.candidates, nai -> !nai.getScore().hasPolicy(POLICY_EXITING),
+                areas.accepted, rejected);
+        if (areas.accepted.size() == 1) return areas.accepted.get(0);
+        if (areas.accepted.size() > 0 && rejected.size() > 0) areas.keepAccepted();
 
         // TODO : If any network is unmetered, don't choose a metered network.
         // This can't be implemented immediately because prospective networks are always
@@ -301,25 +343,26 @@ public class NetworkRanker {
 
         // If any network is for the default subscription, don't choose a network for another
         // subscription with the same transport.
-        partitionInto(candidates, nai -> nai.getScore().hasPolicy(POLICY_TRANSPORT_PRIMARY),
-                accepted, rejected);
-        if (accepted.size() > 0) {
+        partitionInto(areas.candidates,
+                nai -> nai.getScore().hasPolicy(POLICY_TRANSPORT_PRIMARY),
+                areas.accepted, rejected);
+        if (areas.accepted.size() > 0) {
             // Some networks are primary for their transport. For each transport, keep only the
             // primary, but also keep all networks for which there isn't a primary (which are now
             // in the |rejected| array).
             // So for each primary network, remove from |rejected| all networks with the same
             // transports as one of the primary networks. The remaining networks should be accepted.
-            for (final T defaultSubNai : accepted) {
+            for (final T defaultSubNai : areas.accepted) {
                 final int[] transports = defaultSubNai.getCapsNoCopy().getTransportTypes();
                 rejected.removeIf(
                         nai -> Arrays.equals(transports, nai.getCapsNoCopy().getTransportTypes()));
             }
             // Now the |rejected| list contains networks with transports for which there isn't
             // a primary network. Add them back to the candidates.
-            accepted.addAll(rejected);
-            candidates = new ArrayList<>(accepted);
+            areas.accepted.addAll(rejected);
+            areas.keepAccepted();
         }
-        if (1 == candidates.size()) return candidates.get(0);
+        if (1 == areas.candidates.size()) return areas.candidates.get(0);
         // If there were no primary network, then candidates.size() > 0 because it didn't
         // change from the previous result. If there were, it's guaranteed candidates.size() > 0
         // because accepted.size() > 0 above.
@@ -327,31 +370,29 @@ public class NetworkRanker {
         // If some of the networks have a better transport than others, keep only the ones with
         // the best transports.
         for (final int transport : PREFERRED_TRANSPORTS_ORDER) {
-            partitionInto(candidates, nai -> nai.getCapsNoCopy().hasTransport(transport),
-                    accepted, rejected);
-            if (accepted.size() == 1) return accepted.get(0);
-            if (accepted.size() > 0 && rejected.size() > 0) {
-                candidates = new ArrayList<>(accepted);
+            partitionInto(areas.candidates, nai -> nai.getCapsNoCopy().hasTransport(transport),
+                    areas.accepted, rejected);
+            if (areas.accepted.size() == 1) return areas.accepted.get(0);
+            if (areas.accepted.size() > 0 && rejected.size() > 0) {
+                areas.keepAccepted();
                 break;
             }
         }
 
         // If two networks are equivalent, and one has been destroyed pending replacement, keep the
         // other one. This ensures that when the replacement connects, it's preferred.
-        partitionInto(candidates, nai -> !nai.getScore().hasPolicy(POLICY_IS_DESTROYED),
-                accepted, rejected);
-        if (accepted.size() == 1) return accepted.get(0);
-        if (accepted.size() > 0 && rejected.size() > 0) {
-            candidates = new ArrayList<>(accepted);
-        }
+        partitionInto(areas.candidates, nai -> !nai.getScore().hasPolicy(POLICY_IS_DESTROYED),
+                areas.accepted, rejected);
+        if (areas.accepted.size() == 1) return areas.accepted.get(0);
+        if (areas.accepted.size() > 0 && rejected.size() > 0) areas.keepAccepted();
 
         // At this point there are still multiple networks passing all the tests above. If any
         // of them is the previous satisfier, keep it.
-        if (candidates.contains(currentSatisfier)) return currentSatisfier;
+        if (areas.candidates.contains(currentSatisfier)) return currentSatisfier;
 
         // If there are still multiple options at this point but none of them is any of the
         // transports above, it doesn't matter which is returned. They are all the same.
-        return candidates.get(0);
+        return areas.candidates.get(0);
     }
 
     /**
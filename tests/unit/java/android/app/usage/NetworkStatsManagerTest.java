@@ -34,10 +34,12 @@ import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertTrue;
 
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -266,6 +268,53 @@ public class NetworkStatsManagerTest {
         assertFalse(stats.hasNextBucket());
     }
 
+    @Test
+    public void testQuerySummary_paged() throws Exception {
+        final long startTime = 1;
+        final long endTime = 100;
+        final int pageSize = NetworkStats.SUMMARY_PAGE_SIZE;
+
+        final android.net.NetworkStats page1 = new android.net.NetworkStats(0, pageSize);
+        for (int i = 0; i < pageSize; i++) {
+            page1.insertEntry(new Entry(null /* iface */, 10000 + i, SET_DEFAULT, TAG_NONE,
+                    METERED_NO, ROAMING_NO, DEFAULT_NETWORK_NO, 100, 10, 200, 20, 0));
+        }
+        final Entry lastEntry = new Entry(null /* iface */, 10000 + pageSize, SET_DEFAULT,
+                TAG_NONE, METERED_NO, ROAMING_NO, DEFAULT_NETWORK_NO, 150, 15, 250, 25, 0);
+        final android.net.NetworkStats page2 = new android.net.NetworkStats(0, 1)
+                .insertEntry(lastEntry);
+
+        reset(mStatsSession);
+        when(mService.openSessionForUsageStats(anyInt(), anyString())).thenReturn(mStatsSession);
+        when(mStatsSession.getSummaryForAllUidPage(any(NetworkTemplate.class), anyLong(),
+                anyLong(), anyBoolean(), eq(0), eq(pageSize))).thenReturn(page1);
+        when(mStatsSession.getSummaryForAllUidPage(any(NetworkTemplate.class), anyLong(),
+                anyLong(), anyBoolean(), eq(pageSize), eq(pageSize))).thenReturn(page2);
+        final NetworkTemplate template = new NetworkTemplate.Builder(MATCH_MOBILE)
+                .setMeteredness(NetworkStats.Bucket.METERED_YES).build();
+        final NetworkStats stats = mManager.querySummary(template, startTime, endTime);
+
+        // Only the first page is fetched until it has been enumerated.
+        verify(mStatsSession, times(1)).getSummaryForAllUidPage(eq(template), eq(startTime),
+                eq(endTime), eq(false), eq(0), eq(pageSize));
+        verify(mStatsSession, never()).getSummaryForAllUidPage(any(NetworkTemplate.class),
+                anyLong(), anyLong(), anyBoolean(), eq(pageSize), anyInt());
+
+        final NetworkStats.Bucket bucket = new NetworkStats.Bucket();
+        for (int i = 0; i < pageSize; i++) {
+            assertTrue(stats.getNextBucket(bucket));
+            assertEquals(10000 + i, bucket.getUid());
+        }
+        assertTrue(stats.getNextBucket(bucket));
+        assertEquals(startTime, bucket.getStartTimeStamp());
+        assertEquals(endTime, bucket.getEndTimeStamp());
+        assertBucketMatches(lastEntry, bucket);
+        assertFalse(stats.hasNextBucket());
+
+        verify(mStatsSession, times(1)).getSummaryForAllUidPage(eq(template), eq(startTime),
+                eq(endTime), eq(false), eq(pageSize), eq(pageSize));
+    }
+
     private void assertBucketMatches(Entry expected, NetworkStats.Bucket actual) {
         assertEquals(expected.uid, actual.getUid());
         assertEquals(expected.rxBytes, actual.getRxBytes());
@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net;
+
+import static android.net.DnsResolver.CLASS_IN;
+import static android.net.DnsResolver.FLAG_EMPTY;
+import static android.net.DnsResolver.FLAG_NO_CACHE_LOOKUP;
+import static android.net.DnsResolver.TYPE_A;
+import static android.net.DnsResolver.TYPE_AAAA;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.annotation.NonNull;
+import android.os.Build;
+import android.os.CancellationSignal;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.testutils.DevSdkIgnoreRule;
+import com.android.testutils.DevSdkIgnoreRunner;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(DevSdkIgnoreRunner.class)
+@SmallTest
+@DevSdkIgnoreRule.IgnoreUpTo(Build.VERSION_CODES.R)
+public class DnsAnswerCacheTest {
+    private static final String TEST_DOMAIN = "www.example.com";
+    private static final String OTHER_DOMAIN = "www.example.org";
+    private static final Network TEST_NETWORK = new Network(100);
+    private static final Network OTHER_NETWORK = new Network(101);
+    private static final int TEST_TTL_SEC = 30;
+    private static final long TIMEOUT_MS = 5_000L;
+
+    private long mNowMs = 1000L;
+    private final List<SentQuery> mSentQueries = new ArrayList<>();
+    private final DnsAnswerCache mCache = new DnsAnswerCache(2 /* maxEntries */,
+            this::sendQuery, () -> mNowMs);
+
+    private static class SentQuery {
+        final int netIdForResolv;
+        final String domain;
+        final int nsType;
+        final DnsResolver.Callback<byte[]> callback;
+        boolean cancelled;
+
+        SentQuery(int netIdForResolv, String domain, int nsType,
+                DnsResolver.Callback<byte[]> callback) {
+            this.netIdForResolv = netIdForResolv;
+            this.domain = domain;
+            this.nsType = nsType;
+            this.callback = callback;
+        }
+    }
+
+    private static class TestCallback implements DnsResolver.Callback<byte[]> {
+        byte[] answer;
+        int rcode = -1;
+        DnsResolver.DnsException error;
+        int calls;
+
+        @Override
+        public void onAnswer(@NonNull byte[] answer, int rcode) {
+            this.answer = answer;
+            this.rcode = rcode;
+            calls++;
+        }
+
+        @Override
+        public void onError(@NonNull DnsResolver.DnsException error) {
+            this.error = error;
+            calls++;
+        }
+    }
+
+    private Runnable sendQuery(int netIdForResolv, String domain, int nsClass, int nsType,
+            int flags, DnsResolver.Callback<byte[]> callback) {
+        final SentQuery query = new SentQuery(netIdForResolv, domain, nsType, callback);
+        mSentQueries.add(query);
+        return () -> query.cancelled = true;
+    }
+
+    // Builds a response with one A record for TEST_DOMAIN.
+    private static byte[] makeAnswer(int rcode, int ttl) throws Exception {
+        final ByteBuffer buf = ByteBuffer.allocate(512);
+        buf.putShort((short) 0x1234);  // ID
+        buf.putShort((short) (0x8180 | rcode));  // QR, RD, RA
+        buf.putShort((short) 1);  // QDCOUNT
+        buf.putShort((short) (rcode == 0 ? 1 : 0));  // ANCOUNT
+        buf.putShort((short) 0);  // NSCOUNT
+        buf.putShort((short) 0);  // ARCOUNT
+        for (String label : TEST_DOMAIN.split("\\.")) {
+            buf.put((byte) label.length());
+            buf.put(label.getBytes());
+        }
+        buf.put((byte) 0);
+        buf.putShort((short) TYPE_A);
+        buf.putShort((short) CLASS_IN);
+        if (rcode == 0) {
+            buf.putShort((short) 0xc00c);  // Pointer to the name in the question
+            buf.putShort((short) TYPE_A);
+            buf.putShort((short) CLASS_IN);
+            buf.putInt(ttl);
+            buf.putShort((short) 4);
+            buf.put(InetAddress.getByName("192.0.2.1").getAddress());
+        }
+        final byte[] answer = new byte[buf.position()];
+        buf.flip();
+        buf.get(answer);
+        return answer;
+    }
+
+    private TestCallback query(Network network, String domain, int nsType) {
+        final TestCallback cb = new TestCallback();
+        mCache.query(network, domain, CLASS_IN, nsType, FLAG_EMPTY, Runnable::run,
+                null /* cancellationSignal */, cb);
+        return cb;
+    }
+
+    private void answerLastQuery(byte[] answer, int rcode) {
+        mSentQueries.get(mSentQueries.size() - 1).callback.onAnswer(answer, rcode);
+    }
+
+    private void assertStats(long hits, long misses, long coalesced) {
+        final DnsResolver.AnswerCacheStats stats = mCache.getStats();
+        assertEquals(hits, stats.hits);
+        assertEquals(misses, stats.misses);
+        assertEquals(coalesced, stats.coalesced);
+    }
+
+    @Test
+    public void testGetCacheTtl() throws Exception {
+        assertEquals(TEST_TTL_SEC * 1000L,
+                DnsAnswerCache.getCacheTtlMs(makeAnswer(0, TEST_TTL_SEC), 0));
+        // Errors, empty answers and unparseable answers are not cached.
+        assertEquals(0, DnsAnswerCache.getCacheTtlMs(makeAnswer(3, TEST_TTL_SEC), 3));
+        assertEquals(0, DnsAnswerCache.getCacheTtlMs(makeAnswer(0, 0), 0));
+        assertEquals(0, DnsAnswerCache.getCacheTtlMs(new byte[] { 1, 2, 3 }, 0));
+    }
+
+    @Test
+    public void testIsCacheable() {
+        assertTrue(DnsAnswerCache.isCacheable(FLAG_EMPTY));
+        assertTrue(DnsAnswerCache.isCacheable(DnsResolver.FLAG_NO_RETRY));
+        assertFalse(DnsAnswerCache.isCacheable(FLAG_NO_CACHE_LOOKUP));
+        assertFalse(DnsAnswerCache.isCacheable(DnsResolver.FLAG_NO_CACHE_STORE));
+    }
+
+    @Test
+    public void testCacheHitUntilTtlExpires() throws Exception {
+        final byte[] answer = makeAnswer(0, TEST_TTL_SEC);
+        final TestCallback cb1 = query(TEST_NETWORK, TEST_DOMAIN, TYPE_A);
+        assertEquals(1, mSentQueries.size());
+        assertEquals(TEST_NETWORK.getNetIdForResolv(), mSentQueries.get(0).netIdForResolv);
+        assertEquals(TEST_DOMAIN, mSentQueries.get(0).domain);
+        assertEquals(TYPE_A, mSentQueries.get(0).nsType);
+        answerLastQuery(answer, 0);
+        assertArrayEquals(answer, cb1.answer);
+
+        mNowMs += TEST_TTL_SEC * 1000L - 1;
+        final TestCallback cb2 = query(TEST_NETWORK, TEST_DOMAIN, TYPE_A);
+        assertEquals(1, mSentQueries.size());
+        // Less than a second of the TTL is left.
+        assertArrayEquals(makeAnswer(0, 0), cb2.answer);
+        assertEquals(0, cb2.rcode);
+        assertStats(1 /* hits */, 1 /* misses */, 0 /* coalesced */);
+
+        // Other types and other networks are separate entries.
+        query(TEST_NETWORK, TEST_DOMAIN, TYPE_AAAA);
+        query(OTHER_NETWORK, TEST_DOMAIN, TYPE_A);
+        assertEquals(3, mSentQueries.size());
+
+        mNowMs += 1;
+        query(TEST_NETWORK, TEST_DOMAIN, TYPE_A);
+        assertEquals(4, mSentQueries.size());
+        assertStats(1 /* hits */, 4 /* misses */, 0 /* coalesced */);
+    }
+
+    @Test
+    public void testCacheHitTtlDecremented() throws Exception {
+        query(TEST_NETWORK, TEST_DOMAIN, TYPE_A);
+        answerLastQuery(makeAnswer(0, TEST_TTL_SEC), 0);
+
+        // A hit right away gets the TTLs of the answer from the resolver.
+        assertArrayEquals(makeAnswer(0, TEST_TTL_SEC),
+                query(TEST_NETWORK, TEST_DOMAIN, TYPE_A).answer);
+
+        // Later hits get the remaining lifetime of the entry, in whole seconds.
+        mNowMs += 10_000L;
+        assertArrayEquals(makeAnswer(0, TEST_TTL_SEC - 10),
+                query(TEST_NETWORK, TEST_DOMAIN, TYPE_A).answer);
+        mNowMs += 500L;
+        assertArrayEquals(makeAnswer(0, TEST_TTL_SEC - 11),
+                query(TEST_NETWORK, TEST_DOMAIN, TYPE_A).answer);
+        assertEquals(1, mSentQueries.size());
+    }
+
+    @Test
+    public void testErrorsNotCached() throws Exception {
+        query(TEST_NETWORK, TEST_DOMAIN, TYPE_A);
+        answerLastQuery(makeAnswer(3 /* NXDOMAIN */, TEST_TTL_SEC), 3);
+        final TestCallback cb = query(TEST_NETWORK, TEST_DOMAIN, TYPE_A);
+        assertEquals(2, mSentQueries.size());
+
+        mSentQueries.get(1).callback.onError(new DnsResolver.DnsException(
+                DnsResolver.ERROR_SYSTEM, null));
+        assertEquals(DnsResolver.ERROR_SYSTEM, cb.error.code);
+        query(TEST_NETWORK, TEST_DOMAIN, TYPE_A);
+        assertEquals(3, mSentQueries.size());
+    }
+
+    @Test
+    public void testLruEviction() throws Exception {
+        final byte[] answer = makeAnswer(0, TEST_TTL_SEC);
+        query(TEST_NETWORK, TEST_DOMAIN, TYPE_A);
+        answerLastQuery(answer, 0);
+        query(TEST_NETWORK, OTHER_DOMAIN, TYPE_A);
+        answerLastQuery(answer, 0);
+        // Use the first entry, so the second one is the least recently used.
+        query(TEST_NETWORK, TEST_DOMAIN, TYPE_A);
+        query(TEST_NETWORK, TEST_DOMAIN, TYPE_AAAA);
+        answerLastQuery(answer, 0);
+        assertEquals(3, mSentQueries.size());
+
+        query(TEST_NETWORK, TEST_DOMAIN, TYPE_A);
+        assertEquals(3, mSentQueries.size());
+        query(TEST_NETWORK, OTHER_DOMAIN, TYPE_A);
+        assertEquals(4, mSentQueries.size());
+    }
+
+    @Test
+    public void testCoalesceInFlightQueries() throws Exception {
+        final byte[] answer = makeAnswer(0, TEST_TTL_SEC);
+        final TestCallback cb1 = query(TEST_NETWORK, TEST_DOMAIN, TYPE_A);
+        final TestCallback cb2 = query(TEST_NETWORK, TEST_DOMAIN, TYPE_A);
+        assertEquals(1, mSentQueries.size());
+        assertNull(cb2.answer);
+
+        answerLastQuery(answer, 0);
+        assertArrayEquals(answer, cb1.answer);
+        assertArrayEquals(answer, cb2.answer);
+        // Each caller gets its own copy of the answer.
+        assertFalse(cb1.answer == cb2.answer);
+        assertStats(0 /* hits */, 1 /* misses */, 1 /* coalesced */);
+    }
+
+    @Test
+    public void testCancelCoalescedQuery() throws Exception {
+        final CancellationSignal signal1 = new CancellationSignal();
+        final CancellationSignal signal2 = new CancellationSignal();
+        final TestCallback cb1 = new TestCallback();
+        final TestCallback cb2 = new TestCallback();
+        mCache.query(TEST_NETWORK, TEST_DOMAIN, CLASS_IN, TYPE_A, FLAG_EMPTY, Runnable::run,
+                signal1, cb1);
+        mCache.query(TEST_NETWORK, TEST_DOMAIN, CLASS_IN, TYPE_A, FLAG_EMPTY, Runnable::run,
+                signal2, cb2);
+        assertEquals(1, mSentQueries.size());
+
+        // The query is still needed by the second caller.
+        signal1.cancel();
+        assertFalse(mSentQueries.get(0).cancelled);
+        signal2.cancel();
+        assertTrue(mSentQueries.get(0).cancelled);
+
+        assertEquals(0, cb1.calls);
+        assertEquals(0, cb2.calls);
+        // A new query is not coalesced with the cancelled one.
+        query(TEST_NETWORK, TEST_DOMAIN, TYPE_A);
+        assertEquals(2, mSentQueries.size());
+    }
+
+    @Test
+    public void testInvalidateOnNetworkLost() throws Exception {
+        final byte[] answer = makeAnswer(0, TEST_TTL_SEC);
+        query(TEST_NETWORK, TEST_DOMAIN, TYPE_A);
+        answerLastQuery(answer, 0);
+        query(OTHER_NETWORK, TEST_DOMAIN, TYPE_A);
+        answerLastQuery(answer, 0);
+
+        mCache.onNetworkLost(TEST_NETWORK);
+        query(OTHER_NETWORK, TEST_DOMAIN, TYPE_A);
+        assertEquals(2, mSentQueries.size());
+        query(TEST_NETWORK, TEST_DOMAIN, TYPE_A);
+        assertEquals(3, mSentQueries.size());
+    }
+
+    @Test
+    public void testInvalidateInFlightQuery() throws Exception {
+        final TestCallback cb = query(TEST_NETWORK, TEST_DOMAIN, TYPE_A);
+        mCache.invalidate(TEST_NETWORK.getNetId());
+        // The answer is still delivered, but not cached.
+        answerLastQuery(makeAnswer(0, TEST_TTL_SEC), 0);
+        assertEquals(1, cb.calls);
+        query(TEST_NETWORK, TEST_DOMAIN, TYPE_A);
+        assertEquals(2, mSentQueries.size());
+    }
+
+    @Test
+    public void testInvalidateOnDnsConfigChange() throws Exception {
+        final byte[] answer = makeAnswer(0, TEST_TTL_SEC);
+        final LinkProperties lp = new LinkProperties();
+        lp.addDnsServer(InetAddress.getByName("192.0.2.53"));
+        mCache.onLinkPropertiesChanged(TEST_NETWORK, lp);
+        query(TEST_NETWORK, TEST_DOMAIN, TYPE_A);
+        answerLastQuery(answer, 0);
+
+        // Changes unrelated to DNS keep the answers.
+        final LinkProperties lp2 = new LinkProperties(lp);
+        lp2.setMtu(1280);
+        mCache.onLinkPropertiesChanged(TEST_NETWORK, lp2);
+        query(TEST_NETWORK, TEST_DOMAIN, TYPE_A);
+        assertEquals(1, mSentQueries.size());
+
+        final LinkProperties lp3 = new LinkProperties(lp2);
+        lp3.addDnsServer(InetAddress.getByName("2001:db8::53"));
+        mCache.onLinkPropertiesChanged(TEST_NETWORK, lp3);
+        query(TEST_NETWORK, TEST_DOMAIN, TYPE_A);
+        assertEquals(2, mSentQueries.size());
+    }
+
+    @Test
+    public void testCacheHitDeliveredWithoutLock() throws Exception {
+        query(TEST_NETWORK, TEST_DOMAIN, TYPE_A);
+        answerLastQuery(makeAnswer(0, TEST_TTL_SEC), 0);
+
+        // The executor waits for another thread to use the cache. This would never complete if
+        // the cache lock were held while dispatching the answer.
+        final TestCallback cb = new TestCallback();
+        final Thread other = new Thread(() -> mCache.getStats());
+        mCache.query(TEST_NETWORK, TEST_DOMAIN, CLASS_IN, TYPE_A, FLAG_EMPTY, r -> {
+            other.start();
+            try {
+                other.join(TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            r.run();
+        }, null /* cancellationSignal */, cb);
+        assertFalse(other.isAlive());
+        assertEquals(1, cb.calls);
+        assertEquals(0, cb.rcode);
+    }
+}
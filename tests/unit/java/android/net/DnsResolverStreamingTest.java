@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net;
+
+import static android.net.DnsResolver.CLASS_IN;
+import static android.net.DnsResolver.ERROR_SYSTEM;
+import static android.net.DnsResolver.TYPE_A;
+import static android.net.DnsResolver.TYPE_AAAA;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.annotation.NonNull;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.test.TestLooper;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.testutils.DevSdkIgnoreRule;
+import com.android.testutils.DevSdkIgnoreRunner;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(DevSdkIgnoreRunner.class)
+@SmallTest
+@DevSdkIgnoreRule.IgnoreUpTo(Build.VERSION_CODES.R)
+public class DnsResolverStreamingTest {
+    private static final String TEST_DOMAIN = "www.example.com";
+    private static final long TEST_DELAY_MS = 50;
+    // Loopback addresses always have a source address, so their relative order is fixed.
+    private static final InetAddress TEST_V4_ADDR = InetAddresses.parseNumericAddress("127.0.0.1");
+    private static final InetAddress TEST_V6_ADDR = InetAddresses.parseNumericAddress("::1");
+
+    private final TestLooper mLooper = new TestLooper();
+    private final CancellationSignal mCancellationSignal = new CancellationSignal();
+    private final TestStreamingCallback mCallback = new TestStreamingCallback();
+
+    private static class TestStreamingCallback implements DnsResolver.StreamingCallback {
+        final List<List<InetAddress>> partialAnswers = new ArrayList<>();
+        List<InetAddress> answer;
+        int rcode = -1;
+        DnsResolver.DnsException error;
+        int calls;
+
+        @Override
+        public void onPartialAnswer(@NonNull List<InetAddress> addresses) {
+            partialAnswers.add(addresses);
+        }
+
+        @Override
+        public void onAnswer(@NonNull List<InetAddress> answer, int rcode) {
+            this.answer = answer;
+            this.rcode = rcode;
+            calls++;
+        }
+
+        @Override
+        public void onError(@NonNull DnsResolver.DnsException error) {
+            this.error = error;
+            calls++;
+        }
+    }
+
+    private DnsResolver.StreamingAnswerAccumulator makeAccumulator(boolean queryIpv6,
+            boolean queryIpv4, long resolutionDelayMs) {
+        return new DnsResolver.StreamingAnswerAccumulator(null /* network */, queryIpv6,
+                queryIpv4, resolutionDelayMs, Runnable::run, mCancellationSignal, mCallback,
+                new Handler(mLooper.getLooper()));
+    }
+
+    // Builds a response for TEST_DOMAIN with one record of the given type.
+    private static byte[] makeAnswer(int nsType, InetAddress addr) {
+        final ByteBuffer buf = ByteBuffer.allocate(512);
+        buf.putShort((short) 0x1234);  // ID
+        buf.putShort((short) 0x8180);  // QR, RD, RA
+        buf.putShort((short) 1);  // QDCOUNT
+        buf.putShort((short) 1);  // ANCOUNT
+        buf.putShort((short) 0);  // NSCOUNT
+        buf.putShort((short) 0);  // ARCOUNT
+        for (String label : TEST_DOMAIN.split("\\.")) {
+            buf.put((byte) label.length());
+            buf.put(label.getBytes());
+        }
+        buf.put((byte) 0);
+        buf.putShort((short) nsType);
+        buf.putShort((short) CLASS_IN);
+        buf.putShort((short) 0xc00c);  // Pointer to the name in the question
+        buf.putShort((short) nsType);
+        buf.putShort((short) CLASS_IN);
+        buf.putInt(30);  // TTL
+        final byte[] rdata = addr.getAddress();
+        buf.putShort((short) rdata.length);
+        buf.put(rdata);
+        final byte[] answer = new byte[buf.position()];
+        buf.flip();
+        buf.get(answer);
+        return answer;
+    }
+
+    private static DnsResolver.DnsException makeError() {
+        return new DnsResolver.DnsException(ERROR_SYSTEM,
+                new ErrnoException("resNetworkResult", OsConstants.ETIMEDOUT));
+    }
+
+    private void moveTimeForward(long ms) {
+        mLooper.moveTimeForward(ms);
+        mLooper.dispatchAll();
+    }
+
+    @Test
+    public void testIpv6FirstIsDeliveredImmediately() {
+        final DnsResolver.StreamingAnswerAccumulator accumulator =
+                makeAccumulator(true /* queryIpv6 */, true /* queryIpv4 */, TEST_DELAY_MS);
+        accumulator.forQueryType(TYPE_AAAA).onAnswer(makeAnswer(TYPE_AAAA, TEST_V6_ADDR), 0);
+        assertEquals(List.of(List.of(TEST_V6_ADDR)), mCallback.partialAnswers);
+        assertEquals(0, mCallback.calls);
+
+        // Once the AAAA answer arrived, IPv4 addresses are not held back.
+        accumulator.forQueryType(TYPE_A).onAnswer(makeAnswer(TYPE_A, TEST_V4_ADDR), 0);
+        assertEquals(List.of(List.of(TEST_V6_ADDR), List.of(TEST_V4_ADDR)),
+                mCallback.partialAnswers);
+        assertEquals(1, mCallback.calls);
+        assertEquals(List.of(TEST_V6_ADDR, TEST_V4_ADDR), mCallback.answer);
+        assertEquals(0, mCallback.rcode);
+    }
+
+    @Test
+    public void testIpv4HeldBackUntilIpv6Arrives() {
+        final DnsResolver.StreamingAnswerAccumulator accumulator =
+                makeAccumulator(true /* queryIpv6 */, true /* queryIpv4 */, TEST_DELAY_MS);
+        accumulator.forQueryType(TYPE_A).onAnswer(makeAnswer(TYPE_A, TEST_V4_ADDR), 0);
+        assertTrue(mCallback.partialAnswers.isEmpty());
+        moveTimeForward(TEST_DELAY_MS - 1);
+        assertTrue(mCallback.partialAnswers.isEmpty());
+
+        // The AAAA answer arriving within the delay releases the IPv4 addresses after it.
+        accumulator.forQueryType(TYPE_AAAA).onAnswer(makeAnswer(TYPE_AAAA, TEST_V6_ADDR), 0);
+        assertEquals(List.of(List.of(TEST_V6_ADDR), List.of(TEST_V4_ADDR)),
+                mCallback.partialAnswers);
+        assertEquals(1, mCallback.calls);
+        assertEquals(List.of(TEST_V6_ADDR, TEST_V4_ADDR), mCallback.answer);
+
+        // The expired delay does not deliver the IPv4 addresses again.
+        moveTimeForward(TEST_DELAY_MS);
+        assertEquals(2, mCallback.partialAnswers.size());
+        assertEquals(1, mCallback.calls);
+    }
+
+    @Test
+    public void testIpv4ReleasedAfterResolutionDelay() {
+        final DnsResolver.StreamingAnswerAccumulator accumulator =
+                makeAccumulator(true /* queryIpv6 */, true /* queryIpv4 */, TEST_DELAY_MS);
+        accumulator.forQueryType(TYPE_A).onAnswer(makeAnswer(TYPE_A, TEST_V4_ADDR), 0);
+        moveTimeForward(TEST_DELAY_MS - 1);
+        assertTrue(mCallback.partialAnswers.isEmpty());
+        moveTimeForward(1);
+        assertEquals(List.of(List.of(TEST_V4_ADDR)), mCallback.partialAnswers);
+        assertEquals(0, mCallback.calls);
+
+        // The final answer contains both families, sorted together.
+        accumulator.forQueryType(TYPE_AAAA).onAnswer(makeAnswer(TYPE_AAAA, TEST_V6_ADDR), 0);
+        assertEquals(List.of(List.of(TEST_V4_ADDR), List.of(TEST_V6_ADDR)),
+                mCallback.partialAnswers);
+        assertEquals(1, mCallback.calls);
+        assertEquals(List.of(TEST_V6_ADDR, TEST_V4_ADDR), mCallback.answer);
+    }
+
+    @Test
+    public void testNoResolutionDelay() {
+        final DnsResolver.StreamingAnswerAccumulator accumulator =
+                makeAccumulator(true /* queryIpv6 */, true /* queryIpv4 */, 0 /* delay */);
+        accumulator.forQueryType(TYPE_A).onAnswer(makeAnswer(TYPE_A, TEST_V4_ADDR), 0);
+        assertEquals(List.of(List.of(TEST_V4_ADDR)), mCallback.partialAnswers);
+    }
+
+    @Test
+    public void testIpv4OnlyIsNotHeldBack() {
+        final DnsResolver.StreamingAnswerAccumulator accumulator =
+                makeAccumulator(false /* queryIpv6 */, true /* queryIpv4 */, TEST_DELAY_MS);
+        accumulator.forQueryType(TYPE_A).onAnswer(makeAnswer(TYPE_A, TEST_V4_ADDR), 0);
+        assertEquals(List.of(List.of(TEST_V4_ADDR)), mCallback.partialAnswers);
+        assertEquals(1, mCallback.calls);
+        assertEquals(List.of(TEST_V4_ADDR), mCallback.answer);
+    }
+
+    @Test
+    public void testIpv6ErrorReleasesIpv4() {
+        final DnsResolver.StreamingAnswerAccumulator accumulator =
+                makeAccumulator(true /* queryIpv6 */, true /* queryIpv4 */, TEST_DELAY_MS);
+        accumulator.forQueryType(TYPE_A).onAnswer(makeAnswer(TYPE_A, TEST_V4_ADDR), 0);
+        assertTrue(mCallback.partialAnswers.isEmpty());
+
+        // A failed AAAA query does not make the IPv4 addresses wait for the delay, and the
+        // addresses that were found are still reported.
+        accumulator.forQueryType(TYPE_AAAA).onError(makeError());
+        assertEquals(List.of(List.of(TEST_V4_ADDR)), mCallback.partialAnswers);
+        assertEquals(1, mCallback.calls);
+        assertNull(mCallback.error);
+        assertEquals(List.of(TEST_V4_ADDR), mCallback.answer);
+        assertEquals(0, mCallback.rcode);
+    }
+
+    @Test
+    public void testBothQueriesFail() {
+        final DnsResolver.StreamingAnswerAccumulator accumulator =
+                makeAccumulator(true /* queryIpv6 */, true /* queryIpv4 */, TEST_DELAY_MS);
+        final DnsResolver.DnsException error = makeError();
+        accumulator.forQueryType(TYPE_AAAA).onError(makeError());
+        accumulator.forQueryType(TYPE_A).onError(error);
+        assertTrue(mCallback.partialAnswers.isEmpty());
+        assertEquals(1, mCallback.calls);
+        assertNull(mCallback.answer);
+        assertSame(error, mCallback.error);
+    }
+
+    @Test
+    public void testCancelDropsHeldBackIpv4() {
+        final DnsResolver.StreamingAnswerAccumulator accumulator =
+                makeAccumulator(true /* queryIpv6 */, true /* queryIpv4 */, TEST_DELAY_MS);
+        accumulator.forQueryType(TYPE_A).onAnswer(makeAnswer(TYPE_A, TEST_V4_ADDR), 0);
+        mCancellationSignal.cancel();
+        moveTimeForward(TEST_DELAY_MS);
+        assertTrue(mCallback.partialAnswers.isEmpty());
+        assertEquals(0, mCallback.calls);
+    }
+}
@@ -24,10 +24,12 @@ import static android.net.NetworkStats.METERED_NO;
 import static android.net.NetworkStats.ROAMING_NO;
 import static android.net.NetworkStats.SET_ALL;
 import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.SET_FOREGROUND;
 import static android.net.NetworkStats.TAG_NONE;
 import static android.net.NetworkStats.UID_ALL;
 import static android.net.NetworkStatsHistory.FIELD_ALL;
 import static android.net.NetworkTemplate.buildTemplateMobileAll;
+import static android.net.TrafficStats.UID_REMOVED;
 import static android.os.Process.myUid;
 import static android.text.format.DateUtils.HOUR_IN_MILLIS;
 import static android.text.format.DateUtils.MINUTE_IN_MILLIS;
@@ -39,6 +41,8 @@ import static com.android.testutils.MiscAsserts.assertThrows;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import android.annotation.NonNull;
@@ -50,6 +54,7 @@ import android.telephony.SubscriptionPlan;
 import android.telephony.TelephonyManager;
 import android.text.format.DateUtils;
 import android.util.ArrayMap;
+import android.util.IndentingPrintWriter;
 import android.util.RecurrenceRule;
 
 import androidx.test.InstrumentationRegistry;
@@ -74,6 +79,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.StringWriter;
 import java.time.Clock;
 import java.time.Instant;
 import java.time.ZoneId;
@@ -621,6 +627,100 @@ public class NetworkStatsCollectionTest {
         assertEquals(0, collection.getEntries().size());
     }
 
+    @Test
+    public void testDumpHeapUsage() {
+        final NetworkIdentity testIdent = new NetworkIdentity.Builder()
+                .setSubscriberId(TEST_IMSI).build();
+        final Key key1 = new Key(Set.of(testIdent), 0, 0, 0);
+        final Key key2 = new Key(Set.of(testIdent), 0, 0, 1);
+        final Key key3 = new Key(Set.of(testIdent), 1, 0, 0);
+        final NetworkStatsHistory.Entry entry1 = new NetworkStatsHistory.Entry(10, 10, 40,
+                4, 50, 5, 60);
+        final NetworkStatsHistory.Entry entry2 = new NetworkStatsHistory.Entry(20, 10, 3,
+                41, 7, 1, 0);
+        final NetworkStatsHistory history1 = new NetworkStatsHistory.Builder(10, 5)
+                .addEntry(entry1)
+                .addEntry(entry2)
+                .build();
+        final NetworkStatsHistory history2 = new NetworkStatsHistory.Builder(10, 5)
+                .addEntry(entry2)
+                .build();
+        final NetworkStatsCollection collection = new NetworkStatsCollection.Builder(10)
+                .addEntry(key1, history1)
+                .addEntry(key2, history2)
+                .addEntry(key3, history2)
+                .build();
+
+        final StringWriter sw = new StringWriter();
+        collection.dumpHeapUsage(new IndentingPrintWriter(sw, "  "));
+        final String prefix = "keys=3 uids=2 idents=1 buckets=4 bucketHeapBytes=";
+        final String dump = sw.toString().trim();
+        assertTrue(dump, dump.startsWith(prefix));
+        // At least the bucket start and the four counters of each of the 4 buckets.
+        assertTrue(dump, Long.parseLong(dump.substring(prefix.length())) >= 4 * 5 * Long.BYTES);
+    }
+
+    @Test
+    public void testKeysShareEqualIdentitySets() {
+        final NetworkIdentity testIdent = new NetworkIdentity.Builder()
+                .setSubscriberId(TEST_IMSI).build();
+        final NetworkStatsCollection collection = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        entry.rxBytes = 32;
+        // Each key is recorded with a different, equal identity set.
+        collection.recordData(new NetworkIdentitySet(Set.of(testIdent)), 0, SET_DEFAULT,
+                TAG_NONE, 0, HOUR_IN_MILLIS, entry);
+        collection.recordData(new NetworkIdentitySet(Set.of(testIdent)), 1, SET_DEFAULT,
+                TAG_NONE, 0, HOUR_IN_MILLIS, entry);
+        collection.recordData(new NetworkIdentitySet(Set.of(testIdent)), 1, SET_FOREGROUND,
+                TAG_NONE, 0, HOUR_IN_MILLIS, entry);
+
+        final Set<Key> keys = collection.getEntries().keySet();
+        assertEquals(3, keys.size());
+        final NetworkIdentitySet ident = keys.iterator().next().ident;
+        for (Key key : keys) {
+            assertSame(ident, key.ident);
+        }
+    }
+
+    @Test
+    public void testGetHistoryAfterRemoveUids() throws Exception {
+        final NetworkStatsCollection collection = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        final NetworkIdentitySet identSet = new NetworkIdentitySet();
+        identSet.add(new NetworkIdentity(TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_UNKNOWN,
+                TEST_IMSI, null, false, true, true, OEM_NONE, TEST_SUBID));
+        final NetworkTemplate template = buildTemplateMobileAll(TEST_IMSI);
+        final int uid = Process.myUid();
+        final int otherUid = uid + 1;
+
+        entry.rxBytes = 32;
+        collection.recordData(identSet, uid, SET_DEFAULT, TAG_NONE, 0, HOUR_IN_MILLIS, entry);
+        entry.rxBytes = 64;
+        collection.recordData(identSet, otherUid, SET_DEFAULT, TAG_NONE, 0, HOUR_IN_MILLIS,
+                entry);
+        assertEquals(32, collection.getHistory(template, null, uid, SET_ALL, TAG_NONE,
+                FIELD_ALL, 0, HOUR_IN_MILLIS, NetworkStatsAccess.Level.DEVICE, uid)
+                .getTotalBytes());
+
+        // Removed uids are migrated to UID_REMOVED, and must not be returned any more.
+        collection.removeUids(new int[] { uid });
+        assertEquals(0, collection.getHistory(template, null, uid, SET_ALL, TAG_NONE,
+                FIELD_ALL, 0, HOUR_IN_MILLIS, NetworkStatsAccess.Level.DEVICE, uid)
+                .getTotalBytes());
+        assertEquals(32, collection.getHistory(template, null, UID_REMOVED, SET_ALL, TAG_NONE,
+                FIELD_ALL, 0, HOUR_IN_MILLIS, NetworkStatsAccess.Level.DEVICE, uid)
+                .getTotalBytes());
+        assertEquals(64, collection.getHistory(template, null, otherUid, SET_ALL, TAG_NONE,
+                FIELD_ALL, 0, HOUR_IN_MILLIS, NetworkStatsAccess.Level.DEVICE, uid)
+                .getTotalBytes());
+
+        collection.reset();
+        assertEquals(0, collection.getHistory(template, null, otherUid, SET_ALL, TAG_NONE,
+                FIELD_ALL, 0, HOUR_IN_MILLIS, NetworkStatsAccess.Level.DEVICE, uid)
+                .getTotalBytes());
+    }
+
     /**
      * Copy a {@link Resources#openRawResource(int)} into {@link File} for
      * testing purposes.
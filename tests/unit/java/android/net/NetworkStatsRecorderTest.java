@@ -20,16 +20,25 @@ import static android.text.format.DateUtils.HOUR_IN_MILLIS;
 
 import static com.android.testutils.DevSdkIgnoreRuleKt.SC_V2;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.anyLong;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
+import android.net.NetworkIdentity;
+import android.net.NetworkIdentitySet;
 import android.net.NetworkStats;
+import android.net.NetworkStatsCollection;
 import android.os.DropBoxManager;
 
 import androidx.test.filters.SmallTest;
@@ -45,6 +54,10 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
 
 @RunWith(DevSdkIgnoreRunner.class)
 @SmallTest
@@ -67,6 +80,114 @@ public final class NetworkStatsRecorderTest {
                     HOUR_IN_MILLIS, false /* includeTags */, wipeOnError);
     }
 
+    private static final String TEST_IFACE = "wlan0";
+
+    private static NetworkStats buildSnapshot(long elapsedRealtime, long rxBytes) {
+        return new NetworkStats(elapsedRealtime, 1).insertEntry(TEST_IFACE, 10000,
+                NetworkStats.SET_DEFAULT, NetworkStats.TAG_NONE, rxBytes, 1L, 0L, 0L, 0L);
+    }
+
+    private static void recordSnapshot(NetworkStatsRecorder recorder, long elapsedRealtime,
+            long rxBytes) {
+        final NetworkIdentitySet ident = new NetworkIdentitySet();
+        ident.add(new NetworkIdentity.Builder().setSubscriberId("310260000000000").build());
+        recorder.recordSnapshotLocked(buildSnapshot(elapsedRealtime, rxBytes),
+                Map.of(TEST_IFACE, ident), HOUR_IN_MILLIS);
+    }
+
+    @Test
+    public void testForcePersist_writesOnPersistExecutor() throws Exception {
+        final FileRotator rotator = mock(FileRotator.class);
+        final NetworkStatsRecorder recorder = buildRecorder(rotator, true);
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        recorder.setPersistExecutor(tasks::add);
+
+        recordSnapshot(recorder, 0, 0);
+        recordSnapshot(recorder, 1000, 1024);
+        recorder.forcePersistLocked(HOUR_IN_MILLIS);
+        // The write is handed off, and nothing is left pending in the meantime.
+        verify(rotator, never()).rewriteActive(any(), anyLong());
+        assertEquals(1, tasks.size());
+
+        tasks.poll().run();
+        verify(rotator).rewriteActive(any(), anyLong());
+        verify(rotator).maybeRotate(HOUR_IN_MILLIS);
+        recorder.awaitPendingWriteLocked();
+        assertEquals(1, Arrays.stream(recorder.getWriteLatencyCounts()).sum());
+
+        // Nothing is pending any more, so no new write is handed off.
+        recorder.forcePersistLocked(HOUR_IN_MILLIS);
+        assertNull(tasks.poll());
+    }
+
+    @Test
+    public void testForcePersist_keepsPendingOnWriteError() throws Exception {
+        final FileRotator rotator = mock(FileRotator.class);
+        final NetworkStatsRecorder recorder = buildRecorder(rotator, true);
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        recorder.setPersistExecutor(tasks::add);
+        doThrow(new IOException()).when(rotator).rewriteActive(any(), anyLong());
+
+        recordSnapshot(recorder, 0, 0);
+        recordSnapshot(recorder, 1000, 1024);
+        recorder.forcePersistLocked(HOUR_IN_MILLIS);
+        tasks.poll().run();
+        verify(rotator).deleteAll();
+
+        // Deltas recorded while the write was in flight are kept along with the failed ones.
+        recordSnapshot(recorder, 2000, 1024 + 2048);
+        final NetworkStatsCollection loaded =
+                recorder.getOrLoadPartialLocked(Long.MIN_VALUE, Long.MAX_VALUE);
+        assertEquals(1024 + 2048, loaded.getTotalBytes());
+    }
+
+    @Test
+    public void testGetOrLoadPartial_readsOnlyFilesOverlappingWindow() throws Exception {
+        final FileRotator rotator = mock(FileRotator.class);
+        final NetworkStatsRecorder recorder = buildRecorder(rotator, true);
+
+        // The files holding the bucket before the window are read as well.
+        recorder.getOrLoadPartialLocked(10 * HOUR_IN_MILLIS, 20 * HOUR_IN_MILLIS);
+        verify(rotator).readMatching(any(), eq(9 * HOUR_IN_MILLIS), eq(20 * HOUR_IN_MILLIS));
+
+        // Widening an unbounded window does not overflow.
+        recorder.getOrLoadPartialLocked(Long.MIN_VALUE, Long.MAX_VALUE);
+        verify(rotator).readMatching(any(), eq(Long.MIN_VALUE), eq(Long.MAX_VALUE));
+
+        // Once the complete history is loaded, it is returned instead of reading files.
+        final NetworkStatsCollection complete = recorder.getOrLoadCompleteLocked();
+        reset(rotator);
+        assertSame(complete,
+                recorder.getOrLoadPartialLocked(10 * HOUR_IN_MILLIS, 20 * HOUR_IN_MILLIS));
+        verify(rotator, never()).readMatching(any(), anyLong(), anyLong());
+    }
+
+    @Test
+    public void testGetWriteBlockingLoad() throws Exception {
+        final FileRotator rotator = mock(FileRotator.class);
+        final NetworkStatsRecorder recorder = buildRecorder(rotator, true);
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        recorder.setPersistExecutor(tasks::add);
+        assertNull(recorder.getWriteBlockingLoadLocked());
+
+        recordSnapshot(recorder, 0, 0);
+        recordSnapshot(recorder, 1000, 1024);
+        recorder.forcePersistLocked(HOUR_IN_MILLIS);
+        assertNotNull(recorder.getWriteBlockingLoadLocked());
+
+        // A completed write does not need to be waited for, even before it is awaited.
+        tasks.poll().run();
+        assertNull(recorder.getWriteBlockingLoadLocked());
+
+        // Loads answered from the cached complete history do not wait for writes.
+        final NetworkStatsCollection complete = recorder.getOrLoadCompleteLocked();
+        recordSnapshot(recorder, 2000, 1024 + 2048);
+        recorder.forcePersistLocked(HOUR_IN_MILLIS);
+        assertEquals(1, tasks.size());
+        assertNull(recorder.getWriteBlockingLoadLocked());
+        assertEquals(1024 + 2048, complete.getTotalBytes());
+    }
+
     @Test
     public void testWipeOnError() throws Exception {
         final FileRotator rotator = mock(FileRotator.class);
@@ -38,6 +38,7 @@ import static android.net.NetworkStats.UID_ALL;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
 
 import android.os.Build;
@@ -144,6 +145,71 @@ public class NetworkStatsTest {
         }
     }
 
+    @Test
+    public void testFindIndex_largeStats() {
+        final int count = 1000;
+        final NetworkStats stats = new NetworkStats(TEST_START, 10);
+        for (int i = 0; i < count; i++) {
+            stats.insertEntry(i % 2 == 0 ? TEST_IFACE : TEST_IFACE2, 10000 + i / 4,
+                    i % 4 < 2 ? SET_DEFAULT : SET_FOREGROUND, TAG_NONE, METERED_NO, ROAMING_NO,
+                    DEFAULT_NETWORK_NO, i, 1L, 0L, 0L, 0L);
+        }
+        // Duplicate of row 8, which must keep resolving to the first row.
+        stats.insertEntry(TEST_IFACE, 10002, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                DEFAULT_NETWORK_NO, 0L, 0L, 0L, 0L, 0L);
+
+        for (int i = 0; i < count; i++) {
+            final String iface = i % 2 == 0 ? TEST_IFACE : TEST_IFACE2;
+            final int set = i % 4 < 2 ? SET_DEFAULT : SET_FOREGROUND;
+            assertEquals(i, stats.findIndex(iface, 10000 + i / 4, set, TAG_NONE, METERED_NO,
+                    ROAMING_NO, DEFAULT_NETWORK_NO));
+            assertEquals(i, stats.findIndexHinted(iface, 10000 + i / 4, set, TAG_NONE,
+                    METERED_NO, ROAMING_NO, DEFAULT_NETWORK_NO, count - i));
+        }
+        assertEquals(-1, stats.findIndex(TEST_IFACE, 10000, SET_DEFAULT, TAG_NONE, METERED_YES,
+                ROAMING_NO, DEFAULT_NETWORK_NO));
+        assertEquals(-1, stats.findIndex(null, 10000, SET_DEFAULT, TAG_NONE, METERED_NO,
+                ROAMING_NO, DEFAULT_NETWORK_NO));
+
+        // Mutations that move or rewrite rows must not leave stale index entries behind.
+        stats.filter(10001, INTERFACES_ALL, TAG_ALL);
+        assertEquals(-1, stats.findIndex(TEST_IFACE, 10000, SET_DEFAULT, TAG_NONE, METERED_NO,
+                ROAMING_NO, DEFAULT_NETWORK_NO));
+        stats.clearInterfaces();
+        assertEquals(0, stats.findIndex(null, 10001, SET_DEFAULT, TAG_NONE, METERED_NO,
+                ROAMING_NO, DEFAULT_NETWORK_NO));
+    }
+
+    @Test
+    public void testSubtractAndCombine_largeStats() {
+        final int count = 5000;
+        final NetworkStats before = new NetworkStats(TEST_START, 10);
+        final NetworkStats after = new NetworkStats(TEST_START, 10);
+        for (int i = 0; i < count; i++) {
+            before.insertEntry(TEST_IFACE, 10000 + i, SET_DEFAULT, i % 3, METERED_NO, ROAMING_NO,
+                    DEFAULT_NETWORK_NO, 100L, 10L, 50L, 5L, 1L);
+        }
+        // Reverse the row order so that the hinted row never matches.
+        for (int i = count - 1; i >= 0; i--) {
+            after.insertEntry(TEST_IFACE, 10000 + i, SET_DEFAULT, i % 3, METERED_NO, ROAMING_NO,
+                    DEFAULT_NETWORK_NO, 100L + i, 10L + i, 50L, 5L, 1L);
+        }
+
+        final NetworkStats delta = after.subtract(before);
+        assertEquals(count, delta.size());
+        for (int i = 0; i < count; i++) {
+            assertContains(delta, TEST_IFACE, 10000 + i, SET_DEFAULT, i % 3, METERED_NO,
+                    ROAMING_NO, DEFAULT_NETWORK_NO, i, i, 0L, 0L, 0L);
+        }
+
+        before.combineAllValues(delta);
+        assertEquals(count, before.size());
+        for (int i = 0; i < count; i++) {
+            assertValues(before, i, TEST_IFACE, 10000 + i, SET_DEFAULT, i % 3, METERED_NO,
+                    ROAMING_NO, DEFAULT_NETWORK_NO, 100L + i, 10L + i, 50L, 5L, 1L);
+        }
+    }
+
     @Test
     public void testAddEntryGrow() throws Exception {
         final NetworkStats stats = new NetworkStats(TEST_START, 4);
@@ -1067,6 +1133,51 @@ public class NetworkStatsTest {
         }
     }
 
+    @Test
+    public void testRowCursor() {
+        final NetworkStats emptyStats = new NetworkStats(0, 0);
+        final NetworkStats.RowCursor row = new NetworkStats.RowCursor(emptyStats);
+        assertFalse(row.moveToNext());
+
+        final NetworkStats stats = new NetworkStats(TEST_START, 1)
+                .insertEntry("test1", 10100, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                        DEFAULT_NETWORK_NO, 1024L, 50L, 100L, 20L, 0L)
+                .insertEntry("test2", 10101, SET_FOREGROUND, 0xF0DD, METERED_YES, ROAMING_YES,
+                        DEFAULT_NETWORK_YES, 0L, 0L, 0L, 0L, 0L)
+                .insertEntry("test3", 10102, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                        DEFAULT_NETWORK_NO, -1L, 0L, 0L, 0L, 0L);
+        row.reset(stats);
+        for (int i = 0; i < stats.size(); i++) {
+            assertTrue(row.moveToNext());
+            assertEquals(i, row.getIndex());
+            assertEquals(stats.getValues(i, null), row.getValues(null));
+        }
+        assertFalse(row.moveToNext());
+
+        row.moveTo(1);
+        assertEquals("test2", row.getIface());
+        assertEquals(10101, row.getUid());
+        assertEquals(SET_FOREGROUND, row.getSet());
+        assertEquals(0xF0DD, row.getTag());
+        assertEquals(METERED_YES, row.getMetered());
+        assertEquals(ROAMING_YES, row.getRoaming());
+        assertEquals(DEFAULT_NETWORK_YES, row.getDefaultNetwork());
+        assertTrue(row.isEmpty());
+        assertFalse(row.isNegative());
+
+        row.moveTo(0);
+        assertEquals(1024L, row.getRxBytes());
+        assertEquals(50L, row.getRxPackets());
+        assertEquals(100L, row.getTxBytes());
+        assertEquals(20L, row.getTxPackets());
+        assertEquals(0L, row.getOperations());
+        assertFalse(row.isEmpty());
+
+        row.moveTo(2);
+        assertTrue(row.isNegative());
+        assertThrows(IndexOutOfBoundsException.class, () -> row.moveTo(3));
+    }
+
     @Test
     public void testClearInterfaces() {
         final NetworkStats stats = new NetworkStats(TEST_START, 1);
@@ -190,6 +190,7 @@ import static com.android.testutils.TestPermissionUtil.runAsShell;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.containsString;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
@@ -2092,6 +2093,8 @@ public class ConnectivityServiceTest {
             switch (name) {
                 case ConnectivityFlags.NO_REMATCH_ALL_REQUESTS_ON_REGISTER:
                     return true;
+                case ConnectivityFlags.INCREMENTAL_REMATCH:
+                    return true;
                 case KEY_DESTROY_FROZEN_SOCKETS_VERSION:
                     return true;
                 default:
@@ -2099,6 +2102,13 @@ public class ConnectivityServiceTest {
             }
         }
 
+        @Override
+        public boolean shouldVerifyIncrementalRematch() {
+            // Check every incremental rematch against a full rematch, so that all tests in this
+            // class double as a differential test of the incremental rematch.
+            return true;
+        }
+
         public void setChangeIdEnabled(final boolean enabled, final long changeId, final int uid) {
             final Pair<Long, Integer> data = new Pair<>(changeId, uid);
             // mEnabledChangeIds is read on the handler thread and maybe the test thread, so
@@ -8151,6 +8161,31 @@ public class ConnectivityServiceTest {
         reset(mMockDnsResolver);
     }
 
+    @Test
+    public void testUnchangedPrivateDnsSettingsStillPushed() throws Exception {
+        setPrivateDnsSettings(PRIVATE_DNS_MODE_OPPORTUNISTIC, "ignored.example.com");
+
+        final LinkProperties cellLp = new LinkProperties();
+        cellLp.setInterfaceName(MOBILE_IFNAME);
+        cellLp.addLinkAddress(new LinkAddress("192.0.2.4/24"));
+        cellLp.addRoute(new RouteInfo((IpPrefix) null, InetAddress.getByName("192.0.2.4"),
+                MOBILE_IFNAME));
+        cellLp.addDnsServer(InetAddress.getByName("192.0.2.1"));
+        mCellAgent = new TestNetworkAgentWrapper(TRANSPORT_CELLULAR, cellLp);
+        mCellAgent.connect(false);
+        waitForIdle();
+        reset(mMockDnsResolver);
+
+        // Re-applying the same private DNS settings sends the same configuration again, so that
+        // the resolver retries the validation of the private DNS servers that failed.
+        setPrivateDnsSettings(PRIVATE_DNS_MODE_OPPORTUNISTIC, "ignored.example.com");
+        verify(mMockDnsResolver, times(1)).setResolverConfiguration(
+                mResolverParamsParcelCaptor.capture());
+        final ResolverParamsParcel resolverParams = mResolverParamsParcelCaptor.getValue();
+        assertArrayEquals(new String[] { "192.0.2.1" }, resolverParams.tlsServers);
+        reset(mMockDnsResolver);
+    }
+
     @Test
     public void testPrivateDnsNotification() throws Exception {
         NetworkRequest request = new NetworkRequest.Builder()
@@ -9697,6 +9732,36 @@ public class ConnectivityServiceTest {
         mCm.unregisterNetworkCallback(cellNetworkCallback);
     }
 
+    @Test
+    public void testNetworkBlockedStatusCoalesced() throws Exception {
+        final DetailedBlockedStatusCallback detailedCallback = new DetailedBlockedStatusCallback();
+        mCm.registerNetworkCallback(new NetworkRequest.Builder()
+                .addTransportType(TRANSPORT_CELLULAR)
+                .build(), detailedCallback);
+        mockUidNetworkingBlocked();
+
+        mCellAgent = new TestNetworkAgentWrapper(TRANSPORT_CELLULAR);
+        mCellAgent.connect(true);
+        detailedCallback.expectAvailableThenValidatedCallbacks(mCellAgent, BLOCKED_REASON_NONE);
+
+        // Hold the handler thread so that several changes are pending when it runs again.
+        final ConditionVariable handlerBlocked = new ConditionVariable();
+        mCsHandlerThread.getThreadHandler().post(() -> handlerBlocked.block(TIMEOUT_MS));
+        setBlockedReasonChanged(BLOCKED_REASON_BATTERY_SAVER);
+        setBlockedReasonChanged(BLOCKED_METERED_REASON_USER_RESTRICTED);
+        setBlockedReasonChanged(BLOCKED_METERED_REASON_DATA_SAVER);
+        handlerBlocked.open();
+
+        // Only the latest reasons are delivered.
+        detailedCallback.expect(BLOCKED_STATUS_INT, mCellAgent,
+                cb -> cb.getReason() == BLOCKED_METERED_REASON_DATA_SAVER);
+        waitForIdle();
+        detailedCallback.assertNoCallback();
+        assertNull(mCm.getActiveNetwork());
+
+        mCm.unregisterNetworkCallback(detailedCallback);
+    }
+
     @Test
     public void testNetworkBlockedStatusBeforeAndAfterConnect() throws Exception {
         final TestNetworkCallback defaultCallback = new TestNetworkCallback();
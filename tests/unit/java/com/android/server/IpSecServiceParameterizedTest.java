@@ -1025,6 +1025,120 @@ public class IpSecServiceParameterizedTest {
         return tunnelResourceId;
     }
 
+    private int createTunnelModeTransform() throws Exception {
+        final IpSecConfig ipSecConfig = new IpSecConfig();
+        ipSecConfig.setMode(IpSecTransform.MODE_TUNNEL);
+        addDefaultSpisAndRemoteAddrToIpSecConfig(ipSecConfig);
+        addAuthAndCryptToIpSecConfig(ipSecConfig);
+        return mIpSecService.createTransform(ipSecConfig, new Binder(), BLESSED_PACKAGE)
+                .resourceId;
+    }
+
+    @Test
+    public void testApplyTunnelModeTransforms() throws Exception {
+        final int oldTransformResourceId = createTunnelModeTransform();
+        final int newTransformResourceId = createTunnelModeTransform();
+        final int tunnelResourceId =
+                createAndValidateTunnel(mSourceAddr, mDestinationAddr, BLESSED_PACKAGE).resourceId;
+
+        mIpSecService.applyTunnelModeTransforms(tunnelResourceId,
+                new int[] {DIRECTION_OUT, DIRECTION_IN},
+                new int[] {newTransformResourceId, newTransformResourceId},
+                new int[] {oldTransformResourceId}, BLESSED_PACKAGE);
+
+        for (int direction : new int[] {DIRECTION_OUT, DIRECTION_IN}) {
+            for (int selAddrFamily : ADDRESS_FAMILIES) {
+                verify(mMockNetd).ipSecUpdateSecurityPolicy(
+                        eq(mUid),
+                        eq(selAddrFamily),
+                        eq(direction),
+                        anyString(),
+                        anyString(),
+                        eq(direction == DIRECTION_OUT ? TEST_SPI : 0),
+                        anyInt(), // iKey/oKey
+                        anyInt(), // mask
+                        eq(tunnelResourceId));
+            }
+        }
+        // Only the old SA is deleted.
+        verify(mMockNetd, times(1)).ipSecDeleteSecurityAssociation(
+                anyInt(), anyString(), anyString(), anyInt(), anyInt(), anyInt(), anyInt());
+
+        final IpSecService.UserRecord userRecord =
+                mIpSecService.mUserResourceTracker.getUserRecord(mUid);
+        assertEquals(1, userRecord.mTransformQuotaTracker.mCurrent);
+        userRecord.mTransformRecords.getRefcountedResourceOrThrow(newTransformResourceId);
+        try {
+            userRecord.mTransformRecords.getRefcountedResourceOrThrow(oldTransformResourceId);
+            fail("Expected IllegalArgumentException on attempt to access deleted resource");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testApplyTunnelModeTransformsInvalidBatchHasNoEffect() throws Exception {
+        final int transformResourceId = createTunnelModeTransform();
+        final int tunnelResourceId =
+                createAndValidateTunnel(mSourceAddr, mDestinationAddr, BLESSED_PACKAGE).resourceId;
+
+        try {
+            mIpSecService.applyTunnelModeTransforms(tunnelResourceId,
+                    new int[] {DIRECTION_OUT}, new int[] {transformResourceId},
+                    new int[] {transformResourceId + 1000}, BLESSED_PACKAGE);
+            fail("Expected IllegalArgumentException for unknown transform to delete");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            mIpSecService.applyTunnelModeTransforms(tunnelResourceId,
+                    new int[] {DIRECTION_OUT}, new int[] {transformResourceId},
+                    new int[] {transformResourceId}, BLESSED_PACKAGE);
+            fail("Expected IllegalArgumentException for transform both applied and deleted");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        verify(mMockNetd, never()).ipSecUpdateSecurityPolicy(
+                anyInt(), anyInt(), anyInt(), anyString(), anyString(), anyInt(), anyInt(),
+                anyInt(), anyInt());
+        verify(mMockNetd, never()).ipSecDeleteSecurityAssociation(
+                anyInt(), anyString(), anyString(), anyInt(), anyInt(), anyInt(), anyInt());
+    }
+
+    @Test
+    public void testApplyTunnelModeTransformsClosedEncapSocketHasNoEffect() throws Exception {
+        // UDP encapsulation is only supported over IPv4.
+        if (mFamily != AF_INET) return;
+
+        final int transformResourceId = createTunnelModeTransform();
+        final IpSecUdpEncapResponse udpSock =
+                mIpSecService.openUdpEncapsulationSocket(0, new Binder());
+        final IpSecConfig ipSecConfig = new IpSecConfig();
+        ipSecConfig.setMode(IpSecTransform.MODE_TUNNEL);
+        addDefaultSpisAndRemoteAddrToIpSecConfig(ipSecConfig);
+        addAuthAndCryptToIpSecConfig(ipSecConfig);
+        addEncapSocketToIpSecConfig(udpSock.resourceId, ipSecConfig);
+        final int encapTransformResourceId =
+                mIpSecService.createTransform(ipSecConfig, new Binder(), BLESSED_PACKAGE)
+                        .resourceId;
+        final int tunnelResourceId =
+                createAndValidateTunnel(mSourceAddr, mDestinationAddr, BLESSED_PACKAGE).resourceId;
+        // The transform keeps the socket alive, but the caller no longer owns it.
+        mIpSecService.closeUdpEncapsulationSocket(udpSock.resourceId);
+
+        try {
+            mIpSecService.applyTunnelModeTransforms(tunnelResourceId,
+                    new int[] {DIRECTION_OUT, DIRECTION_IN},
+                    new int[] {transformResourceId, encapTransformResourceId},
+                    new int[0], BLESSED_PACKAGE);
+            fail("Expected IllegalArgumentException for closed encap socket");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        // The first transform was not applied either.
+        verify(mMockNetd, never()).ipSecUpdateSecurityPolicy(
+                anyInt(), anyInt(), anyInt(), anyString(), anyString(), anyInt(), anyInt(),
+                anyInt(), anyInt());
+    }
+
     @Test
     public void testApplyTunnelModeTransformWithClosedSpi() throws Exception {
         IpSecConfig ipSecConfig = new IpSecConfig();
@@ -70,7 +70,13 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /** Unit tests for {@link IpSecService}. */
 @SmallTest
@@ -83,6 +89,7 @@ public class IpSecServiceTest {
     private static final int MAX_NUM_SPIS = 100;
     private static final int TEST_UDP_ENCAP_INVALID_PORT = 100;
     private static final int TEST_UDP_ENCAP_PORT_OUT_RANGE = 200000;
+    private static final long TIMEOUT_MS = 10_000L;
 
     private static final InetAddress INADDR_ANY;
 
@@ -432,6 +439,44 @@ public class IpSecServiceTest {
         }
     }
 
+    @Test
+    public void testConcurrentAllocateAndReleaseSecurityParameterIndex() throws Exception {
+        final int numThreads = 4;
+        final int spisPerThread = IpSecService.UserRecord.MAX_NUM_SPIS / numThreads;
+        final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        final List<Future<List<Integer>>> futures = new ArrayList<>();
+        final Set<Integer> resourceIds = new HashSet<>();
+        try {
+            for (int i = 0; i < numThreads; i++) {
+                futures.add(executor.submit(() -> {
+                    final List<Integer> ids = new ArrayList<>();
+                    for (int j = 0; j < spisPerThread; j++) {
+                        final IpSecSpiResponse spiResp =
+                                mIpSecService.allocateSecurityParameterIndex(
+                                        "192.0.2.1", DROID_SPI, new Binder());
+                        assertEquals(IpSecManager.Status.OK, spiResp.status);
+                        ids.add(spiResp.resourceId);
+                    }
+                    for (int id : ids) {
+                        mIpSecService.releaseSecurityParameterIndex(id);
+                    }
+                    return ids;
+                }));
+            }
+            for (Future<List<Integer>> future : futures) {
+                resourceIds.addAll(future.get(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Resource IDs are unique across threads, and all the quota is returned.
+        assertEquals(IpSecService.UserRecord.MAX_NUM_SPIS, resourceIds.size());
+        IpSecService.UserRecord userRecord =
+                mIpSecService.mUserResourceTracker.getUserRecord(Os.getuid());
+        assertEquals(0, userRecord.mSpiQuotaTracker.mCurrent);
+    }
+
     @Test
     public void testRemoveTransportModeTransform() throws Exception {
         Socket socket = new Socket();
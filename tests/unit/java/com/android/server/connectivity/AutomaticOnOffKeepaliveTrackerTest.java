@@ -44,6 +44,7 @@ import static org.mockito.Mockito.ignoreStubs;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 
@@ -247,6 +248,10 @@ public class AutomaticOnOffKeepaliveTrackerTest {
         public final KeepalivePacketData kpd;
 
         TestKeepaliveInfo(KeepalivePacketData kpd) throws Exception {
+            this(kpd, mock(Network.class));
+        }
+
+        TestKeepaliveInfo(KeepalivePacketData kpd, Network underpinnedNetwork) throws Exception {
             this.kpd = kpd;
             socket = new Socket();
             socket.bind(null);
@@ -256,7 +261,7 @@ public class AutomaticOnOffKeepaliveTrackerTest {
             binder = new Binder();
             socketKeepaliveCallback = mock(ISocketKeepaliveCallback.class);
             doReturn(binder).when(socketKeepaliveCallback).asBinder();
-            underpinnedNetwork = mock(Network.class);
+            this.underpinnedNetwork = underpinnedNetwork;
         }
     }
 
@@ -422,6 +427,18 @@ public class AutomaticOnOffKeepaliveTrackerTest {
                 () -> assertFalse(mAOOKeepaliveTracker.isAnyTcpSocketConnected(TEST_NETID)));
     }
 
+    @Test
+    public void testIsAnyTcpSocketConnected_fwmarkFetchedOnce() throws Exception {
+        setupResponseWithoutSocketExisting();
+        visibleOnHandlerThread(mTestHandler,
+                () -> assertFalse(mAOOKeepaliveTracker.isAnyTcpSocketConnected(TEST_NETID)));
+        setupResponseWithSocketExisting();
+        visibleOnHandlerThread(mTestHandler,
+                () -> assertTrue(mAOOKeepaliveTracker.isAnyTcpSocketConnected(TEST_NETID)));
+
+        verify(mNetd).getFwmarkForNetwork(TEST_NETID);
+    }
+
     private void triggerEventKeepalive(int slot, int reason) {
         visibleOnHandlerThread(
                 mTestHandler,
@@ -429,6 +446,11 @@ public class AutomaticOnOffKeepaliveTrackerTest {
     }
 
     private TestKeepaliveInfo doStartNattKeepalive(int intervalSeconds) throws Exception {
+        return doStartNattKeepalive(intervalSeconds, mock(Network.class));
+    }
+
+    private TestKeepaliveInfo doStartNattKeepalive(int intervalSeconds,
+            Network underpinnedNetwork) throws Exception {
         final InetAddress srcAddress = InetAddress.getByAddress(
                 new byte[] { (byte) 192, 0, 0, (byte) 129 });
         final int srcPort = 12345;
@@ -440,7 +462,7 @@ public class AutomaticOnOffKeepaliveTrackerTest {
         final NattKeepalivePacketData kpd = new NattKeepalivePacketData(srcAddress, srcPort,
                 dstAddress, dstPort, new byte[] {1});
 
-        final TestKeepaliveInfo testInfo = new TestKeepaliveInfo(kpd);
+        final TestKeepaliveInfo testInfo = new TestKeepaliveInfo(kpd, underpinnedNetwork);
 
         final KeepaliveInfo ki = mKeepaliveTracker.new KeepaliveInfo(
                 testInfo.socketKeepaliveCallback, mNai, kpd, intervalSeconds,
@@ -508,6 +530,50 @@ public class AutomaticOnOffKeepaliveTrackerTest {
         assertEquals(testInfo.underpinnedNetwork, mTestHandler.mLastAutoKi.getUnderpinnedNetwork());
     }
 
+    @Test
+    public void testTcpPollingSharedOnSameUnderpinnedNetwork() throws Exception {
+        final long time = SystemClock.elapsedRealtime();
+        doReturn(time).when(mDependencies).getElapsedRealtime();
+        final Network underpinnedNetwork = mock(Network.class);
+        final TestKeepaliveInfo testInfo1 =
+                doStartNattKeepalive(TEST_KEEPALIVE_INTERVAL_SEC, underpinnedNetwork);
+        checkAndProcessKeepaliveStart(TEST_SLOT, testInfo1.kpd);
+
+        // The second keepalive starts later, but is aligned on the polling tick of the first one.
+        doReturn(time + 1000L).when(mDependencies).getElapsedRealtime();
+        final TestKeepaliveInfo testInfo2 =
+                doStartNattKeepalive(TEST_KEEPALIVE_INTERVAL_SEC, underpinnedNetwork);
+        checkAndProcessKeepaliveStart(TEST_SLOT + 1, testInfo2.kpd);
+        final long tick = time + TEST_KEEPALIVE_INTERVAL_SEC * 1000L - 2000L;
+        verify(mAlarmManager, times(2)).setExact(eq(AlarmManager.ELAPSED_REALTIME), eq(tick),
+                any() /* tag */, any(), eq(mTestHandler));
+
+        // Both keepalives are paused on that tick with a single socket dump.
+        doReturn(tick).when(mDependencies).getElapsedRealtime();
+        setupResponseWithoutSocketExisting();
+        final AutomaticOnOffKeepalive autoKi1 = getAutoKiForBinder(testInfo1.binder);
+        final AutomaticOnOffKeepalive autoKi2 = getAutoKiForBinder(testInfo2.binder);
+        visibleOnHandlerThread(mTestHandler, () -> {
+            mAOOKeepaliveTracker.handleMonitorAutomaticKeepalive(autoKi1, TEST_NETID);
+            mAOOKeepaliveTracker.handleMonitorAutomaticKeepalive(autoKi2, TEST_NETID);
+        });
+        verify(mDependencies).createConnectedNetlinkSocket();
+        checkAndProcessKeepaliveStop(TEST_SLOT);
+        checkAndProcessKeepaliveStop(TEST_SLOT + 1);
+        verify(testInfo1.socketKeepaliveCallback).onPaused();
+        verify(testInfo2.socketKeepaliveCallback).onPaused();
+
+        // Polling one of them again dumps the sockets again.
+        clearInvocations(mDependencies, mNai);
+        setupResponseWithSocketExisting();
+        visibleOnHandlerThread(mTestHandler,
+                () -> mAOOKeepaliveTracker.handleMonitorAutomaticKeepalive(autoKi1, TEST_NETID));
+        verify(mDependencies).createConnectedNetlinkSocket();
+        checkAndProcessKeepaliveStart(TEST_SLOT, testInfo1.kpd);
+        verify(testInfo1.socketKeepaliveCallback).onResumed();
+        verify(testInfo2.socketKeepaliveCallback, never()).onResumed();
+    }
+
     @Test
     public void testAlarm_writeMetrics() throws Exception {
         final ArgumentCaptor<AlarmManager.OnAlarmListener> listenerCaptor =
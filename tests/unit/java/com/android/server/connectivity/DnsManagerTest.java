@@ -37,6 +37,9 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -57,12 +60,14 @@ import android.net.ResolverParamsParcel;
 import android.net.RouteInfo;
 import android.net.shared.PrivateDnsConfig;
 import android.os.Build;
+import android.os.ServiceSpecificException;
 import android.provider.Settings;
 import android.test.mock.MockContentResolver;
 import android.util.SparseArray;
 
 import androidx.test.filters.SmallTest;
 
+import com.android.internal.util.IndentingPrintWriter;
 import com.android.internal.util.MessageUtils;
 import com.android.internal.util.test.FakeSettingsProvider;
 import com.android.testutils.DevSdkIgnoreRule;
@@ -77,6 +82,7 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.io.StringWriter;
 import java.net.InetAddress;
 import java.util.Arrays;
 
@@ -376,6 +382,52 @@ public class DnsManagerTest {
         assertResolverParamsEquals(actualParams, expectedParams);
     }
 
+    @Test
+    public void testSkipUnchangedDnsConfiguration() throws Exception {
+        reset(mMockDnsResolver);
+        mDnsManager.updatePrivateDns(new Network(TEST_NETID),
+                mDnsManager.getPrivateDnsConfig());
+        final LinkProperties lp = new LinkProperties();
+        lp.setInterfaceName(TEST_IFACENAME);
+        lp.addDnsServer(InetAddress.getByName("3.3.3.3"));
+        mDnsManager.updateTransportsForNetwork(TEST_NETID, TEST_TRANSPORT_TYPES);
+        mDnsManager.noteDnsServersForNetwork(TEST_NETID, lp);
+        verify(mMockDnsResolver, times(1)).setResolverConfiguration(any());
+
+        // Transport updates that change nothing the resolver uses are skipped.
+        mDnsManager.updateTransportsForNetwork(TEST_NETID, TEST_TRANSPORT_TYPES.clone());
+        verify(mMockDnsResolver, times(1)).setResolverConfiguration(any());
+
+        // Private DNS updates are always sent, even if nothing changed, because each push makes
+        // the resolver retry the validation of private DNS servers that failed.
+        mDnsManager.updatePrivateDns(new Network(TEST_NETID),
+                mDnsManager.getPrivateDnsConfig());
+        mDnsManager.noteDnsServersForNetwork(TEST_NETID, new LinkProperties(lp));
+        verify(mMockDnsResolver, times(2)).setResolverConfiguration(any());
+
+        // A failure to send the configuration is retried even if the configuration is the same.
+        lp.addDnsServer(InetAddress.getByName("4.4.4.4"));
+        doThrow(new ServiceSpecificException(1)).when(mMockDnsResolver)
+                .setResolverConfiguration(any());
+        mDnsManager.noteDnsServersForNetwork(TEST_NETID, lp);
+        verify(mMockDnsResolver, times(3)).setResolverConfiguration(any());
+        doNothing().when(mMockDnsResolver).setResolverConfiguration(any());
+        mDnsManager.updateTransportsForNetwork(TEST_NETID, TEST_TRANSPORT_TYPES);
+        verify(mMockDnsResolver, times(4)).setResolverConfiguration(any());
+
+        final StringWriter sw = new StringWriter();
+        final IndentingPrintWriter pw = new IndentingPrintWriter(sw, "  ");
+        mDnsManager.dump(pw);
+        pw.flush();
+        assertEquals("netId=" + TEST_NETID + " sent=4 skipped=1", sw.toString().trim());
+
+        // Removing the network forgets the configuration it had.
+        mDnsManager.removeNetwork(new Network(TEST_NETID));
+        mDnsManager.noteDnsServersForNetwork(TEST_NETID, lp);
+        mDnsManager.updateTransportsForNetwork(TEST_NETID, TEST_TRANSPORT_TYPES);
+        verify(mMockDnsResolver, times(5)).setResolverConfiguration(any());
+    }
+
     @Test
     public void testTransportTypesEqual() throws Exception {
         SparseArray<String> ncTransTypes = MessageUtils.findMessageNames(
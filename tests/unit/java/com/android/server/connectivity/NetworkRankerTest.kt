@@ -196,4 +196,15 @@ class NetworkRankerTest(private val activelyPreferBadWifi: Boolean) {
         val badExitingWifi = TestScore(score(EVER_EVALUATED, EVER_VALIDATED, EXITING), CAPS_WIFI)
         assertEquals(cell, rank(cell, badExitingWifi))
     }
+
+    @Test
+    fun testSuccessiveCriteria_doNotModifyCandidates() {
+        // The validated criterion keeps both cells, then the exiting criterion picks one of them
+        val unvalidatedWifi = TestScore(score(EVER_EVALUATED), CAPS_WIFI)
+        val exitingCell = TestScore(score(EVER_EVALUATED, IS_VALIDATED, EXITING), CAPS_CELL)
+        val cell = TestScore(score(EVER_EVALUATED, IS_VALIDATED), CAPS_CELL)
+        val candidates = listOf(unvalidatedWifi, exitingCell, cell)
+        assertEquals(cell, mRanker.getBestNetworkByPolicy(candidates, null /* currentSatisfier */))
+        assertEquals(listOf(unvalidatedWifi, exitingCell, cell), candidates)
+    }
 }
@@ -18,7 +18,10 @@ package com.android.server.connectivity.mdns;
 
 import static com.android.testutils.DevSdkIgnoreRuleKt.SC_V2;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.fail;
 
 import com.android.testutils.DevSdkIgnoreRule;
@@ -83,4 +86,58 @@ public class MdnsPacketReaderTests {
         }
         assertEquals(data.length, packetReader.getRemaining());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testReadLabels_withPointers() throws IOException {
+        final byte[] data = new byte[] {
+                // DNS header
+                0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+                // "_test._tcp.local" at offset 12
+                5, '_', 't', 'e', 's', 't', 4, '_', 't', 'c', 'p', 5, 'l', 'o', 'c', 'a', 'l', 0,
+                // "Name" followed by a pointer to "_test._tcp.local"
+                4, 'N', 'a', 'm', 'e', (byte) 0xC0, 12,
+                // Pointer to "_tcp.local"
+                (byte) 0xC0, 18,
+                // Pointer to an offset that is not the start of a label
+                (byte) 0xC0, 14 };
+        final MdnsPacketReader reader = new MdnsPacketReader(data, data.length);
+        reader.skip(12);
+
+        final String[] serviceType = reader.readLabels();
+        assertArrayEquals(new String[] { "_test", "_tcp", "local" }, serviceType);
+        // Common labels are shared instead of being allocated for every packet.
+        assertSame("_tcp", serviceType[1]);
+        assertSame("local", serviceType[2]);
+
+        assertArrayEquals(new String[] { "Name", "_test", "_tcp", "local" }, reader.readLabels());
+        assertArrayEquals(new String[] { "_tcp", "local" }, reader.readLabels());
+        assertThrows(IOException.class, reader::readLabels);
+    }
+
+    @Test
+    public void testReadLabels_pointerLoop() throws IOException {
+        final byte[] data = new byte[] {
+                // DNS header
+                0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+                // "Name" followed by a pointer to itself
+                4, 'N', 'a', 'm', 'e', (byte) 0xC0, 12 };
+        final MdnsPacketReader reader = new MdnsPacketReader(data, data.length);
+        reader.skip(12);
+
+        assertThrows(IOException.class, reader::readLabels);
+    }
+
+    @Test
+    public void testReadLabels_forwardPointer() throws IOException {
+        final byte[] data = new byte[] {
+                // DNS header
+                0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+                // Pointer to the following name
+                (byte) 0xC0, 14,
+                4, 'N', 'a', 'm', 'e', 0 };
+        final MdnsPacketReader reader = new MdnsPacketReader(data, data.length);
+        reader.skip(12);
+
+        assertThrows(IOException.class, reader::readLabels);
+    }
+}
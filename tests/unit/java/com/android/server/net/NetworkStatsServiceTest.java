@@ -54,8 +54,11 @@ import static android.net.NetworkTemplate.MATCH_WIFI;
 import static android.net.NetworkTemplate.OEM_MANAGED_NO;
 import static android.net.NetworkTemplate.OEM_MANAGED_YES;
 import static android.net.TrafficStats.MB_IN_BYTES;
+import static android.net.TrafficStats.TYPE_RX_BYTES;
+import static android.net.TrafficStats.TYPE_TX_PACKETS;
 import static android.net.TrafficStats.UID_REMOVED;
 import static android.net.TrafficStats.UID_TETHERING;
+import static android.net.TrafficStats.UNSUPPORTED;
 import static android.net.netstats.NetworkStatsDataMigrationUtils.PREFIX_UID;
 import static android.net.netstats.NetworkStatsDataMigrationUtils.PREFIX_UID_TAG;
 import static android.net.netstats.NetworkStatsDataMigrationUtils.PREFIX_XT;
@@ -120,6 +123,7 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.PowerManager;
+import android.os.Process;
 import android.os.SimpleClock;
 import android.provider.Settings;
 import android.system.ErrnoException;
@@ -127,6 +131,7 @@ import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.Pair;
+import android.util.SparseArray;
 
 import androidx.annotation.Nullable;
 import androidx.test.InstrumentationRegistry;
@@ -266,6 +271,10 @@ public class NetworkStatsServiceTest extends NetworkStatsBaseTest {
             UidStatsMapKey.class, StatsMapValue.class);
     private TestBpfMap<S32, StatsMapValue> mIfaceStatsMap = new TestBpfMap<>(
             S32.class, StatsMapValue.class);
+    // Counters returned by the native TrafficStats helpers, keyed by iface (IFACE_ALL for the
+    // total) or uid.
+    private final ArrayMap<String, long[]> mNativeIfaceStats = new ArrayMap<>();
+    private final SparseArray<long[]> mNativeUidStats = new SparseArray<>();
     private NetworkStatsService mService;
     private INetworkStatsSession mSession;
     private AlertObserver mAlertObserver;
@@ -453,6 +462,12 @@ public class NetworkStatsServiceTest extends NetworkStatsBaseTest {
                 return mHandlerThread;
             }
 
+            @Override
+            public Executor makePersistExecutor() {
+                // Write synchronously so that tests can check the persisted files directly.
+                return null;
+            }
+
             @Override
             public NetworkStatsSubscriptionsMonitor makeSubscriptionsMonitor(
                     @NonNull Context context, @NonNull Executor executor,
@@ -524,6 +539,39 @@ public class NetworkStatsServiceTest extends NetworkStatsBaseTest {
                     IBpfMap<CookieTagMapKey, CookieTagMapValue> cookieTagMap, Handler handler) {
                 return mSkDestroyListener;
             }
+
+            @Override
+            public long nativeGetTotalStat(int type) {
+                return nativeGetIfaceStat(IFACE_ALL, type);
+            }
+
+            @Override
+            public long nativeGetIfaceStat(String iface, int type) {
+                final long[] values = mNativeIfaceStats.get(iface);
+                return values == null ? UNSUPPORTED : values[type];
+            }
+
+            @Override
+            public long nativeGetUidStat(int uid, int type) {
+                final long[] values = mNativeUidStats.get(uid);
+                return values == null ? UNSUPPORTED : values[type];
+            }
+
+            @Override
+            public boolean nativeGetIfaceStats(String iface, long[] out) {
+                final long[] values = mNativeIfaceStats.get(iface);
+                if (values == null) return false;
+                System.arraycopy(values, 0, out, 0, out.length);
+                return true;
+            }
+
+            @Override
+            public boolean nativeGetUidStats(int uid, long[] out) {
+                final long[] values = mNativeUidStats.get(uid);
+                if (values == null) return false;
+                System.arraycopy(values, 0, out, 0, out.length);
+                return true;
+            }
         };
     }
 
@@ -1167,6 +1215,105 @@ public class NetworkStatsServiceTest extends NetworkStatsBaseTest {
                 DEFAULT_NETWORK_YES, 1024L, 8L, 512L, 4L, 0);
     }
 
+    @Test
+    public void testSummaryForAllUidPage() throws Exception {
+        // pretend that network comes online
+        mockDefaultSettings();
+        NetworkStateSnapshot[] states = new NetworkStateSnapshot[] {buildWifiState()};
+        mockNetworkStatsSummary(buildEmptyStats());
+        mockNetworkStatsUidDetail(buildEmptyStats());
+
+        mService.notifyNetworkStatus(NETWORKS_WIFI, states, getActiveIface(states),
+                new UnderlyingNetworkInfo[0]);
+
+        // create some traffic for two apps
+        incrementCurrentTime(HOUR_IN_MILLIS);
+        mockDefaultSettings();
+        mockNetworkStatsSummary(buildEmptyStats());
+        mockNetworkStatsUidDetail(new NetworkStats(getElapsedRealtime(), 1)
+                .insertEntry(TEST_IFACE, UID_RED, SET_DEFAULT, TAG_NONE, 50L, 5L, 50L, 5L, 0L)
+                .insertEntry(TEST_IFACE, UID_RED, SET_DEFAULT, 0xF00D, 10L, 1L, 10L, 1L, 0L)
+                .insertEntry(TEST_IFACE, UID_BLUE, SET_DEFAULT, TAG_NONE, 1024L, 8L, 512L, 4L, 0L));
+
+        forcePollAndWaitForIdle();
+
+        final NetworkStats expected = mSession.getSummaryForAllUid(
+                sTemplateWifi, Long.MIN_VALUE, Long.MAX_VALUE, true);
+        assertEquals(3, expected.size());
+
+        // Paging through the summary returns the same rows in the same order.
+        final NetworkStats page1 = mSession.getSummaryForAllUidPage(
+                sTemplateWifi, Long.MIN_VALUE, Long.MAX_VALUE, true, 0, 2);
+        final NetworkStats page2 = mSession.getSummaryForAllUidPage(
+                sTemplateWifi, Long.MIN_VALUE, Long.MAX_VALUE, true, 2, 2);
+        assertEquals(2, page1.size());
+        assertEquals(1, page2.size());
+        for (int i = 0; i < expected.size(); i++) {
+            final NetworkStats page = i < 2 ? page1 : page2;
+            assertEquals(expected.getValues(i, null), page.getValues(i % 2, null));
+        }
+
+        // The short page ended the enumeration and released the snapshot.
+        assertThrows(IllegalStateException.class, () -> mSession.getSummaryForAllUidPage(
+                sTemplateWifi, Long.MIN_VALUE, Long.MAX_VALUE, true, 3, 2));
+        assertThrows(IllegalArgumentException.class, () -> mSession.getSummaryForAllUidPage(
+                sTemplateWifi, Long.MIN_VALUE, Long.MAX_VALUE, true, 0, 0));
+
+        // A full last page is followed by an empty page served from the same snapshot.
+        assertEquals(3, mSession.getSummaryForAllUidPage(
+                sTemplateWifi, Long.MIN_VALUE, Long.MAX_VALUE, true, 0, 3).size());
+        assertEquals(0, mSession.getSummaryForAllUidPage(
+                sTemplateWifi, Long.MIN_VALUE, Long.MAX_VALUE, true, 3, 3).size());
+        assertThrows(IllegalStateException.class, () -> mSession.getSummaryForAllUidPage(
+                sTemplateWifi, Long.MIN_VALUE, Long.MAX_VALUE, true, 3, 3));
+    }
+
+    @Test
+    public void testSummaryForAllUidPage_pinsSnapshot() throws Exception {
+        // pretend that network comes online
+        mockDefaultSettings();
+        NetworkStateSnapshot[] states = new NetworkStateSnapshot[] {buildWifiState()};
+        mockNetworkStatsSummary(buildEmptyStats());
+        mockNetworkStatsUidDetail(buildEmptyStats());
+
+        mService.notifyNetworkStatus(NETWORKS_WIFI, states, getActiveIface(states),
+                new UnderlyingNetworkInfo[0]);
+
+        // create some traffic for two apps
+        incrementCurrentTime(HOUR_IN_MILLIS);
+        mockDefaultSettings();
+        mockNetworkStatsSummary(buildEmptyStats());
+        mockNetworkStatsUidDetail(new NetworkStats(getElapsedRealtime(), 1)
+                .insertEntry(TEST_IFACE, UID_RED, SET_DEFAULT, TAG_NONE, 50L, 5L, 50L, 5L, 0L)
+                .insertEntry(TEST_IFACE, UID_BLUE, SET_DEFAULT, TAG_NONE, 1024L, 8L, 512L, 4L, 0L));
+        forcePollAndWaitForIdle();
+
+        final NetworkStats expected = mSession.getSummaryForAllUid(
+                sTemplateWifi, Long.MIN_VALUE, Long.MAX_VALUE, false);
+        assertEquals(2, expected.size());
+        final NetworkStats page1 = mSession.getSummaryForAllUidPage(
+                sTemplateWifi, Long.MIN_VALUE, Long.MAX_VALUE, false, 0, 1);
+
+        // A third app shows up while the caller is iterating.
+        incrementCurrentTime(HOUR_IN_MILLIS);
+        mockDefaultSettings();
+        mockNetworkStatsSummary(buildEmptyStats());
+        mockNetworkStatsUidDetail(new NetworkStats(getElapsedRealtime(), 1)
+                .insertEntry(TEST_IFACE, UID_RED, SET_DEFAULT, TAG_NONE, 50L, 5L, 50L, 5L, 0L)
+                .insertEntry(TEST_IFACE, UID_BLUE, SET_DEFAULT, TAG_NONE, 1024L, 8L, 512L, 4L, 0L)
+                .insertEntry(TEST_IFACE, UID_GREEN, SET_DEFAULT, TAG_NONE, 16L, 1L, 16L, 1L, 0L));
+        forcePollAndWaitForIdle();
+
+        // The remaining pages still come from the snapshot taken for the first one.
+        final NetworkStats page2 = mSession.getSummaryForAllUidPage(
+                sTemplateWifi, Long.MIN_VALUE, Long.MAX_VALUE, false, 1, 1);
+        final NetworkStats page3 = mSession.getSummaryForAllUidPage(
+                sTemplateWifi, Long.MIN_VALUE, Long.MAX_VALUE, false, 2, 1);
+        assertEquals(expected.getValues(0, null), page1.getValues(0, null));
+        assertEquals(expected.getValues(1, null), page2.getValues(0, null));
+        assertEquals(0, page3.size());
+    }
+
     @Test
     public void testGetLatestSummary() throws Exception {
         // Pretend that network comes online.
@@ -1310,6 +1457,50 @@ public class NetworkStatsServiceTest extends NetworkStatsBaseTest {
                 METERED_NO, ROAMING_NO, DEFAULT_NETWORK_NO, 0L, 0L, 0L, 0L, 1);
     }
 
+    private void assertSnapshotMatchesGetters(NetworkStats snapshot, String iface, int uid) {
+        final int i = snapshot.findIndex(iface, uid, SET_DEFAULT, TAG_NONE, METERED_NO,
+                ROAMING_NO, DEFAULT_NETWORK_NO);
+        assertTrue(i >= 0);
+        final NetworkStats.Entry entry = snapshot.getValues(i, null);
+        final long[] values = {entry.rxBytes, entry.rxPackets, entry.txBytes, entry.txPackets};
+        for (int type = TYPE_RX_BYTES; type <= TYPE_TX_PACKETS; type++) {
+            final long expected;
+            if (uid != UID_ALL) {
+                expected = mService.getUidStats(uid, type);
+            } else if (iface == IFACE_ALL) {
+                expected = mService.getTotalStats(type);
+            } else {
+                expected = mService.getIfaceStats(iface, type);
+            }
+            assertEquals(expected, values[type]);
+        }
+    }
+
+    @Test
+    public void testGetTrafficStatsSnapshot() throws Exception {
+        final int myUid = Process.myUid();
+        mNativeIfaceStats.put(IFACE_ALL, new long[] {4096L, 4L, 2048L, 2L});
+        mNativeIfaceStats.put(TEST_IFACE, new long[] {1024L, 1L, 512L, 1L});
+        mNativeUidStats.put(myUid, new long[] {256L, 2L, 128L, 1L});
+        mNativeUidStats.put(UID_RED, new long[] {64L, 1L, 32L, 1L});
+
+        final NetworkStats snapshot = mService.getTrafficStatsSnapshot(myUid,
+                new String[] {TEST_IFACE, TEST_IFACE2});
+        // The uid, the total and TEST_IFACE. TEST_IFACE2 has no stats.
+        assertEquals(3, snapshot.size());
+        assertSnapshotMatchesGetters(snapshot, IFACE_ALL, myUid);
+        assertSnapshotMatchesGetters(snapshot, IFACE_ALL, UID_ALL);
+        assertSnapshotMatchesGetters(snapshot, TEST_IFACE, UID_ALL);
+        assertEquals(UNSUPPORTED, mService.getIfaceStats(TEST_IFACE2, TYPE_RX_BYTES));
+
+        // Like getUidStats, the snapshot does not contain the stats of other uids.
+        assertEquals(UNSUPPORTED, mService.getUidStats(UID_RED, TYPE_RX_BYTES));
+        final NetworkStats otherUidSnapshot = mService.getTrafficStatsSnapshot(UID_RED,
+                new String[0]);
+        assertEquals(1, otherUidSnapshot.size());
+        assertSnapshotMatchesGetters(otherUidSnapshot, IFACE_ALL, UID_ALL);
+    }
+
     @Test
     public void testForegroundBackground() throws Exception {
         // pretend that network comes online